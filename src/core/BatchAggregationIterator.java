@@ -0,0 +1,675 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import net.opentsdb.core.Aggregators.Interpolation;
+import net.opentsdb.rollup.RollupQuery;
+
+/**
+ * A batch mode alternative to {@link AggregationIterator} for the common
+ * sum, min, max, avg and count aggregators.
+ * <p>
+ * Instead of advancing the spans one data point at a time and calling the
+ * aggregator through the {@link Aggregator.Longs} interface for every output
+ * timestamp, this iterator buffers a block of up to {@link #BLOCK_SIZE} data
+ * points per span into flat primitive arrays. It then computes a block of
+ * output timestamps at once. Each span is walked once per block to
+ * interpolate its value at every output timestamp, and the value is folded
+ * into per-timestamp accumulators by a small primitive kernel.
+ * <p>
+ * The output is identical to that of {@link AggregationIterator}, including
+ * its rules for when the result is an integer, how each interpolation
+ * method fills gaps and how NaNs are skipped. Rates aren't supported as they
+ * reuse the previous rate instead of interpolating, so those queries keep
+ * using {@link AggregationIterator}, as do all other aggregators.
+ * <p>
+ * Every span iterator must return data points in strictly increasing time
+ * order, which all spans and downsamplers do.
+ * @since 2.4
+ */
+final class BatchAggregationIterator implements SeekableView, DataPoint {
+
+  /** Number of data points buffered per span and output timestamps per block */
+  static final int BLOCK_SIZE = 64;
+
+  /** The aggregation kernels supported in batch mode */
+  enum Kernel {
+    SUM,
+    MIN,
+    MAX,
+    AVG,
+    COUNT
+  }
+
+  /** The kernel to run */
+  private final Kernel kernel;
+
+  /** Interpolation method to use when aggregating time series */
+  private final Interpolation method;
+
+  /** Where we are in each span. */
+  private final SeekableView[] iterators;
+
+  /** Whether or not each span has been fully buffered. */
+  private final boolean[] exhausted;
+
+  /** Start time in ms. */
+  private final long start_time;
+
+  /** End time in ms. */
+  private final long end_time;
+
+  /** Buffered timestamps, {@link #BLOCK_SIZE} slots per span. */
+  private final long[] src_ts;
+
+  /** Buffered values, raw long bits for floating point values. */
+  private final long[] src_values;
+
+  /** Whether or not each buffered value is a floating point value. */
+  private final boolean[] src_float;
+
+  /** Number of buffered data points per span. */
+  private final int[] src_len;
+
+  /** Index of the next buffered data point per span that wasn't output. */
+  private final int[] src_head;
+
+  /** Output timestamps of the current block. */
+  private final long[] out_ts = new long[BLOCK_SIZE];
+
+  /** Output values of the current block, raw bits for floating points. */
+  private final long[] out_values = new long[BLOCK_SIZE];
+
+  /** Whether or not each output value is a floating point value. */
+  private final boolean[] out_float = new boolean[BLOCK_SIZE];
+
+  /** Integer accumulators. */
+  private final long[] long_acc = new long[BLOCK_SIZE];
+
+  /** Floating point accumulators. */
+  private final double[] double_acc = new double[BLOCK_SIZE];
+
+  /** Number of values accumulated per output timestamp. */
+  private final int[] counts = new int[BLOCK_SIZE];
+
+  /** Number of outputs in the current block. */
+  private int out_len;
+
+  /** Index of the current output in the block, -1 before the first next(). */
+  private int out_index;
+
+  /** Whether or not all the outputs have been computed. */
+  private boolean finished;
+
+  /**
+   * Creates a new batch iterator for a {@link SpanGroup}. The caller must
+   * have checked {@link #supports} first.
+   * @param spans Spans in a group.
+   * @param start_time Any data point strictly before this timestamp will be
+   * ignored.
+   * @param end_time Any data point strictly after this timestamp will be
+   * ignored.
+   * @param aggregator The aggregation function to use.
+   * @param method Interpolation method to use when aggregating time series
+   * @param downsampler The downsampling specifier to use, may be null
+   * @param query_start Start of the actual query
+   * @param query_end End of the actual query
+   * @param rollup_query An optional rollup query.
+   * @return A new iterator.
+   */
+  static BatchAggregationIterator create(final List<Span> spans,
+      final long start_time,
+      final long end_time,
+      final Aggregator aggregator,
+      final Interpolation method,
+      final DownsamplingSpecification downsampler,
+      final long query_start,
+      final long query_end,
+      final RollupQuery rollup_query) {
+    final int size = spans.size();
+    final SeekableView[] iterators = new SeekableView[size];
+    for (int i = 0; i < size; i++) {
+      if (downsampler == null ||
+          downsampler == DownsamplingSpecification.NO_DOWNSAMPLER) {
+        iterators[i] = spans.get(i).spanIterator();
+      } else {
+        iterators[i] = spans.get(i).downsampler(start_time, end_time,
+            downsampler, query_start, query_end, rollup_query);
+      }
+    }
+    return new BatchAggregationIterator(iterators, start_time, end_time,
+        aggregator, method);
+  }
+
+  /**
+   * @param aggregator The aggregator to check.
+   * @param rate Whether or not rates are computed.
+   * @return Whether or not the aggregation can run in batch mode.
+   */
+  static boolean supports(final Aggregator aggregator, final boolean rate) {
+    return !rate && kernelFor(aggregator) != null;
+  }
+
+  /**
+   * @param aggregator The aggregator to map.
+   * @return The kernel implementing the aggregator, null if there isn't one.
+   */
+  static Kernel kernelFor(final Aggregator aggregator) {
+    if (aggregator == Aggregators.SUM || aggregator == Aggregators.ZIMSUM ||
+        aggregator == Aggregators.PFSUM) {
+      return Kernel.SUM;
+    } else if (aggregator == Aggregators.MIN ||
+        aggregator == Aggregators.MIMMIN) {
+      return Kernel.MIN;
+    } else if (aggregator == Aggregators.MAX ||
+        aggregator == Aggregators.MIMMAX) {
+      return Kernel.MAX;
+    } else if (aggregator == Aggregators.AVG) {
+      return Kernel.AVG;
+    } else if (aggregator == Aggregators.COUNT) {
+      return Kernel.COUNT;
+    }
+    return null;
+  }
+
+  /**
+   * Creates a batch iterator for a group of data point iterators.
+   * @param iterators An array of Seekable views of spans in a group.
+   * @param start_time Any data point strictly before this timestamp will be
+   * ignored.
+   * @param end_time Any data point strictly after this timestamp will be
+   * ignored.
+   * @param aggregator The aggregation function to use.
+   * @param method Interpolation method to use when aggregating time series
+   * @throws IllegalArgumentException if the aggregator isn't supported.
+   */
+  @VisibleForTesting
+  BatchAggregationIterator(final SeekableView[] iterators,
+                           final long start_time,
+                           final long end_time,
+                           final Aggregator aggregator,
+                           final Interpolation method) {
+    kernel = kernelFor(aggregator);
+    if (kernel == null) {
+      throw new IllegalArgumentException("Aggregator " + aggregator
+          + " is not supported in batch mode");
+    }
+    this.iterators = iterators;
+    this.start_time = start_time;
+    this.end_time = end_time;
+    this.method = method;
+    final int size = iterators.length;
+    src_ts = new long[size * BLOCK_SIZE];
+    src_values = new long[size * BLOCK_SIZE];
+    src_float = new boolean[size * BLOCK_SIZE];
+    src_len = new int[size];
+    src_head = new int[size];
+    exhausted = new boolean[size];
+    seek(start_time);
+  }
+
+  // ------------------ //
+  // Iterator interface //
+  // ------------------ //
+
+  public boolean hasNext() {
+    if (out_index + 1 < out_len) {
+      return true;
+    }
+    if (finished) {
+      return false;
+    }
+    computeBlock();
+    out_index = -1;
+    return out_len > 0;
+  }
+
+  public DataPoint next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException("no more elements");
+    }
+    ++out_index;
+    return this;
+  }
+
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+  // ---------------------- //
+  // SeekableView interface //
+  // ---------------------- //
+
+  /**
+   * Seeks every span to the given time and drops
+   * anything buffered. Data points before the start time are still ignored.
+   * @param timestamp The timestamp to seek to.
+   */
+  public void seek(final long timestamp) {
+    for (int i = 0; i < iterators.length; i++) {
+      src_len[i] = 0;
+      src_head[i] = 0;
+      final SeekableView it = iterators[i];
+      it.seek(timestamp);
+      // skip to the first data point in range, the same way as the
+      // AggregationIterator does.
+      while (it.hasNext()) {
+        final DataPoint dp = it.next();
+        if (dp.timestamp() >= start_time) {
+          append(i, dp);
+          break;
+        }
+      }
+      exhausted[i] = src_len[i] == 0;
+    }
+    out_len = 0;
+    out_index = -1;
+    finished = false;
+  }
+
+  // ------------------- //
+  // DataPoint interface //
+  // ------------------- //
+
+  public long timestamp() {
+    return out_ts[out_index];
+  }
+
+  public boolean isInteger() {
+    return !out_float[out_index];
+  }
+
+  public long longValue() {
+    if (!out_float[out_index]) {
+      return out_values[out_index];
+    }
+    throw new ClassCastException("current value is a double: " + this);
+  }
+
+  public double doubleValue() {
+    if (out_float[out_index]) {
+      final double value = Double.longBitsToDouble(out_values[out_index]);
+      if (Double.isInfinite(value)) {
+        throw new IllegalStateException("Got Infinity: "
+           + value + " in this " + this);
+      }
+      return value;
+    }
+    throw new ClassCastException("current value is a long: " + this);
+  }
+
+  public double toDouble() {
+    return isInteger() ? longValue() : doubleValue();
+  }
+
+  @Override
+  public long valueCount() {
+    // same as the AggregationIterator
+    return iterators.length * 2;
+  }
+
+  // --------- //
+  // Internals //
+  // --------- //
+
+  /**
+   * Appends a data point to the buffer of a span.
+   * @param i The index of the span.
+   * @param dp The data point to append.
+   */
+  private void append(final int i, final DataPoint dp) {
+    final int slot = i * BLOCK_SIZE + src_len[i]++;
+    src_ts[slot] = dp.timestamp();
+    if (dp.isInteger()) {
+      src_values[slot] = dp.longValue();
+      src_float[slot] = false;
+    } else {
+      src_values[slot] = Double.doubleToRawLongBits(dp.doubleValue());
+      src_float[slot] = true;
+    }
+  }
+
+  /**
+   * Computes the next block of outputs. Sets {@link #finished} once there
+   * are no more timestamps in range.
+   */
+  private void computeBlock() {
+    out_len = 0;
+    while (out_len == 0) {
+      fill();
+
+      // we can only output timestamps for which every span that still has
+      // data knows both its previous and next data points.
+      long horizon = Long.MAX_VALUE;
+      for (int i = 0; i < iterators.length; i++) {
+        if (!exhausted[i]) {
+          final long last = src_ts[i * BLOCK_SIZE + src_len[i] - 1];
+          if (last < horizon) {
+            horizon = last;
+          }
+        }
+      }
+
+      // merge the distinct timestamps of each span
+      while (out_len < BLOCK_SIZE) {
+        long min_ts = Long.MAX_VALUE;
+        for (int i = 0; i < iterators.length; i++) {
+          if (src_head[i] < src_len[i]) {
+            final long ts = src_ts[i * BLOCK_SIZE + src_head[i]];
+            if (ts < min_ts) {
+              min_ts = ts;
+            }
+          }
+        }
+        if (min_ts > end_time) {
+          finished = true;
+          break;
+        }
+        if (min_ts >= horizon) {
+          break;
+        }
+        for (int i = 0; i < iterators.length; i++) {
+          if (src_head[i] < src_len[i] &&
+              src_ts[i * BLOCK_SIZE + src_head[i]] == min_ts) {
+            src_head[i]++;
+          }
+        }
+        out_ts[out_len++] = min_ts;
+      }
+      if (finished) {
+        break;
+      }
+    }
+    if (out_len > 0) {
+      aggregate();
+    }
+  }
+
+  /**
+   * Drops the data points that can't be used anymore, keeping the last one
+   * output by each span to interpolate from, then tops up the buffers.
+   * Spans stop being read after their first data point past the end time.
+   */
+  private void fill() {
+    for (int i = 0; i < iterators.length; i++) {
+      final int offset = i * BLOCK_SIZE;
+      final int keep_from = src_head[i] > 0 ? src_head[i] - 1 : 0;
+      if (keep_from > 0) {
+        final int remaining = src_len[i] - keep_from;
+        System.arraycopy(src_ts, offset + keep_from, src_ts, offset, remaining);
+        System.arraycopy(src_values, offset + keep_from, src_values, offset,
+            remaining);
+        System.arraycopy(src_float, offset + keep_from, src_float, offset,
+            remaining);
+        src_len[i] = remaining;
+        src_head[i] -= keep_from;
+      }
+      if (exhausted[i]) {
+        continue;
+      }
+      final SeekableView it = iterators[i];
+      while (src_len[i] < BLOCK_SIZE) {
+        if (!it.hasNext() || src_ts[offset + src_len[i] - 1] > end_time) {
+          exhausted[i] = true;
+          break;
+        }
+        append(i, it.next());
+      }
+    }
+  }
+
+  /**
+   * Interpolates each span at every output timestamp of the block and runs
+   * the kernel over the results.
+   */
+  private void aggregate() {
+    Arrays.fill(out_float, 0, out_len, false);
+    for (int i = 0; i < iterators.length; i++) {
+      markFloats(i);
+    }
+
+    final long long_identity;
+    final double double_identity;
+    switch (kernel) {
+      case MIN:
+        long_identity = Long.MAX_VALUE;
+        double_identity = Double.POSITIVE_INFINITY;
+        break;
+      case MAX:
+        long_identity = Long.MIN_VALUE;
+        double_identity = Double.NEGATIVE_INFINITY;
+        break;
+      default:
+        long_identity = 0;
+        double_identity = 0;
+    }
+    Arrays.fill(long_acc, 0, out_len, long_identity);
+    Arrays.fill(double_acc, 0, out_len, double_identity);
+    Arrays.fill(counts, 0, out_len, 0);
+    for (int i = 0; i < iterators.length; i++) {
+      accumulate(i);
+    }
+
+    for (int j = 0; j < out_len; j++) {
+      if (out_float[j]) {
+        final double value;
+        switch (kernel) {
+          case SUM:
+            value = counts[j] == 0 ? Double.NaN : double_acc[j];
+            break;
+          case MIN:
+            value = double_acc[j] == Double.POSITIVE_INFINITY ?
+                Double.NaN : double_acc[j];
+            break;
+          case MAX:
+            value = double_acc[j] == Double.NEGATIVE_INFINITY ?
+                Double.NaN : double_acc[j];
+            break;
+          case AVG:
+            value = counts[j] == 0 ? Double.NaN : double_acc[j] / counts[j];
+            break;
+          default:
+            value = counts[j];
+        }
+        out_values[j] = Double.doubleToRawLongBits(value);
+      } else {
+        switch (kernel) {
+          case AVG:
+            out_values[j] = long_acc[j] / counts[j];
+            break;
+          case COUNT:
+            out_values[j] = counts[j];
+            break;
+          default:
+            out_values[j] = long_acc[j];
+        }
+      }
+    }
+  }
+
+  /**
+   * Flags the outputs that must be computed as floating point values. Like
+   * in the AggregationIterator, an output is a float as soon as any span has
+   * a float among the data points on either side of it, even if that span
+   * doesn't contribute a value yet.
+   * @param i The index of the span.
+   */
+  private void markFloats(final int i) {
+    final int len = src_len[i];
+    if (len == 0) {
+      return;
+    }
+    final int offset = i * BLOCK_SIZE;
+    int k = 0;
+    for (int j = 0; j < out_len; j++) {
+      final long x = out_ts[j];
+      while (k + 1 < len && src_ts[offset + k + 1] <= x) {
+        k++;
+      }
+      if (src_ts[offset + k] > x) {
+        // not started yet, only the next data point is loaded
+        out_float[j] |= src_float[offset];
+      } else if (k + 1 < len) {
+        out_float[j] |= src_float[offset + k] | src_float[offset + k + 1];
+      } else if (src_ts[offset + k] == x) {
+        // last data point of the span
+        out_float[j] |= src_float[offset + k];
+      }
+    }
+  }
+
+  /**
+   * Interpolates a span at each output timestamp and folds the value into
+   * the accumulators.
+   * @param i The index of the span.
+   */
+  private void accumulate(final int i) {
+    final int len = src_len[i];
+    if (len == 0) {
+      return;
+    }
+    final int offset = i * BLOCK_SIZE;
+    int k = 0;
+    for (int j = 0; j < out_len; j++) {
+      final long x = out_ts[j];
+      while (k + 1 < len && src_ts[offset + k + 1] <= x) {
+        k++;
+      }
+      final int cur = offset + k;
+      final long x0 = src_ts[cur];
+      if (x0 > x) {
+        continue; // not started yet
+      }
+      final boolean exact = x0 == x;
+      if (!exact && k + 1 >= len) {
+        continue; // ended before x
+      }
+      if (out_float[j]) {
+        final double y0 = src_float[cur] ?
+            Double.longBitsToDouble(src_values[cur]) : src_values[cur];
+        final double value;
+        if (exact) {
+          value = y0;
+        } else {
+          final double y1 = src_float[cur + 1] ?
+              Double.longBitsToDouble(src_values[cur + 1])
+              : src_values[cur + 1];
+          final long x1 = src_ts[cur + 1];
+          switch (method) {
+            case LERP:
+              value = y0 + (x - x0) * (y1 - y0) / (x1 - x0);
+              break;
+            case ZIM:
+              value = 0;
+              break;
+            case MAX:
+              value = Double.MAX_VALUE;
+              break;
+            case MIN:
+              value = Double.MIN_VALUE;
+              break;
+            case PREV:
+              value = y0;
+              break;
+            default:
+              throw new IllegalDataException("Invalid interpolation somehow??");
+          }
+        }
+        if (Double.isNaN(value)) {
+          continue;
+        }
+        switch (kernel) {
+          case SUM:
+          case AVG:
+            double_acc[j] += value;
+            break;
+          case MIN:
+            if (value < double_acc[j]) {
+              double_acc[j] = value;
+            }
+            break;
+          case MAX:
+            if (value > double_acc[j]) {
+              double_acc[j] = value;
+            }
+            break;
+          default:
+        }
+        counts[j]++;
+      } else {
+        final long y0 = src_values[cur];
+        final long value;
+        if (exact) {
+          value = y0;
+        } else {
+          final long y1 = src_values[cur + 1];
+          final long x1 = src_ts[cur + 1];
+          switch (method) {
+            case LERP:
+              value = y0 + (x - x0) * (y1 - y0) / (x1 - x0);
+              break;
+            case ZIM:
+              value = 0;
+              break;
+            case MAX:
+              value = Long.MAX_VALUE;
+              break;
+            case MIN:
+              value = Long.MIN_VALUE;
+              break;
+            case PREV:
+              value = y0;
+              break;
+            default:
+              throw new IllegalDataException("Invalid interpolation somehow??");
+          }
+        }
+        switch (kernel) {
+          case SUM:
+          case AVG:
+            long_acc[j] += value;
+            break;
+          case MIN:
+            if (value < long_acc[j]) {
+              long_acc[j] = value;
+            }
+            break;
+          case MAX:
+            if (value > long_acc[j]) {
+              long_acc[j] = value;
+            }
+            break;
+          default:
+        }
+        counts[j]++;
+      }
+    }
+  }
+
+  public String toString() {
+    return "BatchAggregationIterator(out_index=" + out_index
+      + ", out_len=" + out_len
+      + ", spans=" + iterators.length
+      + ", start_time=" + start_time
+      + ", end_time=" + end_time
+      + ", kernel=" + kernel
+      + ", method=" + method
+      + ')';
+  }
+}
@@ -0,0 +1,504 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.Bytes.ByteMap;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.meta.Annotation;
+
+/**
+ * An immutable, fully materialized aggregated time series as stored in the
+ * {@link QueryResultCache}. The names and UIDs of the metric and tags are
+ * resolved up front and the data points are kept in primitive arrays so that
+ * slices of a series can be cached per time bucket and spliced back together
+ * with fresh results from storage.
+ * @since 2.4
+ */
+final class CachedSeries implements DataPoints {
+
+  /** Rough per object overhead used when estimating the heap size */
+  private static final int OBJECT_OVERHEAD = 16;
+
+  private final String metric;
+  private final byte[] metric_uid;
+  private final Map<String, String> tags;
+  private final ByteMap<byte[]> tag_uids;
+  private final List<String> aggregated_tags;
+  private final List<byte[]> aggregated_tag_uids;
+  private final List<String> tsuids;
+  private final List<Annotation> annotations;
+  private final int query_index;
+
+  /** The values of the group by tags, identifies the series in a sub query */
+  private final byte[] group_key;
+
+  /** Timestamps in milliseconds, ascending */
+  private final long[] timestamps;
+
+  /** Values, raw long bits for floating point values */
+  private final long[] values;
+
+  /** Whether or not each value is a floating point value */
+  private final boolean[] floats;
+
+  /**
+   * Default ctor. The collections and arrays are not copied.
+   */
+  CachedSeries(final String metric,
+               final byte[] metric_uid,
+               final Map<String, String> tags,
+               final ByteMap<byte[]> tag_uids,
+               final List<String> aggregated_tags,
+               final List<byte[]> aggregated_tag_uids,
+               final List<String> tsuids,
+               final List<Annotation> annotations,
+               final int query_index,
+               final byte[] group_key,
+               final long[] timestamps,
+               final long[] values,
+               final boolean[] floats) {
+    this.metric = metric;
+    this.metric_uid = metric_uid;
+    this.tags = tags;
+    this.tag_uids = tag_uids;
+    this.aggregated_tags = aggregated_tags;
+    this.aggregated_tag_uids = aggregated_tag_uids;
+    this.tsuids = tsuids;
+    this.annotations = annotations;
+    this.query_index = query_index;
+    this.group_key = group_key;
+    this.timestamps = timestamps;
+    this.values = values;
+    this.floats = floats;
+  }
+
+  /**
+   * Resolves the names of a result set from storage and copies all of its
+   * data points.
+   * @param dps The results to materialize.
+   * @param group_key The values of the group by tags for the series.
+   * @return A deferred resolving to the materialized series.
+   */
+  static Deferred<CachedSeries> fromDataPoints(final DataPoints dps,
+                                               final byte[] group_key) {
+    // SpanGroup.size() runs the whole aggregation so grow as we go instead
+    long[] timestamps = new long[64];
+    long[] values = new long[64];
+    boolean[] floats = new boolean[64];
+    final SeekableView it = dps.iterator();
+    int i = 0;
+    while (it.hasNext()) {
+      final DataPoint dp = it.next();
+      if (i == timestamps.length) {
+        timestamps = Arrays.copyOf(timestamps, i * 2);
+        values = Arrays.copyOf(values, i * 2);
+        floats = Arrays.copyOf(floats, i * 2);
+      }
+      timestamps[i] = dp.timestamp();
+      if (dp.isInteger()) {
+        values[i] = dp.longValue();
+      } else {
+        values[i] = Double.doubleToRawLongBits(dp.doubleValue());
+        floats[i] = true;
+      }
+      i++;
+    }
+    final long[] final_timestamps = Arrays.copyOf(timestamps, i);
+    final long[] final_values = Arrays.copyOf(values, i);
+    final boolean[] final_floats = Arrays.copyOf(floats, i);
+
+    final String[] metric = new String[1];
+    @SuppressWarnings("unchecked")
+    final Map<String, String>[] tags = new Map[1];
+
+    class AggTagsCB implements Callback<CachedSeries, List<String>> {
+      @Override
+      public CachedSeries call(final List<String> aggregated_tags) {
+        final List<String> tsuids = dps.getTSUIDs();
+        final List<Annotation> notes = dps.getAnnotations();
+        final ByteMap<byte[]> tag_uids = new ByteMap<byte[]>();
+        if (dps.getTagUids() != null) {
+          tag_uids.putAll(dps.getTagUids());
+        }
+        return new CachedSeries(metric[0], dps.metricUID(),
+            tags[0] == null ? Collections.<String, String>emptyMap() : tags[0],
+            tag_uids,
+            aggregated_tags == null ?
+                Collections.<String>emptyList() : aggregated_tags,
+            dps.getAggregatedTagUids() == null ?
+                Collections.<byte[]>emptyList() : dps.getAggregatedTagUids(),
+            tsuids == null ? Collections.<String>emptyList() : tsuids,
+            notes == null ? Collections.<Annotation>emptyList() : notes,
+            dps.getQueryIndex(), group_key, final_timestamps, final_values,
+            final_floats);
+      }
+    }
+
+    class TagsCB implements Callback<Deferred<CachedSeries>,
+        Map<String, String>> {
+      @Override
+      public Deferred<CachedSeries> call(final Map<String, String> resolved) {
+        tags[0] = resolved;
+        return dps.getAggregatedTagsAsync().addCallback(new AggTagsCB());
+      }
+    }
+
+    class MetricCB implements Callback<Deferred<CachedSeries>, String> {
+      @Override
+      public Deferred<CachedSeries> call(final String name) {
+        metric[0] = name;
+        return dps.getTagsAsync().addCallbackDeferring(new TagsCB());
+      }
+    }
+
+    return dps.metricNameAsync().addCallbackDeferring(new MetricCB());
+  }
+
+  /**
+   * Creates a series with the meta data of this one and a value for each of
+   * the given timestamps. Used to stand in for a series that had no data in
+   * part of the query range.
+   * @param timestamps The timestamps to fill.
+   * @param value The value to fill with.
+   * @return A new series.
+   */
+  CachedSeries fill(final long[] timestamps, final double value) {
+    final long[] values = new long[timestamps.length];
+    final boolean[] floats = new boolean[timestamps.length];
+    Arrays.fill(values, Double.doubleToRawLongBits(value));
+    Arrays.fill(floats, true);
+    return new CachedSeries(metric, metric_uid, tags, tag_uids,
+        aggregated_tags, aggregated_tag_uids,
+        Collections.<String>emptyList(), Collections.<Annotation>emptyList(),
+        query_index, group_key, timestamps, values, floats);
+  }
+
+  /**
+   * Returns the data points with timestamps between {@code start}, inclusive,
+   * and {@code end}, exclusive.
+   * @param start The first timestamp to include in milliseconds.
+   * @param end The first timestamp to exclude in milliseconds.
+   * @return A new series, possibly empty, or this if all of the data points
+   * are in range.
+   */
+  CachedSeries slice(final long start, final long end) {
+    int from = Arrays.binarySearch(timestamps, start);
+    if (from < 0) {
+      from = -from - 1;
+    }
+    int to = Arrays.binarySearch(timestamps, end);
+    if (to < 0) {
+      to = -to - 1;
+    }
+
+    List<Annotation> notes = annotations;
+    if (!annotations.isEmpty()) {
+      notes = new ArrayList<Annotation>();
+      for (final Annotation note : annotations) {
+        long ts = note.getStartTime();
+        if ((ts & Const.SECOND_MASK) == 0) {
+          ts *= 1000;
+        }
+        if (ts >= start && ts < end) {
+          notes.add(note);
+        }
+      }
+    }
+
+    if (from == 0 && to == timestamps.length &&
+        notes.size() == annotations.size()) {
+      return this;
+    }
+    return new CachedSeries(metric, metric_uid, tags, tag_uids,
+        aggregated_tags, aggregated_tag_uids, tsuids, notes, query_index,
+        group_key, Arrays.copyOfRange(timestamps, from, to),
+        Arrays.copyOfRange(values, from, to),
+        Arrays.copyOfRange(floats, from, to));
+  }
+
+  /**
+   * Concatenates consecutive slices of the same series. Tags that don't have
+   * the same value in every slice become aggregated tags, just like they
+   * would have if the whole range had been fetched at once.
+   * @param parts The slices in time order, may not be empty.
+   * @return The merged series.
+   */
+  static CachedSeries merge(final List<CachedSeries> parts) {
+    if (parts.size() == 1) {
+      return parts.get(0);
+    }
+    final CachedSeries first = parts.get(0);
+    final Map<String, String> tags = new HashMap<String, String>(first.tags);
+    final ByteMap<byte[]> tag_uids = new ByteMap<byte[]>();
+    tag_uids.putAll(first.tag_uids);
+    final LinkedHashSet<String> aggregated_tags = new LinkedHashSet<String>();
+    final ByteMap<Boolean> aggregated_tag_uids = new ByteMap<Boolean>();
+    final LinkedHashSet<String> tsuids = new LinkedHashSet<String>();
+    final List<Annotation> notes = new ArrayList<Annotation>();
+    int size = 0;
+    for (final CachedSeries part : parts) {
+      size += part.timestamps.length;
+      aggregated_tags.addAll(part.aggregated_tags);
+      for (final byte[] tagk : part.aggregated_tag_uids) {
+        aggregated_tag_uids.put(tagk, true);
+      }
+      tsuids.addAll(part.tsuids);
+      notes.addAll(part.annotations);
+    }
+    for (final CachedSeries part : parts) {
+      for (final Map.Entry<String, String> tag : first.tags.entrySet()) {
+        if (!tag.getValue().equals(part.tags.get(tag.getKey()))) {
+          tags.remove(tag.getKey());
+          aggregated_tags.add(tag.getKey());
+        }
+      }
+      for (final Map.Entry<byte[], byte[]> tag : first.tag_uids.entrySet()) {
+        final byte[] value = part.tag_uids.get(tag.getKey());
+        if (value == null || Bytes.memcmp(value, tag.getValue()) != 0) {
+          tag_uids.remove(tag.getKey());
+          aggregated_tag_uids.put(tag.getKey(), true);
+        }
+      }
+    }
+
+    final long[] timestamps = new long[size];
+    final long[] values = new long[size];
+    final boolean[] floats = new boolean[size];
+    int offset = 0;
+    for (final CachedSeries part : parts) {
+      final int length = part.timestamps.length;
+      System.arraycopy(part.timestamps, 0, timestamps, offset, length);
+      System.arraycopy(part.values, 0, values, offset, length);
+      System.arraycopy(part.floats, 0, floats, offset, length);
+      offset += length;
+    }
+    return new CachedSeries(first.metric, first.metric_uid, tags, tag_uids,
+        new ArrayList<String>(aggregated_tags),
+        new ArrayList<byte[]>(aggregated_tag_uids.keySet()),
+        new ArrayList<String>(tsuids), notes, first.query_index,
+        first.group_key, timestamps, values, floats);
+  }
+
+  /** @return A rough estimate of the heap used by this series in bytes */
+  long estimateBytes() {
+    long bytes = OBJECT_OVERHEAD * 4 + group_key.length +
+        (metric == null ? 0 : metric.length() * 2) +
+        (metric_uid == null ? 0 : metric_uid.length);
+    // timestamp, value and flag per data point
+    bytes += timestamps.length * 17L;
+    for (final Map.Entry<String, String> tag : tags.entrySet()) {
+      bytes += OBJECT_OVERHEAD * 2 +
+          (tag.getKey().length() + tag.getValue().length()) * 2;
+    }
+    for (final Map.Entry<byte[], byte[]> tag : tag_uids.entrySet()) {
+      bytes += OBJECT_OVERHEAD * 2 + tag.getKey().length +
+          tag.getValue().length;
+    }
+    for (final String tag : aggregated_tags) {
+      bytes += OBJECT_OVERHEAD + tag.length() * 2;
+    }
+    for (final byte[] tag : aggregated_tag_uids) {
+      bytes += OBJECT_OVERHEAD + tag.length;
+    }
+    for (final String tsuid : tsuids) {
+      bytes += OBJECT_OVERHEAD + tsuid.length() * 2;
+    }
+    bytes += annotations.size() * OBJECT_OVERHEAD * 8;
+    return bytes;
+  }
+
+  /** @return The values of the group by tags of the series */
+  byte[] groupKey() {
+    return group_key;
+  }
+
+  /** @return The timestamps of the data points, must not be modified */
+  long[] timestamps() {
+    return timestamps;
+  }
+
+  @Override
+  public String metricName() {
+    return metric;
+  }
+
+  @Override
+  public Deferred<String> metricNameAsync() {
+    return Deferred.fromResult(metric);
+  }
+
+  @Override
+  public byte[] metricUID() {
+    return metric_uid;
+  }
+
+  @Override
+  public Map<String, String> getTags() {
+    return tags;
+  }
+
+  @Override
+  public Deferred<Map<String, String>> getTagsAsync() {
+    return Deferred.fromResult(tags);
+  }
+
+  @Override
+  public ByteMap<byte[]> getTagUids() {
+    return tag_uids;
+  }
+
+  @Override
+  public List<String> getAggregatedTags() {
+    return aggregated_tags;
+  }
+
+  @Override
+  public Deferred<List<String>> getAggregatedTagsAsync() {
+    return Deferred.fromResult(aggregated_tags);
+  }
+
+  @Override
+  public List<byte[]> getAggregatedTagUids() {
+    return aggregated_tag_uids;
+  }
+
+  @Override
+  public List<String> getTSUIDs() {
+    return tsuids;
+  }
+
+  @Override
+  public List<Annotation> getAnnotations() {
+    return annotations;
+  }
+
+  @Override
+  public int size() {
+    return timestamps.length;
+  }
+
+  @Override
+  public int aggregatedSize() {
+    return timestamps.length;
+  }
+
+  @Override
+  public SeekableView iterator() {
+    return new Iterator();
+  }
+
+  @Override
+  public long timestamp(final int i) {
+    return timestamps[i];
+  }
+
+  @Override
+  public boolean isInteger(final int i) {
+    return !floats[i];
+  }
+
+  @Override
+  public long longValue(final int i) {
+    if (floats[i]) {
+      throw new ClassCastException("value #" + i + " is not a long in "
+          + this);
+    }
+    return values[i];
+  }
+
+  @Override
+  public double doubleValue(final int i) {
+    if (!floats[i]) {
+      throw new ClassCastException("value #" + i + " is not a float in "
+          + this);
+    }
+    return Double.longBitsToDouble(values[i]);
+  }
+
+  @Override
+  public int getQueryIndex() {
+    return query_index;
+  }
+
+  @Override
+  public boolean isPercentile() {
+    return false;
+  }
+
+  @Override
+  public float getPercentile() {
+    throw new UnsupportedOperationException("getPercentile not supported");
+  }
+
+  @Override
+  public String toString() {
+    return "CachedSeries(metric=" + metric
+        + ", tags=" + tags
+        + ", aggregated_tags=" + aggregated_tags
+        + ", query_index=" + query_index
+        + ", size=" + timestamps.length
+        + ')';
+  }
+
+  /** Iterates over the data points, reusing a single data point. */
+  private final class Iterator implements SeekableView {
+    private final MutableDataPoint dp = new MutableDataPoint();
+    private int index;
+
+    @Override
+    public boolean hasNext() {
+      return index < timestamps.length;
+    }
+
+    @Override
+    public DataPoint next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException("no more elements");
+      }
+      if (floats[index]) {
+        dp.reset(timestamps[index], Double.longBitsToDouble(values[index]));
+      } else {
+        dp.reset(timestamps[index], values[index]);
+      }
+      index++;
+      return dp;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void seek(final long timestamp) {
+      int i = Arrays.binarySearch(timestamps, timestamp);
+      if (i < 0) {
+        i = -i - 1;
+      }
+      index = i;
+    }
+  }
+}
@@ -0,0 +1,236 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.opentsdb.stats.StatsCollector;
+
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * A pool of fixed size, off-heap slabs used to hold the decoded columns of
+ * {@link ColumnarRowSeq}s. Each query takes a {@link Region} from the arena,
+ * carves its columns out of the region's slabs and releases the region once
+ * the response has been sent, returning the slabs to the pool for the next
+ * query. This keeps the millions of small per-row arrays of a large query
+ * off the Java heap.
+ * <p>
+ * Up to {@code max_pooled} slabs are kept around between queries, any extra
+ * slabs are dropped and left for the garbage collector.
+ * @since 2.4
+ */
+public final class ColumnarArena {
+
+  /** Size of each slab in bytes */
+  private final int slab_size;
+
+  /** Maximum number of free slabs kept in the pool */
+  private final int max_pooled;
+
+  /** Free slabs ready to be handed out */
+  private final ConcurrentLinkedQueue<ByteBuffer> pool =
+      new ConcurrentLinkedQueue<ByteBuffer>();
+
+  /** Number of slabs currently in the pool */
+  private final AtomicInteger pooled = new AtomicInteger();
+
+  /** Number of slabs currently held by regions */
+  private final AtomicInteger in_use = new AtomicInteger();
+
+  /** Total number of slabs allocated since startup */
+  private final AtomicLong allocated = new AtomicLong();
+
+  /** Number of allocations too large for a slab */
+  private final AtomicLong oversized = new AtomicLong();
+
+  /** Number of regions handed out since startup */
+  private final AtomicLong regions = new AtomicLong();
+
+  /**
+   * Default ctor.
+   * @param slab_size The size of each slab in bytes. Must be greater than 0.
+   * @param max_pool_bytes The maximum number of bytes worth of free slabs to
+   * keep in the pool. May be 0 to always allocate fresh slabs.
+   * @throws IllegalArgumentException if the slab size was less than 1 or the
+   * pool size was negative.
+   */
+  public ColumnarArena(final int slab_size, final long max_pool_bytes) {
+    if (slab_size < 1) {
+      throw new IllegalArgumentException("Slab size must be greater than 0: "
+          + slab_size);
+    }
+    if (max_pool_bytes < 0) {
+      throw new IllegalArgumentException("Pool size cannot be negative: "
+          + max_pool_bytes);
+    }
+    this.slab_size = slab_size;
+    max_pooled = (int) Math.min(Integer.MAX_VALUE, max_pool_bytes / slab_size);
+  }
+
+  /**
+   * Builds an arena from the {@code tsd.query.columnar_spans.*} settings.
+   * @param tsdb The TSDB to load the config from.
+   * @return A new arena.
+   */
+  static ColumnarArena fromConfig(final TSDB tsdb) {
+    return new ColumnarArena(
+        tsdb.getConfig().getInt("tsd.query.columnar_spans.slab_size"),
+        tsdb.getConfig().getLong("tsd.query.columnar_spans.max_pool_bytes"));
+  }
+
+  /** @return A new, empty region for a query. Must be released when the
+   * query is done with its data. */
+  public Region newRegion() {
+    regions.incrementAndGet();
+    return new Region();
+  }
+
+  /** @param collector The collector to write stats to */
+  public void collectStats(final StatsCollector collector) {
+    collector.record("query.arena.slabs.pooled", pooled.get());
+    collector.record("query.arena.slabs.in_use", in_use.get());
+    collector.record("query.arena.slabs.allocated", allocated.get());
+    collector.record("query.arena.oversized", oversized.get());
+    collector.record("query.arena.regions", regions.get());
+  }
+
+  /** @return The size of each slab in bytes */
+  public int slabSize() {
+    return slab_size;
+  }
+
+  /** @return The number of free slabs in the pool */
+  @VisibleForTesting
+  int pooledSlabs() {
+    return pooled.get();
+  }
+
+  /** @return The number of slabs held by live regions */
+  @VisibleForTesting
+  int slabsInUse() {
+    return in_use.get();
+  }
+
+  /** @return A cleared slab from the pool or a freshly allocated one */
+  private ByteBuffer takeSlab() {
+    ByteBuffer slab = pool.poll();
+    if (slab == null) {
+      slab = ByteBuffer.allocateDirect(slab_size);
+      allocated.incrementAndGet();
+    } else {
+      pooled.decrementAndGet();
+      slab.clear();
+    }
+    in_use.incrementAndGet();
+    return slab;
+  }
+
+  /** @param slab A slab to put back in the pool if there is room */
+  private void returnSlab(final ByteBuffer slab) {
+    in_use.decrementAndGet();
+    if (pooled.incrementAndGet() <= max_pooled) {
+      pool.offer(slab);
+    } else {
+      pooled.decrementAndGet();
+    }
+  }
+
+  /**
+   * A bump allocator over slabs taken from the arena. Allocations are never
+   * freed individually, the whole region is handed back at once with
+   * {@link #release()}. Buffers handed out by the region must not be read
+   * after it was released as the memory is recycled for other queries.
+   * <p>
+   * Salt bucket spans may be built in parallel so allocation is synchronized.
+   */
+  public final class Region {
+
+    /** Slabs taken from the arena */
+    private final ArrayList<ByteBuffer> slabs = new ArrayList<ByteBuffer>(1);
+
+    /** The slab we're currently carving buffers out of */
+    private ByteBuffer current;
+
+    /** Total bytes handed out */
+    private long bytes;
+
+    /** Whether or not the region was released */
+    private boolean released;
+
+    private Region() {
+    }
+
+    /**
+     * Hands out a native ordered buffer of at least the given size. Sizes are
+     * rounded up to a multiple of 8 so that long columns stay aligned.
+     * @param size The number of bytes needed.
+     * @return A buffer with position 0 and a capacity of at least
+     * {@code size} bytes.
+     * @throws IllegalStateException if the region was already released.
+     */
+    public synchronized ByteBuffer allocate(final int size) {
+      if (released) {
+        throw new IllegalStateException("Region was already released");
+      }
+      final int aligned = (size + 7) & ~7;
+      bytes += aligned;
+      if (aligned > slab_size) {
+        // left to the GC once the region lets go of it
+        oversized.incrementAndGet();
+        return ByteBuffer.allocateDirect(aligned)
+            .order(ByteOrder.nativeOrder());
+      }
+      if (current == null || current.remaining() < aligned) {
+        current = takeSlab();
+        slabs.add(current);
+      }
+      final int position = current.position();
+      current.limit(position + aligned);
+      final ByteBuffer buffer = current.slice();
+      current.limit(current.capacity());
+      current.position(position + aligned);
+      return buffer.order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Returns the slabs to the arena. Safe to call more than once.
+     */
+    public synchronized void release() {
+      if (released) {
+        return;
+      }
+      released = true;
+      for (final ByteBuffer slab : slabs) {
+        returnSlab(slab);
+      }
+      slabs.clear();
+      current = null;
+    }
+
+    /** @return The number of bytes handed out by this region */
+    public synchronized long allocatedBytes() {
+      return bytes;
+    }
+
+    /** @return Whether or not the region was released */
+    public synchronized boolean isReleased() {
+      return released;
+    }
+  }
+}
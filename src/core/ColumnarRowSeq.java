@@ -0,0 +1,497 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import net.opentsdb.meta.Annotation;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.KeyValue;
+import org.hbase.async.Bytes.ByteMap;
+
+import com.stumbleupon.async.Deferred;
+
+/**
+ * A row sequence that decodes the cells of one or more continuous HBase rows
+ * into fixed width columns when the row is added, instead of keeping the
+ * qualifier and value arrays around like {@link RowSeq} does.
+ * <p>
+ * The columns are carved out of a single buffer allocated from a
+ * {@link ColumnarArena.Region} so they live off-heap and are recycled once the
+ * query is complete. The buffer holds {@code capacity} millisecond
+ * timestamps, followed by {@code capacity} values (raw long bits for floating
+ * point values) and finally {@code capacity} type flags, of which the first
+ * {@code size} are used. Every accessor is O(1).
+ * @since 2.4
+ */
+final class ColumnarRowSeq implements iRowSeq {
+
+  /** The {@link TSDB} instance we belong to. */
+  private final TSDB tsdb;
+
+  /** The region to allocate columns from. */
+  private final ColumnarArena.Region region;
+
+  /** First row key. */
+  private byte[] key;
+
+  /** Base time of the row in seconds. */
+  private long base_time;
+
+  /** The timestamp, value and flag columns. */
+  private ByteBuffer columns;
+
+  /** Number of data points in the columns. */
+  private int size;
+
+  /** Number of data points the columns have room for. */
+  private int capacity;
+
+  /** Reused columns that rows to merge are decoded into. */
+  private ByteBuffer scratch;
+
+  /** Number of data points the scratch columns have room for. */
+  private int scratch_capacity;
+
+  /**
+   * Constructor.
+   * @param tsdb The TSDB we belong to.
+   * @param region The region to allocate columns from.
+   */
+  ColumnarRowSeq(final TSDB tsdb, final ColumnarArena.Region region) {
+    this.tsdb = tsdb;
+    this.region = region;
+  }
+
+  @Override
+  public void setRow(final KeyValue row) {
+    if (key != null) {
+      throw new IllegalStateException("setRow was already called on " + this);
+    }
+    key = row.key();
+    base_time = Bytes.getUnsignedInt(key,
+        Const.SALT_WIDTH() + tsdb.metrics.width());
+    size = countPoints(row.qualifier());
+    capacity = size;
+    columns = region.allocate(capacity * 17);
+    decode(row.qualifier(), row.value(), columns, capacity, size);
+  }
+
+  /**
+   * Merges data points for the same HBase row into the columns. Duplicate
+   * timestamps keep the value already in the sequence. This may ONLY be
+   * called after setRow() has initiated the sequence and, like
+   * {@link RowSeq#addRow}, allows for rows with different salts.
+   * The columns grow by doubling and previous ones are left in the region
+   * until it's released, so a row arriving in many parts still takes memory
+   * linear in its number of points.
+   * @param row The compacted HBase row to merge into this instance.
+   * @throws IllegalStateException if {@link #setRow} wasn't called first.
+   * @throws IllegalDataException if the data points in the argument
+   * do not belong to the same row as this sequence.
+   */
+  @Override
+  public void addRow(final KeyValue row) {
+    if (key == null) {
+      throw new IllegalStateException("setRow was never called on " + this);
+    }
+    if (Bytes.memcmp(key, row.key(), Const.SALT_WIDTH(),
+        key.length - Const.SALT_WIDTH()) != 0) {
+      throw new IllegalDataException("Attempt to add a different row="
+          + row + ", this=" + this);
+    }
+
+    final int remote_size = countPoints(row.qualifier());
+    if (remote_size > scratch_capacity) {
+      scratch_capacity = Math.max(remote_size, scratch_capacity * 2);
+      scratch = region.allocate(scratch_capacity * 17);
+    }
+    decode(row.qualifier(), row.value(), scratch, scratch_capacity,
+        remote_size);
+    if (size + remote_size > capacity) {
+      grow(size + remote_size);
+    }
+
+    // merge from the back so local points are moved before they could be
+    // overwritten. Duplicates aren't written and leave a gap at the front.
+    int local_idx = size - 1;
+    int remote_idx = remote_size - 1;
+    int merged_idx = size + remote_size - 1;
+    int duplicates = 0;
+    while (remote_idx >= 0 || (local_idx >= 0 && merged_idx > local_idx)) {
+      if (remote_idx < 0) {
+        copy(columns, capacity, local_idx--, columns, capacity, merged_idx--);
+      } else if (local_idx < 0) {
+        copy(scratch, scratch_capacity, remote_idx--, columns, capacity,
+            merged_idx--);
+      } else {
+        final long local_ts = columns.getLong(local_idx * 8);
+        final long remote_ts = scratch.getLong(remote_idx * 8);
+        if (local_ts == remote_ts) {
+          remote_idx--;
+          duplicates++;
+        } else if (local_ts > remote_ts) {
+          copy(columns, capacity, local_idx--, columns, capacity,
+              merged_idx--);
+        } else {
+          copy(scratch, scratch_capacity, remote_idx--, columns, capacity,
+              merged_idx--);
+        }
+      }
+    }
+
+    size += remote_size - duplicates;
+    if (duplicates > 0) {
+      for (int i = 0; i < size; i++) {
+        copy(columns, capacity, i + duplicates, columns, capacity, i);
+      }
+    }
+  }
+
+  /**
+   * Moves the columns to a buffer with room for at least the given number of
+   * data points, doubling the capacity.
+   * @param needed The number of data points needed.
+   */
+  private void grow(final int needed) {
+    final int grown_capacity = Math.max(needed, capacity * 2);
+    final ByteBuffer grown = region.allocate(grown_capacity * 17);
+    for (int i = 0; i < size; i++) {
+      copy(columns, capacity, i, grown, grown_capacity, i);
+    }
+    columns = grown;
+    capacity = grown_capacity;
+  }
+
+  /**
+   * Counts the data points in a row's qualifiers.
+   * @param qualifiers The compacted or single column qualifiers.
+   * @return The number of data points.
+   */
+  private static int countPoints(final byte[] qualifiers) {
+    int count = 0;
+    for (int i = 0; i < qualifiers.length;
+         i += Internal.inMilliseconds(qualifiers[i]) ? 4 : 2) {
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * Decodes the cells of a row into the given columns.
+   * @param qualifiers The row qualifiers.
+   * @param values The row values, with or without the trailing meta byte.
+   * @param dst The destination columns.
+   * @param dst_capacity The capacity of the destination columns.
+   * @param n The number of points in the row.
+   * @throws IllegalDataException if a value was malformed.
+   */
+  private void decode(final byte[] qualifiers, final byte[] values,
+      final ByteBuffer dst, final int dst_capacity, final int n) {
+    int q_index = 0;
+    int v_index = 0;
+    for (int i = 0; i < n; i++) {
+      final byte flags = (byte) Internal.getFlagsFromQualifier(qualifiers,
+          q_index);
+      dst.putLong(i * 8,
+          Internal.getTimestampFromQualifier(qualifiers, base_time, q_index));
+      if ((flags & Const.FLAG_FLOAT) == 0x0) {
+        dst.putLong((dst_capacity + i) * 8,
+            RowSeq.extractIntegerValue(values, v_index, flags));
+        dst.put((dst_capacity * 16) + i, (byte) 1);
+      } else {
+        dst.putLong((dst_capacity + i) * 8, Double.doubleToRawLongBits(
+            RowSeq.extractFloatingPointValue(values, v_index, flags)));
+        dst.put((dst_capacity * 16) + i, (byte) 0);
+      }
+      v_index += (flags & Const.LENGTH_MASK) + 1;
+      q_index += Internal.getQualifierLength(qualifiers, q_index);
+    }
+  }
+
+  /** Copies one data point between two sets of columns. */
+  private static void copy(final ByteBuffer src, final int src_capacity,
+      final int src_idx, final ByteBuffer dst, final int dst_capacity,
+      final int dst_idx) {
+    dst.putLong(dst_idx * 8, src.getLong(src_idx * 8));
+    dst.putLong((dst_capacity + dst_idx) * 8,
+        src.getLong((src_capacity + src_idx) * 8));
+    dst.put((dst_capacity * 16) + dst_idx,
+        src.get((src_capacity * 16) + src_idx));
+  }
+
+  public String metricName() {
+    try {
+      return metricNameAsync().joinUninterruptibly();
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new RuntimeException("Should never be here", e);
+    }
+  }
+
+  public Deferred<String> metricNameAsync() {
+    if (key == null) {
+      throw new IllegalStateException("the row key is null!");
+    }
+    return RowKey.metricNameAsync(tsdb, key);
+  }
+
+  @Override
+  public byte[] metricUID() {
+    return Arrays.copyOfRange(key, Const.SALT_WIDTH(),
+        Const.SALT_WIDTH() + TSDB.metrics_width());
+  }
+
+  public Map<String, String> getTags() {
+    try {
+      return getTagsAsync().joinUninterruptibly();
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new RuntimeException("Should never be here", e);
+    }
+  }
+
+  @Override
+  public ByteMap<byte[]> getTagUids() {
+    return Tags.getTagUids(key);
+  }
+
+  public Deferred<Map<String, String>> getTagsAsync() {
+    return Tags.getTagsAsync(tsdb, key);
+  }
+
+  /** @return an empty list since aggregated tags cannot exist on a single row */
+  public List<String> getAggregatedTags() {
+    return Collections.emptyList();
+  }
+
+  public Deferred<List<String>> getAggregatedTagsAsync() {
+    final List<String> empty = Collections.emptyList();
+    return Deferred.fromResult(empty);
+  }
+
+  @Override
+  public List<byte[]> getAggregatedTagUids() {
+    return Collections.emptyList();
+  }
+
+  public List<String> getTSUIDs() {
+    return Collections.emptyList();
+  }
+
+  /** @return an empty list since annotations are stored at the span level */
+  public List<Annotation> getAnnotations() {
+    return Collections.emptyList();
+  }
+
+  /** @return the number of data points in this row */
+  public int size() {
+    return size;
+  }
+
+  /** @return 0 since aggregation cannot happen at the row level */
+  public int aggregatedSize() {
+    return 0;
+  }
+
+  public SeekableView iterator() {
+    return internalIterator();
+  }
+
+  @Override
+  public Iterator internalIterator() {
+    return new Iterator();
+  }
+
+  @Override
+  public long baseTime() {
+    return base_time;
+  }
+
+  @Override
+  public byte[] key() {
+    return key;
+  }
+
+  /** @throws IndexOutOfBoundsException if {@code i} is out of bounds. */
+  private void checkIndex(final int i) {
+    if (i >= size) {
+      throw new IndexOutOfBoundsException("index " + i + " >= " + size
+          + " for this=" + this);
+    }
+    if (i < 0) {
+      throw new IndexOutOfBoundsException("negative index " + i
+          + " for this=" + this);
+    }
+  }
+
+  public long timestamp(final int i) {
+    checkIndex(i);
+    return columns.getLong(i * 8);
+  }
+
+  public boolean isInteger(final int i) {
+    checkIndex(i);
+    return columns.get((capacity * 16) + i) != 0;
+  }
+
+  public long longValue(final int i) {
+    if (!isInteger(i)) {
+      throw new ClassCastException("value #" + i + " is not a long in " + this);
+    }
+    return columns.getLong((capacity + i) * 8);
+  }
+
+  public double doubleValue(final int i) {
+    if (isInteger(i)) {
+      throw new ClassCastException("value #" + i + " is not a float in " + this);
+    }
+    return Double.longBitsToDouble(columns.getLong((capacity + i) * 8));
+  }
+
+  /** Returns a human readable string representation of the object. */
+  @Override
+  public String toString() {
+    final StringBuilder buf = new StringBuilder(80 +
+        (key == null ? 6 : key.length * 4));
+    buf.append("ColumnarRowSeq(")
+       .append(key == null ? "<null>" : Arrays.toString(key))
+       .append(", base_time=")
+       .append(base_time)
+       .append(" (")
+       .append(base_time > 0 ? new Date(base_time * 1000) : "no date")
+       .append("), (datapoints=")
+       .append(size)
+       .append("))");
+    return buf.toString();
+  }
+
+  /** Iterator for {@link ColumnarRowSeq}s. */
+  final class Iterator implements iRowSeq.Iterator {
+
+    /** Index of the next data point. */
+    private int index;
+
+    Iterator() {
+    }
+
+    // ------------------ //
+    // Iterator interface //
+    // ------------------ //
+
+    public boolean hasNext() {
+      return index < size;
+    }
+
+    public DataPoint next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException("no more elements");
+      }
+      index++;
+      return this;
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    // ---------------------- //
+    // SeekableView interface //
+    // ---------------------- //
+
+    public void seek(final long timestamp) {
+      if ((timestamp & Const.MILLISECOND_MASK) != 0) {  // negative or not 48 bits
+        throw new IllegalArgumentException("invalid timestamp: " + timestamp);
+      }
+      // binary search for the first point at or after the timestamp
+      int low = 0;
+      int high = size;
+      while (low < high) {
+        final int mid = (low + high) >>> 1;
+        if (columns.getLong(mid * 8) < timestamp) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+      index = low;
+    }
+
+    // ------------------- //
+    // DataPoint interface //
+    // ------------------- //
+
+    public long timestamp() {
+      assert index > 0: "not initialized: " + this;
+      return columns.getLong((index - 1) * 8);
+    }
+
+    public boolean isInteger() {
+      assert index > 0: "not initialized: " + this;
+      return columns.get((capacity * 16) + index - 1) != 0;
+    }
+
+    public long longValue() {
+      if (!isInteger()) {
+        throw new ClassCastException("value @"
+          + index + " is not a long in " + this);
+      }
+      return columns.getLong((capacity + index - 1) * 8);
+    }
+
+    public double doubleValue() {
+      if (isInteger()) {
+        throw new ClassCastException("value @"
+          + index + " is not a float in " + this);
+      }
+      return Double.longBitsToDouble(columns.getLong((capacity + index - 1) * 8));
+    }
+
+    public double toDouble() {
+      return isInteger() ? longValue() : doubleValue();
+    }
+
+    @Override
+    public long valueCount() {
+      return 1;
+    }
+
+    public String toString() {
+      return "ColumnarRowSeq.Iterator(index=" + index
+          + ", seq=" + ColumnarRowSeq.this + ')';
+    }
+  }
+
+  public int getQueryIndex() {
+    throw new UnsupportedOperationException("Not mapped to a query");
+  }
+
+  @Override
+  public boolean isPercentile() {
+    return false;
+  }
+
+  @Override
+  public float getPercentile() {
+    throw new UnsupportedOperationException("getPercentile not supported");
+  }
+}
@@ -17,6 +17,7 @@ import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.PriorityQueue;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -53,22 +54,34 @@ import net.opentsdb.utils.Pair;
  * This process is effective because in HBase the row key is repeated for
  * every single cell.  And because there is no way to efficiently append bytes
  * at the end of a cell, we have to do this instead.
+ * <p>
+ * The queue is split into {@code tsd.storage.compaction.shards} shards, each
+ * drained by its own compaction thread.  Rows are assigned to a shard by salt
+ * bucket when salting is enabled, or by hashing the row key otherwise, so
+ * that the shards can be flushed in parallel without contending on a single
+ * sorted map.
+ * <p>
+ * With {@code tsd.storage.compaction.read_through.enable}, rows that queries
+ * read and find uncompacted are queued here too, even when compactions on
+ * write are disabled, so that history which is read often converges to a
+ * single column per row.
  */
-final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
+final class CompactionQueue {
 
   private static final Logger LOG = LoggerFactory.getLogger(CompactionQueue.class);
 
-  /**
-   * How many items are currently in the queue.
-   * Because {@link ConcurrentSkipListMap#size} has O(N) complexity.
-   */
-  private final AtomicInteger size = new AtomicInteger();
+  /** The shards of the queue, each with its own flush thread.  */
+  private final Shard[] shards;
 
   private final AtomicLong duplicates_different = new AtomicLong();
   private final AtomicLong duplicates_same = new AtomicLong();
   private final AtomicLong compaction_count = new AtomicLong();
   private final AtomicLong written_cells = new AtomicLong();
   private final AtomicLong deleted_cells = new AtomicLong();
+  private final AtomicLong discarded_rows = new AtomicLong();
+  private final AtomicLong gorilla_cells = new AtomicLong();
+  private final AtomicLong read_through_queued = new AtomicLong();
+  private final AtomicLong read_through_dropped = new AtomicLong();
 
   /** The {@code TSDB} instance we belong to. */
   private final TSDB tsdb;
@@ -79,42 +92,124 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
   /** How frequently the compaction thread wakes up to flush stuff.  */
   private final int flush_interval;  // seconds
 
-  /** Minimum number of rows we'll attempt to compact at once.  */
+  /** Minimum number of rows we'll attempt to compact at once, per shard.  */
   private final int min_flush_threshold;  // rows
 
-  /** Maximum number of rows we'll compact concurrently.  */
+  /** Maximum number of rows we'll compact concurrently, per shard.  */
   private final int max_concurrent_flushes;  // rows
 
   /** If this is X then we'll flush X times faster than we really need.  */
   private final int flush_speed;  // multiplicative factor
 
+  /** Whether or not to write compacted columns as {@link GorillaColumn}s. */
+  private final boolean gorilla_encoding;
+
+  /** Adjusts the flush rate to HBase latencies, null if disabled. */
+  private final CompactionThrottle throttle;
+
+  /** Whether or not queries queue the old uncompacted rows they read. */
+  private final boolean read_through;
+
+  /** Queue size past which queries stop queueing rows.  */
+  private final int read_through_max_pending;  // rows
+
   /**
    * Constructor.
    * @param tsdb The TSDB we belong to.
    */
   public CompactionQueue(final TSDB tsdb) {
-    super(new Cmp(tsdb));
     this.tsdb = tsdb;
     metric_width = tsdb.metrics.width();
     flush_interval = tsdb.config.getInt("tsd.storage.compaction.flush_interval");
-    min_flush_threshold = tsdb.config.getInt("tsd.storage.compaction.min_flush_threshold");
-    max_concurrent_flushes = tsdb.config.getInt("tsd.storage.compaction.max_concurrent_flushes");
     flush_speed = tsdb.config.getInt("tsd.storage.compaction.flush_speed");
+    gorilla_encoding = tsdb.config.getBoolean(
+        "tsd.storage.compaction.gorilla.enable");
+
+    // The thresholds are spread over the shards so that the TSD as a whole
+    // flushes at the same rate and concurrency no matter how many we have.
+    final int num_shards = Math.max(1, 
+        tsdb.config.getInt("tsd.storage.compaction.shards"));
+    min_flush_threshold = Math.max(1, tsdb.config.getInt(
+        "tsd.storage.compaction.min_flush_threshold") / num_shards);
+    max_concurrent_flushes = Math.max(1, tsdb.config.getInt(
+        "tsd.storage.compaction.max_concurrent_flushes") / num_shards);
+    if (tsdb.config.getBoolean("tsd.storage.compaction.throttle.enable")) {
+      throttle = new CompactionThrottle(tsdb.config, flush_interval * 1000L);
+    } else {
+      throttle = null;
+    }
+    read_through = tsdb.config.getBoolean(
+        "tsd.storage.compaction.read_through.enable");
+    read_through_max_pending = tsdb.config.getInt(
+        "tsd.storage.compaction.read_through.max_pending");
+
+    final Cmp cmp = new Cmp(tsdb);
+    shards = new Shard[num_shards];
+    for (int i = 0; i < num_shards; i++) {
+      shards[i] = new Shard(i, cmp);
+    }
 
-    if (tsdb.config.enable_compactions()) {
-      startCompactionThread();
+    if (tsdb.config.enable_compactions() || read_through) {
+      for (final Shard shard : shards) {
+        startCompactionThread(shard);
+      }
     }
   }
 
-  @Override
+  /** @return The total number of rows queued across all shards. */
   public int size() {
-    return size.get();
+    int size = 0;
+    for (final Shard shard : shards) {
+      size += shard.size();
+    }
+    return size;
   }
 
   public void add(final byte[] row) {
-    if (super.put(row, Boolean.TRUE) == null) {
-      size.incrementAndGet();  // We added a new entry, count it.
+    shardFor(row).add(row);
+  }
+
+  /** @return Whether the queue needs flushing, on write or read-through. */
+  boolean enabled() {
+    return tsdb.config.enable_compactions() || read_through;
+  }
+
+  /**
+   * Queues a row that a query found uncompacted, unless the queue is already
+   * holding {@code tsd.storage.compaction.read_through.max_pending} rows.
+   * @param row The row key to compact in the background.
+   * @return True if the row was queued, false if it was dropped.
+   */
+  boolean addReadThrough(final byte[] row) {
+    if (size() >= read_through_max_pending) {
+      read_through_dropped.incrementAndGet();
+      return false;
+    }
+    add(row);
+    read_through_queued.incrementAndGet();
+    return true;
+  }
+
+  /**
+   * Picks the shard for a row: the salt bucket when salting is enabled so
+   * that each worker drains whole buckets, a hash of the row key otherwise.
+   * @param row The row key.
+   * @return The shard that row belongs to.
+   */
+  private Shard shardFor(final byte[] row) {
+    if (shards.length == 1) {
+      return shards[0];
     }
+    int hash = 0;
+    if (Const.SALT_WIDTH() > 0) {
+      for (int i = 0; i < Const.SALT_WIDTH(); i++) {
+        hash = (hash << 8) | (row[i] & 0xFF);
+      }
+    } else {
+      hash = Arrays.hashCode(row);
+      hash ^= hash >>> 16;
+    }
+    return shards[(hash & Integer.MAX_VALUE) % shards.length];
   }
 
   /**
@@ -124,13 +219,24 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
    * exception).  In case of success, the kind of object returned is
    * unspecified.
    */
+  @SuppressWarnings({ "unchecked", "rawtypes" })
   public Deferred<ArrayList<Object>> flush() {
     final int size = size();
     if (size > 0) {
       LOG.info("Flushing all old outstanding rows out of " + size + " rows");
     }
     final long now = System.currentTimeMillis();
-    return flush(now / 1000 - Const.MAX_TIMESPAN - 1, Integer.MAX_VALUE);
+    if (shards.length == 1) {
+      return shards[0].flush(now / 1000 - Const.MAX_TIMESPAN - 1, 
+          Integer.MAX_VALUE);
+    }
+    final ArrayList<Deferred<Object>> ds = 
+        new ArrayList<Deferred<Object>>(shards.length);
+    for (final Shard shard : shards) {
+      ds.add((Deferred) shard.flush(now / 1000 - Const.MAX_TIMESPAN - 1, 
+          Integer.MAX_VALUE));
+    }
+    return Deferred.group(ds);
   }
 
   /**
@@ -141,87 +247,187 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
     collector.record("compaction.count", compaction_count);
     collector.record("compaction.duplicates", duplicates_same, "type=identical");
     collector.record("compaction.duplicates", duplicates_different, "type=variant");
-    if (!tsdb.config.enable_compactions()) {
+    if (!enabled()) {
       return;
     }
     // The remaining stats only make sense with compactions enabled.
-    collector.record("compaction.queue.size", size);
+    collector.record("compaction.queue.size", size());
     collector.record("compaction.errors", handle_read_error.errors, "rpc=read");
     collector.record("compaction.errors", handle_write_error.errors, "rpc=put");
     collector.record("compaction.errors", handle_delete_error.errors,
                      "rpc=delete");
     collector.record("compaction.writes", written_cells);
     collector.record("compaction.deletes", deleted_cells);
+    collector.record("compaction.discarded", discarded_rows);
+    collector.record("compaction.gorilla", gorilla_cells);
+    if (throttle != null) {
+      throttle.collectStats(collector);
+      collector.record("compaction.throttle.concurrency",
+          throttle.concurrency(max_concurrent_flushes));
+    }
+    if (read_through) {
+      collector.record("compaction.read_through", read_through_queued,
+          "type=queued");
+      collector.record("compaction.read_through", read_through_dropped,
+          "type=dropped");
+    }
+    
+    final long now = System.currentTimeMillis() / 1000;
+    for (final Shard shard : shards) {
+      final String tag = "shard=" + shard.index;
+      collector.record("compaction.shard.size", shard.size(), tag);
+      collector.record("compaction.shard.age", shard.age(now), tag);
+      collector.record("compaction.shard.flushes", shard.flushes, tag);
+    }
   }
 
   /**
-   * Flushes all the rows in the compaction queue older than the cutoff time.
-   * @param cut_off A UNIX timestamp in seconds (unsigned 32-bit integer).
-   * @param maxflushes How many rows to flush off the queue at once.
-   * This integer is expected to be strictly positive.
-   * @return A deferred that will be called back once everything has been
-   * flushed.
+   * One partition of the queue, a sorted set of the rows to compact ordered
+   * by base time first. Each shard is drained by its own {@link Thrd}.
    */
-  private Deferred<ArrayList<Object>> flush(final long cut_off, int maxflushes) {
-    assert maxflushes > 0: "maxflushes must be > 0, but I got " + maxflushes;
-    // We can't possibly flush more entries than size().
-    maxflushes = Math.min(maxflushes, size());
-    if (maxflushes == 0) {  // Because size() might be 0.
-      return Deferred.fromResult(new ArrayList<Object>(0));
-    }
-    final ArrayList<Deferred<Object>> ds =
-      new ArrayList<Deferred<Object>>(Math.min(maxflushes, max_concurrent_flushes));
-    int nflushes = 0;
-    int seed = (int) (System.nanoTime() % 3);
-    for (final byte[] row : this.keySet()) {
-      if (maxflushes == 0) {
-        break;
-      }
-      if (seed == row.hashCode() % 3) {
-        continue;
+  final class Shard extends ConcurrentSkipListMap<byte[], Boolean> {
+    static final long serialVersionUID = 1534787281;
+
+    /** The index of this shard, used in thread names and stats. */
+    private final int index;
+
+    /**
+     * How many items are currently in the shard.
+     * Because {@link ConcurrentSkipListMap#size} has O(N) complexity.
+     */
+    private final AtomicInteger size = new AtomicInteger();
+
+    /** How many rows were pulled off this shard for compaction. */
+    private final AtomicLong flushes = new AtomicLong();
+
+    Shard(final int index, final Cmp cmp) {
+      super(cmp);
+      this.index = index;
+    }
+
+    @Override
+    public int size() {
+      return size.get();
+    }
+
+    void add(final byte[] row) {
+      if (super.put(row, Boolean.TRUE) == null) {
+        size.incrementAndGet();  // We added a new entry, count it.
       }
-      final long base_time = Bytes.getUnsignedInt(row,
-          Const.SALT_WIDTH() + metric_width);
-      if (base_time > cut_off) {
-        break;
-      } else if (nflushes == max_concurrent_flushes) {
-        // We kicked off the compaction of too many rows already, let's wait
-        // until they're done before kicking off more.
-        break;
+    }
+
+    /**
+     * How far behind this shard is.
+     * @param now The current time in seconds.
+     * @return The age in seconds of the oldest row in the shard, 0 if empty.
+     */
+    long age(final long now) {
+      final Map.Entry<byte[], Boolean> oldest = firstEntry();
+      if (oldest == null) {
+        return 0;
       }
-      // You'd think that it would be faster to grab an iterator on the map
-      // and then call remove() on the iterator to "unlink" the element
-      // directly from where the iterator is at, but no, the JDK implements
-      // it by calling remove(key) so it has to lookup the key again anyway.
-      if (super.remove(row) == null) {  // We didn't remove anything.
-        continue;  // So someone else already took care of this entry.
+      return Math.max(0, now - Bytes.getUnsignedInt(oldest.getKey(),
+          Const.SALT_WIDTH() + metric_width));
+    }
+
+    /** Throws away all the rows in this shard to free up memory. */
+    int discard() {
+      final int sz = size.get();
+      super.clear();
+      size.set(0);
+      discarded_rows.addAndGet(sz);
+      return sz;
+    }
+
+    /**
+     * Flushes all the rows in the shard older than the cutoff time.
+     * @param cut_off A UNIX timestamp in seconds (unsigned 32-bit integer).
+     * @param maxflushes How many rows to flush off the shard at once.
+     * This integer is expected to be strictly positive.
+     * @return A deferred that will be called back once everything has been
+     * flushed.
+     */
+    Deferred<ArrayList<Object>> flush(final long cut_off, int maxflushes) {
+      return flush(cut_off, maxflushes, max_concurrent_flushes);
+    }
+
+    /**
+     * Flushes all the rows in the shard older than the cutoff time.
+     * @param cut_off A UNIX timestamp in seconds (unsigned 32-bit integer).
+     * @param maxflushes How many rows to flush off the shard at once.
+     * This integer is expected to be strictly positive.
+     * @param concurrency How many rows may be compacted at the same time.
+     * @return A deferred that will be called back once everything has been
+     * flushed.
+     */
+    Deferred<ArrayList<Object>> flush(final long cut_off, int maxflushes,
+                                      final int concurrency) {
+      assert maxflushes > 0: "maxflushes must be > 0, but I got " + maxflushes;
+      // We can't possibly flush more entries than size().
+      maxflushes = Math.min(maxflushes, size());
+      if (maxflushes == 0) {  // Because size() might be 0.
+        return Deferred.fromResult(new ArrayList<Object>(0));
       }
-      nflushes++;
-      maxflushes--;
-      size.decrementAndGet();
-      ds.add(tsdb.get(row).addCallbacks(compactcb, handle_read_error));
-    }
-    final Deferred<ArrayList<Object>> group = Deferred.group(ds);
-    if (nflushes == max_concurrent_flushes && maxflushes > 0) {
-      // We're not done yet.  Once this group of flushes completes, we need
-      // to kick off more.
-      tsdb.getClient().flush();  // Speed up this batch by telling the client to flush.
-      final int maxflushez = maxflushes;  // Make it final for closure.
-      final class FlushMoreCB implements Callback<Deferred<ArrayList<Object>>,
-                                                  ArrayList<Object>> {
-        @Override
-        public Deferred<ArrayList<Object>> call(final ArrayList<Object> arg) {
-          return flush(cut_off, maxflushez);
+      final ArrayList<Deferred<Object>> ds =
+        new ArrayList<Deferred<Object>>(Math.min(maxflushes, concurrency));
+      int nflushes = 0;
+      int seed = (int) (System.nanoTime() % 3);
+      for (final byte[] row : this.keySet()) {
+        if (maxflushes == 0) {
+          break;
         }
-        @Override
-        public String toString() {
-          return "Continue flushing with cut_off=" + cut_off
-            + ", maxflushes=" + maxflushez;
+        if (seed == row.hashCode() % 3) {
+          continue;
         }
+        final long base_time = Bytes.getUnsignedInt(row,
+            Const.SALT_WIDTH() + metric_width);
+        if (base_time > cut_off) {
+          break;
+        } else if (nflushes == concurrency) {
+          // We kicked off the compaction of too many rows already, let's wait
+          // until they're done before kicking off more.
+          break;
+        }
+        // You'd think that it would be faster to grab an iterator on the map
+        // and then call remove() on the iterator to "unlink" the element
+        // directly from where the iterator is at, but no, the JDK implements
+        // it by calling remove(key) so it has to lookup the key again anyway.
+        if (super.remove(row) == null) {  // We didn't remove anything.
+          continue;  // So someone else already took care of this entry.
+        }
+        nflushes++;
+        maxflushes--;
+        size.decrementAndGet();
+        flushes.incrementAndGet();
+        Deferred<ArrayList<KeyValue>> get = tsdb.get(row);
+        if (throttle != null) {
+          get = get.addBoth(
+              throttle.new LatencyCB<ArrayList<KeyValue>>(false));
+        }
+        ds.add(get.addCallbacks(compactcb, handle_read_error));
       }
-      group.addCallbackDeferring(new FlushMoreCB());
+      final Deferred<ArrayList<Object>> group = Deferred.group(ds);
+      if (nflushes == concurrency && maxflushes > 0) {
+        // We're not done yet.  Once this group of flushes completes, we need
+        // to kick off more.
+        tsdb.getClient().flush();  // Speed up this batch by telling the client to flush.
+        final int maxflushez = maxflushes;  // Make it final for closure.
+        final class FlushMoreCB implements Callback<Deferred<ArrayList<Object>>,
+                                                    ArrayList<Object>> {
+          @Override
+          public Deferred<ArrayList<Object>> call(final ArrayList<Object> arg) {
+            return flush(cut_off, maxflushez, concurrency);
+          }
+          @Override
+          public String toString() {
+            return "Continue flushing shard " + index + " with cut_off=" 
+              + cut_off + ", maxflushes=" + maxflushez;
+          }
+        }
+        group.addCallbackDeferring(new FlushMoreCB());
+      }
+      return group;
     }
-    return group;
   }
 
   private final CompactCB compactcb = new CompactCB();
@@ -295,6 +501,10 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
     // and if we only had a single column with a single value, we return this.
     private KeyValue last_append_column;
 
+    // the legacy form of a GorillaColumn block found in the row. If it's the
+    // only column, this is what we return.
+    private KeyValue gorilla_column;
+
     public Compaction(ArrayList<KeyValue> row, KeyValue[] compacted, List<Annotation> annotations, List<HistogramDataPoint> histograms) {
       nkvs = row.size();
       this.row = row;
@@ -322,6 +532,10 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
         case 1:
           // only one column, check to see if it needs fixups
           ColumnDatapointIterator col = heap.peek();
+          // a block is only written if it holds a correctly compacted column
+          if (gorilla_column != null) {
+            return true;
+          }
           // either a 2-byte qualifier or one 4-byte ms qualifier, and no fixups required
           return (col.qualifier.length == 2 || (col.qualifier.length == 4
               && Internal.inMilliseconds(col.qualifier))) && !col.needsFixup();
@@ -370,8 +584,10 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
 
       // build the compacted columns
       final KeyValue compact = buildCompactedColumn(compacted_qual, compacted_val);
+      // callers always get the legacy form, only storage sees the block
+      final KeyValue stored = gorilla_encoding ? encodeGorilla(compact) : compact;
 
-      final boolean write = updateDeletesCheckForWrite(compact);
+      final boolean write = updateDeletesCheckForWrite(stored);
 
       if (compacted != null) {  // Caller is interested in the compacted form.
         compacted[0] = compact;
@@ -382,18 +598,30 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
         if (base_time > cut_off) {  // If row is too recent...
           return null;              // ... Don't write back compacted.
         }
+        if (read_through && (write || !to_delete.isEmpty())) {
+          // Don't make the query wait on the write, let a compaction thread
+          // read the row again and write it back.
+          addReadThrough(compact.key());
+          return null;
+        }
       }
       // if compactions aren't enabled or there is nothing to write, we're done
-      if (!tsdb.config.enable_compactions() || (!write && to_delete.isEmpty())) {
+      if (!enabled() || (!write && to_delete.isEmpty())) {
         return null;
       }
 
-      final byte[] key = compact.key();
+      final byte[] key = stored.key();
       //LOG.debug("Compacting row " + Arrays.toString(key));
       deleted_cells.addAndGet(to_delete.size());  // We're going to delete this.
       if (write) {
         written_cells.incrementAndGet();
-        Deferred<Object> deferred = tsdb.put(key, compact.qualifier(), compact.value(), compactedKVTimestamp);
+        if (stored != compact) {
+          gorilla_cells.incrementAndGet();
+        }
+        Deferred<Object> deferred = tsdb.put(key, stored.qualifier(), stored.value(), compactedKVTimestamp);
+        if (throttle != null) {
+          deferred = deferred.addBoth(throttle.new LatencyCB<Object>(true));
+        }
         if (!to_delete.isEmpty()) {
           deferred = deferred.addCallbacks(new DeleteCompactedCB(to_delete), handle_write_error);
         }
@@ -418,6 +646,9 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
       if (last_append_column != null) {
         return last_append_column;
       }
+      if (gorilla_column != null) {
+        return gorilla_column;
+      }
       for (final KeyValue kv : row) {
         if (isDatapoint(kv)) {
           return kv;
@@ -465,6 +696,20 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
             if (col.hasMoreData()) {
               heap.add(col);
             }
+          } else if (GorillaColumn.isGorillaColumn(qual)) {
+            compactedKVTimestamp = Math.max(compactedKVTimestamp, kv.timestamp());
+            gorilla_column = GorillaColumn.decode(kv);
+            tot_values += GorillaColumn.count(kv.value());
+            if (longest == null ||
+                longest.qualifier().length < gorilla_column.qualifier().length) {
+              longest = gorilla_column;
+            }
+            final ColumnDatapointIterator col =
+                new ColumnDatapointIterator(gorilla_column);
+            if (col.hasMoreData()) {
+              heap.add(col);
+            }
+            to_delete.add(kv);
           } else {
             LOG.warn("Ignoring unexpected extended format type " + qual[0]);
           }
@@ -615,6 +860,22 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
       }
     }
 
+    /**
+     * Encodes the compacted column as a {@link GorillaColumn} block.
+     *
+     * @param compact the legacy compacted column
+     * @return the block column, or the legacy column if it couldn't be encoded
+     * or wouldn't be any smaller
+     */
+    private KeyValue encodeGorilla(final KeyValue compact) {
+      final byte[] encoded = GorillaColumn.encode(compact.qualifier(), compact.value());
+      if (encoded == null) {
+        return compact;
+      }
+      return new KeyValue(compact.key(), compact.family(),
+          GorillaColumn.QUALIFIER, compact.timestamp(), encoded);
+    }
+
     /**
      * Make sure we don't delete the row that is the result of the compaction, so we
      * remove the compacted value from the list of values to delete if it is there.
@@ -763,37 +1024,41 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
     }
   }
 
-  static final long serialVersionUID = 1307386642;
-
-  /** Starts a compaction thread.  Only one such thread is needed.  */
-  private void startCompactionThread() {
-    final Thrd thread = new Thrd();
+  /** Starts a compaction thread for the given shard.  */
+  private void startCompactionThread(final Shard shard) {
+    final Thrd thread = new Thrd(shard);
     thread.setDaemon(true);
     thread.start();
   }
 
-
-
   /**
-   * Background thread to trigger periodic compactions.
+   * Background thread to trigger periodic compactions of one shard.
    */
   final class Thrd extends Thread {
-    public Thrd() {
-      super("CompactionThread");
+    /** The shard this thread drains. */
+    private final Shard shard;
+
+    public Thrd(final Shard shard) {
+      super(shards.length == 1 ? "CompactionThread" 
+          : "CompactionThread-" + shard.index);
+      this.shard = shard;
     }
 
     @Override
     public void run() {
       while (true) {
         try {
-          final int size = size();
+          final int size = shard.size();
           // Flush if  we have too many rows to recompact.
           // Note that in we might not be able to actually
           // flush anything if the rows aren't old enough.
-          if (size > min_flush_threshold) {
+          // Rows queued by queries are already old enough so don't let
+          // them sit around waiting for the threshold.
+          if (size > min_flush_threshold || (read_through &&
+              shard.age(System.currentTimeMillis() / 1000) > Const.MAX_TIMESPAN)) {
             // How much should we flush during this iteration?  This scheme is
             // adaptive and flushes at a rate that is proportional to the size
-            // of the queue, so we flush more aggressively if the queue is big.
+            // of the shard, so we flush more aggressively if the shard is big.
             // Let's suppose MAX_TIMESPAN = 1h.  We have `size' rows to compact,
             // and we better compact them all in less than 1h, otherwise we're
             // going to "fall behind" when after a new hour starts (as we'll be
@@ -804,30 +1069,45 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
             // overshooting a bit (flushing more aggressively than necessary).
             // This isn't a problem at all.  The only thing that matters is that
             // the rate at which we flush stuff is proportional to how much work
-            // is sitting in the queue.  The multiplicative factor FLUSH_SPEED
+            // is sitting in the shard.  The multiplicative factor FLUSH_SPEED
             // is added to make flush even faster than we need.  For example, if
             // FLUSH_SPEED is 2, then instead of taking 1h to flush what we have
             // for the previous hour, we'll take only 30m.  This is desirable so
             // that we evict old entries from the queue a bit faster.
-            final int maxflushes = Math.max(min_flush_threshold,
+            int maxflushes = Math.max(min_flush_threshold,
               size * flush_interval * flush_speed / Const.MAX_TIMESPAN);
             final long now = System.currentTimeMillis();
-            flush(now / 1000 - Const.MAX_TIMESPAN - 1, maxflushes);
+            if (throttle == null) {
+              shard.flush(now / 1000 - Const.MAX_TIMESPAN - 1, maxflushes);
+            } else {
+              // Scale both by how HBase coped with the previous interval.
+              throttle.update(now);
+              maxflushes = throttle.maxFlushes(maxflushes);
+              shard.flush(now / 1000 - Const.MAX_TIMESPAN - 1, maxflushes,
+                  throttle.concurrency(max_concurrent_flushes));
+            }
             if (LOG.isDebugEnabled()) {
-              final int newsize = size();
-              LOG.debug("flush() took " + (System.currentTimeMillis() - now)
-                        + "ms, new queue size=" + newsize
+              final int newsize = shard.size();
+              LOG.debug("flush() of shard " + shard.index + " took " 
+                        + (System.currentTimeMillis() - now)
+                        + "ms, new shard size=" + newsize
                         + " (" + (newsize - size) + ')');
             }
           }
         } catch (Exception e) {
           LOG.error("Uncaught exception in compaction thread", e);
         } catch (OutOfMemoryError e) {
-          // Let's free up some memory by throwing away the compaction queue.
-          final int sz = size.get();
-          CompactionQueue.super.clear();
-          size.set(0);
-          LOG.error("Discarded the compaction queue, size=" + sz, e);
+          // Let's free up some memory by throwing away the biggest shard,
+          // the one lagging the most, instead of the entire queue.
+          Shard biggest = shard;
+          for (final Shard other : shards) {
+            if (other.size() > biggest.size()) {
+              biggest = other;
+            }
+          }
+          final int sz = biggest.discard();
+          LOG.error("Discarded compaction queue shard " + biggest.index 
+              + ", size=" + sz, e);
         } catch (Throwable e) {
           LOG.error("Uncaught *Throwable* in compaction thread", e);
           // Catching this kind of error is totally unexpected and is really
@@ -844,14 +1124,15 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
             LOG.error("Compaction thread interrupted in error handling", i);
             return;  // Don't flush, we're truly hopeless.
           }
-          startCompactionThread();
+          startCompactionThread(shard);
           return;
         }
         try {
           Thread.sleep(flush_interval * 1000);
         } catch (InterruptedException e) {
           LOG.error("Compaction thread interrupted, doing one last flush", e);
-          flush();
+          shard.flush(System.currentTimeMillis() / 1000 
+              - Const.MAX_TIMESPAN - 1, Integer.MAX_VALUE);
           return;
         }
       }
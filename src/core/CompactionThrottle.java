@@ -0,0 +1,232 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.stumbleupon.async.Callback;
+
+import net.opentsdb.stats.Histogram;
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.utils.Config;
+
+/**
+ * A feedback controller for the rate at which the {@link CompactionQueue}
+ * flushes rows, so that compactions back off when HBase is struggling and
+ * catch up faster when it's idle.
+ * <p>
+ * The queue times its own GET and PUT RPCs, which hit the same region
+ * servers as the data points being written, and records them here. Once per
+ * flush interval the 99th percentile of each is compared against its
+ * target: if either is above, the rate is halved; if both are below half of
+ * their targets, or nothing was sent, the rate goes up by
+ * {@link #RATE_STEP} percent. The rate scales the number of rows flushed per
+ * interval and, up to 100%, the number of concurrent compactions.
+ * <p>
+ * Latencies are kept in a fresh {@link Histogram} per interval so that the
+ * percentiles reflect what HBase is doing now rather than since startup.
+ * @since 2.4
+ */
+final class CompactionThrottle {
+
+  /** How much the rate increases, in percent, when HBase is idle */
+  static final int RATE_STEP = 10;
+
+  /** The 99th percentile put latency to stay under, in milliseconds */
+  private final int put_target;
+
+  /** The 99th percentile get latency to stay under, in milliseconds */
+  private final int get_target;
+
+  /** The lowest rate, in percent */
+  private final int min_rate;
+
+  /** The highest rate, in percent */
+  private final int max_rate;
+
+  /** How often to adjust the rate, in milliseconds */
+  private final long interval;
+
+  /** The current rate in percent of the default flush rate */
+  private volatile int rate = 100;
+
+  /** Put latencies of the current interval, guarded by this */
+  private Histogram puts = newHistogram();
+
+  /** Get latencies of the current interval, guarded by this */
+  private Histogram gets = newHistogram();
+
+  /** Number of puts and gets timed in the current interval */
+  private int put_samples;
+  private int get_samples;
+
+  /** The percentiles computed at the end of the last interval */
+  private volatile int last_put_p99;
+  private volatile int last_get_p99;
+
+  /** When we last adjusted the rate, in milliseconds */
+  private long last_update;
+
+  /** Number of times the rate went down or up */
+  private final AtomicLong throttled = new AtomicLong();
+  private final AtomicLong boosted = new AtomicLong();
+
+  /**
+   * Default ctor.
+   * @param config The config to load targets and bounds from.
+   * @param interval_ms How often to adjust the rate, in milliseconds.
+   * @throws IllegalArgumentException if a target was less than 1 or the
+   * bounds were out of order.
+   */
+  CompactionThrottle(final Config config, final long interval_ms) {
+    put_target = config.getInt("tsd.storage.compaction.throttle.put_p99_ms");
+    get_target = config.getInt("tsd.storage.compaction.throttle.get_p99_ms");
+    min_rate = config.getInt("tsd.storage.compaction.throttle.min_rate");
+    max_rate = config.getInt("tsd.storage.compaction.throttle.max_rate");
+    if (put_target < 1 || get_target < 1) {
+      throw new IllegalArgumentException("Compaction latency targets must be "
+          + "greater than 0: put=" + put_target + ", get=" + get_target);
+    }
+    if (min_rate < 1 || min_rate > 100 || max_rate < 100) {
+      throw new IllegalArgumentException("Compaction rate bounds must satisfy "
+          + "0 < min <= 100 <= max: min=" + min_rate + ", max=" + max_rate);
+    }
+    interval = interval_ms;
+    last_update = System.currentTimeMillis();
+  }
+
+  /** @return The current rate in percent of the default flush rate */
+  int rate() {
+    return rate;
+  }
+
+  /**
+   * Scales the number of rows to flush in an interval by the rate.
+   * @param base The number of rows the queue would flush by default.
+   * @return The number of rows to flush, at least 1.
+   */
+  int maxFlushes(final int base) {
+    return (int) Math.max(1, Math.min(Integer.MAX_VALUE,
+        (long) base * rate / 100));
+  }
+
+  /**
+   * Scales the number of concurrent compactions by the rate, never going
+   * past the configured maximum.
+   * @param max The configured maximum.
+   * @return The number of concurrent compactions, at least 1.
+   */
+  int concurrency(final int max) {
+    return (int) Math.max(1, (long) max * Math.min(rate, 100) / 100);
+  }
+
+  /**
+   * Records the latency of a put.
+   * @param latency_ms The latency in milliseconds.
+   */
+  synchronized void recordPut(final long latency_ms) {
+    puts.add((int) Math.min(Integer.MAX_VALUE, Math.max(0, latency_ms)));
+    put_samples++;
+  }
+
+  /**
+   * Records the latency of a get.
+   * @param latency_ms The latency in milliseconds.
+   */
+  synchronized void recordGet(final long latency_ms) {
+    gets.add((int) Math.min(Integer.MAX_VALUE, Math.max(0, latency_ms)));
+    get_samples++;
+  }
+
+  /**
+   * Adjusts the rate if an interval has passed since the last adjustment.
+   * Safe to call from every compaction thread.
+   * @param now The current time in milliseconds.
+   * @return True if the rate was re-evaluated.
+   */
+  synchronized boolean update(final long now) {
+    if (now - last_update < interval) {
+      return false;
+    }
+    last_update = now;
+    last_put_p99 = put_samples > 0 ? puts.percentile(99) : 0;
+    last_get_p99 = get_samples > 0 ? gets.percentile(99) : 0;
+    puts = newHistogram();
+    gets = newHistogram();
+    put_samples = 0;
+    get_samples = 0;
+
+    if (last_put_p99 > put_target || last_get_p99 > get_target) {
+      if (rate > min_rate) {
+        rate = Math.max(min_rate, rate / 2);
+        throttled.incrementAndGet();
+      }
+    } else if (last_put_p99 <= put_target / 2
+        && last_get_p99 <= get_target / 2) {
+      if (rate < max_rate) {
+        rate = Math.min(max_rate, rate + RATE_STEP);
+        boosted.incrementAndGet();
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Collects the controller state.
+   * @param collector The collector to use.
+   */
+  void collectStats(final StatsCollector collector) {
+    collector.record("compaction.throttle.rate", rate);
+    collector.record("compaction.throttle.p99", last_put_p99, "rpc=put");
+    collector.record("compaction.throttle.p99", last_get_p99, "rpc=get");
+    collector.record("compaction.throttle.adjustments", throttled,
+        "direction=down");
+    collector.record("compaction.throttle.adjustments", boosted,
+        "direction=up");
+  }
+
+  /** @return A histogram with the same layout as the TSDB latency ones */
+  private static Histogram newHistogram() {
+    return new Histogram(16000, (short) 2, 100);
+  }
+
+  /**
+   * Times an RPC from when it's created and passes the result or exception
+   * through untouched so it can be added anywhere in a callback chain.
+   */
+  final class LatencyCB<T> implements Callback<T, T> {
+    private final boolean put;
+    private final long start = System.nanoTime();
+
+    /** @param put Whether the RPC is a put or a get */
+    LatencyCB(final boolean put) {
+      this.put = put;
+    }
+
+    @Override
+    public T call(final T arg) {
+      final long latency = (System.nanoTime() - start) / 1000000;
+      if (put) {
+        recordPut(latency);
+      } else {
+        recordGet(latency);
+      }
+      return arg;
+    }
+
+    @Override
+    public String toString() {
+      return "compaction " + (put ? "put" : "get") + " latency";
+    }
+  }
+}
@@ -0,0 +1,504 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.Arrays;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.KeyValue;
+
+/**
+ * Serializes and deserializes compacted columns in a block format inspired by
+ * Facebook's Gorilla paper. Instead of concatenating every qualifier and value
+ * like the legacy compacted column, the timestamps are stored as bit packed
+ * deltas-of-deltas and the values are stored as XOR'd floating point bits or
+ * zig-zag encoded integer deltas. Regularly reported series usually shrink to
+ * a fraction of the legacy size.
+ * <p>
+ * The column has a fixed qualifier, {@link #QUALIFIER}, with an odd length so
+ * that older TSDs treat it as an unknown extended format. The value starts with
+ * a header:
+ * <ul>
+ * <li>1 byte version, currently {@link #VERSION}</li>
+ * <li>1 byte flags, {@code 0x01} if the block has second qualifiers and
+ * {@code 0x02} if it has millisecond qualifiers</li>
+ * <li>4 byte unsigned number of data points</li>
+ * </ul>
+ * followed by the bit stream. For each data point the stream holds the
+ * timestamp offset (in seconds if the block only has second qualifiers,
+ * milliseconds otherwise) as a delta-of-delta, a bit flagging millisecond
+ * qualifiers if the block has both, the 4 qualifier flag bits if they changed
+ * from the previous point and finally the value.
+ * <p>
+ * Blocks always decode to the exact legacy compacted qualifier and value so
+ * anything that parses compacted columns can work off of {@link #decode}.
+ * {@link #encode} returns null for any column it can't represent losslessly or
+ * that wouldn't be any smaller so that callers can fall back to the legacy
+ * format.
+ * @since 2.4
+ */
+public final class GorillaColumn {
+
+  /** The prefix ID of block columns */
+  public static final byte PREFIX = 0x07;
+
+  /** The full column qualifier for block columns */
+  public static final byte[] QUALIFIER = new byte[] { PREFIX, 0x00, 0x00 };
+
+  /** The current version of the encoding */
+  public static final byte VERSION = 1;
+
+  /** Length of the header: version, flags and count */
+  static final int HEADER_LENGTH = 6;
+
+  /** Header flag set when the block contains second qualifiers */
+  private static final byte HAS_SECONDS = 0x01;
+
+  /** Header flag set when the block contains millisecond qualifiers */
+  private static final byte HAS_MILLISECONDS = 0x02;
+
+  private GorillaColumn() {
+    // Can't instantiate me!
+  }
+
+  /**
+   * Whether or not the qualifier belongs to a block column.
+   * @param qualifier The qualifier to check.
+   * @return True if the qualifier is {@link #QUALIFIER}'s length and prefix.
+   */
+  public static boolean isGorillaColumn(final byte[] qualifier) {
+    return qualifier != null && qualifier.length == QUALIFIER.length
+        && qualifier[0] == PREFIX;
+  }
+
+  /**
+   * Returns the number of data points in a block without decoding it.
+   * @param value The value of a block column.
+   * @return The number of data points.
+   * @throws IllegalDataException if the header was truncated or the version
+   * is unknown.
+   */
+  public static int count(final byte[] value) {
+    validateHeader(value);
+    return (int) Bytes.getUnsignedInt(value, 2);
+  }
+
+  /**
+   * Encodes a legacy compacted column into a block.
+   * @param qualifiers The concatenated 2 or 4 byte qualifiers, sorted.
+   * @param values The concatenated values including the trailing meta data
+   * byte.
+   * @return The value of the block column or null if the column had less
+   * than two data points, couldn't be encoded losslessly or if the block
+   * wouldn't be smaller than the legacy column.
+   */
+  public static byte[] encode(final byte[] qualifiers, final byte[] values) {
+    if (qualifiers == null || values == null || qualifiers.length < 4) {
+      return null;
+    }
+
+    // first pass validates the column and figures out the timestamp unit
+    int count = 0;
+    int value_length = 0;
+    boolean has_seconds = false;
+    boolean has_ms = false;
+    try {
+      for (int i = 0; i < qualifiers.length;
+          i += Internal.getQualifierLength(qualifiers, i)) {
+        if (Internal.inMilliseconds(qualifiers[i])) {
+          has_ms = true;
+        } else {
+          has_seconds = true;
+        }
+        final byte vlen = Internal.getValueLengthFromQualifier(qualifiers, i);
+        if (Internal.isFloat(qualifiers, i) && vlen != 4 && vlen != 8) {
+          return null;
+        }
+        value_length += vlen;
+        count++;
+      }
+    } catch (IllegalArgumentException e) {
+      return null;
+    } catch (IllegalDataException e) {
+      return null;
+    }
+    // multi-value columns always carry the meta data byte
+    if (count < 2 || value_length + 1 != values.length) {
+      return null;
+    }
+
+    final BitWriter writer = new BitWriter(HEADER_LENGTH + values.length);
+    writer.writeByte(VERSION);
+    writer.writeByte((byte) ((has_seconds ? HAS_SECONDS : 0)
+        | (has_ms ? HAS_MILLISECONDS : 0)));
+    writer.write(count, 32);
+
+    long prev_ts = 0;
+    long prev_delta = 0;
+    int prev_flags = -1;
+    long prev_int = 0;
+    long prev_float = 0;
+    int prev_leading = -1;
+    int prev_trailing = 0;
+    int val_idx = 0;
+    for (int i = 0; i < qualifiers.length;
+        i += Internal.getQualifierLength(qualifiers, i)) {
+      final boolean ms = Internal.inMilliseconds(qualifiers[i]);
+      final long ts = has_ms ? Internal.getOffsetFromQualifier(qualifiers, i)
+          : Internal.getOffsetFromQualifier(qualifiers, i) / 1000;
+      final long delta = ts - prev_ts;
+      writeDeltaOfDelta(writer, delta - prev_delta);
+      prev_ts = ts;
+      prev_delta = delta;
+      if (has_ms && has_seconds) {
+        writer.write(ms ? 1 : 0, 1);
+      }
+
+      final int flags = Internal.getFlagsFromQualifier(qualifiers, i);
+      if (flags == prev_flags) {
+        writer.write(0, 1);
+      } else {
+        writer.write(1, 1);
+        writer.write(flags, Const.FLAG_BITS);
+        prev_flags = flags;
+      }
+
+      final int vlen = (flags & Const.LENGTH_MASK) + 1;
+      long bits = 0;
+      for (int j = 0; j < vlen; j++) {
+        bits = (bits << 8) | (values[val_idx + j] & 0xFF);
+      }
+      val_idx += vlen;
+
+      if ((flags & Const.FLAG_FLOAT) == Const.FLAG_FLOAT) {
+        final long xor = bits ^ prev_float;
+        prev_float = bits;
+        if (xor == 0) {
+          writer.write(0, 1);
+          continue;
+        }
+        writer.write(1, 1);
+        final int leading = Long.numberOfLeadingZeros(xor);
+        final int trailing = Long.numberOfTrailingZeros(xor);
+        if (prev_leading >= 0 && leading >= prev_leading
+            && trailing >= prev_trailing) {
+          // the meaningful bits fit in the previous window
+          writer.write(0, 1);
+          writer.write(xor >>> prev_trailing, 64 - prev_leading - prev_trailing);
+        } else {
+          final int meaningful = 64 - leading - trailing;
+          writer.write(1, 1);
+          writer.write(leading, 6);
+          writer.write(meaningful - 1, 6);
+          writer.write(xor >>> trailing, meaningful);
+          prev_leading = leading;
+          prev_trailing = trailing;
+        }
+      } else {
+        // sign extend so that deltas between small negatives stay small
+        if (vlen < 8) {
+          bits = (bits << (64 - vlen * 8)) >> (64 - vlen * 8);
+        }
+        final long delta_value = bits - prev_int;
+        prev_int = bits;
+        final long zigzag = (delta_value << 1) ^ (delta_value >> 63);
+        if (zigzag == 0) {
+          writer.write(0, 1);
+        } else {
+          final int nbits = 64 - Long.numberOfLeadingZeros(zigzag);
+          writer.write(1, 1);
+          writer.write(nbits - 1, 6);
+          writer.write(zigzag, nbits);
+        }
+      }
+    }
+
+    final byte[] encoded = writer.toBytes();
+    if (encoded.length + QUALIFIER.length >= qualifiers.length + values.length) {
+      return null;
+    }
+    // make sure we can read back exactly what we were given, e.g. reserved
+    // bits in millisecond qualifiers or an odd meta data byte
+    final byte[][] decoded = decode(encoded);
+    if (!Arrays.equals(decoded[0], qualifiers)
+        || !Arrays.equals(decoded[1], values)) {
+      return null;
+    }
+    return encoded;
+  }
+
+  /**
+   * Decodes a block column into a legacy compacted column with the same key,
+   * family and timestamp.
+   * @param column The block column.
+   * @return A compacted column.
+   * @throws IllegalDataException if the block was corrupted or written by a
+   * future version.
+   */
+  public static KeyValue decode(final KeyValue column) {
+    final byte[][] decoded = decode(column.value());
+    return new KeyValue(column.key(), column.family(), decoded[0],
+        column.timestamp(), decoded[1]);
+  }
+
+  /**
+   * Decodes the value of a block column.
+   * @param value The value of the block column.
+   * @return An array with the concatenated qualifiers at index 0 and the
+   * concatenated values, including the meta data byte, at index 1.
+   * @throws IllegalDataException if the block was corrupted or written by a
+   * future version.
+   */
+  static byte[][] decode(final byte[] value) {
+    final int count = count(value);
+    final boolean has_seconds = (value[1] & HAS_SECONDS) != 0;
+    final boolean has_ms = (value[1] & HAS_MILLISECONDS) != 0;
+    if (count < 1 || (!has_seconds && !has_ms)) {
+      throw new IllegalDataException("Corrupted block header: "
+          + Bytes.pretty(value));
+    }
+    // each data point takes at least 3 bits so bound the allocation
+    if (count > (value.length - HEADER_LENGTH) * 8L / 3) {
+      throw new IllegalDataException("Block count " + count
+          + " exceeds its length: " + value.length);
+    }
+
+    final BitReader reader = new BitReader(value, HEADER_LENGTH);
+    byte[] qualifiers = new byte[count * (has_ms ? 4 : 2)];
+    byte[] values = new byte[count * 8 + 1];
+    int q_idx = 0;
+    int v_idx = 0;
+
+    long prev_ts = 0;
+    long prev_delta = 0;
+    int flags = -1;
+    long prev_int = 0;
+    long prev_float = 0;
+    int prev_leading = -1;
+    int prev_trailing = 0;
+    for (int i = 0; i < count; i++) {
+      final long delta = prev_delta + readDeltaOfDelta(reader);
+      final long ts = prev_ts + delta;
+      prev_ts = ts;
+      prev_delta = delta;
+      final boolean ms = has_ms && has_seconds ? reader.read(1) == 1 : has_ms;
+
+      if (reader.read(1) == 1) {
+        flags = (int) reader.read(Const.FLAG_BITS);
+      } else if (flags < 0) {
+        throw new IllegalDataException("Missing flags for the first value "
+            + "of block: " + Bytes.pretty(value));
+      }
+
+      if (ms) {
+        if (ts < 0 || ts > 0x3FFFFF) {
+          throw new IllegalDataException("Invalid millisecond offset " + ts
+              + " in block: " + Bytes.pretty(value));
+        }
+        Bytes.setInt(qualifiers, Const.MS_FLAG
+            | ((int) ts << Const.MS_FLAG_BITS) | flags, q_idx);
+        q_idx += 4;
+      } else {
+        final long seconds = has_ms ? ts / 1000 : ts;
+        if (seconds < 0 || seconds > 0xFFF || (has_ms && ts % 1000 != 0)) {
+          throw new IllegalDataException("Invalid second offset " + ts
+              + " in block: " + Bytes.pretty(value));
+        }
+        Bytes.setShort(qualifiers,
+            (short) ((seconds << Const.FLAG_BITS) | flags), q_idx);
+        q_idx += 2;
+      }
+
+      final int vlen = (flags & Const.LENGTH_MASK) + 1;
+      final long bits;
+      if ((flags & Const.FLAG_FLOAT) == Const.FLAG_FLOAT) {
+        if (reader.read(1) == 0) {
+          bits = prev_float;
+        } else {
+          if (reader.read(1) == 1) {
+            prev_leading = (int) reader.read(6);
+            prev_trailing = 64 - prev_leading - ((int) reader.read(6) + 1);
+            if (prev_trailing < 0) {
+              throw new IllegalDataException("Invalid XOR window in block: "
+                  + Bytes.pretty(value));
+            }
+          } else if (prev_leading < 0) {
+            throw new IllegalDataException("Missing XOR window in block: "
+                + Bytes.pretty(value));
+          }
+          bits = prev_float ^ (reader.read(64 - prev_leading - prev_trailing)
+              << prev_trailing);
+        }
+        prev_float = bits;
+      } else {
+        if (reader.read(1) == 0) {
+          bits = prev_int;
+        } else {
+          final long zigzag = reader.read((int) reader.read(6) + 1);
+          bits = prev_int + ((zigzag >>> 1) ^ -(zigzag & 1));
+        }
+        prev_int = bits;
+      }
+      for (int j = vlen - 1; j >= 0; j--) {
+        values[v_idx++] = (byte) (bits >>> (j * 8));
+      }
+    }
+
+    if (count > 1) {
+      values[v_idx++] = has_ms && has_seconds ? Const.MS_MIXED_COMPACT : 0;
+    }
+    if (q_idx < qualifiers.length) {
+      qualifiers = Arrays.copyOf(qualifiers, q_idx);
+    }
+    return new byte[][] { qualifiers, Arrays.copyOf(values, v_idx) };
+  }
+
+  /**
+   * Validates the version and length of a block header.
+   * @param value The value to check.
+   * @throws IllegalDataException if the header was truncated or the version
+   * is unknown.
+   */
+  private static void validateHeader(final byte[] value) {
+    if (value == null || value.length < HEADER_LENGTH) {
+      throw new IllegalDataException("Block is missing its header: "
+          + Bytes.pretty(value));
+    }
+    if (value[0] != VERSION) {
+      throw new IllegalDataException("Unsupported block version " + value[0]
+          + ", it may have been written by a future version of OpenTSDB");
+    }
+  }
+
+  /**
+   * Writes a timestamp delta-of-delta in one of the variable length buckets.
+   * @param writer The writer to use.
+   * @param dod The delta-of-delta.
+   */
+  private static void writeDeltaOfDelta(final BitWriter writer, final long dod) {
+    if (dod == 0) {
+      writer.write(0, 1);
+      return;
+    }
+    final long zigzag = (dod << 1) ^ (dod >> 63);
+    if (zigzag < (1 << 7)) {
+      writer.write(0x2, 2);
+      writer.write(zigzag, 7);
+    } else if (zigzag < (1 << 9)) {
+      writer.write(0x6, 3);
+      writer.write(zigzag, 9);
+    } else if (zigzag < (1 << 12)) {
+      writer.write(0xE, 4);
+      writer.write(zigzag, 12);
+    } else {
+      writer.write(0xF, 4);
+      writer.write(zigzag, 32);
+    }
+  }
+
+  /**
+   * Reads a timestamp delta-of-delta.
+   * @param reader The reader to use.
+   * @return The delta-of-delta.
+   */
+  private static long readDeltaOfDelta(final BitReader reader) {
+    final long zigzag;
+    if (reader.read(1) == 0) {
+      return 0;
+    } else if (reader.read(1) == 0) {
+      zigzag = reader.read(7);
+    } else if (reader.read(1) == 0) {
+      zigzag = reader.read(9);
+    } else if (reader.read(1) == 0) {
+      zigzag = reader.read(12);
+    } else {
+      zigzag = reader.read(32);
+    }
+    return (zigzag >>> 1) ^ -(zigzag & 1);
+  }
+
+  /** Appends bits to a growing byte array, most significant bit first. */
+  private static final class BitWriter {
+    private byte[] buffer;
+    private int position;
+
+    BitWriter(final int size_hint) {
+      buffer = new byte[Math.max(size_hint, 16)];
+    }
+
+    /** Writes a whole byte, only valid on a byte boundary */
+    void writeByte(final byte b) {
+      write(b & 0xFF, 8);
+    }
+
+    /**
+     * Writes the low bits of the value.
+     * @param value The value to write.
+     * @param nbits The number of bits to write, from 1 to 64.
+     */
+    void write(final long value, int nbits) {
+      while (nbits > 0) {
+        final int index = position >>> 3;
+        if (index >= buffer.length) {
+          buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+        final int available = 8 - (position & 7);
+        final int take = Math.min(available, nbits);
+        final int bits = (int) (value >>> (nbits - take)) & ((1 << take) - 1);
+        buffer[index] |= (byte) (bits << (available - take));
+        position += take;
+        nbits -= take;
+      }
+    }
+
+    byte[] toBytes() {
+      return Arrays.copyOf(buffer, (position + 7) >>> 3);
+    }
+  }
+
+  /** Reads bits from a byte array, most significant bit first. */
+  private static final class BitReader {
+    private final byte[] buffer;
+    private int position;
+
+    BitReader(final byte[] buffer, final int offset) {
+      this.buffer = buffer;
+      position = offset * 8;
+    }
+
+    /**
+     * Reads bits as an unsigned value.
+     * @param nbits The number of bits to read, from 1 to 64.
+     * @return The value.
+     * @throws IllegalDataException if we ran past the end of the buffer.
+     */
+    long read(int nbits) {
+      long result = 0;
+      while (nbits > 0) {
+        final int index = position >>> 3;
+        if (index >= buffer.length) {
+          throw new IllegalDataException("Block was truncated at bit "
+              + position);
+        }
+        final int available = 8 - (position & 7);
+        final int take = Math.min(available, nbits);
+        final int bits = ((buffer[index] & 0xFF) >>> (available - take))
+            & ((1 << take) - 1);
+        result = (result << take) | bits;
+        position += take;
+        nbits -= take;
+      }
+      return result;
+    }
+  }
+}
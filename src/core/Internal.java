@@ -216,12 +216,16 @@ public final class Internal {
   public static ArrayList<Cell> extractDataPoints(final KeyValue column) {
     final ArrayList<KeyValue> row = new ArrayList<KeyValue>(1);
     row.add(column);
+    if (GorillaColumn.isGorillaColumn(column.qualifier())) {
+      return extractDataPoints(row, GorillaColumn.count(column.value()));
+    }
     return extractDataPoints(row, column.qualifier().length / 2);
   }
   
   /**
    * Breaks down all the values in a row into individual {@link Cell}s sorted on
-   * the qualifier. Columns with non data-point data will be discarded.
+   * the qualifier. Columns with non data-point data will be discarded while
+   * {@link GorillaColumn} blocks are decoded.
    * <b>Note:</b> This method does not account for duplicate timestamps in
    * qualifiers.
    * @param row An array of data row columns to parse
@@ -237,15 +241,22 @@ public final class Internal {
   public static ArrayList<Cell> extractDataPoints(final ArrayList<KeyValue> row,
       final int estimated_nvalues) {
     final ArrayList<Cell> cells = new ArrayList<Cell>(estimated_nvalues);
-    for (final KeyValue kv : row) {
+    for (final KeyValue column : row) {
+      final KeyValue kv;
+      if (column.qualifier().length % 2 == 0) {
+        kv = column;
+      } else if (GorillaColumn.isGorillaColumn(column.qualifier())) {
+        // blocks are expanded into the legacy compacted form
+        kv = GorillaColumn.decode(column);
+      } else {
+        // skip a non data point column
+        continue;
+      }
       final byte[] qual = kv.qualifier();
       final int len = qual.length;
       final byte[] val = kv.value();
       
-      if (len % 2 != 0) {
-        // skip a non data point column
-        continue;
-      } else if (len == 2) {  // Single-value cell.
+      if (len == 2) {  // Single-value cell.
         // Maybe we need to fix the flags in the qualifier.
         final byte[] actual_val = fixFloatingPointValue(qual[1], val);
         final byte q = fixQualifierFlags(qual[1], actual_val.length);
@@ -0,0 +1,273 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.utils.Config;
+import net.opentsdb.utils.DateTime;
+
+/**
+ * Keeps the latest numeric data point written through this TSD for each time
+ * series so that last data point queries can be answered from memory instead
+ * of reading the meta and data tables.
+ * <p>
+ * Points are recorded once storage acknowledged the write and an entry is
+ * only replaced by a point with a newer timestamp. Histograms aren't cached as the
+ * last data point API only returns numeric values. The cache is bounded to
+ * {@code tsd.core.last_point_cache.max_entries} series and evicts the least
+ * recently used ones first.
+ * <p>
+ * The cache only sees the writes of this TSD so every series must be written
+ * through a single TSD, e.g. by routing on the metric and tags at the load
+ * balancer, or a newer point written elsewhere may be hidden by an older one
+ * cached here. Points older than {@code tsd.core.last_point_cache.max_age},
+ * one minute by default or about one reporting interval, are treated as
+ * misses which bounds how stale an answer can be and sends series that
+ * stopped reporting to storage. Deleting data with a query removes the
+ * cached points of the series it matched.
+ * @since 2.4
+ */
+public final class LastPointCache {
+
+  /** Points older than this many milliseconds are misses, 0 to disable */
+  private final long max_age;
+
+  /** The latest point of each series keyed on the TSUID */
+  private final Cache<Key, Entry> cache;
+
+  /** Quick access to the map of the cache */
+  private final ConcurrentMap<Key, Entry> entries;
+
+  /** Number of lookups answered from the cache */
+  private final AtomicLong hits = new AtomicLong();
+
+  /** Number of lookups that had to go to storage */
+  private final AtomicLong misses = new AtomicLong();
+
+  /** Number of misses due to the cached point being too old */
+  private final AtomicLong stale = new AtomicLong();
+
+  /** Number of points that replaced a cached one or added a series */
+  private final AtomicLong updates = new AtomicLong();
+
+  /** Sum of the ages of the points served, in milliseconds */
+  private final AtomicLong hit_age = new AtomicLong();
+
+  /**
+   * Default ctor.
+   * @param max_entries The maximum number of series to cache.
+   * @param max_age Points older than this many milliseconds are treated as
+   * misses. 0 to serve points of any age.
+   * @throws IllegalArgumentException if max entries was less than 1 or the
+   * max age was negative.
+   */
+  public LastPointCache(final long max_entries, final long max_age) {
+    if (max_entries < 1) {
+      throw new IllegalArgumentException("Max entries must be greater "
+          + "than 0: " + max_entries);
+    }
+    if (max_age < 0) {
+      throw new IllegalArgumentException("Max age cannot be negative: "
+          + max_age);
+    }
+    this.max_age = max_age;
+    cache = CacheBuilder.newBuilder()
+        .maximumSize(max_entries)
+        .recordStats()
+        .<Key, Entry>build();
+    entries = cache.asMap();
+  }
+
+  /**
+   * Creates a cache using the {@code tsd.core.last_point_cache.*} settings.
+   * @param tsdb The TSDB to read the config from.
+   * @return A new cache.
+   */
+  static LastPointCache fromConfig(final TSDB tsdb) {
+    final Config config = tsdb.getConfig();
+    final String max_age = config.getString(
+        "tsd.core.last_point_cache.max_age");
+    return new LastPointCache(
+        config.getLong("tsd.core.last_point_cache.max_entries"),
+        max_age == null || max_age.isEmpty() || max_age.equals("0") ? 0 :
+          DateTime.parseDuration(max_age));
+  }
+
+  /**
+   * Records a data point if it's newer than the cached point of its series.
+   * @param tsuid The TSUID of the series, without a salt or timestamp.
+   * @param timestamp The timestamp in seconds or milliseconds.
+   * @param value The encoded value.
+   * @param flags The value flags.
+   */
+  public void put(final byte[] tsuid, final long timestamp, final byte[] value,
+      final short flags) {
+    final Key key = new Key(tsuid);
+    final Entry entry = new Entry(
+        (timestamp & Const.SECOND_MASK) != 0 ? timestamp : timestamp * 1000,
+        value, flags);
+    while (true) {
+      final Entry existing = entries.putIfAbsent(key, entry);
+      if (existing == null) {
+        updates.incrementAndGet();
+        return;
+      }
+      if (existing.timestamp >= entry.timestamp) {
+        return;
+      }
+      if (entries.replace(key, existing, entry)) {
+        updates.incrementAndGet();
+        return;
+      }
+    }
+  }
+
+  /**
+   * Fetches the cached point of a series.
+   * @param tsuid The TSUID of the series.
+   * @param min_timestamp The oldest timestamp in milliseconds the caller
+   * accepts, 0 for any.
+   * @return A data point with the timestamp in milliseconds and value set or
+   * null if the series wasn't cached or its point was too old.
+   */
+  public IncomingDataPoint get(final byte[] tsuid, final long min_timestamp) {
+    final Entry entry = entries.get(new Key(tsuid));
+    if (entry == null) {
+      misses.incrementAndGet();
+      return null;
+    }
+    final long age = DateTime.currentTimeMillis() - entry.timestamp;
+    if (entry.timestamp < min_timestamp || (max_age > 0 && age > max_age)) {
+      stale.incrementAndGet();
+      misses.incrementAndGet();
+      return null;
+    }
+    hits.incrementAndGet();
+    hit_age.addAndGet(Math.max(age, 0));
+
+    final IncomingDataPoint dp = new IncomingDataPoint();
+    dp.setTimestamp(entry.timestamp);
+    // formatted the same way as Cell#parseValue()
+    if ((entry.flags & Const.FLAG_FLOAT) == 0) {
+      dp.setValue(Long.toString(Internal.extractIntegerValue(
+          entry.value, 0, (byte) entry.flags)));
+    } else {
+      dp.setValue(Double.toString(Internal.extractFloatingPointValue(
+          entry.value, 0, (byte) entry.flags)));
+    }
+    return dp;
+  }
+
+  /**
+   * Discards the cached point of a series, e.g. when its data was deleted.
+   * @param tsuid The TSUID of the series.
+   */
+  public void remove(final byte[] tsuid) {
+    cache.invalidate(new Key(tsuid));
+  }
+
+  /** Discards all of the cached points */
+  public void clear() {
+    cache.invalidateAll();
+  }
+
+  /**
+   * Collects the stats for the cache.
+   * @param collector The collector to use.
+   */
+  public void collectStats(final StatsCollector collector) {
+    final long served = hits.get();
+    collector.record("last_point.cache.hits", served);
+    collector.record("last_point.cache.misses", misses.get());
+    collector.record("last_point.cache.stale", stale.get());
+    collector.record("last_point.cache.updates", updates.get());
+    collector.record("last_point.cache.evictions",
+        cache.stats().evictionCount());
+    collector.record("last_point.cache.entries", cache.size());
+    collector.record("last_point.cache.hit_age_avg",
+        served > 0 ? hit_age.get() / served : 0);
+  }
+
+  /** @return The number of cached series */
+  @VisibleForTesting
+  long size() {
+    return cache.size();
+  }
+
+  /** @return The number of lookups answered from the cache */
+  @VisibleForTesting
+  long hits() {
+    return hits.get();
+  }
+
+  /** @return The number of lookups that had to go to storage */
+  @VisibleForTesting
+  long misses() {
+    return misses.get();
+  }
+
+  /** @return The number of misses due to old points */
+  @VisibleForTesting
+  long stale() {
+    return stale.get();
+  }
+
+  /** A TSUID with value semantics for the map */
+  private static final class Key {
+    final byte[] tsuid;
+    final int hash;
+
+    Key(final byte[] tsuid) {
+      this.tsuid = tsuid;
+      hash = Arrays.hashCode(tsuid);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      return Arrays.equals(tsuid, ((Key) obj).tsuid);
+    }
+  }
+
+  /** The latest point of a series */
+  private static final class Entry {
+    /** Timestamp in milliseconds */
+    final long timestamp;
+    final byte[] value;
+    final short flags;
+
+    Entry(final long timestamp, final byte[] value, final short flags) {
+      this.timestamp = timestamp;
+      this.value = value;
+      this.flags = flags;
+    }
+  }
+}
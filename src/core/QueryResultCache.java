@@ -0,0 +1,704 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.Bytes.ByteMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.query.filter.TagVFilter;
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.utils.Config;
+import net.opentsdb.utils.DateTime;
+
+/**
+ * Caches the results of downsampled queries per aligned time bucket so that
+ * dashboards re-issuing the same query for a sliding window only fetch the
+ * ranges that aren't cached yet from storage.
+ * <p>
+ * Queries are keyed by a normalized form of the {@link TSQuery} without its
+ * time range. The results of a query are split into buckets of
+ * {@code tsd.query.cache.bucket_interval} aligned on the Unix epoch and
+ * every bucket the query covered entirely is cached. A later query with the
+ * same key reuses the longest run of cached buckets in its range, runs the
+ * query from storage for the ranges before and after the run and splices the
+ * fresh results with the cached ones.
+ * <p>
+ * Splicing only yields the same results as a full query when the value of
+ * each downsampling interval doesn't depend on its neighbours. So only
+ * queries whose every sub query has a fixed downsampling interval that the
+ * bucket interval is a multiple of, a NaN or null fill policy and one of the
+ * sum, min, max, avg or count aggregators are cached. Rates, histograms,
+ * calendar downsampling, global annotations and rollups are never cached.
+ * <p>
+ * Buckets ending less than {@code tsd.query.cache.settle_interval} ago
+ * aren't cached as late data may still arrive. The cache is bounded to
+ * roughly {@code tsd.query.cache.max_bytes} of heap and evicts the least
+ * recently used buckets first.
+ * @since 2.4
+ */
+public final class QueryResultCache {
+  private static final Logger LOG =
+      LoggerFactory.getLogger(QueryResultCache.class);
+
+  /** Width of the cached buckets in milliseconds */
+  private final long bucket_interval;
+
+  /** How long to wait after the end of a bucket before caching it, in ms */
+  private final long settle_interval;
+
+  /** Heap budget in bytes */
+  private final long max_bytes;
+
+  /** The TSDB used to run queries */
+  private final TSDB tsdb;
+
+  /** Buckets keyed on the query key and bucket start in access order */
+  private final LinkedHashMap<String, Bucket> buckets =
+      new LinkedHashMap<String, Bucket>(16, 0.75f, true);
+
+  /** Estimated size of the cached buckets, guarded by this */
+  private long bytes;
+
+  /** Number of buckets served from the cache */
+  private final AtomicLong hits = new AtomicLong();
+
+  /** Number of buckets that had to be fetched from storage */
+  private final AtomicLong misses = new AtomicLong();
+
+  /** Number of queries that could not use the cache */
+  private final AtomicLong uncacheable = new AtomicLong();
+
+  /** Number of buckets evicted to stay under the budget */
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * Default ctor.
+   * @param tsdb The TSDB used to run queries.
+   * @param bucket_interval The width of each bucket in milliseconds.
+   * @param settle_interval How long to wait after the end of a bucket before
+   * caching it, in milliseconds.
+   * @param max_bytes The heap budget in bytes.
+   * @throws IllegalArgumentException if the bucket interval or budget were
+   * less than 1 or the settle interval was negative.
+   */
+  public QueryResultCache(final TSDB tsdb,
+                          final long bucket_interval,
+                          final long settle_interval,
+                          final long max_bytes) {
+    if (bucket_interval < 1) {
+      throw new IllegalArgumentException("Bucket interval must be greater "
+          + "than 0: " + bucket_interval);
+    }
+    if (settle_interval < 0) {
+      throw new IllegalArgumentException("Settle interval cannot be "
+          + "negative: " + settle_interval);
+    }
+    if (max_bytes < 1) {
+      throw new IllegalArgumentException("Max bytes must be greater than 0: "
+          + max_bytes);
+    }
+    this.tsdb = tsdb;
+    this.bucket_interval = bucket_interval;
+    this.settle_interval = settle_interval;
+    this.max_bytes = max_bytes;
+  }
+
+  /**
+   * Creates a cache using the {@code tsd.query.cache.*} settings.
+   * @param tsdb The TSDB to read the config from.
+   * @return A new cache.
+   */
+  static QueryResultCache fromConfig(final TSDB tsdb) {
+    final Config config = tsdb.getConfig();
+    return new QueryResultCache(tsdb,
+        DateTime.parseDuration(
+            config.getString("tsd.query.cache.bucket_interval")),
+        DateTime.parseDuration(
+            config.getString("tsd.query.cache.settle_interval")),
+        config.getLong("tsd.query.cache.max_bytes"));
+  }
+
+  /**
+   * Whether or not the results of the query can be cached. The query must
+   * have been validated.
+   * @param query The query to check.
+   * @return True if {@link #runAsync} may be used for the query.
+   */
+  public boolean isCacheable(final TSQuery query) {
+    if (query.getDelete() || query.getGlobalAnnotations() ||
+        query.getUseCalendar() || query.getQueries() == null) {
+      uncacheable.incrementAndGet();
+      return false;
+    }
+    for (final TSSubQuery sub : query.getQueries()) {
+      final DownsamplingSpecification ds = sub.downsamplingSpecification();
+      if (sub.getRate() || sub.isHistogramQuery() ||
+          BatchAggregationIterator.kernelFor(sub.aggregator()) == null ||
+          ds == null || ds == DownsamplingSpecification.NO_DOWNSAMPLER ||
+          ds.getInterval() <= 0 || ds.useCalendar() ||
+          bucket_interval % ds.getInterval() != 0 ||
+          (ds.getFillPolicy() != FillPolicy.NOT_A_NUMBER &&
+           ds.getFillPolicy() != FillPolicy.NULL) ||
+          (tsdb.getRollupConfig() != null &&
+           sub.getRollupUsage() != TsdbQuery.ROLLUP_USAGE.ROLLUP_RAW)) {
+        uncacheable.incrementAndGet();
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Runs a cacheable query, reusing cached buckets when possible and caching
+   * the buckets fetched from storage.
+   * @param query The validated query to run.
+   * @return A deferred resolving to the results of each sub query in order.
+   */
+  public Deferred<ArrayList<DataPoints[]>> runAsync(final TSQuery query) {
+    final String key = cacheKey(query);
+    final long start = query.startTime();
+    final long end = query.endTime();
+    final long cutoff = DateTime.currentTimeMillis() - settle_interval;
+
+    // find the longest run of cached buckets the query covers entirely
+    final List<Bucket> run = new ArrayList<Bucket>();
+    long run_start = 0;
+    int eligible = 0;
+    synchronized (this) {
+      final List<Bucket> current = new ArrayList<Bucket>();
+      long current_start = 0;
+      for (long ts = firstBucket(start);
+          ts + bucket_interval <= Math.min(end + 1, cutoff);
+          ts += bucket_interval) {
+        eligible++;
+        final Bucket bucket = buckets.get(bucketKey(key, ts));
+        if (bucket != null) {
+          if (current.isEmpty()) {
+            current_start = ts;
+          }
+          current.add(bucket);
+        } else {
+          if (current.size() > run.size()) {
+            run.clear();
+            run.addAll(current);
+            run_start = current_start;
+          }
+          current.clear();
+        }
+      }
+      if (current.size() > run.size()) {
+        run.clear();
+        run.addAll(current);
+        run_start = current_start;
+      }
+    }
+    hits.addAndGet(run.size());
+    misses.addAndGet(eligible - run.size());
+    final long first_cached = run_start;
+    final long run_end = run_start + (run.size() * bucket_interval);
+
+    // the ranges around the run come from storage
+    final List<Part> parts = new ArrayList<Part>(2);
+    if (run.isEmpty()) {
+      parts.add(new Part(query, Long.MIN_VALUE, Long.MAX_VALUE));
+    } else {
+      if (start < run_start) {
+        parts.add(new Part(copyQuery(query, start,
+            Math.max(run_start - 1, start + 1)), Long.MIN_VALUE, run_start));
+      }
+      if (end >= run_end) {
+        parts.add(new Part(copyQuery(query, run_end,
+            Math.max(end, run_end + 1)), run_end, Long.MAX_VALUE));
+      }
+    }
+
+    final List<Deferred<Object>> deferreds =
+        new ArrayList<Deferred<Object>>(parts.size());
+    for (final Part part : parts) {
+      deferreds.add(part.fetch(key, cutoff));
+    }
+
+    class SpliceCB implements Callback<ArrayList<DataPoints[]>,
+        ArrayList<Object>> {
+      @Override
+      public ArrayList<DataPoints[]> call(final ArrayList<Object> ignored) {
+        return splice(query, parts, run, first_cached);
+      }
+      @Override
+      public String toString() {
+        return "Query cache splice callback";
+      }
+    }
+
+    return Deferred.groupInOrder(deferreds).addCallback(new SpliceCB());
+  }
+
+  /**
+   * Splices the fresh results before and after the run of cached buckets
+   * with the run. Series missing from part of the range are filled in the
+   * way the downsampler would have.
+   * @param query The original query.
+   * @param parts The parts fetched from storage.
+   * @param run The cached buckets.
+   * @param run_start The start of the first cached bucket.
+   * @return The results of each sub query in order.
+   */
+  private ArrayList<DataPoints[]> splice(final TSQuery query,
+                                         final List<Part> parts,
+                                         final List<Bucket> run,
+                                         final long run_start) {
+    final int num_queries = query.getQueries().size();
+    final ArrayList<DataPoints[]> results =
+        new ArrayList<DataPoints[]>(num_queries);
+    for (int i = 0; i < num_queries; i++) {
+      final TSSubQuery sub = query.getQueries().get(i);
+      final long interval = sub.downsamplingSpecification().getInterval();
+
+      // segments in time order
+      final List<List<CachedSeries>> segments =
+          new ArrayList<List<CachedSeries>>();
+      final List<long[]> grids = new ArrayList<long[]>();
+      if (!parts.isEmpty() && parts.get(0).hi != Long.MAX_VALUE) {
+        // head
+        segments.add(parts.get(0).series(i));
+        grids.add(grid(segments.get(0), 0, 0, 0));
+      }
+      long ts = run_start;
+      for (final Bucket bucket : run) {
+        final List<CachedSeries> series = bucket.series(i);
+        segments.add(series);
+        grids.add(grid(series, ts, ts + bucket_interval, interval));
+        ts += bucket_interval;
+      }
+      for (final Part part : parts) {
+        if (part.hi == Long.MAX_VALUE) {
+          // tail or the whole query
+          segments.add(part.series(i));
+          grids.add(grid(part.series(i), 0, 0, 0));
+        }
+      }
+
+      // TsdbQuery orders groups by their group by tag values
+      final ByteMap<CachedSeries> templates = new ByteMap<CachedSeries>();
+      for (final List<CachedSeries> segment : segments) {
+        for (final CachedSeries series : segment) {
+          if (!templates.containsKey(series.groupKey())) {
+            templates.put(series.groupKey(), series);
+          }
+        }
+      }
+
+      final double fill =
+          BatchAggregationIterator.kernelFor(sub.aggregator()) ==
+            BatchAggregationIterator.Kernel.COUNT ? 0 : Double.NaN;
+      final DataPoints[] group = new DataPoints[templates.size()];
+      int index = 0;
+      for (final Map.Entry<byte[], CachedSeries> entry : templates.entrySet()) {
+        final List<CachedSeries> pieces = new ArrayList<CachedSeries>();
+        for (int s = 0; s < segments.size(); s++) {
+          CachedSeries piece = null;
+          for (final CachedSeries series : segments.get(s)) {
+            if (Bytes.memcmp(series.groupKey(), entry.getKey()) == 0) {
+              piece = series;
+              break;
+            }
+          }
+          if (piece == null && grids.get(s).length > 0) {
+            piece = entry.getValue().fill(grids.get(s), fill);
+          }
+          if (piece != null) {
+            pieces.add(piece);
+          }
+        }
+        group[index++] = CachedSeries.merge(pieces);
+      }
+      results.add(group);
+    }
+    return results;
+  }
+
+  /**
+   * Stores the buckets a part covered entirely and that are old enough.
+   * @param key The query key.
+   * @param part The part fetched from storage.
+   * @param cutoff Buckets ending after this timestamp aren't cached.
+   */
+  private void store(final String key, final Part part, final long cutoff) {
+    final long end = Math.min(part.query.endTime() + 1, cutoff);
+    for (long ts = firstBucket(part.query.startTime());
+        ts + bucket_interval <= end; ts += bucket_interval) {
+      final String bucket_key = bucketKey(key, ts);
+      synchronized (this) {
+        if (buckets.containsKey(bucket_key)) {
+          continue;
+        }
+      }
+      final List<CachedSeries> slices =
+          new ArrayList<CachedSeries>(part.results.size());
+      long size = bucket_key.length() * 2;
+      for (final CachedSeries series : part.results) {
+        final CachedSeries slice = series.slice(ts, ts + bucket_interval);
+        slices.add(slice);
+        size += slice.estimateBytes();
+      }
+      put(bucket_key, new Bucket(slices, size));
+    }
+  }
+
+  /**
+   * Adds a bucket to the cache and evicts the least recently used buckets
+   * until we're back under the budget.
+   * @param bucket_key The key of the bucket.
+   * @param bucket The bucket.
+   */
+  private synchronized void put(final String bucket_key, final Bucket bucket) {
+    final Bucket previous = buckets.put(bucket_key, bucket);
+    if (previous != null) {
+      bytes -= previous.bytes;
+    }
+    bytes += bucket.bytes;
+    final Iterator<Bucket> iterator = buckets.values().iterator();
+    while (bytes > max_bytes && iterator.hasNext()) {
+      bytes -= iterator.next().bytes;
+      iterator.remove();
+      evictions.incrementAndGet();
+    }
+  }
+
+  /** Empties the cache. */
+  public synchronized void clear() {
+    buckets.clear();
+    bytes = 0;
+  }
+
+  /** @param collector The collector to write stats to */
+  public void collectStats(final StatsCollector collector) {
+    collector.record("query.cache.hits", hits.get());
+    collector.record("query.cache.misses", misses.get());
+    collector.record("query.cache.uncacheable", uncacheable.get());
+    collector.record("query.cache.evictions", evictions.get());
+    synchronized (this) {
+      collector.record("query.cache.bytes", bytes);
+      collector.record("query.cache.buckets", buckets.size());
+    }
+  }
+
+  /** @return The estimated size of the cached buckets in bytes */
+  @VisibleForTesting
+  synchronized long bytes() {
+    return bytes;
+  }
+
+  /** @return The number of cached buckets */
+  @VisibleForTesting
+  synchronized int size() {
+    return buckets.size();
+  }
+
+  /** @return The number of buckets served from the cache */
+  @VisibleForTesting
+  long hits() {
+    return hits.get();
+  }
+
+  /** @return The number of buckets fetched from storage */
+  @VisibleForTesting
+  long misses() {
+    return misses.get();
+  }
+
+  /**
+   * Builds the cache key of a query from everything that affects its results
+   * except for the time range. Filters and TSUIDs are sorted so that the
+   * order they were given in doesn't matter.
+   * @param query The validated query.
+   * @return The cache key.
+   */
+  @VisibleForTesting
+  static String cacheKey(final TSQuery query) {
+    final StringBuilder buf = new StringBuilder();
+    buf.append("tz=").append(query.getTimezone())
+       .append("|ms=").append(query.getMsResolution())
+       .append("|no_annotations=").append(query.getNoAnnotations())
+       .append("|padding=").append(query.getPadding());
+    for (final TSSubQuery sub : query.getQueries()) {
+      buf.append("|{metric=").append(sub.getMetric())
+         .append(",tsuids=");
+      if (sub.getTsuids() != null) {
+        buf.append(new TreeSet<String>(sub.getTsuids()));
+      }
+      buf.append(",agg=").append(sub.aggregator())
+         .append(",downsample=").append(sub.getDownsample())
+         .append(",explicit_tags=").append(sub.getExplicitTags())
+         .append(",pre_aggregate=").append(sub.isPreAggregate())
+         .append(",rollup_usage=").append(sub.getRollupUsage())
+         .append(",filters=");
+      final TreeSet<String> filters = new TreeSet<String>();
+      if (sub.getFilters() != null) {
+        for (final TagVFilter filter : sub.getFilters()) {
+          filters.add(filter.getType() + ":" + filter.getTagk() + ":"
+              + filter.getFilter() + ":" + filter.isGroupBy());
+        }
+      }
+      buf.append(filters).append('}');
+    }
+    return buf.toString();
+  }
+
+  /**
+   * Copies a query with a new time range. Sub queries and filters are copied
+   * as well since they're resolved when the query runs.
+   * @param query The query to copy.
+   * @param start The new start time in milliseconds.
+   * @param end The new end time in milliseconds.
+   * @return A validated copy of the query.
+   */
+  @VisibleForTesting
+  static TSQuery copyQuery(final TSQuery query, final long start,
+      final long end) {
+    final TSQuery copy = new TSQuery();
+    copy.setStart(start + "ms");
+    copy.setEnd(end + "ms");
+    copy.setTimezone(query.getTimezone());
+    copy.setMsResolution(query.getMsResolution());
+    copy.setNoAnnotations(query.getNoAnnotations());
+    copy.setPadding(query.getPadding());
+    copy.setOverrideByteLimit(query.overrideByteLimit());
+    copy.setOverrideDataPointLimit(query.overrideDataPointLimit());
+    copy.setQueryStats(query.getQueryStats());
+    copy.setArenaRegion(query.getArenaRegion());
+    final List<TSSubQuery> subs =
+        new ArrayList<TSSubQuery>(query.getQueries().size());
+    for (final TSSubQuery sub : query.getQueries()) {
+      final TSSubQuery sub_copy = new TSSubQuery();
+      sub_copy.setAggregator(sub.getAggregator());
+      sub_copy.setMetric(sub.getMetric());
+      sub_copy.setTsuids(sub.getTsuids());
+      sub_copy.setDownsample(sub.getDownsample());
+      sub_copy.setExplicitTags(sub.getExplicitTags());
+      sub_copy.setUseFuzzyFilter(sub.getUseFuzzyFilter());
+      sub_copy.setUseMultiGets(sub.getUseMultiGets());
+      sub_copy.setPreAggregate(sub.isPreAggregate());
+      if (sub.getRollupUsage() != null) {
+        sub_copy.setRollupUsage(sub.getRollupUsage().name());
+      }
+      if (sub.getFilters() != null) {
+        final List<TagVFilter> filters =
+            new ArrayList<TagVFilter>(sub.getFilters().size());
+        for (final TagVFilter filter : sub.getFilters()) {
+          filters.add(filter.getCopy());
+        }
+        sub_copy.setFilters(filters);
+      }
+      subs.add(sub_copy);
+    }
+    copy.setQueries(subs);
+    copy.validateAndSetQuery();
+    return copy;
+  }
+
+  /**
+   * @param start A timestamp in milliseconds.
+   * @return The start of the first bucket at or after the timestamp.
+   */
+  private long firstBucket(final long start) {
+    final long remainder = start % bucket_interval;
+    return remainder == 0 ? start : start - remainder + bucket_interval;
+  }
+
+  /** @return The key of a bucket in the map */
+  private static String bucketKey(final String key, final long start) {
+    return key + "@" + start;
+  }
+
+  /**
+   * Returns the timestamps a series missing from a segment should be filled
+   * with. All series with a fill policy share the same timestamps so we take
+   * the longest. Empty cached buckets fall back to every interval.
+   */
+  private static long[] grid(final List<CachedSeries> series,
+                             final long start,
+                             final long end,
+                             final long interval) {
+    long[] grid = new long[0];
+    for (final CachedSeries s : series) {
+      if (s.timestamps().length > grid.length) {
+        grid = s.timestamps();
+      }
+    }
+    if (grid.length == 0 && interval > 0) {
+      grid = new long[(int) ((end - start) / interval)];
+      for (int i = 0; i < grid.length; i++) {
+        grid[i] = start + (i * interval);
+      }
+    }
+    return grid;
+  }
+
+  /**
+   * Computes the key of a series within its sub query the same way TsdbQuery
+   * groups spans: the UIDs of the group by tag values ordered by tag key UID.
+   */
+  private static byte[] groupKey(final DataPoints dps,
+                                 final TreeSet<byte[]> group_bys) {
+    final ByteMap<byte[]> tags = dps.getTagUids();
+    int length = 0;
+    for (final byte[] tagk : group_bys) {
+      final byte[] tagv = tags == null ? null : tags.get(tagk);
+      length += tagv == null ? 0 : tagv.length;
+    }
+    final byte[] key = new byte[length];
+    int offset = 0;
+    for (final byte[] tagk : group_bys) {
+      final byte[] tagv = tags == null ? null : tags.get(tagk);
+      if (tagv != null) {
+        System.arraycopy(tagv, 0, key, offset, tagv.length);
+        offset += tagv.length;
+      }
+    }
+    return key;
+  }
+
+  /** The cached slices of all the series of a query for one bucket */
+  private static final class Bucket {
+    private final List<CachedSeries> series;
+    private final long bytes;
+
+    Bucket(final List<CachedSeries> series, final long bytes) {
+      this.series = series;
+      this.bytes = bytes;
+    }
+
+    /** @return The series of the given sub query */
+    List<CachedSeries> series(final int query_index) {
+      final List<CachedSeries> matches = new ArrayList<CachedSeries>();
+      for (final CachedSeries s : series) {
+        if (s.getQueryIndex() == query_index) {
+          matches.add(s);
+        }
+      }
+      return matches;
+    }
+  }
+
+  /** A range of the query that's fetched from storage */
+  private final class Part {
+    private final TSQuery query;
+    /** Data points before this timestamp are dropped from the results */
+    private final long lo;
+    /** Data points at or after this timestamp are dropped from the results */
+    private final long hi;
+    /** The materialized results once fetched */
+    private List<CachedSeries> results = Collections.emptyList();
+
+    Part(final TSQuery query, final long lo, final long hi) {
+      this.query = query;
+      this.lo = lo;
+      this.hi = hi;
+    }
+
+    /** @return The series of the given sub query within our range */
+    List<CachedSeries> series(final int query_index) {
+      final List<CachedSeries> matches = new ArrayList<CachedSeries>();
+      for (final CachedSeries s : results) {
+        if (s.getQueryIndex() == query_index) {
+          matches.add(s.slice(lo, hi));
+        }
+      }
+      return matches;
+    }
+
+    /**
+     * Runs the query, materializes the results and caches the buckets.
+     * @param key The query key.
+     * @param cutoff Buckets ending after this timestamp aren't cached.
+     * @return A deferred resolving to null once done.
+     */
+    Deferred<Object> fetch(final String key, final long cutoff) {
+
+      class StoreCB implements Callback<Object, ArrayList<CachedSeries>> {
+        @Override
+        public Object call(final ArrayList<CachedSeries> series) {
+          results = series;
+          try {
+            store(key, Part.this, cutoff);
+          } catch (RuntimeException e) {
+            LOG.warn("Failed to cache the results of " + query, e);
+          }
+          return null;
+        }
+      }
+
+      class MaterializeCB implements Callback<Deferred<ArrayList<CachedSeries>>,
+          ArrayList<DataPoints[]>> {
+        @Override
+        public Deferred<ArrayList<CachedSeries>> call(
+            final ArrayList<DataPoints[]> query_results) {
+          final List<Deferred<CachedSeries>> deferreds =
+              new ArrayList<Deferred<CachedSeries>>();
+          for (int i = 0; i < query_results.size(); i++) {
+            final TreeSet<byte[]> group_bys =
+                new TreeSet<byte[]>(Bytes.MEMCMP);
+            final List<TagVFilter> filters =
+                query.getQueries().get(i).getFilters();
+            if (filters != null) {
+              for (final TagVFilter filter : filters) {
+                if (filter.isGroupBy() && filter.getTagkBytes() != null) {
+                  group_bys.add(filter.getTagkBytes());
+                }
+              }
+            }
+            for (final DataPoints dps : query_results.get(i)) {
+              deferreds.add(CachedSeries.fromDataPoints(dps,
+                  groupKey(dps, group_bys)));
+            }
+          }
+          return Deferred.groupInOrder(deferreds);
+        }
+      }
+
+      class RunCB implements Callback<Deferred<ArrayList<DataPoints[]>>,
+          Query[]> {
+        @Override
+        public Deferred<ArrayList<DataPoints[]>> call(final Query[] queries) {
+          final List<Deferred<DataPoints[]>> deferreds =
+              new ArrayList<Deferred<DataPoints[]>>(queries.length);
+          for (final Query q : queries) {
+            deferreds.add(q.runAsync());
+          }
+          return Deferred.groupInOrder(deferreds);
+        }
+      }
+
+      return query.buildQueriesAsync(tsdb)
+          .addCallbackDeferring(new RunCB())
+          .addCallbackDeferring(new MaterializeCB())
+          .addCallback(new StoreCB());
+    }
+  }
+}
@@ -66,10 +66,13 @@ public final class RowSeq implements iRowSeq {
   }
   
   @Override
-  public void setRow(final KeyValue row) {
+  public void setRow(KeyValue row) {
     if (this.key != null) {
       throw new IllegalStateException("setRow was already called on " + this);
     }
+    if (GorillaColumn.isGorillaColumn(row.qualifier())) {
+      row = GorillaColumn.decode(row);
+    }
 
     this.key = row.key();
     this.qualifiers = row.qualifier();
@@ -88,10 +91,13 @@ public final class RowSeq implements iRowSeq {
    * do not belong to the same row as this RowSeq
    */
   @Override
-  public void addRow(final KeyValue row) {
+  public void addRow(KeyValue row) {
     if (this.key == null) {
       throw new IllegalStateException("setRow was never called on " + this);
     }
+    if (GorillaColumn.isGorillaColumn(row.qualifier())) {
+      row = GorillaColumn.decode(row);
+    }
 
     final byte[] key = row.key();
     if (Bytes.memcmp(this.key, key, Const.SALT_WIDTH(), 
@@ -16,13 +16,17 @@ import java.util.AbstractMap.SimpleEntry;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 import net.opentsdb.meta.Annotation;
@@ -44,7 +48,9 @@ import org.hbase.async.Scanner;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
+import com.google.common.collect.PeekingIterator;
 import com.stumbleupon.async.Callback;
 import com.stumbleupon.async.Deferred;
 
@@ -139,6 +145,9 @@ public class SaltScanner {
   /** A list of filters to iterate over when processing rows */
   private final List<TagVFilter> filters;
   
+  /** An optional region to decode raw data rows into columns with */
+  private ColumnarArena.Region arena_region;
+  
   /** A holder for storing the first exception thrown by a scanner if something
    * goes pear shaped. Make sure to synchronize on this object when checking
    * for null or assigning from a scanner's callback. */
@@ -257,6 +266,19 @@ public class SaltScanner {
     max_data_points_flag = new AtomicBoolean();
   }
 
+  /**
+   * Decode the rows of raw data spans into off-heap columns allocated from
+   * the given region. Must be called before {@link #scan()}.
+   * @param arena_region The region to allocate from. If null, rows are kept
+   * in {@link RowSeq}s.
+   * @return The scanner.
+   * @since 2.4
+   */
+  public SaltScanner setArenaRegion(final ColumnarArena.Region arena_region) {
+    this.arena_region = arena_region;
+    return this;
+  }
+
   /**
    * Starts all of the scanners asynchronously and returns the data fetched
    * once all of the scanners have completed. Note that the result may be an
@@ -304,12 +326,25 @@ public class SaltScanner {
     final long merge_start = DateTime.nanoTime();
     //Merge sorted spans together
     if (!isHistogramScan()) {
+      final Executor executor = tsdb.getSaltMergeExecutor();
+      if (executor != null && kv_map.size() > 1) {
+        new ParallelMerge(executor, hbase_time, merge_start).start();
+        return;
+      }
       mergeDataPoints();
     } else {
       // Merge histogram data points
       mergeHistogramDataPoints();
     }
-
+    returnResults(hbase_time, merge_start);
+  }
+  
+  /**
+   * Records the merge time and calls back with the merged spans.
+   * @param hbase_time When the last scanner finished, in milliseconds
+   * @param merge_start When the merge started, in nanoseconds
+   */
+  private void returnResults(final long hbase_time, final long merge_start) {
     if (LOG.isDebugEnabled()) {
       LOG.debug("It took " + (DateTime.currentTimeMillis() - hbase_time) + " ms, "
             + " to merge and sort the rows into a tree map");
@@ -389,53 +424,72 @@ public class SaltScanner {
   }
   
   /**
-   * Called once all of the scanners have reported back in to record our
-   * latency and merge the results into the spans map. If there was an exception
-   * stored then we'll return that instead.
+   * Builds the spans from the compacted columns of all of the scanners one 
+   * after the other, directly in the caller's span map.
    */
   private void mergeDataPoints() {
-    // Merge sorted spans together
-    final long merge_start = DateTime.nanoTime();
     for (final List<KeyValue> kvs : kv_map.values()) {
-      if (kvs == null || kvs.isEmpty()) {
-        LOG.warn("Found a key value list that was null or empty");
+      addRows(kvs, spans, null);
+    }
+    kv_map.clear();
+    addAnnotationSpans();
+  }
+  
+  /**
+   * Adds the compacted columns to their spans, creating spans as needed, and
+   * attaches the annotations found for the rows.
+   * @param kvs The compacted columns of a scanner
+   * @param target The span map to populate
+   * @param attached If null, annotations are removed from the annotation map
+   * once attached. Otherwise the keys of the attached annotations are stored
+   * in this list so they can be removed later.
+   */
+  private void addRows(final List<KeyValue> kvs, 
+                       final TreeMap<byte[], Span> target,
+                       final List<byte[]> attached) {
+    if (kvs == null || kvs.isEmpty()) {
+      LOG.warn("Found a key value list that was null or empty");
+      return;
+    }
+    
+    for (final KeyValue kv : kvs) {
+      if (kv == null) {
+        LOG.warn("Found a key value item that was null");
+        continue;
+      }
+      if (kv.key() == null) {
+        LOG.warn("A key for a kv was null");
         continue;
       }
-      
-      for (final KeyValue kv : kvs) {
-        if (kv == null) {
-          LOG.warn("Found a key value item that was null");
-          continue;
-        }
-        if (kv.key() == null) {
-          LOG.warn("A key for a kv was null");
-          continue;
-        }
 
-        Span datapoints = spans.get(kv.key());
-        if (datapoints == null) {
-          datapoints = RollupQuery.isValidQuery(rollup_query) ?
-              new RollupSpan(tsdb, this.rollup_query) : new Span(tsdb);
-          spans.put(kv.key(), datapoints);
-        }
+      Span datapoints = target.get(kv.key());
+      if (datapoints == null) {
+        datapoints = RollupQuery.isValidQuery(rollup_query) ?
+            new RollupSpan(tsdb, this.rollup_query) : 
+              new Span(tsdb, arena_region);
+        target.put(kv.key(), datapoints);
+      }
 
-        if (annotation_map.containsKey(kv.key())) {
-          for (final Annotation note: annotation_map.get(kv.key())) {
-            datapoints.getAnnotations().add(note);
-          }
+      final List<Annotation> notes = annotation_map.get(kv.key());
+      if (notes != null) {
+        datapoints.getAnnotations().addAll(notes);
+        if (attached == null) {
           annotation_map.remove(kv.key());
+        } else {
+          attached.add(kv.key());
         }
-        try {  
-          datapoints.addRow(kv);
-        } catch (RuntimeException e) {
-          LOG.error("Exception adding row to span", e);
-          throw e;
-        }
+      }
+      try {  
+        datapoints.addRow(kv);
+      } catch (RuntimeException e) {
+        LOG.error("Exception adding row to span", e);
+        throw e;
       }
     }
-     
-    kv_map.clear();
-
+  }
+  
+  /** Creates spans for the annotations that didn't match any data row. */
+  private void addAnnotationSpans() {
     for (final byte[] key : annotation_map.keySet()) {
       Span datapoints = spans.get(key);
       if (datapoints == null) {
@@ -450,6 +504,136 @@ public class SaltScanner {
     
     annotation_map.clear();
   }
+  
+  /**
+   * Builds the spans of each scanner in parallel on the TSDB's salt merge
+   * pool, then combines the sorted partial maps into the caller's map with a
+   * k-way merge. Series are normally salted into a single bucket, so the 
+   * partial maps don't overlap. If they do, e.g. after the bucket count was
+   * changed, we fall back to building the spans serially.
+   * The last build task to finish combines the results and calls back.
+   */
+  final class ParallelMerge {
+    private final Executor executor;
+    private final long hbase_time;
+    private final long merge_start;
+    private final List<List<KeyValue>> buckets;
+    private final List<TreeMap<byte[], Span>> partials;
+    private final List<List<byte[]>> attached;
+    private final AtomicInteger remaining;
+    private volatile RuntimeException error;
+    
+    ParallelMerge(final Executor executor, final long hbase_time, 
+        final long merge_start) {
+      this.executor = executor;
+      this.hbase_time = hbase_time;
+      this.merge_start = merge_start;
+      buckets = new ArrayList<List<KeyValue>>(kv_map.values());
+      partials = new ArrayList<TreeMap<byte[], Span>>(buckets.size());
+      attached = new ArrayList<List<byte[]>>(buckets.size());
+      for (int i = 0; i < buckets.size(); i++) {
+        partials.add(new TreeMap<byte[], Span>(spans.comparator()));
+        attached.add(new ArrayList<byte[]>());
+      }
+      remaining = new AtomicInteger(buckets.size());
+    }
+    
+    /** Submits a build task per bucket */
+    void start() {
+      for (int i = 0; i < buckets.size(); i++) {
+        final int bucket = i;
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              addRows(buckets.get(bucket), partials.get(bucket), 
+                  attached.get(bucket));
+            } catch (RuntimeException e) {
+              error = e;
+            }
+            if (remaining.decrementAndGet() == 0) {
+              complete();
+            }
+          }
+        });
+      }
+    }
+    
+    /** Combines the partial maps and calls back */
+    private void complete() {
+      try {
+        final long combine_start = DateTime.nanoTime();
+        if (query_stats != null) {
+          query_stats.addStat(query_index, QueryStat.SPAN_BUILD_TIME, 
+              combine_start - merge_start);
+        }
+        if (error != null) {
+          results.callback(error);
+          return;
+        }
+        
+        if (combine()) {
+          for (final List<byte[]> keys : attached) {
+            for (final byte[] key : keys) {
+              annotation_map.remove(key);
+            }
+          }
+          kv_map.clear();
+          addAnnotationSpans();
+        } else {
+          LOG.debug("Found the same span in multiple salt buckets, "
+              + "merging serially");
+          spans.clear();
+          mergeDataPoints();
+        }
+        if (query_stats != null) {
+          query_stats.addStat(query_index, QueryStat.SPAN_COMBINE_TIME, 
+              DateTime.nanoTime() - combine_start);
+        }
+        returnResults(hbase_time, merge_start);
+      } catch (final Exception e) {
+        results.callback(e);
+      }
+    }
+    
+    /**
+     * Merges the sorted partial maps into the span map in order.
+     * @return False if the same key was found in more than one map.
+     */
+    private boolean combine() {
+      final Comparator<? super byte[]> cmp = spans.comparator();
+      final PriorityQueue<PeekingIterator<Map.Entry<byte[], Span>>> heap = 
+          new PriorityQueue<PeekingIterator<Map.Entry<byte[], Span>>>(
+              partials.size(), 
+              new Comparator<PeekingIterator<Map.Entry<byte[], Span>>>() {
+            @Override
+            public int compare(final PeekingIterator<Map.Entry<byte[], Span>> a,
+                final PeekingIterator<Map.Entry<byte[], Span>> b) {
+              return cmp.compare(a.peek().getKey(), b.peek().getKey());
+            }
+          });
+      for (final TreeMap<byte[], Span> partial : partials) {
+        if (!partial.isEmpty()) {
+          heap.add(Iterators.peekingIterator(partial.entrySet().iterator()));
+        }
+      }
+      
+      byte[] last = null;
+      while (!heap.isEmpty()) {
+        final PeekingIterator<Map.Entry<byte[], Span>> it = heap.poll();
+        final Map.Entry<byte[], Span> entry = it.next();
+        if (last != null && cmp.compare(last, entry.getKey()) == 0) {
+          return false;
+        }
+        last = entry.getKey();
+        spans.put(entry.getKey(), entry.getValue());
+        if (it.hasNext()) {
+          heap.add(it);
+        }
+      }
+      return true;
+    }
+  }
 
   /**
   * Scanner callback executed recursively each time we get a set of data
@@ -623,6 +807,8 @@ public class SaltScanner {
                   dps_pre_filter += (kv.qualifier().length / 2);
                 }
               }
+            } else if (GorillaColumn.isGorillaColumn(kv.qualifier())) {
+              dps_pre_filter += GorillaColumn.count(kv.value());
             } else if (kv.qualifier()[0] == AppendDataPoints.APPEND_COLUMN_PREFIX) {
               // with appends we don't have a good rough estimate as the length
               // can vary widely with the value length variability. Therefore we
@@ -734,6 +920,11 @@ public class SaltScanner {
       if (delete) {
         final DeleteRequest del = new DeleteRequest(tsdb.dataTable(), key);
         tsdb.getClient().delete(del);
+        final LastPointCache last_point_cache = tsdb.getLastPointCache();
+        if (last_point_cache != null) {
+          last_point_cache.remove(UniqueId.getTSUIDFromKey(key,
+              TSDB.metrics_width(), Const.TIMESTAMP_BYTES));
+        }
       }
       
       List<HistogramDataPoint> hists = new ArrayList<HistogramDataPoint>();
@@ -813,6 +1004,8 @@ public class SaltScanner {
                 dps_post_filter += (kv.qualifier().length / 2);
               }
             }
+          } else if (GorillaColumn.isGorillaColumn(kv.qualifier())) {
+            dps_post_filter += GorillaColumn.count(kv.value());
           } else if (kv.qualifier()[0] == AppendDataPoints.APPEND_COLUMN_PREFIX) {
             // with appends we don't have a good rough estimate as the length
             // can vary widely with the value length variability. Therefore we
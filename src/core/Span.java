@@ -53,12 +53,27 @@ public class Span implements DataPoints {
    */
   private boolean sorted;
   
+  /** An optional region to decode rows into columns with. */
+  private final ColumnarArena.Region arena_region;
+  
   /**
    * Default constructor.
    * @param tsdb The TSDB to which we belong
    */
   protected Span(final TSDB tsdb) {
+    this(tsdb, null);
+  }
+  
+  /**
+   * Ctor that stores rows as off-heap columns.
+   * @param tsdb The TSDB to which we belong
+   * @param arena_region An optional region to allocate the columns of
+   * {@link ColumnarRowSeq}s from. If null, rows are kept in {@link RowSeq}s.
+   * @since 2.4
+   */
+  protected Span(final TSDB tsdb, final ColumnarArena.Region arena_region) {
     this.tsdb = tsdb;
+    this.arena_region = arena_region;
   }
 
   /** @throws IllegalStateException if the span doesn't have any rows */
@@ -202,7 +217,7 @@ public class Span implements DataPoints {
       last_ts = last.timestamp(last.size() - 1);  // O(n)
     }
 
-    final RowSeq rowseq = new RowSeq(tsdb);
+    final iRowSeq rowseq = createRowSequence(tsdb);
     rowseq.setRow(row);
     sorted = false;
     if (last_ts >= rowseq.timestamp(0)) {
@@ -219,6 +234,19 @@ public class Span implements DataPoints {
     rows.add(rowseq);
   }
 
+  /**
+   * Appends the rows of another span for the same time series, e.g. the raw
+   * rows covering the recent window that hasn't been rolled up yet. The rows
+   * of the two spans must not overlap in time.
+   * @param other The span to take the rows and annotations from.
+   * @since 2.4
+   */
+  void stitch(final Span other) {
+    rows.addAll(other.rows);
+    annotations.addAll(other.annotations);
+    sorted = false;
+  }
+
   /**
    * Package private helper to access the last timestamp in an HBase row.
    * @param metric_width The number of bytes on which metric IDs are stored.
@@ -563,10 +591,13 @@ public class Span implements DataPoints {
    * RowSeq abstract factory API implementation
    * @param tsdb The TSDB to which we belong
    * @return RowSeq object which stores  read-only sequence of continuous 
-   * HBase rows
+   * HBase rows, or a ColumnarRowSeq if the span was given an arena region
    * @since 2.4
    */
   protected iRowSeq createRowSequence(TSDB tsdb) {
+    if (arena_region != null) {
+      return new ColumnarRowSeq(tsdb, arena_region);
+    }
     return new RowSeq(tsdb);
   }
   
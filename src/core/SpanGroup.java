@@ -109,6 +109,9 @@ final class SpanGroup implements DataPoints {
   
   /** The TSDB to which we belong, used for resolution */
   private final TSDB tsdb;
+
+  /** Whether or not to aggregate with the batch iterator when possible */
+  private final boolean batch_aggregation;
   
   /**
    * Ctor.
@@ -285,6 +288,8 @@ final class SpanGroup implements DataPoints {
      this.query_index = query_index;
      this.rollup_query = rollup_query;
      this.tsdb = tsdb;
+     batch_aggregation = tsdb != null && tsdb.getConfig() != null &&
+         tsdb.getConfig().getBoolean("tsd.query.aggregation.batch.enable");
   }
   
   /**
@@ -525,6 +530,12 @@ final class SpanGroup implements DataPoints {
   }
 
   public SeekableView iterator() {
+    if (batch_aggregation && 
+        BatchAggregationIterator.supports(aggregator, rate)) {
+      return BatchAggregationIterator.create(spans, start_time, end_time, 
+          aggregator, aggregator.interpolationMethod(), downsampler, 
+          query_start, query_end, rollup_query);
+    }
     return AggregationIterator.create(spans, start_time, end_time, aggregator,
                                   aggregator.interpolationMethod(),
                                   downsampler, query_start, query_end,
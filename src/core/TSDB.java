@@ -22,9 +22,14 @@ import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 import com.google.common.base.Strings;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.io.Files;
 import com.stumbleupon.async.Callback;
 import com.stumbleupon.async.Deferred;
@@ -46,6 +51,7 @@ import org.hbase.async.TableNotFoundException;
 import org.jboss.netty.util.HashedWheelTimer;
 import org.jboss.netty.util.Timeout;
 import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
 
 import net.opentsdb.auth.Authentication;
 import net.opentsdb.tree.TreeBuilder;
@@ -53,6 +59,8 @@ import net.opentsdb.tsd.RTPublisher;
 import net.opentsdb.tsd.StorageExceptionHandler;
 import net.opentsdb.uid.NoSuchUniqueId;
 import net.opentsdb.uid.NoSuchUniqueName;
+import net.opentsdb.uid.SuggestIndex;
+import net.opentsdb.uid.UidCacheSnapshot;
 import net.opentsdb.uid.UniqueId;
 import net.opentsdb.uid.UniqueIdFilterPlugin;
 import net.opentsdb.uid.UniqueId.UniqueIdType;
@@ -69,9 +77,11 @@ import net.opentsdb.query.QueryLimitOverride;
 import net.opentsdb.query.expression.ExpressionFactory;
 import net.opentsdb.query.filter.TagVFilter;
 import net.opentsdb.rollup.RollupConfig;
+import net.opentsdb.rollup.RollupGenerator;
 import net.opentsdb.rollup.RollupInterval;
 import net.opentsdb.rollup.RollupUtils;
 import net.opentsdb.search.SearchPlugin;
+import net.opentsdb.search.TagIndex;
 import net.opentsdb.search.SearchQuery;
 import net.opentsdb.tools.StartupPlugin;
 import net.opentsdb.stats.Histogram;
@@ -163,6 +173,31 @@ public final class TSDB {
   /** A filter plugin for allowing or blocking time series */
   private WriteableDataPointFilterPlugin ts_filter;
 
+  /** Optional write-ahead spool in front of the storage put path. Its
+   * threads are started at the end of {@link #initializePlugins} */
+  private WriteAheadSpool spool;
+
+  /** Optional pool used to build the spans of salt buckets in parallel */
+  private ThreadPoolExecutor salt_merge_pool;
+
+  /** Optional off-heap arena that raw query results are decoded into */
+  private ColumnarArena columnar_arena;
+
+  /** Optional cache of downsampled HTTP query results */
+  private QueryResultCache query_cache;
+
+  /** Optional cache of the last data point written for each series */
+  private LastPointCache last_point_cache;
+
+  /** Optional local snapshot of the UID caches */
+  private UidCacheSnapshot uid_snapshot;
+
+  /** Optional inverted index of tag pairs to time series */
+  private TagIndex tag_index;
+
+  /** Series whose tags were recorded in the suggest scopes, null if disabled */
+  private ConcurrentMap<String, Boolean> suggest_scoped_series;
+
   /** A filter plugin for allowing or blocking UIDs */
   private UniqueIdFilterPlugin uid_filter;
 
@@ -184,6 +219,9 @@ public final class TSDB {
   /** Whether or not to block writing of derived rollups/pre-ags */
   private final boolean rollups_block_derived;
   
+  /** Computes rollups from the raw data written, null if disabled */
+  private RollupGenerator rollup_generator;
+  
   /** An optional histogram manger used when the TSD will be dealing with
    * histograms and sketches. Instantiated ONLY if 
    * {@link #initializePlugins(boolean)} was called.*/
@@ -274,6 +312,9 @@ public final class TSDB {
     tag_names = new UniqueId(this, uidtable, TAG_NAME_QUAL, TAG_NAME_WIDTH, false);
     tag_values = new UniqueId(this, uidtable, TAG_VALUE_QUAL, TAG_VALUE_WIDTH, false);
     compactionq = new CompactionQueue(this);
+    if (config.getBoolean("tsd.storage.spool.enable")) {
+      spool = new WriteAheadSpool(this);
+    }
 
     if (config.hasProperty("tsd.core.timezone")) {
       DateTime.setDefaultTimezone(config.getString("tsd.core.timezone"));
@@ -281,6 +322,23 @@ public final class TSDB {
 
     timer = Threads.newTimer("TSDB Timer");
 
+    final int salt_merge_threads = config.getInt("tsd.query.salt_merge.threads");
+    if (salt_merge_threads > 0) {
+      salt_merge_pool = Threads.newFixedPool(salt_merge_threads, "Salt Merge");
+    }
+    if (config.getBoolean("tsd.query.columnar_spans.enable")) {
+      columnar_arena = ColumnarArena.fromConfig(this);
+    }
+    if (config.getBoolean("tsd.query.cache.enable")) {
+      query_cache = QueryResultCache.fromConfig(this);
+    }
+    if (config.getBoolean("tsd.core.tag_index.enable")) {
+      tag_index = new TagIndex(this);
+    }
+    if (config.getBoolean("tsd.core.last_point_cache.enable")) {
+      last_point_cache = LastPointCache.fromConfig(this);
+    }
+
     if (config.getBoolean("tsd.rollups.enable")) {
       String conf = config.getString("tsd.rollups.config");
       if (Strings.isNullOrEmpty(conf)) {
@@ -312,7 +370,16 @@ public final class TSDB {
       agg_tag_key = config.getString("tsd.rollups.agg_tag_key");
       raw_agg_tag_value = config.getString("tsd.rollups.raw_agg_tag_value");
       rollups_block_derived = config.getBoolean("tsd.rollups.block_derived");
+      if (config.getBoolean("tsd.rollups.generator.enable")) {
+        rollup_generator = RollupGenerator.fromConfig(this);
+        rollup_generator.load();
+        rollup_generator.start(timer);
+      }
     } else {
+      if (config.getBoolean("tsd.rollups.generator.enable")) {
+        throw new IllegalArgumentException("The rollup generator was enabled "
+            + "but 'tsd.rollups.enable' is false.");
+      }
       rollup_config = null;
       default_interval = null;
       tag_raw_data = false;
@@ -324,12 +391,40 @@ public final class TSDB {
     QueryStats.setEnableDuplicates(
         config.getBoolean("tsd.query.allow_simultaneous_duplicates"));
 
-    if (config.getBoolean("tsd.core.preload_uid_cache")) {
+    final boolean preload_uids = config.getBoolean("tsd.core.preload_uid_cache");
+    if (preload_uids || config.getBoolean("tsd.uid.snapshot.enable")) {
       final ByteMap<UniqueId> uid_cache_map = new ByteMap<UniqueId>();
       uid_cache_map.put(METRICS_QUAL.getBytes(CHARSET), metrics);
       uid_cache_map.put(TAG_NAME_QUAL.getBytes(CHARSET), tag_names);
       uid_cache_map.put(TAG_VALUE_QUAL.getBytes(CHARSET), tag_values);
-      UniqueId.preloadUidCache(this, uid_cache_map);
+      boolean loaded = false;
+      if (config.getBoolean("tsd.uid.snapshot.enable")) {
+        uid_snapshot = new UidCacheSnapshot(this, uid_cache_map);
+        loaded = uid_snapshot.load();
+      }
+      if (!loaded && preload_uids) {
+        UniqueId.preloadUidCache(this, uid_cache_map);
+      }
+      if (uid_snapshot != null) {
+        uid_snapshot.start();
+      }
+    }
+
+    if (config.getBoolean("tsd.uid.suggest.enable")) {
+      buildSuggestIndexes();
+      final String refresh =
+          config.getString("tsd.uid.suggest.refresh_interval");
+      if (refresh != null && !refresh.isEmpty() && !refresh.equals("0")) {
+        final long interval = DateTime.parseDuration(refresh);
+        timer.newTimeout(new SuggestRefreshTask(interval), interval,
+            TimeUnit.MILLISECONDS);
+      }
+      if (config.getBoolean("tsd.uid.suggest.scoped.enable")) {
+        suggest_scoped_series = CacheBuilder.newBuilder()
+            .maximumSize(config.getInt("tsd.uid.suggest.scoped.cache_size"))
+            .<String, Boolean>build()
+            .asMap();
+      }
     }
 
     if (config.getString("tsd.core.tag.allow_specialchars") != null) {
@@ -556,6 +651,13 @@ public final class TSDB {
     } else {
       histogram_manager = null;
     }
+
+    // start replaying only now so that spooled points, including those left
+    // over from a previous run, go through the filters, publishers and
+    // indexes set up above. Starting the threads publishes those fields.
+    if (spool != null) {
+      spool.start();
+    }
   }
 
   /**
@@ -725,6 +827,10 @@ public final class TSDB {
       checks.add(client.ensureTableExists(
           config.getString("tsd.storage.hbase.meta_table")));
     }
+    if (tag_index != null) {
+      checks.add(client.ensureTableExists(
+          config.getString("tsd.storage.hbase.tag_index_table")));
+    }
     return Deferred.group(checks);
   }
 
@@ -849,6 +955,27 @@ public final class TSDB {
         stats.idleConnectionsClosed());
 
     compactionq.collectStats(collector);
+    if (spool != null) {
+      spool.collectStats(collector);
+    }
+    if (columnar_arena != null) {
+      columnar_arena.collectStats(collector);
+    }
+    if (rollup_generator != null) {
+      rollup_generator.collectStats(collector);
+    }
+    if (query_cache != null) {
+      query_cache.collectStats(collector);
+    }
+    if (last_point_cache != null) {
+      last_point_cache.collectStats(collector);
+    }
+    if (uid_snapshot != null) {
+      uid_snapshot.collectStats(collector);
+    }
+    if (tag_index != null) {
+      tag_index.collectStats(collector);
+    }
     // Collect Stats from Plugins
     if (startup != null) {
       try {
@@ -932,6 +1059,25 @@ public final class TSDB {
         "kind=" + uid.kind());
     collector.record("uid.rejected-assignments", uid.rejectedAssignments(),
         "kind=" + uid.kind());
+    collector.record("uid.assignments", uid.assignments(),
+        "kind=" + uid.kind());
+    collector.record("uid.assign.leaked-ids", uid.leakedIds(),
+        "kind=" + uid.kind());
+    collector.record("uid.assign.reservations", uid.idReservations(),
+        "kind=" + uid.kind());
+    collector.record("uid.assign.reserved-ids", uid.reservedIds(),
+        "kind=" + uid.kind());
+    collector.record("uid.assign.unused-ids", uid.unusedReservedIds(),
+        "kind=" + uid.kind());
+    final SuggestIndex suggest_index = uid.suggestIndex();
+    if (suggest_index != null) {
+      collector.record("uid.suggest.names", suggest_index.size(),
+          "kind=" + uid.kind());
+      collector.record("uid.suggest.served", suggest_index.suggestions(),
+          "kind=" + uid.kind());
+      collector.record("uid.suggest.scoped", 
+          suggest_index.scopedSuggestions(), "kind=" + uid.kind());
+    }
   }
 
   /** @return the width, in bytes, of metric UIDs */
@@ -1131,6 +1277,10 @@ public final class TSDB {
     }
     
     checkTimestampAndTags(metric, timestamp, raw_data, tags, (short) 0);
+    if (spool != null) {
+      return spool.append(metric, timestamp, raw_data, tags, (short) 0, 
+          WriteAheadSpool.TYPE_HISTOGRAM);
+    }
     final byte[] row = IncomingDataPoints.rowKeyTemplate(this, metric, tags);
 
     final byte[] qualifier = Internal.getQualifier(timestamp, 
@@ -1146,6 +1296,10 @@ public final class TSDB {
       final short flags) {
 
     checkTimestampAndTags(metric, timestamp, value, tags, flags);
+    if (spool != null) {
+      return spool.append(metric, timestamp, value, tags, flags, 
+          WriteAheadSpool.TYPE_POINT);
+    }
     final byte[] row = IncomingDataPoints.rowKeyTemplate(this, metric, tags);
     
     final byte[] qualifier = Internal.buildQualifier(timestamp, flags);
@@ -1153,6 +1307,30 @@ public final class TSDB {
     return storeIntoDB(metric, timestamp, value, tags, flags, row, qualifier);
   }
   
+  /**
+   * Writes a data point replayed from the {@link WriteAheadSpool} to storage.
+   * The point was validated when it was spooled.
+   * @param metric The metric name.
+   * @param timestamp The timestamp in seconds or milliseconds.
+   * @param value The encoded value.
+   * @param tags The tags.
+   * @param flags The value flags, ignored for histograms.
+   * @param histogram Whether or not the value is a histogram.
+   * @return A deferred to wait on for the storage result.
+   */
+  final Deferred<Object> storeSpooled(final String metric,
+      final long timestamp,
+      final byte[] value,
+      final Map<String, String> tags,
+      final short flags,
+      final boolean histogram) {
+    final byte[] row = IncomingDataPoints.rowKeyTemplate(this, metric, tags);
+    final byte[] qualifier = histogram ? 
+        Internal.getQualifier(timestamp, HistogramDataPoint.PREFIX) :
+          Internal.buildQualifier(timestamp, flags);
+    return storeIntoDB(metric, timestamp, value, tags, flags, row, qualifier);
+  }
+  
   private final Deferred<Object> storeIntoDB(final String metric, 
                                              final long timestamp, 
                                              final byte[] value,
@@ -1210,13 +1388,54 @@ public final class TSDB {
         // timing in a moving Histogram (once we have a class for this).
 
         if (!config.enable_realtime_ts() && !config.enable_tsuid_incrementing() &&
-            !config.enable_tsuid_tracking() && rt_publisher == null) {
+            !config.enable_tsuid_tracking() && rt_publisher == null &&
+            tag_index == null && suggest_scoped_series == null &&
+            rollup_generator == null && last_point_cache == null) {
           return result;
         }
 
         final byte[] tsuid = UniqueId.getTSUIDFromKey(row, METRICS_WIDTH,
             Const.TIMESTAMP_BYTES);
 
+        if (rollup_generator != null && !isHistogram(qualifier)) {
+          /** Accumulates the point once storage acknowledged the write so
+           * that resent or retried points aren't counted twice */
+          final class RollupCB implements Callback<Object, Object> {
+            @Override
+            public Object call(final Object put_result) throws Exception {
+              rollup_generator.add(tsuid, metric, tags, timestamp, value, flags);
+              return put_result;
+            }
+            @Override
+            public String toString() {
+              return "Rollup generator callback";
+            }
+          }
+          result = result.addCallback(new RollupCB());
+        }
+        if (last_point_cache != null && !isHistogram(qualifier)) {
+          /** Caches the point once storage acknowledged the write */
+          final class LastPointCB implements Callback<Object, Object> {
+            @Override
+            public Object call(final Object put_result) throws Exception {
+              last_point_cache.put(tsuid, timestamp, value, flags);
+              return put_result;
+            }
+            @Override
+            public String toString() {
+              return "Last point cache callback";
+            }
+          }
+          result = result.addCallback(new LastPointCB());
+        }
+
+        if (tag_index != null) {
+          tag_index.index(tsuid);
+        }
+        if (suggest_scoped_series != null) {
+          observeSuggestScopes(tsuid, tags);
+        }
+
         // if the meta cache plugin is instantiated then tracking goes through it
         if (meta_cache != null) {
           meta_cache.increment(tsuid);
@@ -1602,7 +1821,7 @@ public final class TSDB {
       }
     }
 
-    return config.enable_compactions() && compactionq != null
+    return compactionq != null && compactionq.enabled()
       ? compactionq.flush().addCallback(new HClientFlush())
       : client.flush();
   }
@@ -1695,7 +1914,22 @@ public final class TSDB {
       }
     }
 
-    if (config.enable_compactions()) {
+    if (spool != null) {
+      LOG.info("Shutting down the write-ahead spool");
+      spool.shutdown();
+    }
+    if (salt_merge_pool != null) {
+      salt_merge_pool.shutdown();
+    }
+    if (uid_snapshot != null) {
+      LOG.info("Writing the UID cache snapshot");
+      uid_snapshot.shutdown();
+    }
+    if (rollup_generator != null) {
+      LOG.info("Flushing closed and saving open rollup windows");
+      deferreds.add(rollup_generator.flush().addCallback(new CompactCB()));
+    }
+    if (compactionq != null && compactionq.enabled()) {
       LOG.info("Flushing compaction queue");
       deferreds.add(compactionq.flush().addCallback(new CompactCB()));
     }
@@ -1785,6 +2019,22 @@ public final class TSDB {
     return tag_names.suggest(search, max_results);
   }
 
+  /**
+   * Given a prefix search, returns tagk names observed in the series of the
+   * metric since the TSD started.
+   * @param search A prefix to search.
+   * @param max_results Maximum number of results to return.
+   * @param metric The metric the tag keys must have been written with.
+   * @throws NoSuchUniqueName if the metric doesn't exist.
+   * @throws IllegalStateException if scoped suggestions are disabled.
+   * @since 2.4
+   */
+  public List<String> suggestTagNames(final String search,
+      final int max_results, final String metric) {
+    checkScopedSuggestions();
+    return tag_names.suggest(search, max_results, metrics.getId(metric));
+  }
+
   /**
    * Given a prefix search, returns a few matching tag values.
    * @param search A prefix to search.
@@ -1804,6 +2054,99 @@ public final class TSDB {
     return tag_values.suggest(search, max_results);
   }
 
+  /**
+   * Given a prefix search, returns tag values observed in the series of the
+   * metric since the TSD started.
+   * @param search A prefix to search.
+   * @param max_results Maximum number of results to return.
+   * @param metric The metric the tag values must have been written with.
+   * @throws NoSuchUniqueName if the metric doesn't exist.
+   * @throws IllegalStateException if scoped suggestions are disabled.
+   * @since 2.4
+   */
+  public List<String> suggestTagValues(final String search,
+      final int max_results, final String metric) {
+    checkScopedSuggestions();
+    return tag_values.suggest(search, max_results, metrics.getId(metric));
+  }
+
+  /** @throws IllegalStateException if scoped suggestions are disabled. */
+  private void checkScopedSuggestions() {
+    if (suggest_scoped_series == null) {
+      throw new IllegalStateException("Scoped suggestions require "
+          + "'tsd.uid.suggest.enable' and 'tsd.uid.suggest.scoped.enable'");
+    }
+  }
+
+  /**
+   * Scans the UID table into the suggest index of each kind. The first scan
+   * fills the indexes, later ones pick up names assigned, renamed or deleted
+   * through other TSDs. If a scan fails, the index keeps its previous state.
+   */
+  private void buildSuggestIndexes() {
+    class SuggestErrCB implements Callback<Object, Exception> {
+      @Override
+      public Object call(final Exception e) throws Exception {
+        LOG.error("Failed to scan the UID table for the suggest index, "
+            + "suggestions are served from storage until it completes", e);
+        return null;
+      }
+      @Override
+      public String toString() {
+        return "Suggest index build error callback";
+      }
+    }
+    metrics.buildSuggestIndex().addErrback(new SuggestErrCB());
+    tag_names.buildSuggestIndex().addErrback(new SuggestErrCB());
+    tag_values.buildSuggestIndex().addErrback(new SuggestErrCB());
+  }
+
+  /** Periodically rescans the UID table into the suggest indexes. */
+  private final class SuggestRefreshTask implements TimerTask {
+    /** How often to rescan, in milliseconds */
+    private final long interval;
+
+    SuggestRefreshTask(final long interval) {
+      this.interval = interval;
+    }
+
+    @Override
+    public void run(final Timeout timeout) {
+      try {
+        buildSuggestIndexes();
+      } catch (RuntimeException e) {
+        LOG.error("Failed to refresh the suggest indexes", e);
+      } finally {
+        try {
+          timeout.getTimer().newTimeout(this, interval, TimeUnit.MILLISECONDS);
+        } catch (IllegalStateException e) {
+          // the timer was stopped on shutdown
+        }
+      }
+    }
+  }
+
+  /**
+   * Records the tag keys and values of a series in the suggest scope of its
+   * metric the first time the series is seen.
+   * @param tsuid The TSUID of the series.
+   * @param tags The tag names and values of the series.
+   */
+  private void observeSuggestScopes(final byte[] tsuid,
+      final Map<String, String> tags) {
+    if (suggest_scoped_series.putIfAbsent(new String(tsuid, CHARSET), 
+        Boolean.TRUE) != null) {
+      return;
+    }
+    final byte[] metric = Arrays.copyOf(tsuid, METRICS_WIDTH);
+    final SuggestIndex tagk_index = tag_names.suggestIndex();
+    final SuggestIndex tagv_index = tag_values.suggestIndex();
+    for (final Map.Entry<String, String> tag : tags.entrySet()) {
+      tagk_index.observe(metric, tag.getKey());
+      tagv_index.observe(metric, tag.getValue());
+    }
+  }
+
   /**
    * Discards all in-memory caches.
    * @since 1.1
@@ -1812,6 +2155,12 @@ public final class TSDB {
     metrics.dropCaches();
     tag_names.dropCaches();
     tag_values.dropCaches();
+    if (query_cache != null) {
+      query_cache.clear();
+    }
+    if (last_point_cache != null) {
+      last_point_cache.clear();
+    }
   }
 
   /**
@@ -2103,6 +2452,38 @@ public final class TSDB {
   public Timer getTimer() {
     return timer;
   }
+
+  /** @return The pool used to build salt bucket spans in parallel, null if
+   * disabled.
+   * @since 2.4 */
+  public Executor getSaltMergeExecutor() {
+    return salt_merge_pool;
+  }
+
+  /** @return The arena HTTP queries decode raw data into, null if disabled.
+   * @since 2.4 */
+  public ColumnarArena getColumnarArena() {
+    return columnar_arena;
+  }
+
+  /** @return The cache for HTTP query results, null if disabled.
+   * @since 2.4 */
+  public QueryResultCache getQueryResultCache() {
+    return query_cache;
+  }
+
+  /** @return The cache of the last data point of each series, null if
+   * disabled.
+   * @since 2.4 */
+  public LastPointCache getLastPointCache() {
+    return last_point_cache;
+  }
+
+  /** @return The inverted tag index, null if disabled.
+   * @since 2.4 */
+  public TagIndex getTagIndex() {
+    return tag_index;
+  }
   
   /** @return The aggregate tag key if set. May be null. 
    * @since 2.4 */
@@ -102,6 +102,9 @@ public final class TSQuery {
   /** The query status for tracking over all performance of this query */
   private QueryStats query_stats;
   
+  /** An optional arena region to decode raw rows into */
+  private ColumnarArena.Region arena_region;
+  
   /** Override default max byte limit */
   private boolean override_byte_limit;
   
@@ -401,6 +404,14 @@ public final class TSQuery {
     return query_stats;
   }
   
+  /** @return the arena region data is decoded into, may be null. Ignored
+   * during JSON serialization
+   * @since 2.4 */
+  @JsonIgnore
+  public ColumnarArena.Region getArenaRegion() {
+    return arena_region;
+  }
+  
   /**
    * Sets the start time for further parsing. This can be an absolute or 
    * relative value. See {@link DateTime#parseDateTimeString} for details.
@@ -490,6 +501,13 @@ public final class TSQuery {
   public void setQueryStats(final QueryStats query_stats) {
     this.query_stats = query_stats;
   }
+  
+  /** @param arena_region a region to decode raw data into. The caller must
+   * release it once the results have been serialized.
+   * @since 2.4 */
+  public void setArenaRegion(final ColumnarArena.Region arena_region) {
+    this.arena_region = arena_region;
+  }
 
   /** @return Whether or not the query would like to override the byte limiter. */
   public boolean overrideByteLimit() {
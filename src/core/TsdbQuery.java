@@ -48,6 +48,7 @@ import net.opentsdb.rollup.NoSuchRollupForIntervalException;
 import net.opentsdb.rollup.RollupInterval;
 import net.opentsdb.rollup.RollupQuery;
 import net.opentsdb.rollup.RollupUtils;
+import net.opentsdb.search.TagIndex;
 import net.opentsdb.stats.Histogram;
 import net.opentsdb.stats.QueryStats;
 import net.opentsdb.stats.QueryStats.QueryStat;
@@ -148,6 +149,11 @@ final class TsdbQuery implements Query {
   /** How to use the rollup data */
   private ROLLUP_USAGE rollup_usage = ROLLUP_USAGE.ROLLUP_NOFALLBACK;
   
+  /** When greater than zero, the Unix epoch timestamp in seconds at which the
+   * rollup scan stops and raw data is stitched on for the recent window that
+   * hasn't been rolled up yet. */
+  private long raw_stitch_start;
+  
   /** Search the query on pre-aggregated table directly instead of post fetch 
    * aggregation. */
   private boolean pre_aggregate;
@@ -189,6 +195,9 @@ final class TsdbQuery implements Query {
   /** The maximum number of data points allowed per query. */
   private long max_data_points = 0;
   
+  /** An optional region to decode raw data rows into columns with. */
+  private ColumnarArena.Region arena_region;
+  
   /**
    * Enum for rollup fallback control.
    * @since 2.4
@@ -445,6 +454,7 @@ final class TsdbQuery implements Query {
     setDelete(query.getDelete());
     query_index = index;
     query_stats = query.getQueryStats();
+    arena_region = query.getArenaRegion();
     
     // set common options
     aggregator = sub_query.aggregator();
@@ -507,11 +517,50 @@ final class TsdbQuery implements Query {
       }
       return Deferred.fromResult(null);
     } else {
+      /** Switches to multi-gets of the series found in the tag index */
+      class TagIndexCB implements Callback<Object, List<byte[]>> {
+        @Override
+        public Object call(final List<byte[]> tsuids) throws Exception {
+          final int limit = tsdb.getConfig().getInt("tsd.query.multi_get.limit");
+          if (tsuids.size() > limit) {
+            LOG.debug("Tag index matched " + tsuids.size() + " series which "
+                + "is over the multi-get limit, scanning instead");
+            return null;
+          }
+          row_key_literals_list = TagIndex.toTagMaps(tsuids,
+              explicit_tags ? row_key_literals.size() : 0);
+          use_multi_gets = true;
+          override_multi_get = true;
+          return null;
+        }
+        @Override
+        public String toString() {
+          return "Tag index lookup callback";
+        }
+      }
+
+      /** Falls back to scanning if the index couldn't be read */
+      class TagIndexErrorCB implements Callback<Object, Exception> {
+        @Override
+        public Object call(final Exception e) throws Exception {
+          LOG.warn("Failed to read the tag index, scanning instead", e);
+          return null;
+        }
+        @Override
+        public String toString() {
+          return "Tag index lookup error callback";
+        }
+      }
+
       /** Triggers the group by resolution if we had filters to resolve */
       class FilterCB implements Callback<Object, ArrayList<byte[]>> {
         @Override
         public Object call(final ArrayList<byte[]> results) throws Exception {
           findGroupBys();
+          if (canUseTagIndex()) {
+            return tsdb.getTagIndex().lookup(metric, row_key_literals)
+                .addCallbacks(new TagIndexCB(), new TagIndexErrorCB());
+          }
           return null;
         }
       }
@@ -605,6 +654,31 @@ final class TsdbQuery implements Query {
     downsample(interval, downsampler, FillPolicy.NONE);
   }
 
+  /**
+   * Whether or not the series can be found through the tag index instead of
+   * a scan. Only the case when every filter was resolved to literal values
+   * is handled as the index can't evaluate the others.
+   * @return True if the tag index is enabled for queries and can be used.
+   */
+  private boolean canUseTagIndex() {
+    final TagIndex tag_index = tsdb.getTagIndex();
+    if (tag_index == null || !tag_index.useForQueries() || delete ||
+        row_key_literals == null || row_key_literals.isEmpty()) {
+      return false;
+    }
+    for (final byte[][] values : row_key_literals.values()) {
+      if (values == null) {
+        return false;
+      }
+    }
+    for (final TagVFilter filter : filters) {
+      if (filter.postScan()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
   /**
    * Populates the {@link #group_bys} and {@link #row_key_literals}'s with 
    * values pulled from the filters. 
@@ -740,7 +814,8 @@ final class TsdbQuery implements Query {
   @Override
   public Deferred<DataPoints[]> runAsync() throws HBaseException {
     Deferred<DataPoints[]> result = null;
-    if (use_multi_gets && override_multi_get) {
+    // stitched rollup queries need the raw scan so they skip multi-gets
+    if (use_multi_gets && override_multi_get && raw_stitch_start <= 0) {
       result = this.findSpansWithMultiGetter().addCallback(new GroupByAndAggregateCB());
     } else {
       result = findSpans().addCallback(new GroupByAndAggregateCB());
@@ -812,29 +887,78 @@ final class TsdbQuery implements Query {
       scanner_filters = null;
     }
     
+    final Deferred<TreeMap<byte[], Span>> scan;
     if (Const.SALT_WIDTH() > 0) {
       final List<Scanner> scanners = new ArrayList<Scanner>(Const.SALT_BUCKETS());
       for (int i = 0; i < Const.SALT_BUCKETS(); i++) {
         scanners.add(getScanner(i));
       }
       scan_start_time = DateTime.nanoTime();
-      return new SaltScanner(tsdb, metric, scanners, spans, scanner_filters,
+      scan = new SaltScanner(tsdb, metric, scanners, spans, scanner_filters,
           delete, rollup_query, query_stats, query_index, null, 
-          max_bytes, max_data_points).scan();
+          max_bytes, max_data_points).setArenaRegion(arena_region).scan();
     } else {
       final List<Scanner> scanners = new ArrayList<Scanner>(1);
       scanners.add(getScanner(0));
       scan_start_time = DateTime.nanoTime();
-      return new SaltScanner(tsdb, metric, scanners, spans, scanner_filters,
+      scan = new SaltScanner(tsdb, metric, scanners, spans, scanner_filters,
           delete, rollup_query, query_stats, query_index, null, max_bytes, 
-          max_data_points).scan();
+          max_data_points).setArenaRegion(arena_region).scan();
+    }
+    if (raw_stitch_start <= 0) {
+      return scan;
+    }
+    
+    // scan the raw table for the window that hasn't been rolled up yet
+    final TreeMap<byte[], Span> raw_spans = new TreeMap<byte[], Span>(
+        new SpanCmp((short)(Const.SALT_WIDTH() + metric_width)));
+    final int buckets = Const.SALT_WIDTH() > 0 ? Const.SALT_BUCKETS() : 1;
+    final List<Scanner> raw_scanners = new ArrayList<Scanner>(buckets);
+    for (int i = 0; i < buckets; i++) {
+      raw_scanners.add(getRawStitchScanner(i));
+    }
+    final List<Deferred<TreeMap<byte[], Span>>> scans = 
+        new ArrayList<Deferred<TreeMap<byte[], Span>>>(2);
+    scans.add(scan);
+    scans.add(new SaltScanner(tsdb, metric, raw_scanners, raw_spans, 
+        scanner_filters, delete, null, query_stats, query_index, null, 
+        max_bytes, max_data_points).setArenaRegion(arena_region).scan());
+    return Deferred.groupInOrder(scans).addCallback(new StitchCB());
+  }
+  
+  /**
+   * Stitches the spans found in the raw table for the recent window onto the
+   * spans found in the rollup table. Series that were only found in the raw
+   * table are added as is.
+   */
+  private class StitchCB implements 
+    Callback<TreeMap<byte[], Span>, ArrayList<TreeMap<byte[], Span>>> {
+    @Override
+    public TreeMap<byte[], Span> call(
+        final ArrayList<TreeMap<byte[], Span>> results) throws Exception {
+      final TreeMap<byte[], Span> spans = results.get(0);
+      for (final Map.Entry<byte[], Span> entry : results.get(1).entrySet()) {
+        final Span span = spans.get(entry.getKey());
+        if (span == null) {
+          spans.put(entry.getKey(), entry.getValue());
+        } else {
+          span.stitch(entry.getValue());
+        }
+      }
+      return spans;
+    }
+    
+    @Override
+    public String toString() {
+      return "Stitch raw spans onto rollup spans";
     }
   }
   
   private Deferred<TreeMap<byte[], Span>> findSpansWithMultiGetter() throws HBaseException {
     final short metric_width = tsdb.metrics.width();
     final TreeMap<byte[], Span> spans = // The key is a row key from HBase.
-    new TreeMap<byte[], Span>(new SpanCmp(metric_width));
+    new TreeMap<byte[], Span>(new SpanCmp(
+        (short)(Const.SALT_WIDTH() + metric_width)));
 
     scan_start_time = System.nanoTime();
     
@@ -899,7 +1023,8 @@ final class TsdbQuery implements Query {
   private Deferred<TreeMap<byte[], HistogramSpan>> findHistogramSpansWithMultiGetter() throws HBaseException {
     final short metric_width = tsdb.metrics.width();
     // The key is a row key from HBase
-    final TreeMap<byte[], HistogramSpan> histSpans = new TreeMap<byte[], HistogramSpan>(new SpanCmp(metric_width));
+    final TreeMap<byte[], HistogramSpan> histSpans = new TreeMap<byte[], HistogramSpan>(new SpanCmp(
+        (short)(Const.SALT_WIDTH() + metric_width)));
 
     scan_start_time = System.nanoTime();
     return new MultiGetQuery(tsdb, this, metric, row_key_literals_list, 
@@ -935,6 +1060,7 @@ final class TsdbQuery implements Query {
         }
         return NO_RESULT;
       }
+      final long group_start = System.nanoTime();
       
       // The raw aggregator skips group bys and ignores downsampling
       if (aggregator == Aggregators.NONE) {
@@ -975,7 +1101,8 @@ final class TsdbQuery implements Query {
                                               query_index,
                                               rollup_query);
         if (query_stats != null) {
-          query_stats.addStat(query_index, QueryStat.GROUP_BY_TIME, 0);
+          query_stats.addStat(query_index, QueryStat.GROUP_BY_TIME, 
+              System.nanoTime() - group_start);
         }
         return new SpanGroup[] { group };
       }
@@ -1037,7 +1164,8 @@ final class TsdbQuery implements Query {
       // LOG.info("group for " + Arrays.toString(entry.getKey()) + ": " + entry.getValue());
       //}
       if (query_stats != null) {
-        query_stats.addStat(query_index, QueryStat.GROUP_BY_TIME, 0);
+        query_stats.addStat(query_index, QueryStat.GROUP_BY_TIME, 
+            System.nanoTime() - group_start);
       }
       return groups.values().toArray(new SpanGroup[groups.size()]);
     }
@@ -1319,6 +1447,8 @@ final class TsdbQuery implements Query {
         }
         else if (best_match_rollups != null && best_match_rollups.size() > 0) {
           RollupInterval interval = best_match_rollups.remove(0);
+          // the raw stitch was planned against the row span of the old tier
+          raw_stitch_start = 0;
           
           if (interval.isDefaultInterval()) {
             transformRollupQueryToDownSampler();
@@ -1391,10 +1521,17 @@ final class TsdbQuery implements Query {
     // rely on having a few extra data points before & after the exact start
     // & end dates in order to do proper rate calculation or downsampling near
     // the "edges" of the graph.
+    final int scan_end;
+    if (raw_stitch_start > 0) {
+      // the raw data takes over from the first row that isn't rolled up
+      scan_end = (int) raw_stitch_start;
+    } else {
+      scan_end = end_time == UNSET
+          ? -1  // Will scan until the end (0xFFF...).
+          : (int) getScanEndTimeSeconds();
+    }
     final Scanner scanner = QueryUtil.getMetricScanner(tsdb, salt_bucket, metric, 
-        (int) getScanStartTimeSeconds(), end_time == UNSET
-        ? -1  // Will scan until the end (0xFFF...).
-        : (int) getScanEndTimeSeconds(), 
+        (int) getScanStartTimeSeconds(), scan_end, 
         tableToBeScanned(), 
         TSDB.FAMILY());
     if(tsdb.getConfig().use_otsdb_timestamp()) {
@@ -1410,7 +1547,7 @@ final class TsdbQuery implements Query {
     if (tsuids != null && !tsuids.isEmpty()) {
       createAndSetTSUIDFilter(scanner);
     } else if (filters.size() > 0) {
-      createAndSetFilter(scanner);
+      createAndSetFilter(scanner, scan_end);
     }
 
     if (is_rollup) {
@@ -1473,6 +1610,28 @@ final class TsdbQuery implements Query {
     }
     return scanner;
   }
+  
+  /**
+   * Returns a scanner over the raw data table for the recent window of a 
+   * rollup query that hasn't been rolled up yet, starting at 
+   * {@link #raw_stitch_start}. Must be called after {@link #getScanner(int)}
+   * so that the metric is set.
+   * @param salt_bucket The salt bucket to scan over when salting is enabled.
+   * @return A scanner to use for fetching the raw data points
+   */
+  private Scanner getRawStitchScanner(final int salt_bucket) {
+    final int scan_end = end_time == UNSET
+        ? -1  // Will scan until the end (0xFFF...).
+        : (int) getRawScanEndTimeSeconds(getEndTimeSeconds());
+    final Scanner scanner = QueryUtil.getMetricScanner(tsdb, salt_bucket, metric, 
+        (int) raw_stitch_start, scan_end, tsdb.dataTable(), TSDB.FAMILY());
+    if (tsuids != null && !tsuids.isEmpty()) {
+      createAndSetTSUIDFilter(scanner);
+    } else if (filters.size() > 0) {
+      createAndSetFilter(scanner, scan_end);
+    }
+    return scanner;
+  }
 
   /**
    * Identify the table to be scanned based on the roll up and pre-aggregate 
@@ -1543,8 +1702,8 @@ final class TsdbQuery implements Query {
     return timespan_aligned_ts > 0L ? timespan_aligned_ts : 0L;
   }
 
-  /** Returns the UNIX timestamp at which we must stop scanning.  */
-  private long getScanEndTimeSeconds() {
+  /** Returns the query end time as a UNIX timestamp in seconds. */
+  private long getEndTimeSeconds() {
     // Begin with the raw query end time.
     long end = getEndTime();
 
@@ -1557,6 +1716,12 @@ final class TsdbQuery implements Query {
         end++;
       }
     }
+    return end;
+  }
+
+  /** Returns the UNIX timestamp at which we must stop scanning.  */
+  private long getScanEndTimeSeconds() {
+    final long end = getEndTimeSeconds();
     
     if (rollup_query != null) {
       return RollupUtils.getRollupBasetime(end + 
@@ -1564,7 +1729,15 @@ final class TsdbQuery implements Query {
               rollup_query.getRollupInterval().getIntervals()), 
           rollup_query.getRollupInterval());
     }
-
+    return getRawScanEndTimeSeconds(end);
+  }
+  
+  /**
+   * Returns the UNIX timestamp at which we must stop scanning the raw data
+   * table.
+   * @param end The query end time in seconds.
+   */
+  private long getRawScanEndTimeSeconds(final long end) {
     // The calculation depends on whether we're downsampling.
     if (downsampler != null && downsampler.getInterval() > 0) {
       // Downsampling enabled.
@@ -1610,13 +1783,12 @@ final class TsdbQuery implements Query {
    * In order to find the rows with the relevant tags, we use a
    * server-side filter that matches a regular expression on the row key.
    * @param scanner The scanner on which to add the filter.
+   * @param scan_end The timestamp at which the scanner stops, -1 to scan
+   * until the end of the table.
    */
-  private void createAndSetFilter(final Scanner scanner) {
+  private void createAndSetFilter(final Scanner scanner, final int scan_end) {
     QueryUtil.setDataTableScanFilter(scanner, group_bys, row_key_literals, 
-        explicit_tags, enable_fuzzy_filter, 
-        (end_time == UNSET
-        ? -1  // Will scan until the end (0xFFF...).
-        : (int) getScanEndTimeSeconds()));
+        explicit_tags, enable_fuzzy_filter, scan_end);
   }
   
   /**
@@ -1664,6 +1836,7 @@ final class TsdbQuery implements Query {
   public void transformDownSamplerToRollupQuery(final Aggregator group_by, 
       final String str_interval)  {
     
+    raw_stitch_start = 0;
     if (downsampler != null && downsampler.getInterval() > 0) {
       if (tsdb.getRollupConfig() != null) {
         try {
@@ -1673,8 +1846,13 @@ final class TsdbQuery implements Query {
           // TsdbQuery object
           //RollupConfig.getRollupInterval guarantees that, 
           //  it always return a non-empty list
-          // TODO
-          rollup_query = new RollupQuery(best_match_rollups.remove(0), 
+          final RollupInterval interval = planRollupInterval();
+          if (interval == null) {
+            // the whole query falls in the window that isn't rolled up yet
+            rollup_query = null;
+            return;
+          }
+          rollup_query = new RollupQuery(interval, 
                   downsampler.getFunction(), downsampler.getInterval(),
                   group_by);
           if (group_by == Aggregators.COUNT) {
@@ -1698,6 +1876,120 @@ final class TsdbQuery implements Query {
     }
   }
   
+  /**
+   * Picks the tier to read from out of the {@link #best_match_rollups}, all of
+   * which evenly divide the downsample interval. Each tier is costed on the
+   * data points it would read per series and the cheapest is picked, the
+   * coarsest winning ties. 
+   * <p>
+   * When 'tsd.rollups.stitch.enable' is set, the rollups are only trusted 
+   * for the rows that ended 'tsd.rollups.stitch.lag' ago. Later data is read 
+   * from the raw table and stitched onto the rollups, the raw points being 
+   * costed at the resolution of the default interval. A tier with a long row 
+   * span can therefore lose to a finer one that has to stitch less raw data.
+   * <p>
+   * The chosen tier and the plan estimates are recorded in the query stats.
+   * The tier and any coarser ones are removed from the best matches so that
+   * falling back moves on to the finer tiers.
+   * @return The tier to read from or null if only the raw data covers the 
+   * query.
+   * @since 2.4
+   */
+  private RollupInterval planRollupInterval() {
+    final boolean stitch = tsdb.getConfig().getBoolean("tsd.rollups.stitch.enable")
+        && !delete && !pre_aggregate && !isHistogramQuery();
+    long start = getStartTime();
+    if ((start & Const.SECOND_MASK) != 0L) {
+      start /= 1000L;
+    }
+    long now = 0;
+    long end;
+    if (stitch) {
+      now = DateTime.currentTimeMillis() / 1000L;
+      end = end_time == UNSET ? now : getEndTimeSeconds();
+    } else {
+      // without stitching only the length of the query matters
+      end = end_time == UNSET ? Math.max(start, 
+          DateTime.currentTimeMillis() / 1000L) : getEndTimeSeconds();
+    }
+    final long lag = stitch ? DateTime.parseDuration(
+        tsdb.getConfig().getString("tsd.rollups.stitch.lag")) / 1000L : 0;
+    final long raw_resolution = tsdb.getDefaultInterval() != null ? 
+        tsdb.getDefaultInterval().getIntervalSeconds() : 1;
+    
+    int best = -1;
+    long best_cutoff = 0;
+    long best_dps = Long.MAX_VALUE;
+    long best_rows = 0;
+    for (int i = 0; i < best_match_rollups.size(); i++) {
+      final RollupInterval interval = best_match_rollups.get(i);
+      long rollup_end = end;
+      long cutoff = 0;
+      if (stitch && !interval.isDefaultInterval()) {
+        // the first row holding a window that may not have been written yet
+        cutoff = RollupUtils.getRollupBasetime(Math.max(0, now - lag), interval);
+        if (cutoff % Const.MAX_TIMESPAN != 0) {
+          // raw rows can't start where the rollup rows end
+          cutoff = 0;
+        } else if (cutoff <= start) {
+          // nothing to read from this tier, the raw plan covers it
+          continue;
+        } else if (cutoff < end) {
+          rollup_end = cutoff;
+        } else {
+          cutoff = 0;
+        }
+      }
+      
+      final long span = 
+          (long) interval.getIntervalSeconds() * interval.getIntervals();
+      long dps = (rollup_end - start) / interval.getIntervalSeconds();
+      long rows = (rollup_end - start + span - 1) / span;
+      if (cutoff > 0) {
+        dps += (end - cutoff) / raw_resolution;
+        rows += (end - cutoff + Const.MAX_TIMESPAN - 1) / Const.MAX_TIMESPAN;
+      }
+      if (dps < best_dps) {
+        best = i;
+        best_cutoff = cutoff;
+        best_dps = dps;
+        best_rows = rows;
+      }
+    }
+    
+    final RollupInterval interval;
+    if (best < 0) {
+      interval = null;
+      best_dps = (end - start) / raw_resolution;
+      best_rows = (end - start + Const.MAX_TIMESPAN - 1) / Const.MAX_TIMESPAN;
+      best_match_rollups.clear();
+    } else {
+      interval = best_match_rollups.get(best);
+      best_match_rollups.subList(0, best + 1).clear();
+      raw_stitch_start = best_cutoff;
+    }
+    
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Planned rollup query on " + (interval == null ? "raw data" : 
+        interval.getInterval()) + " with an estimated " + best_dps 
+        + " data points in " + best_rows + " rows per series" 
+        + (raw_stitch_start > 0 ? 
+            ", stitching raw data from " + raw_stitch_start : ""));
+    }
+    if (query_stats != null) {
+      query_stats.addStat(query_index, QueryStat.ROLLUP_PLAN_INTERVAL, 
+          interval == null || interval.isDefaultInterval() ? 0 : 
+            interval.getIntervalSeconds());
+      query_stats.addStat(query_index, QueryStat.ROLLUP_PLAN_ESTIMATED_DPS, 
+          best_dps);
+      query_stats.addStat(query_index, QueryStat.ROLLUP_PLAN_ESTIMATED_ROWS, 
+          best_rows);
+      query_stats.addStat(query_index, QueryStat.RAW_STITCH_START, 
+          raw_stitch_start);
+    }
+    return interval;
+  }
+  
   /**
    * Transform rollup query to downsampler
    * It is mainly useful when it scan on raw data on fallback.
@@ -1713,6 +2005,7 @@ final class TsdbQuery implements Query {
           (downsampler != null ? downsampler.getFillPolicy() : 
             FillPolicy.ZERO));
       rollup_query = null;
+      raw_stitch_start = 0;
     }
   }
   
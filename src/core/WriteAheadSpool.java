@@ -0,0 +1,788 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.hbase.async.HBaseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.utils.Config;
+
+/**
+ * A local, append-only write-ahead spool sitting in front of the storage put
+ * path.
+ * <p>
+ * When enabled via {@code tsd.storage.spool.enable}, data points handed to
+ * {@link TSDB#addPoint} are validated, appended to memory-mapped segment files
+ * under {@code tsd.storage.spool.directory} and acknowledged once the segment
+ * has been forced to disk. A commit thread forces the current segment every
+ * {@code tsd.storage.spool.commit_interval} milliseconds so that many writes
+ * share a single sync (group commit).
+ * <p>
+ * A replay thread reads the segments back in order and writes the points to
+ * HBase through the regular storage path. At most
+ * {@code tsd.storage.spool.max_inflight} puts are outstanding at once so an
+ * HBase stall does not pile up deferreds in the heap; the backlog stays on
+ * disk instead. Puts failing with an {@link HBaseException} are retried with
+ * an exponential backoff and keep their permit while they wait, so an outage
+ * doesn't drain the segments into the heap. Other failures (e.g. an unknown metric with auto
+ * creation disabled) are counted and dropped. A segment is deleted once it
+ * was rolled and all of its points were stored.
+ * <p>
+ * Segments left over from a previous run are replayed once {@link
+ * TSDB#initializePlugins} started the spool, so replayed points go through
+ * the same filters and publishers as live writes. Delivery is at least once:
+ * a point may be written twice if the TSD died after the put but before the
+ * segment was deleted, which is harmless as the cell is simply overwritten.
+ * <p>
+ * Segment layout: an 8 byte header with the magic and format version followed
+ * by records of {@code [int length][int crc32][payload]}. A zero length or a
+ * checksum mismatch marks the end of the segment.
+ * @since 2.4
+ */
+final class WriteAheadSpool {
+  private static final Logger LOG = LoggerFactory.getLogger(WriteAheadSpool.class);
+
+  /** Magic at the start of each segment, "OTWS". */
+  static final int MAGIC = 0x4F545753;
+  /** Segment format version. */
+  static final int VERSION = 1;
+  /** Size of the segment header. */
+  static final int HEADER_SIZE = 8;
+  /** Size of the record header, length and checksum. */
+  static final int RECORD_HEADER_SIZE = 8;
+  /** Record type for regular data points. */
+  static final byte TYPE_POINT = 0;
+  /** Record type for histogram data points. */
+  static final byte TYPE_HISTOGRAM = 1;
+  /** Segment file name prefix and suffix. */
+  static final String PREFIX = "spool-";
+  static final String SUFFIX = ".seg";
+
+  /** Initial retry delay in milliseconds, doubled on each attempt. */
+  private static final long MIN_RETRY_DELAY = 100;
+  /** Maximum retry delay in milliseconds. */
+  private static final long MAX_RETRY_DELAY = 10000;
+  /** How long the replay thread sleeps when there was nothing to do. */
+  private static final long IDLE_SLEEP = 10;
+
+  /** The TSDB to store the points to. */
+  private final TSDB tsdb;
+
+  /** Where we keep the segments. */
+  private final File directory;
+
+  /** Size of each segment file in bytes. */
+  private final int segment_size;
+
+  /** Maximum number of segments on disk before we reject writes. */
+  private final int max_segments;
+
+  /** How often to force the current segment in milliseconds. */
+  private final long commit_interval;
+
+  /** Bounds the number of puts outstanding against storage. */
+  private final Semaphore inflight;
+  private final int max_inflight;
+
+  /** Segments in order, oldest first. Guarded by {@code this}. */
+  private final ArrayList<Segment> segments = new ArrayList<Segment>();
+
+  /** The segment we're appending to. Guarded by {@code this}. */
+  private Segment current;
+
+  /** Acks waiting for the next commit. Guarded by {@code this}. */
+  private ArrayList<Deferred<Object>> pending = new ArrayList<Deferred<Object>>();
+
+  /** Records that failed with a recoverable error, waiting for retry. */
+  private final DelayQueue<Record> retries = new DelayQueue<Record>();
+
+  /** Append time of the last record handed to storage, for lag. */
+  private volatile long last_replayed_time;
+
+  private volatile boolean running;
+  private Thread committer;
+  private Thread replayer;
+
+  private final AtomicLong appended = new AtomicLong();
+  /** Records found in segments recovered on startup. */
+  private final AtomicLong recovered = new AtomicLong();
+  private final AtomicLong replayed = new AtomicLong();
+  private final AtomicLong retried = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+  private final AtomicLong commits = new AtomicLong();
+
+  /**
+   * Opens the spool directory and recovers any existing segments. Threads
+   * are not started until {@link #start} is called.
+   * @param tsdb The TSDB to write to.
+   * @throws IllegalArgumentException if the configuration is invalid or the
+   * directory could not be opened.
+   */
+  WriteAheadSpool(final TSDB tsdb) {
+    this.tsdb = tsdb;
+    final Config config = tsdb.getConfig();
+    final String dir = config.getString("tsd.storage.spool.directory");
+    if (dir == null || dir.isEmpty()) {
+      throw new IllegalArgumentException("The spool was enabled but "
+          + "'tsd.storage.spool.directory' is null or empty.");
+    }
+    segment_size = config.getInt("tsd.storage.spool.segment_size");
+    if (segment_size < 1024) {
+      throw new IllegalArgumentException(
+          "The spool segment size must be at least 1024 bytes: " + segment_size);
+    }
+    max_segments = config.getInt("tsd.storage.spool.max_segments");
+    if (max_segments < 1) {
+      throw new IllegalArgumentException(
+          "The spool max segments must be at least 1: " + max_segments);
+    }
+    max_inflight = config.getInt("tsd.storage.spool.max_inflight");
+    if (max_inflight < 1) {
+      throw new IllegalArgumentException(
+          "The spool max inflight must be at least 1: " + max_inflight);
+    }
+    commit_interval = config.getLong("tsd.storage.spool.commit_interval");
+    inflight = new Semaphore(max_inflight);
+
+    directory = new File(dir);
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IllegalArgumentException(
+          "Unable to create the spool directory: " + dir);
+    }
+    try {
+      current = new Segment(recover() + 1);
+      segments.add(current);
+    } catch (IOException e) {
+      throw new IllegalArgumentException(
+          "Unable to open the spool directory: " + dir, e);
+    }
+  }
+
+  /** Starts the commit and replay threads. Subsequent calls are no-ops. */
+  synchronized void start() {
+    if (committer != null) {
+      return;
+    }
+    running = true;
+    committer = new CommitThread();
+    committer.start();
+    replayer = new ReplayThread();
+    replayer.start();
+  }
+
+  /**
+   * Stops the threads and commits any pending records. Records that were
+   * not stored yet stay on disk and are replayed on the next start.
+   */
+  void shutdown() {
+    running = false;
+    if (committer != null) {
+      committer.interrupt();
+    }
+    if (replayer != null) {
+      replayer.interrupt();
+    }
+    commit();
+  }
+
+  /**
+   * Appends a data point to the spool. The returned deferred is called back
+   * on the next group commit.
+   * @param metric The metric name.
+   * @param timestamp The timestamp in seconds or milliseconds.
+   * @param value The encoded value.
+   * @param tags The tags.
+   * @param flags The value flags.
+   * @param type {@link #TYPE_POINT} or {@link #TYPE_HISTOGRAM}.
+   * @return A deferred resolving to null once the point is durable or an
+   * exception if the spool was full.
+   */
+  Deferred<Object> append(final String metric, final long timestamp,
+      final byte[] value, final Map<String, String> tags, final short flags,
+      final byte type) {
+    final byte[] record = encode(System.currentTimeMillis(), type, timestamp,
+        flags, value, metric, tags);
+    if (record.length > segment_size - HEADER_SIZE) {
+      return Deferred.fromError(new IllegalArgumentException(
+          "Data point is too large for the spool: " + record.length + " bytes"));
+    }
+    final Deferred<Object> ack = new Deferred<Object>();
+    synchronized (this) {
+      if (current.remaining() < record.length) {
+        if (segments.size() >= max_segments) {
+          rejected.incrementAndGet();
+          return Deferred.fromError(new IllegalStateException(
+              "The write-ahead spool is full with " + segments.size()
+              + " segments"));
+        }
+        try {
+          current.seal();
+          current = new Segment(current.id + 1);
+          segments.add(current);
+        } catch (IOException e) {
+          return Deferred.fromError(new IllegalStateException(
+              "Unable to roll the write-ahead spool segment", e));
+        }
+      }
+      current.write(record);
+      pending.add(ack);
+    }
+    appended.incrementAndGet();
+    return ack;
+  }
+
+  /**
+   * Forces the current segment to disk and acknowledges all of the records
+   * appended since the last commit.
+   */
+  void commit() {
+    final ArrayList<Deferred<Object>> acks;
+    final Segment segment;
+    synchronized (this) {
+      if (pending.isEmpty()) {
+        return;
+      }
+      acks = pending;
+      pending = new ArrayList<Deferred<Object>>();
+      segment = current;
+    }
+    // segments rolled before this one were forced when sealed
+    segment.force();
+    commits.incrementAndGet();
+    for (final Deferred<Object> ack : acks) {
+      ack.callback(null);
+    }
+  }
+
+  /**
+   * Runs one replay pass, handing due retries and then unread records to
+   * storage until we run out of records or inflight permits. Deletes
+   * segments that were fully stored.
+   * @return The number of records handed to storage.
+   */
+  int replay() {
+    int submitted = 0;
+    Record retry;
+    while ((retry = retries.poll()) != null) {
+      // records waiting for a retry still hold their inflight permit
+      store(retry);
+      submitted++;
+    }
+
+    final Segment[] snapshot;
+    synchronized (this) {
+      snapshot = segments.toArray(new Segment[segments.size()]);
+    }
+    for (final Segment segment : snapshot) {
+      while (segment.hasUnread()) {
+        if (!inflight.tryAcquire()) {
+          return submitted;
+        }
+        final Record record = segment.read();
+        if (record == null) {
+          inflight.release();
+          break;
+        }
+        store(record);
+        submitted++;
+      }
+      if (segment.isDone()) {
+        synchronized (this) {
+          segments.remove(segment);
+        }
+        segment.delete();
+      }
+    }
+    return submitted;
+  }
+
+  /** Sends the record to storage and handles the result. */
+  private void store(final Record record) {
+    final class StoreCB implements Callback<Object, Object> {
+      @Override
+      public Object call(final Object result) throws Exception {
+        inflight.release();
+        replayed.incrementAndGet();
+        record.segment.outstanding.decrementAndGet();
+        return null;
+      }
+      @Override
+      public String toString() {
+        return "Spool store callback";
+      }
+    }
+
+    final class ErrCB implements Callback<Object, Exception> {
+      @Override
+      public Object call(final Exception e) throws Exception {
+        if (e instanceof HBaseException) {
+          // keep the permit so the backlog stays on disk during an outage
+          retried.incrementAndGet();
+          record.retry();
+          retries.add(record);
+          if (LOG.isDebugEnabled()) {
+            LOG.debug("Retrying spooled point in " + record.delay
+                + "ms for metric " + record.metric, e);
+          }
+        } else {
+          inflight.release();
+          dropped.incrementAndGet();
+          record.segment.outstanding.decrementAndGet();
+          LOG.error("Dropping spooled point for metric " + record.metric
+              + " at " + record.timestamp, e);
+        }
+        return null;
+      }
+      @Override
+      public String toString() {
+        return "Spool store errback";
+      }
+    }
+
+    last_replayed_time = record.append_time;
+    Deferred<Object> result;
+    try {
+      result = tsdb.storeSpooled(record.metric, record.timestamp, record.value,
+          record.tags, record.flags, record.type == TYPE_HISTOGRAM);
+    } catch (RuntimeException e) {
+      result = Deferred.fromError(e);
+    }
+    result.addCallbacks(new StoreCB(), new ErrCB());
+  }
+
+  /**
+   * Collects the spool stats.
+   * @param collector The collector to use.
+   */
+  void collectStats(final StatsCollector collector) {
+    final long lag = appended.get() + recovered.get()
+        - replayed.get() - dropped.get();
+    collector.record("spool.appended", appended.get());
+    collector.record("spool.replayed", replayed.get());
+    collector.record("spool.retries", retried.get());
+    collector.record("spool.dropped", dropped.get());
+    collector.record("spool.rejected", rejected.get());
+    collector.record("spool.commits", commits.get());
+    collector.record("spool.lag.records", lag);
+    collector.record("spool.lag.ms", lag > 0 && last_replayed_time > 0 ?
+        System.currentTimeMillis() - last_replayed_time : 0);
+    collector.record("spool.inflight", max_inflight - inflight.availablePermits());
+    synchronized (this) {
+      collector.record("spool.segments", segments.size());
+    }
+  }
+
+  /** @return The number of segments on disk. */
+  @VisibleForTesting
+  synchronized int segmentCount() {
+    return segments.size();
+  }
+
+  /** @return The number of records appended since startup. */
+  @VisibleForTesting
+  long appended() {
+    return appended.get();
+  }
+
+  /** @return The number of records stored since startup. */
+  @VisibleForTesting
+  long replayed() {
+    return replayed.get();
+  }
+
+  /** @return The number of records waiting for a retry. */
+  @VisibleForTesting
+  int retryQueueSize() {
+    return retries.size();
+  }
+
+  /**
+   * Opens any existing segments, oldest first.
+   * @return The highest segment ID found, including invalid segments, or -1
+   * if there weren't any.
+   */
+  private long recover() throws IOException {
+    final String[] names = directory.list(new FilenameFilter() {
+      @Override
+      public boolean accept(final File dir, final String name) {
+        return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+      }
+    });
+    if (names == null) {
+      throw new IOException("Unable to list " + directory);
+    }
+    Arrays.sort(names);
+    long max_id = -1;
+    for (final String name : names) {
+      final long id;
+      try {
+        id = Long.parseLong(name.substring(PREFIX.length(),
+            name.length() - SUFFIX.length()), 16);
+      } catch (NumberFormatException e) {
+        LOG.warn("Skipping unknown file in the spool directory: " + name);
+        continue;
+      }
+      max_id = Math.max(max_id, id);
+      final Segment segment;
+      try {
+        segment = new Segment(id, new File(directory, name));
+      } catch (IOException e) {
+        LOG.warn("Skipping invalid spool segment " + name, e);
+        continue;
+      }
+      if (segment.isDone()) {
+        segment.delete();
+        continue;
+      }
+      segments.add(segment);
+      recovered.addAndGet(segment.records);
+      LOG.info("Recovered spool segment " + name + " with " + segment.records
+          + " records");
+    }
+    return max_id;
+  }
+
+  /** Serializes a record including the record header. */
+  static byte[] encode(final long append_time, final byte type,
+      final long timestamp, final short flags, final byte[] value,
+      final String metric, final Map<String, String> tags) {
+    final byte[] metric_bytes = metric.getBytes(Const.UTF8_CHARSET);
+    final byte[][] tag_bytes = new byte[tags.size() * 2][];
+    int size = RECORD_HEADER_SIZE + 8 + 1 + 8 + 2 + 4 + value.length
+        + 2 + metric_bytes.length + 2;
+    int i = 0;
+    for (final Map.Entry<String, String> tag : tags.entrySet()) {
+      tag_bytes[i] = tag.getKey().getBytes(Const.UTF8_CHARSET);
+      tag_bytes[i + 1] = tag.getValue().getBytes(Const.UTF8_CHARSET);
+      size += 4 + tag_bytes[i].length + tag_bytes[i + 1].length;
+      i += 2;
+    }
+    final byte[] record = new byte[size];
+    final ByteBuffer buf = ByteBuffer.wrap(record);
+    buf.position(RECORD_HEADER_SIZE);
+    buf.putLong(append_time);
+    buf.put(type);
+    buf.putLong(timestamp);
+    buf.putShort(flags);
+    buf.putInt(value.length);
+    buf.put(value);
+    buf.putShort((short) metric_bytes.length);
+    buf.put(metric_bytes);
+    buf.putShort((short) tags.size());
+    for (final byte[] tag : tag_bytes) {
+      buf.putShort((short) tag.length);
+      buf.put(tag);
+    }
+    final CRC32 crc = new CRC32();
+    crc.update(record, RECORD_HEADER_SIZE, size - RECORD_HEADER_SIZE);
+    buf.putInt(0, size - RECORD_HEADER_SIZE);
+    buf.putInt(4, (int) crc.getValue());
+    return record;
+  }
+
+  /**
+   * A single segment file. Appends happen under the spool lock, reads only
+   * from the replay thread. The volatile write position publishes the
+   * appended bytes to the reader.
+   */
+  final class Segment {
+    final long id;
+    final File file;
+    final RandomAccessFile raf;
+    final MappedByteBuffer buffer;
+    /** Read view for the replay thread. */
+    final ByteBuffer reader;
+    /** Records read but not stored yet. */
+    final AtomicInteger outstanding = new AtomicInteger();
+    /** End of the valid data. */
+    volatile int write_pos;
+    /** Set once we moved on to a new segment. */
+    volatile boolean sealed;
+    /** Next record to replay, only touched by the replay thread. */
+    int read_pos = HEADER_SIZE;
+    /** Number of records found when recovering. */
+    int records;
+
+    /** Creates a new segment. */
+    Segment(final long id) throws IOException {
+      this.id = id;
+      file = new File(directory, String.format("%s%016x%s", PREFIX, id, SUFFIX));
+      raf = new RandomAccessFile(file, "rw");
+      buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+          segment_size);
+      buffer.putInt(0, MAGIC);
+      buffer.putInt(4, VERSION);
+      write_pos = HEADER_SIZE;
+      reader = buffer.duplicate();
+    }
+
+    /** Opens an existing segment and finds the end of the valid records. */
+    Segment(final long id, final File file) throws IOException {
+      this.id = id;
+      this.file = file;
+      raf = new RandomAccessFile(file, "rw");
+      buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+          raf.length());
+      if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC
+          || buffer.getInt(4) != VERSION) {
+        raf.close();
+        throw new IOException("Invalid segment header in " + file);
+      }
+      reader = buffer.duplicate();
+      sealed = true;
+      int pos = HEADER_SIZE;
+      int next;
+      while ((next = validate(pos)) > 0) {
+        pos = next;
+        records++;
+      }
+      write_pos = pos;
+    }
+
+    /** @return The number of bytes left for appends. */
+    int remaining() {
+      return buffer.capacity() - write_pos;
+    }
+
+    /** Appends the record. The caller must check the remaining space. */
+    void write(final byte[] record) {
+      final ByteBuffer buf = buffer.duplicate();
+      buf.position(write_pos);
+      buf.put(record);
+      write_pos += record.length;
+    }
+
+    /** Forces the segment to disk. */
+    void force() {
+      buffer.force();
+    }
+
+    /** Forces the segment and marks it as complete. */
+    void seal() {
+      force();
+      sealed = true;
+    }
+
+    /** @return Whether or not there are unread records. */
+    boolean hasUnread() {
+      return read_pos < write_pos;
+    }
+
+    /** @return Whether the segment was sealed and all records stored. */
+    boolean isDone() {
+      return sealed && read_pos >= write_pos && outstanding.get() == 0;
+    }
+
+    /**
+     * Reads the next record, moving the read position forward.
+     * @return The record or null if the data was corrupted, in which case
+     * the rest of the segment is skipped.
+     */
+    Record read() {
+      final int next = validate(read_pos);
+      if (next < 0) {
+        LOG.error("Corrupted record in spool segment " + file + " at offset "
+            + read_pos + ", skipping the rest of the segment");
+        read_pos = write_pos;
+        return null;
+      }
+      reader.position(read_pos + RECORD_HEADER_SIZE);
+      final long append_time = reader.getLong();
+      final byte type = reader.get();
+      final long timestamp = reader.getLong();
+      final short flags = reader.getShort();
+      final byte[] value = new byte[reader.getInt()];
+      reader.get(value);
+      final String metric = readString();
+      final int num_tags = reader.getShort();
+      final Map<String, String> tags = new HashMap<String, String>(num_tags);
+      for (int i = 0; i < num_tags; i++) {
+        tags.put(readString(), readString());
+      }
+      read_pos = next;
+      outstanding.incrementAndGet();
+      return new Record(this, append_time, type, timestamp, flags, value,
+          metric, tags);
+    }
+
+    private String readString() {
+      final byte[] bytes = new byte[reader.getShort() & 0xFFFF];
+      reader.get(bytes);
+      return new String(bytes, Const.UTF8_CHARSET);
+    }
+
+    /**
+     * Checks the record at the given offset.
+     * @return The offset of the next record, 0 at the end of the data or -1
+     * if the record is corrupted.
+     */
+    private int validate(final int pos) {
+      if (pos + RECORD_HEADER_SIZE > buffer.capacity()) {
+        return 0;
+      }
+      final int length = buffer.getInt(pos);
+      if (length == 0) {
+        return 0;
+      }
+      if (length < 0 || pos + RECORD_HEADER_SIZE + length > buffer.capacity()) {
+        return -1;
+      }
+      final byte[] payload = new byte[length];
+      final ByteBuffer buf = buffer.duplicate();
+      buf.position(pos + RECORD_HEADER_SIZE);
+      buf.get(payload);
+      final CRC32 crc = new CRC32();
+      crc.update(payload);
+      if ((int) crc.getValue() != buffer.getInt(pos + 4)) {
+        return -1;
+      }
+      return pos + RECORD_HEADER_SIZE + length;
+    }
+
+    /** Closes and removes the file. */
+    void delete() {
+      try {
+        raf.close();
+      } catch (IOException e) {
+        LOG.warn("Failed to close spool segment " + file, e);
+      }
+      // the mapping is released when the buffer is collected
+      if (!file.delete()) {
+        LOG.warn("Failed to delete spool segment " + file);
+      }
+    }
+  }
+
+  /** A decoded record, retried through the delay queue on failure. */
+  static final class Record implements Delayed {
+    final Segment segment;
+    final long append_time;
+    final byte type;
+    final long timestamp;
+    final short flags;
+    final byte[] value;
+    final String metric;
+    final Map<String, String> tags;
+    /** Current retry delay. */
+    long delay;
+    /** When the record is due for a retry in nanoseconds. */
+    long retry_at;
+
+    Record(final Segment segment, final long append_time, final byte type,
+        final long timestamp, final short flags, final byte[] value,
+        final String metric, final Map<String, String> tags) {
+      this.segment = segment;
+      this.append_time = append_time;
+      this.type = type;
+      this.timestamp = timestamp;
+      this.flags = flags;
+      this.value = value;
+      this.metric = metric;
+      this.tags = tags;
+    }
+
+    /** Backs off before the next attempt. */
+    void retry() {
+      delay = delay == 0 ? MIN_RETRY_DELAY : Math.min(delay * 2, MAX_RETRY_DELAY);
+      retry_at = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+    }
+
+    @Override
+    public long getDelay(final TimeUnit unit) {
+      return unit.convert(retry_at - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public int compareTo(final Delayed other) {
+      final long diff = retry_at - ((Record) other).retry_at;
+      return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+    }
+  }
+
+  /** Periodically commits the pending records. */
+  final class CommitThread extends Thread {
+    CommitThread() {
+      super("SpoolCommitThread");
+      setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      while (running) {
+        try {
+          Thread.sleep(commit_interval);
+        } catch (InterruptedException e) {
+          if (!running) {
+            break;
+          }
+        }
+        try {
+          commit();
+        } catch (Exception e) {
+          LOG.error("Uncaught exception in spool commit thread", e);
+        }
+      }
+    }
+  }
+
+  /** Replays the spooled records into storage. */
+  final class ReplayThread extends Thread {
+    ReplayThread() {
+      super("SpoolReplayThread");
+      setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      while (running) {
+        try {
+          if (replay() == 0) {
+            Thread.sleep(IDLE_SLEEP);
+          }
+        } catch (InterruptedException e) {
+          if (!running) {
+            break;
+          }
+        } catch (Exception e) {
+          LOG.error("Uncaught exception in spool replay thread", e);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,437 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.meta;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.PutRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.core.Const;
+import net.opentsdb.core.TSDB;
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.utils.Config;
+
+/**
+ * A {@link MetaDataCache} that coalesces TSUID counter increments in memory
+ * and flushes them to the meta table periodically, one atomic increment per
+ * TSUID per flush instead of one per data point.
+ * <p>
+ * Counters live in a number of stripes selected by the TSUID hash, each with
+ * its own lock and an open-addressing table in a direct buffer so millions of
+ * counters don't add objects to the heap. Every
+ * {@code tsd.core.meta.cache.flush_interval} milliseconds the stripe tables
+ * are swapped with empty spares and the counts are sent through
+ * {@link TSMeta#incrementAndGetCounter(TSDB, byte[], long)}, which creates
+ * the TSMeta when the counter didn't exist yet. A stripe filling up before
+ * the interval is flushed by the writer that found it full. If its spare is
+ * still being flushed, the increment goes straight to HBase.
+ * <p>
+ * When counters are not incremented in real time, each stripe keeps a Bloom
+ * filter of the TSUIDs it has seen so the TSMeta check (or the tracking put)
+ * is only issued the first time a TSUID shows up. A false positive means
+ * a new TSUID is not tracked until the TSD restarts or the meta sync CLI
+ * runs.
+ * <p>
+ * Enable with {@code tsd.core.meta.cache.enable} and set
+ * {@code tsd.core.meta.cache.plugin} to this class.
+ * @since 2.4
+ */
+public class CoalescingMetaDataCache extends MetaDataCache {
+  private static final Logger LOG =
+      LoggerFactory.getLogger(CoalescingMetaDataCache.class);
+
+  /** Offsets within a slot, followed by the TSUID. */
+  private static final int HASH_OFFSET = 0;
+  private static final int LENGTH_OFFSET = 4;
+  private static final int COUNT_OFFSET = 6;
+  private static final int KEY_OFFSET = 14;
+
+  /** Stripes fill up to 3/4 of their slots before we flush them early. */
+  private static final int LOAD_FACTOR_SHIFT = 2;
+
+  private TSDB tsdb;
+
+  /** Whether we coalesce increments or only track TSUIDs. */
+  private boolean incrementing;
+
+  private Stripe[] stripes;
+  private int stripe_mask;
+
+  /** Number of slots per stripe table, a power of 2. */
+  private int slots;
+  /** Bytes per slot. */
+  private int slot_size;
+  /** Longest TSUID we can store. */
+  private int max_tsuid;
+
+  /** How often to flush in milliseconds. */
+  private long flush_interval;
+
+  private volatile boolean running;
+  private Thread flusher;
+
+  private final AtomicLong increments = new AtomicLong();
+  private final AtomicLong flushed_rpcs = new AtomicLong();
+  private final AtomicLong overflows = new AtomicLong();
+  private final AtomicLong early_flushes = new AtomicLong();
+  private final AtomicLong first_seen = new AtomicLong();
+  private final AtomicLong flush_errors = new AtomicLong();
+
+  @Override
+  public void initialize(final TSDB tsdb) {
+    this.tsdb = tsdb;
+    final Config config = tsdb.getConfig();
+    incrementing = config.enable_realtime_ts()
+        && config.enable_tsuid_incrementing();
+
+    final int num_stripes = config.getInt("tsd.core.meta.cache.stripes");
+    if (num_stripes < 1 || Integer.bitCount(num_stripes) != 1) {
+      throw new IllegalArgumentException("The meta cache stripes must be a "
+          + "power of 2: " + num_stripes);
+    }
+    slots = config.getInt("tsd.core.meta.cache.stripe_size");
+    if (slots < 16 || Integer.bitCount(slots) != 1) {
+      throw new IllegalArgumentException("The meta cache stripe size must be "
+          + "a power of 2 of at least 16: " + slots);
+    }
+    flush_interval = config.getLong("tsd.core.meta.cache.flush_interval");
+    if (flush_interval < 1) {
+      throw new IllegalArgumentException("The meta cache flush interval must "
+          + "be at least 1 ms: " + flush_interval);
+    }
+    final long expected = config.getLong("tsd.core.meta.cache.bloom.expected");
+    final double fpp = config.getDouble("tsd.core.meta.cache.bloom.fpp");
+    if (!incrementing && (expected < 1 || fpp <= 0 || fpp >= 1)) {
+      throw new IllegalArgumentException("Invalid meta cache Bloom filter "
+          + "settings, expected=" + expected + " fpp=" + fpp);
+    }
+
+    max_tsuid = TSDB.metrics_width() + Const.MAX_NUM_TAGS()
+        * (TSDB.tagk_width() + TSDB.tagv_width());
+    slot_size = KEY_OFFSET + max_tsuid;
+    if ((long) slots * slot_size > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("The meta cache stripe size is too "
+          + "large: " + slots);
+    }
+    stripe_mask = num_stripes - 1;
+    stripes = new Stripe[num_stripes];
+    for (int i = 0; i < num_stripes; i++) {
+      stripes[i] = new Stripe(incrementing ? null :
+          BloomFilter.create(Funnels.byteArrayFunnel(),
+              Math.max(1, (int) Math.min(Integer.MAX_VALUE,
+                  expected / num_stripes)), fpp));
+    }
+
+    if (incrementing) {
+      running = true;
+      flusher = new FlushThread();
+      flusher.start();
+    }
+    LOG.info("Initialized the meta cache with " + num_stripes + " stripes of "
+        + slots + " slots, " + (incrementing ? "coalescing increments"
+            : "tracking new TSUIDs"));
+  }
+
+  @Override
+  public Deferred<Object> shutdown() {
+    running = false;
+    if (flusher != null) {
+      flusher.interrupt();
+      try {
+        // let a flush in progress hand the spare back
+        flusher.join(flush_interval);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    if (!incrementing || stripes == null) {
+      return Deferred.fromResult(null);
+    }
+    final ArrayList<Deferred<Long>> deferreds = new ArrayList<Deferred<Long>>();
+    for (final Stripe stripe : stripes) {
+      stripe.flush(deferreds);
+    }
+
+    /** Ignores the counter values */
+    final class GroupCB implements Callback<Object, ArrayList<Long>> {
+      @Override
+      public Object call(final ArrayList<Long> ignored) {
+        return null;
+      }
+      @Override
+      public String toString() {
+        return "Meta cache shutdown flush";
+      }
+    }
+    return Deferred.group(deferreds).addCallback(new GroupCB());
+  }
+
+  @Override
+  public String version() {
+    return "2.4.0";
+  }
+
+  @Override
+  public void collectStats(final StatsCollector collector) {
+    collector.record("meta.cache.increments", increments.get());
+    collector.record("meta.cache.flushed", flushed_rpcs.get());
+    collector.record("meta.cache.flush_errors", flush_errors.get());
+    collector.record("meta.cache.early_flushes", early_flushes.get());
+    collector.record("meta.cache.overflows", overflows.get());
+    collector.record("meta.cache.first_seen", first_seen.get());
+  }
+
+  @Override
+  public void increment(final byte[] tsuid) {
+    if (!tsdb.getConfig().enable_tsuid_tracking()) {
+      return;
+    }
+    increments.incrementAndGet();
+    final int hash = hash(tsuid);
+    final Stripe stripe = stripes[(hash >>> 16) & stripe_mask];
+
+    if (!incrementing) {
+      final boolean first;
+      synchronized (stripe) {
+        first = !stripe.known.mightContain(tsuid);
+        if (first) {
+          stripe.known.put(tsuid);
+        }
+      }
+      if (first) {
+        first_seen.incrementAndGet();
+        track(tsuid);
+      }
+      return;
+    }
+
+    if (tsuid.length > max_tsuid) {
+      overflows.incrementAndGet();
+      flush(tsuid, 1);
+      return;
+    }
+    if (stripe.add(tsuid, hash)) {
+      return;
+    }
+    // full, flush it here and try again with the empty table
+    if (stripe.flush(null)) {
+      early_flushes.incrementAndGet();
+      if (stripe.add(tsuid, hash)) {
+        return;
+      }
+    }
+    overflows.incrementAndGet();
+    flush(tsuid, 1);
+  }
+
+  /** Flushes all of the stripes. */
+  @VisibleForTesting
+  void flush() {
+    for (final Stripe stripe : stripes) {
+      stripe.flush(null);
+    }
+  }
+
+  /** Creates the TSMeta or the tracking column for a new TSUID. */
+  private void track(final byte[] tsuid) {
+    if (tsdb.getConfig().enable_realtime_ts()) {
+      TSMeta.storeIfNecessary(tsdb, tsuid).addErrback(new ErrCB(tsuid));
+    } else {
+      final PutRequest tracking = new PutRequest(tsdb.metaTable(), tsuid,
+          TSMeta.FAMILY(), TSMeta.COUNTER_QUALIFIER(), Bytes.fromLong(1));
+      tsdb.getClient().put(tracking).addErrback(new ErrCB(tsuid));
+    }
+  }
+
+  /** Sends the increment for a TSUID. */
+  private Deferred<Long> flush(final byte[] tsuid, final long amount) {
+    flushed_rpcs.incrementAndGet();
+    final Deferred<Long> deferred =
+        TSMeta.incrementAndGetCounter(tsdb, tsuid, amount);
+    deferred.addErrback(new ErrCB(tsuid));
+    return deferred;
+  }
+
+  /** Logs and counts failures, the increments are lost. */
+  private final class ErrCB implements Callback<Object, Exception> {
+    private final byte[] tsuid;
+    ErrCB(final byte[] tsuid) {
+      this.tsuid = tsuid;
+    }
+    @Override
+    public Object call(final Exception e) {
+      flush_errors.incrementAndGet();
+      LOG.error("Failed to update the meta data for TSUID "
+          + Arrays.toString(tsuid), e);
+      return e;
+    }
+  }
+
+  /** Scrambles the TSUID hash, the finalizer from MurmurHash3. */
+  private static int hash(final byte[] tsuid) {
+    int h = Arrays.hashCode(tsuid);
+    h ^= h >>> 16;
+    h *= 0x85EBCA6B;
+    h ^= h >>> 13;
+    h *= 0xC2B2AE35;
+    h ^= h >>> 16;
+    return h;
+  }
+
+  /**
+   * A lock guarded counter table with a spare to swap in on flush. Slots are
+   * {@code [int hash][short length][long count][tsuid]}, a zero length marks
+   * an empty slot. Lookups use linear probing.
+   */
+  final class Stripe {
+    /** Known TSUIDs when not incrementing, null otherwise. */
+    final BloomFilter<byte[]> known;
+    /** The table taking increments. */
+    ByteBuffer active;
+    /** The empty table to swap in, null while it's being flushed. */
+    ByteBuffer spare;
+    /** Number of used slots in the active table. */
+    int size;
+
+    Stripe(final BloomFilter<byte[]> known) {
+      this.known = known;
+      if (known == null) {
+        active = ByteBuffer.allocateDirect(slots * slot_size);
+        spare = ByteBuffer.allocateDirect(slots * slot_size);
+      }
+    }
+
+    /**
+     * Increments the counter for the TSUID.
+     * @return False if the table is full.
+     */
+    synchronized boolean add(final byte[] tsuid, final int hash) {
+      int slot = hash & (slots - 1);
+      while (true) {
+        final int offset = slot * slot_size;
+        final int length = active.getShort(offset + LENGTH_OFFSET);
+        if (length == 0) {
+          if (size >= slots - (slots >> LOAD_FACTOR_SHIFT)) {
+            return false;
+          }
+          active.putInt(offset + HASH_OFFSET, hash);
+          active.putShort(offset + LENGTH_OFFSET, (short) tsuid.length);
+          active.putLong(offset + COUNT_OFFSET, 1);
+          for (int i = 0; i < tsuid.length; i++) {
+            active.put(offset + KEY_OFFSET + i, tsuid[i]);
+          }
+          size++;
+          return true;
+        }
+        if (length == tsuid.length
+            && active.getInt(offset + HASH_OFFSET) == hash
+            && matches(offset, tsuid)) {
+          active.putLong(offset + COUNT_OFFSET,
+              active.getLong(offset + COUNT_OFFSET) + 1);
+          return true;
+        }
+        slot = (slot + 1) & (slots - 1);
+      }
+    }
+
+    /**
+     * Swaps the tables and sends the counts of the old one, clearing it and
+     * making it the spare again.
+     * @param deferreds An optional list to add the increments to.
+     * @return False if the spare was still being flushed.
+     */
+    boolean flush(final ArrayList<Deferred<Long>> deferreds) {
+      final ByteBuffer table;
+      synchronized (this) {
+        if (spare == null) {
+          return false;
+        }
+        if (size == 0) {
+          return true;
+        }
+        table = active;
+        active = spare;
+        spare = null;
+        size = 0;
+      }
+      for (int slot = 0; slot < slots; slot++) {
+        final int offset = slot * slot_size;
+        final int length = table.getShort(offset + LENGTH_OFFSET);
+        if (length == 0) {
+          continue;
+        }
+        final byte[] tsuid = new byte[length];
+        for (int i = 0; i < length; i++) {
+          tsuid[i] = table.get(offset + KEY_OFFSET + i);
+        }
+        final Deferred<Long> deferred =
+            CoalescingMetaDataCache.this.flush(tsuid,
+                table.getLong(offset + COUNT_OFFSET));
+        if (deferreds != null) {
+          deferreds.add(deferred);
+        }
+        table.putShort(offset + LENGTH_OFFSET, (short) 0);
+      }
+      synchronized (this) {
+        spare = table;
+      }
+      return true;
+    }
+
+    /** @return Whether the TSUID at the slot offset matches. */
+    private boolean matches(final int offset, final byte[] tsuid) {
+      for (int i = 0; i < tsuid.length; i++) {
+        if (active.get(offset + KEY_OFFSET + i) != tsuid[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /** Periodically flushes the stripes. */
+  final class FlushThread extends Thread {
+    FlushThread() {
+      super("MetaCacheFlushThread");
+      setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      while (running) {
+        try {
+          Thread.sleep(flush_interval);
+        } catch (InterruptedException e) {
+          break;
+        }
+        try {
+          flush();
+        } catch (Exception e) {
+          LOG.error("Uncaught exception in meta cache flush thread", e);
+        }
+      }
+    }
+  }
+}
@@ -510,6 +510,25 @@ public class TSMeta {
    */
   public static Deferred<Long> incrementAndGetCounter(final TSDB tsdb, 
       final byte[] tsuid) {
+    return incrementAndGetCounter(tsdb, tsuid, 1);
+  }
+  
+  /**
+   * Increments the tsuid datapoint counter by the given amount or creates a 
+   * new counter. Also creates a new meta data entry if the counter did not 
+   * exist, i.e. the incremented value equals the amount. Used to flush 
+   * increments coalesced by a {@link MetaDataCache}.
+   * @param tsdb The TSDB to use for storage access
+   * @param tsuid The TSUID to increment or create
+   * @param amount The amount to increment by, must be greater than 0
+   * @return 0 if the put failed, a positive LONG if the put was successful
+   * @throws HBaseException if there was a storage issue
+   * @throws JSONException if the data was corrupted
+   * @throws NoSuchUniqueName if one of the UIDMeta objects does not exist
+   * @since 2.4
+   */
+  public static Deferred<Long> incrementAndGetCounter(final TSDB tsdb, 
+      final byte[] tsuid, final long amount) {
     
     /**
      * Callback that will create a new TSMeta if the increment result is 1 or
@@ -527,7 +546,7 @@ public class TSMeta {
       public Deferred<Long> call(final Long incremented_value) 
         throws Exception {
         LOG.debug("Value: " + incremented_value);
-        if (incremented_value > 1) {
+        if (incremented_value > amount) {
           // TODO - maybe update the search index every X number of increments?
           // Otherwise the search engine would only get last_updated/count 
           // whenever the user runs the full sync CLI
@@ -603,7 +622,7 @@ public class TSMeta {
 
     // setup the increment request and execute
     final AtomicIncrementRequest inc = new AtomicIncrementRequest(
-        tsdb.metaTable(), tsuid, FAMILY, COUNTER_QUALIFIER);
+        tsdb.metaTable(), tsuid, FAMILY, COUNTER_QUALIFIER, amount);
     // if the user has disabled real time TSMeta tracking (due to OOM issues)
     // then we only want to increment the data point count.
     if (!tsdb.getConfig().enable_realtime_ts()) {
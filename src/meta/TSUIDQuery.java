@@ -22,6 +22,7 @@ import java.util.Map;
 
 import net.opentsdb.core.IncomingDataPoint;
 import net.opentsdb.core.Internal;
+import net.opentsdb.core.LastPointCache;
 import net.opentsdb.core.RowKey;
 import net.opentsdb.core.TSDB;
 import net.opentsdb.core.Tags;
@@ -152,6 +153,9 @@ public class TSUIDQuery {
    * However if backscan is set, then we'll start with the current time and 
    * iterate back "back_scan" number of hours until we find a value.
    * <p>
+   * If the TSD has a {@link LastPointCache} then a point cached within the
+   * same range is returned without going to storage.
+   * <p>
    * @param resolve_names Whether or not to resolve the UIDs back to their
    * names when we find a value.
    * @param back_scan The number of hours back in time to scan
@@ -181,6 +185,28 @@ public class TSUIDQuery {
         } else if (incoming_tsuid != null) {
           setTSUID(incoming_tsuid);
         }
+
+        // answer from memory if this TSD wrote a point storage would return
+        final LastPointCache cache = tsdb.getLastPointCache();
+        if (cache != null) {
+          final long min_timestamp;
+          if (back_scan < 1 && meta_enabled) {
+            min_timestamp = 0;
+          } else {
+            min_timestamp = (Internal.baseTime(last_timestamp > 0 ?
+                last_timestamp : DateTime.currentTimeMillis()) -
+                (back_scan * 3600L)) * 1000;
+          }
+          final IncomingDataPoint dp = cache.get(tsuid, min_timestamp);
+          if (dp != null) {
+            dp.setTSUID(UniqueId.uidToString(tsuid));
+            if (!resolve_names) {
+              return Deferred.fromResult(dp);
+            }
+            return resolveNames(dp);
+          }
+        }
+
         if (back_scan < 1 && meta_enabled) {
           final GetRequest get = new GetRequest(tsdb.metaTable(), tsuid);
           get.family(TSMeta.FAMILY());
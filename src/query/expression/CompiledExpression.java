@@ -0,0 +1,697 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.query.expression;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * An expression compiled into a tree of operators on primitive doubles so
+ * that the {@link ExpressionIterator} doesn't have to box every value, bind it
+ * in a map and interpret a JEXL script for every series at every timestamp.
+ * Whole columns, i.e. the value of each variable for every series at one
+ * timestamp, are evaluated one operator at a time in tight loops.
+ * <p>
+ * Only the part of the JEXL syntax that works on numbers is supported:
+ * variables, integer and decimal literals, parentheses, the arithmetic
+ * operators {@code + - * / %}, the comparisons {@code < <= > >= == !=}, the
+ * logical {@code && || !} and the ternary {@code ? :}. The results match what
+ * JEXL's lenient arithmetic returns for the same expression, e.g. dividing by
+ * zero yields zero and a comparison yields 1 or 0. For anything else, like
+ * functions, keywords or operations JEXL would perform on integers,
+ * {@link #compile} returns null and the caller should keep using JEXL.
+ * <p>
+ * Booleans are carried as 1 or 0 in the doubles. Instances hold scratch
+ * buffers and are NOT thread safe, use {@link #copy} for each iterator.
+ * @since 2.4
+ */
+final class CompiledExpression {
+
+  /** The type an operator yields, used to reject what JEXL would treat
+   * differently than doubles */
+  private enum Type {
+    INTEGER,
+    DOUBLE,
+    BOOLEAN
+  }
+
+  /** The expression we compiled */
+  private final String source;
+
+  /** The variables in the order of the columns or values passed in */
+  private final String[] variables;
+
+  /** The root operator */
+  private final Node root;
+
+  /**
+   * Private ctor, use {@link #compile}.
+   * @param source The expression
+   * @param variables The variables in order of appearance
+   * @param root The root operator
+   */
+  private CompiledExpression(final String source, final String[] variables,
+      final Node root) {
+    this.source = source;
+    this.variables = variables;
+    this.root = root;
+  }
+
+  /**
+   * Compiles the expression if it only uses supported syntax.
+   * @param expression The expression to compile
+   * @return The compiled expression or null if the expression uses syntax
+   * we don't support, in which case JEXL should be used.
+   */
+  static CompiledExpression compile(final String expression) {
+    if (expression == null) {
+      return null;
+    }
+    final Parser parser = new Parser(expression);
+    try {
+      final Node root = parser.parse();
+      if (root.type == Type.INTEGER) {
+        // JEXL would hand back an Integer that the iterator rejects
+        return null;
+      }
+      return new CompiledExpression(expression,
+          parser.variables.toArray(new String[parser.variables.size()]), root);
+    } catch (UnsupportedOperationException e) {
+      return null;
+    }
+  }
+
+  /** @return A fresh instance with its own scratch buffers */
+  CompiledExpression copy() {
+    return compile(source);
+  }
+
+  /** @return The variables in the order the values have to be passed in */
+  String[] variables() {
+    return variables;
+  }
+
+  /**
+   * Evaluates the expression for a single series.
+   * @param values The value of each variable in the order of
+   * {@link #variables()}
+   * @return The result, with booleans as 1 or 0
+   */
+  double evaluate(final double[] values) {
+    return root.evaluate(values);
+  }
+
+  /**
+   * Evaluates the expression for a slice of series at once.
+   * @param columns The values of each variable, in the order of
+   * {@link #variables()}, for each series.
+   * @param count How many series to evaluate.
+   * @param results Where to write the result for each series, with booleans
+   * as 1 or 0.
+   */
+  void evaluate(final double[][] columns, final int count,
+      final double[] results) {
+    System.arraycopy(root.evaluate(columns, count), 0, results, 0, count);
+  }
+
+  @Override
+  public String toString() {
+    return source;
+  }
+
+  /** @return Whether JEXL would treat the value as true */
+  private static boolean isTrue(final double value) {
+    return value != 0 && !Double.isNaN(value);
+  }
+
+  /**
+   * JEXL compares two Doubles with {@link Double#equals} and anything else
+   * numerically.
+   */
+  private static boolean equal(final double left, final double right,
+      final boolean boxed) {
+    return boxed ? Double.doubleToLongBits(left) == Double.doubleToLongBits(right)
+        : left == right;
+  }
+
+  /** An operator in the tree */
+  private abstract static class Node {
+    final Type type;
+
+    /** Scratch column, sized on first use */
+    private double[] column;
+
+    Node(final Type type) {
+      this.type = type;
+    }
+
+    /** @return The scratch column for at least count series */
+    double[] column(final int count) {
+      if (column == null || column.length < count) {
+        column = new double[count];
+      }
+      return column;
+    }
+
+    /** @return The result for a single series */
+    abstract double evaluate(double[] values);
+
+    /** @return The results for count series, may be an input column */
+    abstract double[] evaluate(double[][] columns, int count);
+  }
+
+  /** A literal */
+  private static final class Constant extends Node {
+    private final double value;
+    /** The scratch column we last filled with the value */
+    private double[] filled;
+
+    Constant(final Type type, final double value) {
+      super(type);
+      this.value = value;
+    }
+
+    @Override
+    double evaluate(final double[] values) {
+      return value;
+    }
+
+    @Override
+    double[] evaluate(final double[][] columns, final int count) {
+      final double[] column = column(count);
+      if (column != filled) {
+        Arrays.fill(column, value);
+        filled = column;
+      }
+      return column;
+    }
+  }
+
+  /** A variable, always a double as the iterator binds Doubles */
+  private static final class Variable extends Node {
+    private final int index;
+
+    Variable(final int index) {
+      super(Type.DOUBLE);
+      this.index = index;
+    }
+
+    @Override
+    double evaluate(final double[] values) {
+      return values[index];
+    }
+
+    @Override
+    double[] evaluate(final double[][] columns, final int count) {
+      return columns[index];
+    }
+  }
+
+  /** Unary minus and not */
+  private static final class Unary extends Node {
+    private final char op;
+    private final Node child;
+
+    Unary(final Type type, final char op, final Node child) {
+      super(type);
+      this.op = op;
+      this.child = child;
+    }
+
+    @Override
+    double evaluate(final double[] values) {
+      final double value = child.evaluate(values);
+      return op == '-' ? -value : (isTrue(value) ? 0 : 1);
+    }
+
+    @Override
+    double[] evaluate(final double[][] columns, final int count) {
+      final double[] in = child.evaluate(columns, count);
+      final double[] out = column(count);
+      if (op == '-') {
+        for (int i = 0; i < count; i++) {
+          out[i] = -in[i];
+        }
+      } else {
+        for (int i = 0; i < count; i++) {
+          out[i] = isTrue(in[i]) ? 0 : 1;
+        }
+      }
+      return out;
+    }
+  }
+
+  /** Binary operators */
+  private static final class Binary extends Node {
+    static final int ADD = 0;
+    static final int SUBTRACT = 1;
+    static final int MULTIPLY = 2;
+    static final int DIVIDE = 3;
+    static final int MODULO = 4;
+    static final int LESS = 5;
+    static final int LESS_EQUAL = 6;
+    static final int GREATER = 7;
+    static final int GREATER_EQUAL = 8;
+    static final int EQUAL = 9;
+    static final int NOT_EQUAL = 10;
+    static final int AND = 11;
+    static final int OR = 12;
+
+    private final int op;
+    private final Node left;
+    private final Node right;
+    /** Whether both sides would be Doubles in JEXL */
+    private final boolean boxed;
+
+    Binary(final Type type, final int op, final Node left, final Node right) {
+      super(type);
+      this.op = op;
+      this.left = left;
+      this.right = right;
+      boxed = left.type == Type.DOUBLE && right.type == Type.DOUBLE;
+    }
+
+    @Override
+    double evaluate(final double[] values) {
+      return apply(left.evaluate(values), right.evaluate(values));
+    }
+
+    private double apply(final double l, final double r) {
+      switch (op) {
+      case ADD:
+        return l + r;
+      case SUBTRACT:
+        return l - r;
+      case MULTIPLY:
+        return l * r;
+      case DIVIDE:
+        return r == 0 ? 0 : l / r;
+      case MODULO:
+        return r == 0 ? 0 : l % r;
+      case LESS:
+        return l < r ? 1 : 0;
+      case LESS_EQUAL:
+        return equal(l, r, boxed) || l < r ? 1 : 0;
+      case GREATER:
+        return l > r ? 1 : 0;
+      case GREATER_EQUAL:
+        return equal(l, r, boxed) || l > r ? 1 : 0;
+      case EQUAL:
+        return equal(l, r, boxed) ? 1 : 0;
+      case NOT_EQUAL:
+        return equal(l, r, boxed) ? 0 : 1;
+      case AND:
+        return isTrue(l) && isTrue(r) ? 1 : 0;
+      case OR:
+        return isTrue(l) || isTrue(r) ? 1 : 0;
+      default:
+        throw new IllegalStateException("Unknown operator " + op);
+      }
+    }
+
+    @Override
+    double[] evaluate(final double[][] columns, final int count) {
+      final double[] l = left.evaluate(columns, count);
+      final double[] r = right.evaluate(columns, count);
+      final double[] out = column(count);
+      // the common operators get their own loop, the rest go through apply()
+      switch (op) {
+      case ADD:
+        for (int i = 0; i < count; i++) {
+          out[i] = l[i] + r[i];
+        }
+        break;
+      case SUBTRACT:
+        for (int i = 0; i < count; i++) {
+          out[i] = l[i] - r[i];
+        }
+        break;
+      case MULTIPLY:
+        for (int i = 0; i < count; i++) {
+          out[i] = l[i] * r[i];
+        }
+        break;
+      case DIVIDE:
+        for (int i = 0; i < count; i++) {
+          out[i] = r[i] == 0 ? 0 : l[i] / r[i];
+        }
+        break;
+      default:
+        for (int i = 0; i < count; i++) {
+          out[i] = apply(l[i], r[i]);
+        }
+      }
+      return out;
+    }
+  }
+
+  /** The ternary operator */
+  private static final class Conditional extends Node {
+    private final Node condition;
+    private final Node then;
+    private final Node otherwise;
+
+    Conditional(final Node condition, final Node then, final Node otherwise) {
+      super(then.type);
+      this.condition = condition;
+      this.then = then;
+      this.otherwise = otherwise;
+    }
+
+    @Override
+    double evaluate(final double[] values) {
+      return isTrue(condition.evaluate(values)) ?
+          then.evaluate(values) : otherwise.evaluate(values);
+    }
+
+    @Override
+    double[] evaluate(final double[][] columns, final int count) {
+      final double[] c = condition.evaluate(columns, count);
+      final double[] t = then.evaluate(columns, count);
+      final double[] o = otherwise.evaluate(columns, count);
+      final double[] out = column(count);
+      for (int i = 0; i < count; i++) {
+        out[i] = isTrue(c[i]) ? t[i] : o[i];
+      }
+      return out;
+    }
+  }
+
+  /**
+   * Recursive descent parser following JEXL's precedence. Throws
+   * {@link UnsupportedOperationException} for anything we can't compile.
+   */
+  private static final class Parser {
+    /** JEXL keywords that can't be variables */
+    private static final Set<String> KEYWORDS = new HashSet<String>(
+        Arrays.asList("and", "or", "not", "eq", "ne", "lt", "le", "gt", "ge",
+            "div", "mod", "true", "false", "null", "empty", "size", "new",
+            "if", "else", "for", "foreach", "while", "var", "return", "function",
+            "in"));
+
+    private final String text;
+    private int pos;
+    final List<String> variables = new ArrayList<String>();
+
+    Parser(final String text) {
+      this.text = text;
+    }
+
+    Node parse() {
+      final Node node = ternary();
+      skipWhitespace();
+      if (pos != text.length()) {
+        throw unsupported();
+      }
+      return node;
+    }
+
+    private Node ternary() {
+      final Node condition = or();
+      if (!accept("?")) {
+        return condition;
+      }
+      final Node then = ternary();
+      if (!accept(":")) {
+        throw unsupported();
+      }
+      final Node otherwise = ternary();
+      if (then.type != otherwise.type || then.type == Type.INTEGER) {
+        throw unsupported();
+      }
+      return new Conditional(condition, then, otherwise);
+    }
+
+    private Node or() {
+      Node node = and();
+      while (accept("||")) {
+        node = new Binary(Type.BOOLEAN, Binary.OR, node, and());
+      }
+      return node;
+    }
+
+    private Node and() {
+      Node node = equality();
+      while (accept("&&")) {
+        node = new Binary(Type.BOOLEAN, Binary.AND, node, equality());
+      }
+      return node;
+    }
+
+    private Node equality() {
+      Node node = relational();
+      while (true) {
+        final int op;
+        if (accept("==")) {
+          op = Binary.EQUAL;
+        } else if (accept("!=")) {
+          op = Binary.NOT_EQUAL;
+        } else {
+          return node;
+        }
+        final Node right = relational();
+        if (node.type == Type.BOOLEAN ^ right.type == Type.BOOLEAN) {
+          throw unsupported();
+        }
+        node = new Binary(Type.BOOLEAN, op, node, right);
+      }
+    }
+
+    private Node relational() {
+      Node node = additive();
+      while (true) {
+        final int op;
+        if (accept("<=")) {
+          op = Binary.LESS_EQUAL;
+        } else if (accept(">=")) {
+          op = Binary.GREATER_EQUAL;
+        } else if (accept("<")) {
+          op = Binary.LESS;
+        } else if (accept(">")) {
+          op = Binary.GREATER;
+        } else {
+          return node;
+        }
+        node = new Binary(Type.BOOLEAN, op, numeric(node), numeric(additive()));
+      }
+    }
+
+    private Node additive() {
+      Node node = multiplicative();
+      while (true) {
+        final int op;
+        if (accept("+")) {
+          op = Binary.ADD;
+        } else if (accept("-")) {
+          op = Binary.SUBTRACT;
+        } else {
+          return node;
+        }
+        node = arithmetic(op, node, multiplicative());
+      }
+    }
+
+    private Node multiplicative() {
+      Node node = unary();
+      while (true) {
+        final int op;
+        if (accept("*")) {
+          op = Binary.MULTIPLY;
+        } else if (accept("/")) {
+          op = Binary.DIVIDE;
+        } else if (accept("%")) {
+          op = Binary.MODULO;
+        } else {
+          return node;
+        }
+        node = arithmetic(op, node, unary());
+      }
+    }
+
+    private Node unary() {
+      if (accept("-")) {
+        final Node child = numeric(unary());
+        return new Unary(child.type, '-', child);
+      }
+      if (peek('!') && !peek("!=") && !peek("!~")) {
+        pos++;
+        return new Unary(Type.BOOLEAN, '!', unary());
+      }
+      return primary();
+    }
+
+    private Node primary() {
+      skipWhitespace();
+      if (pos >= text.length()) {
+        throw unsupported();
+      }
+      final char c = text.charAt(pos);
+      if (c == '(') {
+        pos++;
+        final Node node = ternary();
+        if (!accept(")")) {
+          throw unsupported();
+        }
+        return node;
+      }
+      if (c >= '0' && c <= '9') {
+        return number();
+      }
+      if (isIdentifierStart(c)) {
+        final int start = pos;
+        while (pos < text.length() && isIdentifierPart(text.charAt(pos))) {
+          pos++;
+        }
+        final String name = text.substring(start, pos);
+        skipWhitespace();
+        // keywords, functions, methods and properties are left to JEXL
+        if (KEYWORDS.contains(name) || (pos < text.length()
+            && (text.charAt(pos) == '(' || text.charAt(pos) == '.'
+            || text.charAt(pos) == '['))) {
+          throw unsupported();
+        }
+        int index = variables.indexOf(name);
+        if (index < 0) {
+          index = variables.size();
+          variables.add(name);
+        }
+        return new Variable(index);
+      }
+      throw unsupported();
+    }
+
+    /**
+     * Parses a literal the way JEXL does: integers without a leading zero
+     * and decimals, which JEXL reads as Floats unless suffixed with a 'd'.
+     */
+    private Node number() {
+      final int start = pos;
+      while (pos < text.length() && Character.isDigit(text.charAt(pos))) {
+        pos++;
+      }
+      boolean decimal = false;
+      if (pos + 1 < text.length() && text.charAt(pos) == '.'
+          && Character.isDigit(text.charAt(pos + 1))) {
+        decimal = true;
+        pos++;
+        while (pos < text.length() && Character.isDigit(text.charAt(pos))) {
+          pos++;
+        }
+      }
+      final String literal = text.substring(start, pos);
+      if (pos < text.length()) {
+        final char suffix = text.charAt(pos);
+        if (decimal && (suffix == 'd' || suffix == 'D')) {
+          pos++;
+          return new Constant(Type.DOUBLE, Double.parseDouble(literal));
+        } else if (decimal && (suffix == 'f' || suffix == 'F')) {
+          pos++;
+          return new Constant(Type.DOUBLE, Float.parseFloat(literal));
+        } else if (isIdentifierPart(suffix) || suffix == '.') {
+          // octal, hex, longs, big numbers, exponents...
+          throw unsupported();
+        }
+      }
+      if (decimal) {
+        return new Constant(Type.DOUBLE, Float.parseFloat(literal));
+      }
+      if (literal.length() > 1 && literal.charAt(0) == '0') {
+        throw unsupported();  // octal in JEXL
+      }
+      try {
+        return new Constant(Type.INTEGER, Long.parseLong(literal));
+      } catch (NumberFormatException e) {
+        throw unsupported();
+      }
+    }
+
+    /** @return An arithmetic operator on at least one double */
+    private Node arithmetic(final int op, final Node left, final Node right) {
+      numeric(left);
+      numeric(right);
+      if (left.type == Type.INTEGER && right.type == Type.INTEGER) {
+        // JEXL uses integer math here
+        throw unsupported();
+      }
+      return new Binary(Type.DOUBLE, op, left, right);
+    }
+
+    /** @return The node if it's a number, as JEXL coerces booleans */
+    private Node numeric(final Node node) {
+      if (node.type == Type.BOOLEAN) {
+        throw unsupported();
+      }
+      return node;
+    }
+
+    /** Consumes the token if it's next, skipping whitespace */
+    private boolean accept(final String token) {
+      skipWhitespace();
+      if (!text.startsWith(token, pos)) {
+        return false;
+      }
+      // don't split tokens we don't support, e.g. "=~", "&" or "||="
+      final int end = pos + token.length();
+      if (end < text.length()) {
+        final char next = text.charAt(end);
+        if ((token.equals("<") || token.equals(">") || token.equals("!"))
+            && next == '=') {
+          return false;
+        }
+        if (next == '=' && !token.endsWith("=")
+            && "+-*/%&|".indexOf(token.charAt(0)) >= 0) {
+          throw unsupported();  // assignment operators
+        }
+      }
+      if ((token.equals("&&") || token.equals("||")) && end < text.length()
+          && (text.charAt(end) == '&' || text.charAt(end) == '|')) {
+        throw unsupported();
+      }
+      pos = end;
+      return true;
+    }
+
+    private boolean peek(final char c) {
+      skipWhitespace();
+      return pos < text.length() && text.charAt(pos) == c;
+    }
+
+    private boolean peek(final String token) {
+      skipWhitespace();
+      return text.startsWith(token, pos);
+    }
+
+    private void skipWhitespace() {
+      while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+        pos++;
+      }
+    }
+
+    private static boolean isIdentifierStart(final char c) {
+      return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_'
+          || c == '$';
+    }
+
+    private static boolean isIdentifierPart(final char c) {
+      return isIdentifierStart(c) || (c >= '0' && c <= '9');
+    }
+
+    private UnsupportedOperationException unsupported() {
+      return new UnsupportedOperationException("Unsupported expression at "
+          + pos + ": " + text);
+    }
+  }
+}
@@ -12,6 +12,7 @@
 // see <http://www.gnu.org/licenses/>.
 package net.opentsdb.query.expression;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -24,6 +25,7 @@ import net.opentsdb.core.FillPolicy;
 import net.opentsdb.core.IllegalDataException;
 import net.opentsdb.query.expression.VariableIterator.SetOperator;
 import net.opentsdb.utils.ByteSet;
+import net.opentsdb.utils.DateTime;
 
 import org.apache.commons.jexl2.JexlContext;
 import org.apache.commons.jexl2.JexlEngine;
@@ -63,6 +65,11 @@ import com.google.common.collect.ImmutableSet;
  * provided in the ctor.
  * NOTE: If a result set doesn't include a fill policy, we default to ZERO for
  * "missing" data points.
+ * <p>
+ * Expressions that only do arithmetic, comparisons and logic on the variables
+ * are also compiled into a {@link CompiledExpression} that evaluates all of
+ * the series at a timestamp at once on primitive doubles. JEXL is only
+ * executed for expressions using anything else.
  */
 public class ExpressionIterator implements ITimeSyncedIterator {
   private static final Logger LOG = LoggerFactory.getLogger(ExpressionIterator.class);
@@ -92,6 +99,27 @@ public class ExpressionIterator implements ITimeSyncedIterator {
   /** The context where we'll dump results for processing through the expression */
   private final JexlContext context = new MapContext();
   
+  /** The expression compiled to primitive operators, null if we need JEXL */
+  private final CompiledExpression compiled;
+  
+  /** The variables of the compiled expression, in its order */
+  private String[] compiled_names;
+  
+  /** The value of each compiled variable for each series at a timestamp */
+  private double[][] columns;
+  
+  /** The compiled result for each series at a timestamp */
+  private double[] outputs;
+  
+  /** The value of each compiled variable for a single series */
+  private double[] row;
+  
+  /** How long it took to join the result sets in nanoseconds */
+  private long join_time;
+  
+  /** How many series went into the join */
+  private long join_input_series;
+  
   /** A list of unique variable names pulled from the expression */
   private final Set<String> names;
   
@@ -152,6 +180,7 @@ public class ExpressionIterator implements ITimeSyncedIterator {
       throw new IllegalArgumentException(
           "The expression didn't appear to have any variables");
     }
+    compiled = compileExpression(expression);
     this.set_operator = set_operator;
     fill_policy = new NumericFillPolicy(FillPolicy.NOT_A_NUMBER);
   }
@@ -180,6 +209,7 @@ public class ExpressionIterator implements ITimeSyncedIterator {
       throw new IllegalArgumentException(
           "The expression didn't appear to have any variables");
     }
+    compiled = iterator.compiled == null ? null : iterator.compiled.copy();
   }
   
   @Override
@@ -189,6 +219,8 @@ public class ExpressionIterator implements ITimeSyncedIterator {
        .append(id)
        .append(", expression=\"")
        .append(expression.toString())
+       .append(", compiled=")
+       .append(compiled != null)
        .append(", setOperator=")
        .append(set_operator)
        .append(", fillPolicy=")
@@ -265,6 +297,12 @@ public class ExpressionIterator implements ITimeSyncedIterator {
       }
     }
     
+    join_input_series = 0;
+    for (final ITimeSyncedIterator it : results.values()) {
+      join_input_series += it.size();
+    }
+    final long join_start = DateTime.nanoTime();
+    
     // TODO implement other set functions
     switch (set_operator) {
     case INTERSECTION:
@@ -275,6 +313,7 @@ public class ExpressionIterator implements ITimeSyncedIterator {
       iterator = new UnionIterator(id, results, intersect_on_query_tagks, 
           include_agg_tags);
     }
+    join_time = DateTime.nanoTime() - join_start;
     iteration_results = iterator.getResults();
     
     dps = new ExpressionDataPoint[iterator.getSeriesSize()];
@@ -296,6 +335,13 @@ public class ExpressionIterator implements ITimeSyncedIterator {
       }
     }
     
+    if (compiled != null) {
+      compiled_names = compiled.variables();
+      columns = new double[compiled_names.length][dps.length];
+      outputs = new double[dps.length];
+      row = new double[compiled_names.length];
+    }
+    
     if (LOG.isDebugEnabled()) {
       LOG.debug("Finished compiling " + this);
     }
@@ -326,6 +372,28 @@ public class ExpressionIterator implements ITimeSyncedIterator {
     // final long timestamp = iterator.nextTimestamp();
     iterator.next();
     
+    if (compiled != null) {
+      final int series = iterator.getSeriesSize();
+      for (int v = 0; v < compiled_names.length; v++) {
+        final ExpressionDataPoint[] values = 
+            iteration_results.get(compiled_names[v]);
+        final double fill = 
+            results.get(compiled_names[v]).getFillPolicy().getValue();
+        final double[] column = columns[v];
+        for (int i = 0; i < series; i++) {
+          column[i] = values[i] == null ? fill : values[i].toDouble();
+          if (Double.isNaN(column[i])) {
+            column[i] = fill;
+          }
+        }
+      }
+      compiled.evaluate(columns, series, outputs);
+      for (int i = 0; i < series; i++) {
+        dps[i].reset(timestamp, outputs[i]);
+      }
+      return dps;
+    }
+    
     // set aside a couple of addresses for the variables
     double val;
     double result;
@@ -379,6 +447,36 @@ public class ExpressionIterator implements ITimeSyncedIterator {
     }
   }
 
+  /**
+   * Compiles the expression to primitive operators if it only uses syntax
+   * {@link CompiledExpression} supports and finds the same variables as JEXL.
+   * @param expression The expression to compile
+   * @return The compiled expression or null if we need to use JEXL
+   */
+  private CompiledExpression compileExpression(final String expression) {
+    final CompiledExpression compiled = CompiledExpression.compile(expression);
+    if (compiled == null || compiled.variables().length != names.size() 
+        || !names.containsAll(Arrays.asList(compiled.variables()))) {
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Using JEXL to evaluate expression: " + expression);
+      }
+      return null;
+    }
+    return compiled;
+  }
+
+  /** @return how long it took to join the result sets in nanoseconds. Only
+   * valid after {@link #compile()} */
+  public long getJoinTime() {
+    return join_time;
+  }
+  
+  /** @return how many series from all of the result sets went into the join.
+   * Only valid after {@link #compile()} */
+  public long getJoinInputSeries() {
+    return join_input_series;
+  }
+
   /** @return an immutable set of the variable IDs used in the expression. Case
    * sensitive. */
   public Set<String> getVariableNames() {
@@ -452,6 +550,28 @@ public class ExpressionIterator implements ITimeSyncedIterator {
   public void next(final int i) {
     iterator.next(i);
     
+    if (compiled != null) {
+      long ts = Long.MAX_VALUE;
+      for (int v = 0; v < compiled_names.length; v++) {
+        final ExpressionDataPoint dp = iteration_results.get(compiled_names[v])[i];
+        final double fill = 
+            results.get(compiled_names[v]).getFillPolicy().getValue();
+        if (dp == null) {
+          row[v] = fill;
+        } else {
+          if (dp.timestamp() < ts) {
+            ts = dp.timestamp();
+          }
+          row[v] = dp.toDouble();
+          if (Double.isNaN(row[v])) {
+            row[v] = fill;
+          }
+        }
+      }
+      dps[i].reset(ts, compiled.evaluate(row));
+      return;
+    }
+    
     // set aside a couple of addresses for the variables
     double val;
     double result;
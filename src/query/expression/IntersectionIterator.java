@@ -13,7 +13,7 @@
 package net.opentsdb.query.expression;
 
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
@@ -249,113 +249,83 @@ public class IntersectionIterator implements ITimeSyncedIterator, VariableIterat
   }
   
   /**
-   * A super ugly messy way to compute the intersection of the various sets of 
-   * time series returned from the sub queries. 
+   * Computes the intersection of the various sets of time series returned from
+   * the sub queries as a hash join.
    * <p>
    * The process is:
-   * - Iterate over each query set
-   * - For the first set, flatten each series' tag and (optionally) aggregated tag
-   *   set into a single byte array for use as an ID.
-   * - Populate a map with the IDs and references to the series iterator for the
-   *   first query set.
-   * - For each additional set, flatten the tags and if the tag set ID isn't in
-   *   the intersection map, kick it out.
-   * - For each key in the intersection map, if it doesn't appear in the current
-   *   query set, kick it out.
-   * - Once all sets are finished, align the resulting series iterators in the 
-   *   {@link #current_values} map which is then prepped for expression processing.
+   * - Flatten each series' tag and (optionally) aggregated tag set into a 
+   *   single byte array for use as an ID.
+   * - Build a {@link SeriesJoin} table from the smallest query set.
+   * - Probe the table with the series of each other set, kicking out any 
+   *   series whose ID isn't in the table.
+   * - Kick out the rows of the table that didn't match every set.
+   * - Align the remaining series iterators in the {@link #current_values} map
+   *   which is then prepped for expression processing.
    * @throws IllegalDataException if more than one series was supplied and 
    * the resulting intersection failed to produce any series
    */
   private void computeIntersection() {
-    final ByteMap<ExpressionDataPoint[]> ordered_intersection = 
-        new ByteMap<ExpressionDataPoint[]>(); 
-    final Iterator<ITimeSyncedIterator> it = queries.values().iterator();
-    
-    // assume we have at least on query in our set
-    ITimeSyncedIterator sub = it.next();
-    Map<String, ByteMap<Integer>> flattened_tags = 
-        new HashMap<String, ByteMap<Integer>>(queries.size()); 
-    ByteMap<Integer> tags = new ByteMap<Integer>();
-    flattened_tags.put(sub.getId(), tags);
-    ExpressionDataPoint[] dps = sub.values();
+    // build from the smallest set to bound the size of the table
+    ITimeSyncedIterator build = null;
+    for (final ITimeSyncedIterator sub : queries.values()) {
+      if (build == null || sub.size() < build.size()) {
+        build = sub;
+      }
+    }
     
-    for (int i = 0; i < sub.size(); i++) {
+    final SeriesJoin join = new SeriesJoin(queries.size(), build.size());
+    ExpressionDataPoint[] dps = build.values();
+    for (int i = 0; i < build.size(); i++) {
       final byte[] tagks = flattenTags(intersect_on_query_tagks, include_agg_tags,
-          dps[i].tags(), dps[i].aggregatedTags(), sub);
-      tags.put(tagks, i);
-
-      final ExpressionDataPoint[] idps = new ExpressionDataPoint[queries.size()];
-      idps[sub.getIndex()] = dps[i];
-      ordered_intersection.put(tagks, idps);
+          dps[i].tags(), dps[i].aggregatedTags(), build);
+      join.add(tagks, build.getIndex(), i, dps[i]);
     }
     
-    if (!it.hasNext()) {
-      setCurrentAndMeta(ordered_intersection);
+    if (queries.size() < 2) {
+      setCurrentAndMeta(join.sortedRows());
       return;
     }
     
-    while (it.hasNext()) {
-      sub = it.next();
-      tags = new ByteMap<Integer>();
-      flattened_tags.put(sub.getId(), tags);
+    for (final ITimeSyncedIterator sub : queries.values()) {
+      if (sub == build) {
+        continue;
+      }
       dps = sub.values();
       
       // loop through the series in the sub iterator, compute the flattened tag
-      // ids, then kick out any that are NOT in the existing intersection map.
+      // ids, then kick out any that are NOT in the table.
       for (int i = 0; i < sub.size(); i++) {
         final byte[] tagks = flattenTags(intersect_on_query_tagks, include_agg_tags, 
             dps[i].tags(), dps[i].aggregatedTags(), sub);
-        tags.put(tagks, i);
-
-        final ExpressionDataPoint[] idps = ordered_intersection.get(tagks);
-        if (idps == null) {
+        if (join.probe(tagks, sub.getIndex(), i, dps[i]) == null) {
           if (LOG.isDebugEnabled()) {
             LOG.debug("Kicking out " + Bytes.pretty(tagks) + " from " + sub.getId());
           }
           sub.nullIterator(i);
-          continue;
         }
-        idps[sub.getIndex()] = dps[i];
       }
-      
-      // gotta go backwards now to complete the intersection by kicking
-      // any series that appear in other sets but not HERE
-      final Iterator<Entry<byte[], ExpressionDataPoint[]>> reverse_it = 
-          ordered_intersection.iterator();
-      while (reverse_it.hasNext()) {
-        Entry<byte[], ExpressionDataPoint[]> e = reverse_it.next();
-        if (!tags.containsKey(e.getKey())) {
+    }
+    
+    // kick any series that appear in some sets but not all of them
+    for (final SeriesJoin.Row row : join.retainComplete()) {
+      for (int x = 0; x < row.indices.length; x++) {
+        if (row.indices[x] >= 0) {
           if (LOG.isDebugEnabled()) {
-            LOG.debug("Kicking out " + Bytes.pretty(e.getKey()) + 
-                " from the main list since the query for " + sub.getId() + 
-                " didn't have it");
-          }
-          
-          // null the iterators for the other sets
-          for (final Map.Entry<String, ByteMap<Integer>> entry : 
-              flattened_tags.entrySet()) {
-            if (entry.getKey().equals(sub.getId())) {
-              continue;
-            }
-            final Integer index = entry.getValue().get(e.getKey());
-            if (index != null) {
-              queries.get(entry.getKey()).nullIterator(index);
-            }
+            LOG.debug("Kicking out series " + row.indices[x] + " from " + 
+                index_to_names[x] + " since it wasn't in every set");
           }
-          
-          reverse_it.remove();
+          queries.get(index_to_names[x]).nullIterator(row.indices[x]);
         }
       }
     }
     
     // now set our properly condensed and ordered values
-    if (ordered_intersection.size() < 1) {
+    if (join.size() < 1) {
       // TODO - is it best to toss an exception here or return an empty result?
       throw new IllegalDataException("No intersections found: " + this);
     }
     
-    setCurrentAndMeta(ordered_intersection);
+    setCurrentAndMeta(join.sortedRows());
   }
   
   /**
@@ -363,14 +333,15 @@ public class IntersectionIterator implements ITimeSyncedIterator, VariableIterat
    * and {@link #meta} maps.
    * @param ordered_intersection The intersection to build from.
    */
-  private void setCurrentAndMeta(final ByteMap<ExpressionDataPoint[]> 
+  private void setCurrentAndMeta(final List<SeriesJoin.Row> 
       ordered_intersection) {
     for (final String id : queries.keySet()) {
       current_values.put(id, new ExpressionDataPoint[ordered_intersection.size()]);
     }
     
     int i = 0;
-    for (final ExpressionDataPoint[] idps : ordered_intersection.values()) {
+    for (final SeriesJoin.Row row : ordered_intersection) {
+      final ExpressionDataPoint[] idps = row.dps;
       for (int x = 0; x < idps.length; x++) {
         final ExpressionDataPoint[] current_dps = 
             current_values.get(index_to_names[x]);
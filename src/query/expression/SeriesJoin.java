@@ -0,0 +1,207 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.query.expression;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+import org.hbase.async.Bytes;
+
+/**
+ * A hash table used by the set operator iterators to match series across the
+ * result sets of an expression.
+ * <p>
+ * Each series is keyed on its flattened tag UIDs along with a 64 bit
+ * fingerprint of those bytes computed once up front, so a lookup costs a
+ * single hash probe and, on a fingerprint match, one array comparison. The
+ * table is sized up front from the number of series expected so it never
+ * rehashes while joining. For intersections the caller should build the
+ * table from the smallest set and only probe it with the others, which caps
+ * the table at the size of the smallest set.
+ * <p>
+ * Rows are handed back sorted on their keys so the series order of the
+ * results is deterministic.
+ * @since 2.4
+ */
+final class SeriesJoin {
+
+  /** The rows keyed on their join key */
+  private final HashMap<Key, Row> rows;
+
+  /** How many result sets are being joined */
+  private final int sets;
+
+  /**
+   * Default ctor.
+   * @param sets How many result sets are being joined
+   * @param expected The number of rows expected in the table
+   */
+  SeriesJoin(final int sets, final int expected) {
+    this.sets = sets;
+    // sized so that the expected rows stay under the default load factor
+    rows = new HashMap<Key, Row>(Math.max(16, (int) (expected / 0.75f) + 1));
+  }
+
+  /**
+   * Adds a series to the row for its key, creating the row if needed. If the
+   * set already had a series with the same key, it's replaced.
+   * @param key The flattened tags of the series
+   * @param set The index of the result set the series belongs to
+   * @param series The index of the series within its set
+   * @param dp The data point for the series
+   * @return The row the series was added to
+   */
+  Row add(final byte[] key, final int set, final int series,
+      final ExpressionDataPoint dp) {
+    final Key k = new Key(key);
+    Row row = rows.get(k);
+    if (row == null) {
+      row = new Row(k, sets);
+      rows.put(k, row);
+    }
+    row.set(set, series, dp);
+    return row;
+  }
+
+  /**
+   * Adds a series to the row for its key only if the row already exists.
+   * @param key The flattened tags of the series
+   * @param set The index of the result set the series belongs to
+   * @param series The index of the series within its set
+   * @param dp The data point for the series
+   * @return The row the series was added to or null if there wasn't a row
+   * for the key
+   */
+  Row probe(final byte[] key, final int set, final int series,
+      final ExpressionDataPoint dp) {
+    final Row row = rows.get(new Key(key));
+    if (row != null) {
+      row.set(set, series, dp);
+    }
+    return row;
+  }
+
+  /**
+   * Removes the rows that don't have a series from every set.
+   * @return The removed rows, in no particular order
+   */
+  List<Row> retainComplete() {
+    final List<Row> removed = new ArrayList<Row>();
+    final Iterator<Row> it = rows.values().iterator();
+    while (it.hasNext()) {
+      final Row row = it.next();
+      if (row.matched < sets) {
+        removed.add(row);
+        it.remove();
+      }
+    }
+    return removed;
+  }
+
+  /** @return The number of rows in the table */
+  int size() {
+    return rows.size();
+  }
+
+  /** @return The rows sorted on their keys */
+  List<Row> sortedRows() {
+    final List<Row> sorted = new ArrayList<Row>(rows.values());
+    Collections.sort(sorted, ROW_CMP);
+    return sorted;
+  }
+
+  /**
+   * Computes the 64 bit FNV-1a hash of a key.
+   * @param key The key to hash
+   * @return The fingerprint
+   */
+  static long fingerprint(final byte[] key) {
+    long hash = 0xcbf29ce484222325L;
+    for (final byte b : key) {
+      hash ^= b & 0xFF;
+      hash *= 0x100000001b3L;
+    }
+    return hash;
+  }
+
+  /** Orders rows on their keys */
+  private static final Comparator<Row> ROW_CMP = new Comparator<Row>() {
+    @Override
+    public int compare(final Row a, final Row b) {
+      return Bytes.memcmp(a.key.key, b.key.key);
+    }
+  };
+
+  /** A join key with its precomputed fingerprint */
+  private static final class Key {
+    final byte[] key;
+    final long fingerprint;
+
+    Key(final byte[] key) {
+      this.key = key;
+      fingerprint = fingerprint(key);
+    }
+
+    @Override
+    public int hashCode() {
+      return (int) (fingerprint ^ (fingerprint >>> 32));
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      final Key other = (Key) obj;
+      return fingerprint == other.fingerprint && Arrays.equals(key, other.key);
+    }
+  }
+
+  /** The series matched for a single key, one slot per set */
+  static final class Row {
+    private final Key key;
+
+    /** The data point from each set, null if the set didn't have the key */
+    final ExpressionDataPoint[] dps;
+
+    /** The index of the series within each set, -1 if missing */
+    final int[] indices;
+
+    /** How many sets had a series for the key */
+    private int matched;
+
+    private Row(final Key key, final int sets) {
+      this.key = key;
+      dps = new ExpressionDataPoint[sets];
+      indices = new int[sets];
+      Arrays.fill(indices, -1);
+    }
+
+    private void set(final int set, final int series,
+        final ExpressionDataPoint dp) {
+      if (dps[set] == null) {
+        matched++;
+      }
+      dps[set] = dp;
+      indices[set] = series;
+    }
+  }
+}
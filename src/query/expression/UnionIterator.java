@@ -13,7 +13,7 @@
 package net.opentsdb.query.expression;
 
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
@@ -23,7 +23,6 @@ import net.opentsdb.core.TSDB;
 import net.opentsdb.utils.ByteSet;
 
 import org.hbase.async.HBaseClient;
-import org.hbase.async.Bytes.ByteMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -166,38 +165,30 @@ public class UnionIterator implements ITimeSyncedIterator, VariableIterator {
   
   /**
    * Computes the union of all sets, matching on tags and optionally the 
-   * aggregated tags across each variable.
+   * aggregated tags across each variable with a {@link SeriesJoin}.
    */
   private void computeUnion() {
-    // key = flattened tags, array of queries.size()
-    final ByteMap<ExpressionDataPoint[]> ordered_union = 
-        new ByteMap<ExpressionDataPoint[]>(); 
+    int expected = 0;
+    for (final ITimeSyncedIterator sub : queries.values()) {
+      expected = Math.max(expected, sub.size());
+    }
+    final SeriesJoin join = new SeriesJoin(queries.size(), expected);
 
-    final Iterator<ITimeSyncedIterator> it = queries.values().iterator();
-    while (it.hasNext()) {
-      final ITimeSyncedIterator sub = it.next();
+    for (final ITimeSyncedIterator sub : queries.values()) {
       final ExpressionDataPoint[] dps = sub.values();
-      final ByteMap<Integer> local_tags = new ByteMap<Integer>();
-      
       for (int i = 0; i < sub.size(); i++) {
         final byte[] key = flattenTags(union_on_query_tagks, include_agg_tags, 
             dps[i], sub);
-        local_tags.put(key, i);
-        ExpressionDataPoint[] udps = ordered_union.get(key);
-        if (udps == null) {
-          udps = new ExpressionDataPoint[queries.size()];
-          ordered_union.put(key, udps);
-        }
-        udps[sub.getIndex()] = dps[i];
+        join.add(key, sub.getIndex(), i, dps[i]);
       }
     }
     
-    if (ordered_union.size() < 1) {
+    if (join.size() < 1) {
       // if no data, just stop here
       return;
     }
     
-    setCurrentAndMeta(ordered_union);
+    setCurrentAndMeta(join.sortedRows());
   }
   
   /**
@@ -205,8 +196,7 @@ public class UnionIterator implements ITimeSyncedIterator, VariableIterator {
    * and {@link #meta} maps.
    * @param ordered_union The union to build from.
    */
-  private void setCurrentAndMeta(final ByteMap<ExpressionDataPoint[]> 
-      ordered_union) {
+  private void setCurrentAndMeta(final List<SeriesJoin.Row> ordered_union) {
     for (final String id : queries.keySet()) {
       current_values.put(id, new ExpressionDataPoint[ordered_union.size()]);
       // TODO - blech. Fill with a sentinel value to reflect "no data here!"
@@ -218,8 +208,8 @@ public class UnionIterator implements ITimeSyncedIterator, VariableIterator {
     }
     
     int i = 0;
-    for (final Entry<byte[], ExpressionDataPoint[]> entry : ordered_union.entrySet()) {
-      final ExpressionDataPoint[] idps = entry.getValue();
+    for (final SeriesJoin.Row row : ordered_union) {
+      final ExpressionDataPoint[] idps = row.dps;
       for (int x = 0; x < idps.length; x++) {
         final ExpressionDataPoint[] current_dps = 
             current_values.get(index_to_names[x]);
@@ -0,0 +1,1002 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.rollup;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.core.Const;
+import net.opentsdb.core.Internal;
+import net.opentsdb.core.TSDB;
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.utils.Config;
+import net.opentsdb.utils.DateTime;
+
+/**
+ * Computes rollups in the TSD from the raw data points as they're written
+ * instead of re-reading the raw table with an external job.
+ * <p>
+ * For every series and every non-default interval in the {@link RollupConfig},
+ * the generator keeps a sum, count, min and max accumulator per window. The
+ * accumulators live in off-heap slabs of fixed size slots, one set of slabs
+ * per shard with the series hashed across shards so writers rarely contend.
+ * Only a small on-heap index from the series and window to the slot is kept.
+ * <p>
+ * A window is closed once the wall clock passes the end of the window plus
+ * the watermark. A timer flushes closed windows to the rollup tables through
+ * {@link TSDB#addAggregatePoint} and frees their slots. Data points that
+ * arrive for a closed window are late and are dropped, as are points for new
+ * windows once {@code max_windows} are open. Only the aggregators the rollup
+ * config has IDs for are written.
+ * <p>
+ * Windows are only written once they close. On shutdown the open windows are
+ * saved to the checkpoint file, {@code tsd.rollups.generator.checkpoint}, and
+ * restored by {@link #load} on the next start so that a restart doesn't split
+ * a window into partial writes. The checkpoint is deleted once loaded. If the
+ * TSD dies without a clean shutdown, the open windows are lost and are written
+ * with only the points received after the restart.
+ * <p>
+ * The generator never reads the rollup tables back, each write replaces the
+ * cells of the window. Every series must therefore be written through a
+ * single TSD, e.g. by routing on the metric and tags at the load balancer,
+ * otherwise TSDs will overwrite each other's windows with partial values.
+ * <p>
+ * Checkpoint layout: a header {@code [int magic][int version][long timestamp]
+ * [int windows]} followed by the windows, {@code [short tsuid length][tsuid]
+ * [utf metric][short tags]([utf key][utf value])*[utf interval][long start]
+ * [long count][long sum][long min][long max][boolean float]}. The file ends
+ * with the {@code [long crc32]} of all the preceding bytes.
+ * @since 2.4
+ */
+public final class RollupGenerator implements TimerTask {
+  private static final Logger LOG = LoggerFactory.getLogger(RollupGenerator.class);
+
+  /** The aggregators we can compute, in the order they're written */
+  static final String[] AGGREGATORS = { "sum", "count", "min", "max" };
+
+  /** Magic at the start of the checkpoint, "OTRG". */
+  static final int MAGIC = 0x4F545247;
+  /** Checkpoint format version. */
+  static final int VERSION = 1;
+  /** Suffix of the file written before renaming it over the checkpoint. */
+  static final String TMP_SUFFIX = ".tmp";
+
+  /** Number of shards the series are hashed across */
+  private static final int SHARDS = 16;
+
+  /** Slots allocated for a shard up front */
+  private static final int INITIAL_SLOTS = 1024;
+
+  /** Offsets of the fields in a slot */
+  private static final int COUNT = 0;
+  private static final int SUM = 8;
+  private static final int MIN = 16;
+  private static final int MAX = 24;
+  private static final int FLOAT = 32;
+
+  /** Size of a slot in bytes */
+  private static final int SLOT_SIZE = 40;
+
+  /** The TSDB to write rollups to */
+  private final TSDB tsdb;
+
+  /** The intervals to generate */
+  private final RollupInterval[] intervals;
+
+  /** The width of each interval in milliseconds */
+  private final long[] interval_ms;
+
+  /** Which of the {@link #AGGREGATORS} the rollup config knows about */
+  private final boolean[] aggregators;
+
+  /** How long after a window ends we accept data for it, in milliseconds */
+  private final long watermark;
+
+  /** How often to flush closed windows in milliseconds */
+  private final long flush_interval;
+
+  /** The maximum number of windows a shard may hold */
+  private final int max_shard_windows;
+
+  /** Where the open windows are saved on shutdown */
+  private final File checkpoint;
+
+  /** The shards */
+  private final Shard[] shards;
+
+  /** Stats */
+  private final AtomicLong points = new AtomicLong();
+  private final AtomicLong late = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong windows_flushed = new AtomicLong();
+  private final AtomicLong windows_saved = new AtomicLong();
+  private final AtomicLong windows_restored = new AtomicLong();
+  private final AtomicLong rollups_written = new AtomicLong();
+  private final AtomicLong write_errors = new AtomicLong();
+
+  /** Whether or not we've been shut down, stops rescheduling */
+  private volatile boolean stopped;
+
+  /**
+   * Default ctor.
+   * @param tsdb The TSDB to write rollups to.
+   * @param config The rollup config to generate intervals for.
+   * @param watermark How long after a window ends to accept data for it, in
+   * milliseconds.
+   * @param flush_interval How often to flush closed windows, in milliseconds.
+   * @param max_windows The maximum number of windows open at once.
+   * @param checkpoint The file to save open windows to on shutdown.
+   * @throws IllegalArgumentException if the config didn't have any rollup
+   * intervals or aggregators we can compute, a setting was out of range or
+   * the checkpoint directory couldn't be created.
+   */
+  public RollupGenerator(final TSDB tsdb, final RollupConfig config,
+      final long watermark, final long flush_interval, final int max_windows,
+      final File checkpoint) {
+    if (watermark < 0) {
+      throw new IllegalArgumentException("Watermark cannot be negative: "
+          + watermark);
+    }
+    if (flush_interval < 1) {
+      throw new IllegalArgumentException("Flush interval must be greater "
+          + "than 0: " + flush_interval);
+    }
+    if (max_windows < SHARDS) {
+      throw new IllegalArgumentException("Max windows must be at least "
+          + SHARDS + ": " + max_windows);
+    }
+    if (checkpoint == null) {
+      throw new IllegalArgumentException("The checkpoint cannot be null");
+    }
+    final File parent = checkpoint.getAbsoluteFile().getParentFile();
+    if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+      throw new IllegalArgumentException(
+          "Unable to create the rollup checkpoint directory: " + parent);
+    }
+    final List<RollupInterval> rollups = new ArrayList<RollupInterval>();
+    for (final RollupInterval interval : config.getRollups().values()) {
+      if (!interval.isDefaultInterval()) {
+        rollups.add(interval);
+      }
+    }
+    if (rollups.isEmpty()) {
+      throw new IllegalArgumentException("The rollup config doesn't have any "
+          + "intervals besides the default");
+    }
+
+    aggregators = new boolean[AGGREGATORS.length];
+    boolean any = false;
+    for (int i = 0; i < AGGREGATORS.length; i++) {
+      try {
+        config.getIdForAggregator(AGGREGATORS[i]);
+        aggregators[i] = true;
+        any = true;
+      } catch (IllegalArgumentException e) {
+        LOG.info("Not generating " + AGGREGATORS[i] + " rollups as the "
+            + "config doesn't have an ID for it");
+      }
+    }
+    if (!any) {
+      throw new IllegalArgumentException("The rollup config doesn't have an "
+          + "ID for any of " + Arrays.toString(AGGREGATORS));
+    }
+
+    this.tsdb = tsdb;
+    intervals = rollups.toArray(new RollupInterval[rollups.size()]);
+    interval_ms = new long[intervals.length];
+    for (int i = 0; i < intervals.length; i++) {
+      interval_ms[i] = intervals[i].getIntervalSeconds() * 1000L;
+    }
+    this.watermark = watermark;
+    this.flush_interval = flush_interval;
+    this.checkpoint = checkpoint;
+    max_shard_windows = max_windows / SHARDS;
+    shards = new Shard[SHARDS];
+    for (int i = 0; i < SHARDS; i++) {
+      shards[i] = new Shard();
+    }
+  }
+
+  /**
+   * Builds a generator from the {@code tsd.rollups.generator.*} settings.
+   * @param tsdb The TSDB to load the config from. Must have a rollup config.
+   * @return A new generator, not yet started.
+   * @throws IllegalArgumentException if the checkpoint wasn't configured.
+   */
+  public static RollupGenerator fromConfig(final TSDB tsdb) {
+    final Config config = tsdb.getConfig();
+    final String path = config.getString("tsd.rollups.generator.checkpoint");
+    if (path == null || path.isEmpty()) {
+      throw new IllegalArgumentException("The rollup generator was enabled "
+          + "but 'tsd.rollups.generator.checkpoint' is null or empty.");
+    }
+    return new RollupGenerator(tsdb, tsdb.getRollupConfig(),
+        DateTime.parseDuration(
+            config.getString("tsd.rollups.generator.watermark")),
+        DateTime.parseDuration(
+            config.getString("tsd.rollups.generator.flush_interval")),
+        config.getInt("tsd.rollups.generator.max_windows"),
+        new File(path));
+  }
+
+  /**
+   * Restores the windows saved by the last shutdown, merging them with any
+   * already open, and deletes the checkpoint so they can't be restored twice.
+   * Windows that closed while the TSD was down are written on the next flush.
+   * A checkpoint that fails validation is logged and discarded.
+   * @return The number of windows restored.
+   */
+  public int load() {
+    if (!checkpoint.exists()) {
+      LOG.info("No rollup checkpoint found at " + checkpoint);
+      return 0;
+    }
+    int restored = 0;
+    try {
+      final List<Saved> saved = read();
+      for (final Saved window : saved) {
+        if (restore(window)) {
+          restored++;
+        }
+      }
+      windows_restored.addAndGet(restored);
+      LOG.info("Restored " + restored + " of " + saved.size()
+          + " rollup windows from " + checkpoint);
+    } catch (IOException e) {
+      LOG.error("Failed to read the rollup checkpoint " + checkpoint, e);
+    } catch (RuntimeException e) {
+      LOG.error("Corrupted rollup checkpoint " + checkpoint, e);
+    }
+    if (!checkpoint.delete()) {
+      LOG.warn("Unable to delete the rollup checkpoint " + checkpoint);
+    }
+    return restored;
+  }
+
+  /**
+   * Schedules the periodic flush of closed windows.
+   * @param timer The timer to run the flushes on.
+   */
+  public void start(final Timer timer) {
+    timer.newTimeout(this, flush_interval, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Adds a raw data point to the windows of its series.
+   * @param tsuid The TSUID of the series.
+   * @param metric The metric name.
+   * @param tags The tags, copied if the series is new.
+   * @param timestamp The timestamp in seconds or milliseconds.
+   * @param value The encoded value.
+   * @param flags The value flags.
+   */
+  public void add(final byte[] tsuid, final String metric,
+      final Map<String, String> tags, final long timestamp,
+      final byte[] value, final short flags) {
+    final long ts = (timestamp & Const.SECOND_MASK) != 0 ?
+        timestamp : timestamp * 1000;
+    final boolean is_float = (flags & Const.FLAG_FLOAT) != 0;
+    final long long_value = is_float ? 0 :
+      Internal.extractIntegerValue(value, 0, (byte) flags);
+    final double double_value = is_float ?
+        Internal.extractFloatingPointValue(value, 0, (byte) flags) : 0;
+    final long now = DateTime.currentTimeMillis();
+    points.incrementAndGet();
+
+    final int hash = Arrays.hashCode(tsuid);
+    final Shard shard = shards[(hash & Integer.MAX_VALUE) % SHARDS];
+    synchronized (shard) {
+      for (int i = 0; i < intervals.length; i++) {
+        final long window = ts - (ts % interval_ms[i]);
+        if (window + interval_ms[i] + watermark <= now) {
+          late.incrementAndGet();
+          continue;
+        }
+        final int slot = shard.slot(tsuid, hash, metric, tags, i, window);
+        if (slot < 0) {
+          dropped.incrementAndGet();
+          continue;
+        }
+        shard.accumulate(slot, is_float, long_value, double_value);
+      }
+    }
+  }
+
+  /**
+   * Writes the closed windows and saves the open ones to the checkpoint, e.g.
+   * on shutdown. Stops the periodic flushes. The open windows are only
+   * written if the checkpoint couldn't be saved.
+   * @return A deferred resolved once the rollups were written.
+   */
+  public Deferred<ArrayList<Object>> flush() {
+    stopped = true;
+    final List<Window> closed = drain(DateTime.currentTimeMillis());
+    final List<Window> open = drain(Long.MAX_VALUE);
+    if (!open.isEmpty() && !save(open)) {
+      LOG.warn("Writing " + open.size() + " open rollup windows as the "
+          + "checkpoint couldn't be saved");
+      closed.addAll(open);
+    }
+    return write(closed);
+  }
+
+  /**
+   * Writes the windows closed as of the given time and frees their slots.
+   * @param now The current time in milliseconds.
+   * @return A deferred resolved once the rollups were written.
+   */
+  @VisibleForTesting
+  Deferred<ArrayList<Object>> flush(final long now) {
+    return write(drain(now));
+  }
+
+  /**
+   * Writes windows to the rollup tables.
+   * @param closed The windows to write.
+   * @return A deferred resolved once the rollups were written.
+   */
+  private Deferred<ArrayList<Object>> write(final List<Window> closed) {
+    windows_flushed.addAndGet(closed.size());
+
+    final ArrayList<Deferred<Object>> deferreds =
+        new ArrayList<Deferred<Object>>(closed.size() * AGGREGATORS.length);
+    for (final Window window : closed) {
+      write(window, deferreds);
+    }
+    if (LOG.isDebugEnabled() && !closed.isEmpty()) {
+      LOG.debug("Flushed " + closed.size() + " rollup windows");
+    }
+    return Deferred.group(deferreds);
+  }
+
+  /** @param timeout The timeout reference. */
+  @Override
+  public void run(final Timeout timeout) {
+    try {
+      flush(DateTime.currentTimeMillis());
+    } catch (RuntimeException e) {
+      LOG.error("Failed to flush rollup windows", e);
+    } finally {
+      if (!stopped) {
+        timeout.getTimer().newTimeout(this, flush_interval,
+            TimeUnit.MILLISECONDS);
+      }
+    }
+  }
+
+  /** @param collector The collector to write stats to */
+  public void collectStats(final StatsCollector collector) {
+    int open = 0;
+    long bytes = 0;
+    for (final Shard shard : shards) {
+      synchronized (shard) {
+        open += shard.index.size();
+        bytes += shard.slots.capacity();
+      }
+    }
+    collector.record("rollup.generator.points", points.get());
+    collector.record("rollup.generator.late", late.get());
+    collector.record("rollup.generator.dropped", dropped.get());
+    collector.record("rollup.generator.windows.open", open);
+    collector.record("rollup.generator.windows.flushed", windows_flushed.get());
+    collector.record("rollup.generator.windows.saved", windows_saved.get());
+    collector.record("rollup.generator.windows.restored",
+        windows_restored.get());
+    collector.record("rollup.generator.written", rollups_written.get());
+    collector.record("rollup.generator.write_errors", write_errors.get());
+    collector.record("rollup.generator.offheap_bytes", bytes);
+  }
+
+  /** @return The number of windows currently open */
+  @VisibleForTesting
+  int openWindows() {
+    int open = 0;
+    for (final Shard shard : shards) {
+      synchronized (shard) {
+        open += shard.index.size();
+      }
+    }
+    return open;
+  }
+
+  /** @return The number of late data points dropped */
+  @VisibleForTesting
+  long lateDataPoints() {
+    return late.get();
+  }
+
+  /** @return The number of data points dropped as too many windows were open */
+  @VisibleForTesting
+  long droppedDataPoints() {
+    return dropped.get();
+  }
+
+  /** @return The checkpoint file */
+  @VisibleForTesting
+  File checkpoint() {
+    return checkpoint;
+  }
+
+  /**
+   * Copies the windows closed as of the given time out of every shard.
+   * @param now The current time in milliseconds, {@link Long#MAX_VALUE} for
+   * all windows.
+   * @return The closed windows.
+   */
+  private List<Window> drain(final long now) {
+    final List<Window> closed = new ArrayList<Window>();
+    for (final Shard shard : shards) {
+      synchronized (shard) {
+        shard.drain(now, closed);
+      }
+    }
+    return closed;
+  }
+
+  /**
+   * Saves windows to the checkpoint, replacing any previous one. The file is
+   * written to a temporary file, synced and renamed over the checkpoint.
+   * @param windows The windows to save.
+   * @return True if the checkpoint was written, false if not.
+   */
+  private boolean save(final List<Window> windows) {
+    final long start = System.currentTimeMillis();
+    final File tmp = new File(checkpoint.getPath() + TMP_SUFFIX);
+    final CRC32 crc = new CRC32();
+    try {
+      final FileOutputStream fos = new FileOutputStream(tmp);
+      try {
+        final DataOutputStream out = new DataOutputStream(
+            new CheckedOutputStream(new BufferedOutputStream(fos, 65536), crc));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(start);
+        out.writeInt(windows.size());
+        for (final Window window : windows) {
+          out.writeShort(window.series.tsuid.length);
+          out.write(window.series.tsuid);
+          out.writeUTF(window.series.metric);
+          out.writeShort(window.series.tags.size());
+          for (final Map.Entry<String, String> tag :
+              window.series.tags.entrySet()) {
+            out.writeUTF(tag.getKey());
+            out.writeUTF(tag.getValue());
+          }
+          out.writeUTF(intervals[window.interval].getInterval());
+          out.writeLong(window.start);
+          out.writeLong(window.count);
+          out.writeLong(window.sum);
+          out.writeLong(window.min);
+          out.writeLong(window.max);
+          out.writeBoolean(window.is_float);
+        }
+        out.flush();
+        // the checksum itself isn't part of the checksum
+        final DataOutputStream trailer = new DataOutputStream(fos);
+        trailer.writeLong(crc.getValue());
+        trailer.flush();
+        fos.getFD().sync();
+      } finally {
+        fos.close();
+      }
+      if (!tmp.renameTo(checkpoint)) {
+        throw new IOException("Unable to rename " + tmp + " to " + checkpoint);
+      }
+    } catch (IOException e) {
+      LOG.error("Failed to write the rollup checkpoint " + checkpoint, e);
+      tmp.delete();
+      return false;
+    }
+    windows_saved.addAndGet(windows.size());
+    LOG.info("Saved " + windows.size() + " open rollup windows to "
+        + checkpoint + " in " + (System.currentTimeMillis() - start) + " ms");
+    return true;
+  }
+
+  /**
+   * Reads and validates the checkpoint. Nothing is restored until the whole
+   * file passed the checksum.
+   * @return The saved windows.
+   * @throws IOException if the file couldn't be read or failed validation.
+   */
+  private List<Saved> read() throws IOException {
+    final CRC32 crc = new CRC32();
+    final BufferedInputStream buffered = new BufferedInputStream(
+        new FileInputStream(checkpoint), 65536);
+    try {
+      final DataInputStream in = new DataInputStream(
+          new CheckedInputStream(buffered, crc));
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        throw new IOException("Invalid rollup checkpoint header");
+      }
+      in.readLong();
+      final int count = in.readInt();
+      final List<Saved> saved = new ArrayList<Saved>(Math.max(count, 0));
+      for (int i = 0; i < count; i++) {
+        saved.add(new Saved(in));
+      }
+      // the checksum itself isn't part of the checksum
+      final long expected = crc.getValue();
+      if (new DataInputStream(buffered).readLong() != expected) {
+        throw new IOException("Checksum mismatch in the rollup checkpoint");
+      }
+      return saved;
+    } finally {
+      buffered.close();
+    }
+  }
+
+  /**
+   * Merges a saved window into the accumulators.
+   * @param saved The window to restore.
+   * @return True if restored, false if its interval is no longer configured
+   * or the shard is full.
+   */
+  private boolean restore(final Saved saved) {
+    int interval = -1;
+    for (int i = 0; i < intervals.length; i++) {
+      if (intervals[i].getInterval().equals(saved.interval)) {
+        interval = i;
+        break;
+      }
+    }
+    if (interval < 0) {
+      LOG.warn("Dropping saved rollup window for " + saved.metric + " "
+          + saved.tags + " as interval " + saved.interval
+          + " is no longer configured");
+      return false;
+    }
+    final int hash = Arrays.hashCode(saved.tsuid);
+    final Shard shard = shards[(hash & Integer.MAX_VALUE) % SHARDS];
+    synchronized (shard) {
+      final int slot = shard.slot(saved.tsuid, hash, saved.metric, saved.tags,
+          interval, saved.start);
+      if (slot < 0) {
+        dropped.addAndGet(saved.count);
+        return false;
+      }
+      shard.merge(slot, saved.count, saved.sum, saved.min, saved.max,
+          saved.is_float);
+    }
+    return true;
+  }
+
+  /**
+   * Writes each aggregate of a closed window to its rollup table.
+   * @param window The window to write.
+   * @param deferreds The list to add the write deferreds to.
+   */
+  private void write(final Window window,
+      final ArrayList<Deferred<Object>> deferreds) {
+    final String interval = intervals[window.interval].getInterval();
+    final long timestamp = window.start / 1000;
+    for (int i = 0; i < AGGREGATORS.length; i++) {
+      if (!aggregators[i]) {
+        continue;
+      }
+      // addAggregatePoint may add the aggregate tag to the map
+      final Map<String, String> tags =
+          new HashMap<String, String>(window.series.tags);
+      final String agg = AGGREGATORS[i];
+      try {
+        final Deferred<Object> deferred;
+        if (i == 1) {
+          deferred = tsdb.addAggregatePoint(window.series.metric, timestamp,
+              window.count, tags, false, interval, agg, null);
+        } else {
+          final long field = i == 0 ? window.sum : i == 2 ? window.min : window.max;
+          if (window.is_float) {
+            deferred = tsdb.addAggregatePoint(window.series.metric, timestamp,
+                Double.longBitsToDouble(field), tags, false, interval, agg, null);
+          } else {
+            deferred = tsdb.addAggregatePoint(window.series.metric, timestamp,
+                field, tags, false, interval, agg, null);
+          }
+        }
+        deferreds.add(deferred.addCallbacks(new WriteCB(),
+            new WriteErrCB(window, agg)));
+      } catch (RuntimeException e) {
+        write_errors.incrementAndGet();
+        LOG.error("Failed to write " + agg + " rollup for " + window, e);
+      }
+    }
+  }
+
+  /** Counts successful rollup writes */
+  final class WriteCB implements Callback<Object, Object> {
+    @Override
+    public Object call(final Object result) throws Exception {
+      rollups_written.incrementAndGet();
+      return result;
+    }
+    @Override
+    public String toString() {
+      return "Rollup generator write callback";
+    }
+  }
+
+  /** Logs and swallows failed rollup writes so one doesn't fail the flush */
+  final class WriteErrCB implements Callback<Object, Exception> {
+    private final Window window;
+    private final String aggregator;
+
+    WriteErrCB(final Window window, final String aggregator) {
+      this.window = window;
+      this.aggregator = aggregator;
+    }
+
+    @Override
+    public Object call(final Exception e) throws Exception {
+      write_errors.incrementAndGet();
+      LOG.error("Failed to write " + aggregator + " rollup for " + window, e);
+      return null;
+    }
+    @Override
+    public String toString() {
+      return "Rollup generator write errback";
+    }
+  }
+
+  /** The metric and tags of a series with open windows */
+  private static final class Series {
+    final byte[] tsuid;
+    final int hash;
+    final String metric;
+    final Map<String, String> tags;
+
+    /** How many windows the series has open */
+    int windows;
+
+    Series(final byte[] tsuid, final int hash, final String metric,
+        final Map<String, String> tags) {
+      this.tsuid = tsuid;
+      this.hash = hash;
+      this.metric = metric;
+      this.tags = new HashMap<String, String>(tags);
+    }
+  }
+
+  /** Looks up series on their TSUID */
+  private static final class SeriesKey {
+    final byte[] tsuid;
+    final int hash;
+
+    SeriesKey(final byte[] tsuid, final int hash) {
+      this.tsuid = tsuid;
+      this.hash = hash;
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+      return obj instanceof SeriesKey
+          && Arrays.equals(tsuid, ((SeriesKey) obj).tsuid);
+    }
+  }
+
+  /** Identifies a window of a series */
+  private static final class WindowKey {
+    final Series series;
+    final int interval;
+    final long start;
+
+    WindowKey(final Series series, final int interval, final long start) {
+      this.series = series;
+      this.interval = interval;
+      this.start = start;
+    }
+
+    @Override
+    public int hashCode() {
+      return (series.hash * 31 + interval) * 31 + (int) (start ^ (start >>> 32));
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+      if (!(obj instanceof WindowKey)) {
+        return false;
+      }
+      final WindowKey other = (WindowKey) obj;
+      // series are unique per shard
+      return series == other.series && interval == other.interval
+          && start == other.start;
+    }
+  }
+
+  /** A closed window copied out of its slot */
+  private static final class Window {
+    final Series series;
+    final int interval;
+    final long start;
+    final long count;
+    final long sum;
+    final long min;
+    final long max;
+    final boolean is_float;
+
+    Window(final WindowKey key, final ByteBuffer slots, final int offset) {
+      series = key.series;
+      interval = key.interval;
+      start = key.start;
+      count = slots.getLong(offset + COUNT);
+      sum = slots.getLong(offset + SUM);
+      min = slots.getLong(offset + MIN);
+      max = slots.getLong(offset + MAX);
+      is_float = slots.getLong(offset + FLOAT) != 0;
+    }
+
+    @Override
+    public String toString() {
+      return series.metric + " " + series.tags + " at " + start;
+    }
+  }
+
+  /** A window read back from the checkpoint */
+  private static final class Saved {
+    final byte[] tsuid;
+    final String metric;
+    final Map<String, String> tags;
+    final String interval;
+    final long start;
+    final long count;
+    final long sum;
+    final long min;
+    final long max;
+    final boolean is_float;
+
+    Saved(final DataInputStream in) throws IOException {
+      tsuid = new byte[in.readShort()];
+      in.readFully(tsuid);
+      metric = in.readUTF();
+      final int tag_count = in.readShort();
+      tags = new HashMap<String, String>(tag_count);
+      for (int i = 0; i < tag_count; i++) {
+        tags.put(in.readUTF(), in.readUTF());
+      }
+      interval = in.readUTF();
+      start = in.readLong();
+      count = in.readLong();
+      sum = in.readLong();
+      min = in.readLong();
+      max = in.readLong();
+      is_float = in.readBoolean();
+    }
+  }
+
+  /**
+   * The accumulators for a subset of the series. All access must be
+   * synchronized on the shard.
+   */
+  private final class Shard {
+    /** The off-heap slots, grown by doubling up to the shard limit */
+    ByteBuffer slots = ByteBuffer.allocateDirect(INITIAL_SLOTS * SLOT_SIZE)
+        .order(ByteOrder.nativeOrder());
+
+    /** The slot of each open window */
+    final HashMap<WindowKey, Integer> index = new HashMap<WindowKey, Integer>();
+
+    /** The series with open windows */
+    final HashMap<SeriesKey, Series> series = new HashMap<SeriesKey, Series>();
+
+    /** Slots freed by flushes, reused before the high water mark grows */
+    int[] free = new int[16];
+    int free_count;
+
+    /** The number of slots ever handed out */
+    int high_water;
+
+    /**
+     * Finds or allocates the slot for a window.
+     * @return The byte offset of the slot, -1 if the slot was new and the
+     * shard is full. New slots are zeroed with the count at 0.
+     */
+    int slot(final byte[] tsuid, final int hash, final String metric,
+        final Map<String, String> tags, final int interval, final long start) {
+      final SeriesKey series_key = new SeriesKey(tsuid, hash);
+      Series s = series.get(series_key);
+      if (s != null) {
+        final Integer slot = index.get(new WindowKey(s, interval, start));
+        if (slot != null) {
+          return slot * SLOT_SIZE;
+        }
+      }
+      if (index.size() >= max_shard_windows) {
+        return -1;
+      }
+
+      final int slot;
+      if (free_count > 0) {
+        slot = free[--free_count];
+      } else {
+        if ((high_water + 1) * SLOT_SIZE > slots.capacity()) {
+          grow();
+        }
+        slot = high_water++;
+      }
+      if (s == null) {
+        s = new Series(tsuid, hash, metric, tags);
+        series.put(series_key, s);
+      }
+      s.windows++;
+      index.put(new WindowKey(s, interval, start), slot);
+      final int offset = slot * SLOT_SIZE;
+      for (int i = 0; i < SLOT_SIZE; i += 8) {
+        slots.putLong(offset + i, 0);
+      }
+      return offset;
+    }
+
+    /** Adds a value to the accumulators of a slot */
+    void accumulate(final int offset, final boolean is_float,
+        final long long_value, final double double_value) {
+      final long count = slots.getLong(offset + COUNT);
+      slots.putLong(offset + COUNT, count + 1);
+      boolean slot_float = slots.getLong(offset + FLOAT) != 0;
+      if (is_float && !slot_float && count > 0) {
+        // widen what we've accumulated so far
+        for (final int field : new int[] { SUM, MIN, MAX }) {
+          slots.putLong(offset + field, Double.doubleToRawLongBits(
+              (double) slots.getLong(offset + field)));
+        }
+      }
+      if (is_float) {
+        slot_float = true;
+        slots.putLong(offset + FLOAT, 1);
+      }
+
+      if (slot_float) {
+        final double value = is_float ? double_value : (double) long_value;
+        if (count == 0) {
+          final long bits = Double.doubleToRawLongBits(value);
+          slots.putLong(offset + SUM, bits);
+          slots.putLong(offset + MIN, bits);
+          slots.putLong(offset + MAX, bits);
+          return;
+        }
+        slots.putLong(offset + SUM, Double.doubleToRawLongBits(
+            Double.longBitsToDouble(slots.getLong(offset + SUM)) + value));
+        if (value < Double.longBitsToDouble(slots.getLong(offset + MIN))) {
+          slots.putLong(offset + MIN, Double.doubleToRawLongBits(value));
+        }
+        if (value > Double.longBitsToDouble(slots.getLong(offset + MAX))) {
+          slots.putLong(offset + MAX, Double.doubleToRawLongBits(value));
+        }
+      } else {
+        if (count == 0) {
+          slots.putLong(offset + SUM, long_value);
+          slots.putLong(offset + MIN, long_value);
+          slots.putLong(offset + MAX, long_value);
+          return;
+        }
+        slots.putLong(offset + SUM, slots.getLong(offset + SUM) + long_value);
+        if (long_value < slots.getLong(offset + MIN)) {
+          slots.putLong(offset + MIN, long_value);
+        }
+        if (long_value > slots.getLong(offset + MAX)) {
+          slots.putLong(offset + MAX, long_value);
+        }
+      }
+    }
+
+    /**
+     * Merges accumulated values into a slot, widening to floating point if
+     * either side is.
+     */
+    void merge(final int offset, final long count, final long sum,
+        final long min, final long max, final boolean is_float) {
+      final long existing = slots.getLong(offset + COUNT);
+      slots.putLong(offset + COUNT, existing + count);
+      if (existing == 0) {
+        slots.putLong(offset + SUM, sum);
+        slots.putLong(offset + MIN, min);
+        slots.putLong(offset + MAX, max);
+        slots.putLong(offset + FLOAT, is_float ? 1 : 0);
+        return;
+      }
+      final boolean slot_float = slots.getLong(offset + FLOAT) != 0;
+      if (slot_float || is_float) {
+        slots.putLong(offset + SUM, Double.doubleToRawLongBits(
+            toDouble(slots.getLong(offset + SUM), slot_float)
+            + toDouble(sum, is_float)));
+        slots.putLong(offset + MIN, Double.doubleToRawLongBits(Math.min(
+            toDouble(slots.getLong(offset + MIN), slot_float),
+            toDouble(min, is_float))));
+        slots.putLong(offset + MAX, Double.doubleToRawLongBits(Math.max(
+            toDouble(slots.getLong(offset + MAX), slot_float),
+            toDouble(max, is_float))));
+        slots.putLong(offset + FLOAT, 1);
+      } else {
+        slots.putLong(offset + SUM, slots.getLong(offset + SUM) + sum);
+        slots.putLong(offset + MIN, Math.min(slots.getLong(offset + MIN), min));
+        slots.putLong(offset + MAX, Math.max(slots.getLong(offset + MAX), max));
+      }
+    }
+
+    /** @return The value of a field as a double */
+    private double toDouble(final long field, final boolean is_float) {
+      return is_float ? Double.longBitsToDouble(field) : (double) field;
+    }
+
+    /**
+     * Copies the windows closed as of now out of their slots and frees them.
+     * @param now The current time in milliseconds.
+     * @param closed The list to add closed windows to.
+     */
+    void drain(final long now, final List<Window> closed) {
+      final Iterator<Map.Entry<WindowKey, Integer>> it =
+          index.entrySet().iterator();
+      while (it.hasNext()) {
+        final Map.Entry<WindowKey, Integer> entry = it.next();
+        final WindowKey key = entry.getKey();
+        final long end = key.start + interval_ms[key.interval];
+        if (now != Long.MAX_VALUE && end + watermark > now) {
+          continue;
+        }
+        closed.add(new Window(key, slots, entry.getValue() * SLOT_SIZE));
+        it.remove();
+        if (free_count == free.length) {
+          free = Arrays.copyOf(free, free.length * 2);
+        }
+        free[free_count++] = entry.getValue();
+        if (--key.series.windows == 0) {
+          series.remove(new SeriesKey(key.series.tsuid, key.series.hash));
+        }
+      }
+    }
+
+    /** Doubles the slab, capped at the shard limit */
+    private void grow() {
+      final int capacity = Math.min(slots.capacity() * 2,
+          Math.max(max_shard_windows, INITIAL_SLOTS) * SLOT_SIZE);
+      final ByteBuffer grown = ByteBuffer.allocateDirect(capacity)
+          .order(ByteOrder.nativeOrder());
+      slots.clear();
+      grown.put(slots);
+      grown.clear();
+      slots = grown;
+    }
+  }
+}
@@ -0,0 +1,307 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.search;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.Bytes.ByteMap;
+import org.hbase.async.GetRequest;
+import org.hbase.async.KeyValue;
+import org.hbase.async.PutRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.CacheBuilder;
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.core.TSDB;
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.utils.ByteSet;
+import net.opentsdb.utils.Config;
+
+/**
+ * An inverted index from tag pairs to the time series that carry them, kept
+ * in its own HBase table so that queries with literal tag filters can fetch
+ * the exact series they need instead of scanning every row of a metric with
+ * a row key regex.
+ * <p>
+ * Each row of the index table is keyed on the metric, tag key and tag value
+ * UIDs and holds the posting list for that pair: one column per time series
+ * whose qualifier is the TSUID without the metric. Writing a posting is an
+ * idempotent put so the index never has to be read before it's updated.
+ * Looking up a set of tag pairs takes the union of the posting lists of the
+ * values given for the same tag key and the intersection across tag keys,
+ * the same semantics as the literal filters of a query.
+ * <p>
+ * Series are indexed the first time a TSD sees them after starting up. The
+ * TSUIDs already indexed are remembered in a bounded LRU so that the write
+ * path only sends puts for new series or for series that were evicted. Series
+ * that haven't been written since the index was enabled are not indexed so
+ * {@code tsd.core.tag_index.query} can be left off until the index covers the
+ * time ranges users query.
+ * @since 2.4
+ */
+public final class TagIndex {
+  private static final Logger LOG = LoggerFactory.getLogger(TagIndex.class);
+
+  /** Charset used to key the seen cache on TSUIDs */
+  private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+  /** Column family of the posting lists */
+  public static final byte[] FAMILY = { 't' };
+
+  /** Value stored in each posting */
+  private static final byte[] MARKER = { 0 };
+
+  /** The TSDB we belong to */
+  private final TSDB tsdb;
+
+  /** The index table */
+  private final byte[] table;
+
+  /** Whether or not queries and lookups should read from the index */
+  private final boolean use_for_queries;
+
+  /** TSUIDs indexed since startup, bounded in size */
+  private final ConcurrentMap<String, Boolean> seen;
+
+  /** Number of series indexed */
+  private final AtomicLong indexed = new AtomicLong();
+
+  /** Number of postings that failed to write */
+  private final AtomicLong write_failures = new AtomicLong();
+
+  /** Number of lookups executed */
+  private final AtomicLong lookups = new AtomicLong();
+
+  /** Number of posting lists read */
+  private final AtomicLong postings_read = new AtomicLong();
+
+  /**
+   * Default ctor.
+   * @param tsdb The TSDB we belong to.
+   * @throws IllegalArgumentException if the table name was empty or the cache
+   * size was less than 1.
+   */
+  public TagIndex(final TSDB tsdb) {
+    final Config config = tsdb.getConfig();
+    final String table_name =
+        config.getString("tsd.storage.hbase.tag_index_table");
+    if (table_name == null || table_name.isEmpty()) {
+      throw new IllegalArgumentException(
+          "Missing 'tsd.storage.hbase.tag_index_table'");
+    }
+    final int cache_size = config.getInt("tsd.core.tag_index.cache_size");
+    if (cache_size < 1) {
+      throw new IllegalArgumentException("The tag index cache size must be "
+          + "greater than 0: " + cache_size);
+    }
+    this.tsdb = tsdb;
+    table = table_name.getBytes(CHARSET);
+    use_for_queries = config.getBoolean("tsd.core.tag_index.query");
+    seen = CacheBuilder.newBuilder()
+        .maximumSize(cache_size)
+        .<String, Boolean>build()
+        .asMap();
+  }
+
+  /** @return Whether or not queries and lookups should read from the index */
+  public boolean useForQueries() {
+    return use_for_queries;
+  }
+
+  /** @return The name of the index table */
+  public byte[] table() {
+    return table;
+  }
+
+  /**
+   * Collects the stats for the index.
+   * @param collector The collector to use.
+   */
+  public void collectStats(final StatsCollector collector) {
+    collector.record("tag_index.indexed", indexed.get());
+    collector.record("tag_index.write_failures", write_failures.get());
+    collector.record("tag_index.lookups", lookups.get());
+    collector.record("tag_index.postings_read", postings_read.get());
+    collector.record("tag_index.seen", seen.size());
+  }
+
+  /**
+   * Adds the series to the posting lists of each of its tag pairs if it
+   * hasn't been indexed since startup. Errors are logged and the series will
+   * be indexed again the next time it's written.
+   * @param tsuid The TSUID of the series, without a salt or timestamp.
+   */
+  public void index(final byte[] tsuid) {
+    final String key = new String(tsuid, CHARSET);
+    if (seen.putIfAbsent(key, Boolean.TRUE) != null) {
+      return;
+    }
+
+    class ErrorCB implements Callback<Object, Exception> {
+      @Override
+      public Object call(final Exception e) throws Exception {
+        write_failures.incrementAndGet();
+        seen.remove(key);
+        LOG.warn("Failed to index the series " + Bytes.pretty(tsuid), e);
+        return null;
+      }
+      @Override
+      public String toString() {
+        return "Tag index put error callback";
+      }
+    }
+
+    final short metric_width = TSDB.metrics_width();
+    final int pair_width = TSDB.tagk_width() + TSDB.tagv_width();
+    final byte[] qualifier = new byte[tsuid.length - metric_width];
+    System.arraycopy(tsuid, metric_width, qualifier, 0, qualifier.length);
+    for (int i = metric_width; i + pair_width <= tsuid.length;
+        i += pair_width) {
+      final byte[] row = new byte[metric_width + pair_width];
+      System.arraycopy(tsuid, 0, row, 0, metric_width);
+      System.arraycopy(tsuid, i, row, metric_width, pair_width);
+      tsdb.getClient().put(new PutRequest(table, row, FAMILY, qualifier, MARKER))
+          .addErrback(new ErrorCB());
+    }
+    indexed.incrementAndGet();
+  }
+
+  /**
+   * Finds the series of the metric matching all of the given tag keys. Values
+   * given for the same tag key are OR'd.
+   * @param metric The metric UID.
+   * @param tags A map of tag key UIDs to one or more tag value UIDs, sorted
+   * on the tag keys.
+   * @return A deferred resolving to the sorted list of matching TSUIDs,
+   * possibly empty.
+   * @throws IllegalArgumentException if the tags were null or empty or a tag
+   * key was missing its values.
+   */
+  public Deferred<List<byte[]>> lookup(final byte[] metric,
+                                       final ByteMap<byte[][]> tags) {
+    if (tags == null || tags.isEmpty()) {
+      throw new IllegalArgumentException("Tags cannot be null or empty");
+    }
+    lookups.incrementAndGet();
+    final List<Deferred<ArrayList<KeyValue>>> gets =
+        new ArrayList<Deferred<ArrayList<KeyValue>>>();
+    // number of posting lists to union for each tag key, in order
+    final int[] values_per_tagk = new int[tags.size()];
+    int tagk_index = 0;
+    for (final Map.Entry<byte[], byte[][]> entry : tags.entrySet()) {
+      if (entry.getValue() == null || entry.getValue().length < 1) {
+        throw new IllegalArgumentException("Tag key is missing values: "
+            + Bytes.pretty(entry.getKey()));
+      }
+      for (final byte[] tagv : entry.getValue()) {
+        final byte[] row = new byte[metric.length + entry.getKey().length
+                                    + tagv.length];
+        System.arraycopy(metric, 0, row, 0, metric.length);
+        System.arraycopy(entry.getKey(), 0, row, metric.length,
+            entry.getKey().length);
+        System.arraycopy(tagv, 0, row, metric.length + entry.getKey().length,
+            tagv.length);
+        final GetRequest get = new GetRequest(table, row);
+        get.family(FAMILY);
+        gets.add(tsdb.getClient().get(get));
+      }
+      values_per_tagk[tagk_index++] = entry.getValue().length;
+    }
+    postings_read.addAndGet(gets.size());
+
+    class PostingsCB implements
+        Callback<List<byte[]>, ArrayList<ArrayList<KeyValue>>> {
+      @Override
+      public List<byte[]> call(final ArrayList<ArrayList<KeyValue>> postings)
+          throws Exception {
+        ByteSet matches = null;
+        int posting = 0;
+        for (final int values : values_per_tagk) {
+          final ByteSet union = new ByteSet();
+          for (int i = 0; i < values; i++) {
+            for (final KeyValue column : postings.get(posting++)) {
+              union.add(column.qualifier());
+            }
+          }
+          if (matches == null) {
+            matches = union;
+          } else {
+            matches.retainAll(union);
+          }
+          if (matches.isEmpty()) {
+            break;
+          }
+        }
+
+        final List<byte[]> tsuids = new ArrayList<byte[]>(matches.size());
+        for (final byte[] pairs : matches) {
+          final byte[] tsuid = new byte[metric.length + pairs.length];
+          System.arraycopy(metric, 0, tsuid, 0, metric.length);
+          System.arraycopy(pairs, 0, tsuid, metric.length, pairs.length);
+          tsuids.add(tsuid);
+        }
+        return tsuids;
+      }
+      @Override
+      public String toString() {
+        return "Tag index postings callback";
+      }
+    }
+
+    return Deferred.groupInOrder(gets).addCallback(new PostingsCB());
+  }
+
+  /**
+   * Splits TSUIDs into the per series tag maps {@code MultiGetQuery} expects,
+   * skipping any that don't have exactly the given number of tags if greater
+   * than zero.
+   * @param tsuids The TSUIDs to split.
+   * @param num_tags The number of tags each series must have, or 0 for any.
+   * @return A list of tag key to single tag value maps.
+   */
+  public static List<ByteMap<byte[][]>> toTagMaps(final List<byte[]> tsuids,
+                                                  final int num_tags) {
+    final short metric_width = TSDB.metrics_width();
+    final short tagk_width = TSDB.tagk_width();
+    final short tagv_width = TSDB.tagv_width();
+    final int pair_width = tagk_width + tagv_width;
+    final List<ByteMap<byte[][]>> series =
+        new ArrayList<ByteMap<byte[][]>>(tsuids.size());
+    for (final byte[] tsuid : tsuids) {
+      if (num_tags > 0 &&
+          (tsuid.length - metric_width) / pair_width != num_tags) {
+        continue;
+      }
+      final ByteMap<byte[][]> tags = new ByteMap<byte[][]>();
+      for (int i = metric_width; i + pair_width <= tsuid.length;
+          i += pair_width) {
+        final byte[] tagk = new byte[tagk_width];
+        final byte[] tagv = new byte[tagv_width];
+        System.arraycopy(tsuid, i, tagk, 0, tagk_width);
+        System.arraycopy(tsuid, i + tagk_width, tagv, 0, tagv_width);
+        tags.put(tagk, new byte[][] { tagv });
+      }
+      series.add(tags);
+    }
+    return series;
+  }
+}
@@ -36,6 +36,7 @@ import net.opentsdb.utils.Exceptions;
 import net.opentsdb.utils.Pair;
 
 import org.hbase.async.Bytes;
+import org.hbase.async.Bytes.ByteMap;
 import org.hbase.async.KeyValue;
 import org.hbase.async.Scanner;
 import org.slf4j.Logger;
@@ -282,9 +283,33 @@ public class TimeSeriesLookup {
       }
     }
     
+    class TagIndexCB implements Callback<List<byte[]>, List<byte[]>> {
+      @Override
+      public List<byte[]> call(final List<byte[]> matches) throws Exception {
+        if (query.getLimit() > 0 && matches.size() > query.getLimit()) {
+          tsuids.addAll(matches.subList(0, query.getLimit()));
+        } else {
+          tsuids.addAll(matches);
+        }
+        LOG.debug("Lookup query matched " + tsuids.size() + " time series "
+            + "from the tag index in " + (System.currentTimeMillis() - start) 
+            + " ms");
+        return tsuids;
+      }
+      @Override
+      public String toString() {
+        return "Tag index lookup callback";
+      }
+    }
+    
     class UIDCB implements Callback<Deferred<List<byte[]>>, Object> {
       @Override
       public Deferred<List<byte[]>> call(Object arg0) throws Exception {
+        final ByteMap<byte[][]> index_tags = getTagIndexTags();
+        if (index_tags != null) {
+          return tsdb.getTagIndex().lookup(metric_uid, index_tags)
+              .addCallback(new TagIndexCB());
+        }
         if (!query.useMeta() && Const.SALT_WIDTH() > 0 && metric_uid != null) {
           final ArrayList<Deferred<List<byte[]>>> deferreds = 
               new ArrayList<Deferred<List<byte[]>>>(Const.SALT_BUCKETS());
@@ -433,6 +458,39 @@ public class TimeSeriesLookup {
     return scanner;
   }
   
+  /**
+   * Groups the tag pairs by tag key for a lookup in the tag index. The index
+   * is only used when it's enabled for queries, a metric was given and every
+   * pair has both a tag key and value.
+   * @return The tag values keyed on tag keys or null if the index can't be
+   * used for this query.
+   */
+  private ByteMap<byte[][]> getTagIndexTags() {
+    final TagIndex tag_index = tsdb.getTagIndex();
+    if (tag_index == null || !tag_index.useForQueries() || to_stdout ||
+        metric_uid == null || pairs == null || pairs.isEmpty()) {
+      return null;
+    }
+    final ByteMap<List<byte[]>> grouped = new ByteMap<List<byte[]>>();
+    for (final ByteArrayPair pair : pairs) {
+      if (pair.getKey() == null || pair.getValue() == null) {
+        return null;
+      }
+      List<byte[]> values = grouped.get(pair.getKey());
+      if (values == null) {
+        values = new ArrayList<byte[]>(1);
+        grouped.put(pair.getKey(), values);
+      }
+      values.add(pair.getValue());
+    }
+    final ByteMap<byte[][]> tags = new ByteMap<byte[][]>();
+    for (final Map.Entry<byte[], List<byte[]>> entry : grouped.entrySet()) {
+      tags.put(entry.getKey(), 
+          entry.getValue().toArray(new byte[entry.getValue().size()][]));
+    }
+    return tags;
+  }
+  
   /**
    * Constructs a row key regular expression to pass to HBase if the user gave
    * some tags in the query
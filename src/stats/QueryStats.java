@@ -152,11 +152,24 @@ public class QueryStats {
     
     // Overall Salt Scanner stats
     SCANNER_MERGE_TIME ("saltScannerMergeTime", true),
+    SPAN_BUILD_TIME ("saltScannerSpanBuildTime", true),
+    SPAN_COMBINE_TIME ("saltScannerSpanCombineTime", true),
     
     // Post Scan stats
     QUERY_SCAN_TIME ("queryScanTime", true),
     GROUP_BY_TIME ("groupByTime", true),
     
+    // Rollup plan stats
+    ROLLUP_PLAN_INTERVAL ("rollupPlanInterval", false),
+    ROLLUP_PLAN_ESTIMATED_DPS ("rollupPlanEstimatedDps", false),
+    ROLLUP_PLAN_ESTIMATED_ROWS ("rollupPlanEstimatedRows", false),
+    RAW_STITCH_START ("rawStitchStart", false),
+    
+    // Expression stats
+    EXPRESSION_JOIN_TIME ("expressionJoinTime", true),
+    EXPRESSION_JOIN_INPUT_SERIES ("expressionJoinInputSeries", false),
+    EXPRESSION_JOIN_OUTPUT_SERIES ("expressionJoinOutputSeries", false),
+    
     // Serialization time stats
     UID_TO_STRING_TIME ("uidToStringTime", true),
     AGGREGATED_SIZE ("emittedDPs", false),
@@ -164,6 +177,12 @@ public class QueryStats {
     AGGREGATION_TIME ("aggregationTime", true),
     SERIALIZATION_TIME ("serializationTime", true),
     
+    // Response buffering stats
+    MAX_BUFFERED_BYTES ("maxBufferedBytes", false),
+    STREAMED_CHUNKS ("streamedChunks", false),
+    TIME_TO_FIRST_BYTE ("timeToFirstByte", true),
+    WRITE_BLOCKED_TIME ("writeBlockedTime", true),
+    
     // Final stats
     PROCESSING_PRE_WRITE_TIME ("processingPreWriteTime", true),
     TOTAL_TIME ("totalTime", true),
@@ -371,6 +390,16 @@ public class QueryStats {
     }
   }
   
+  /**
+   * Records the time from the start of the query until the first bytes of
+   * a streamed response were handed to the channel.
+   * @since 2.4
+   */
+  public void markFirstByte() {
+    overall_stats.put(QueryStat.TIME_TO_FIRST_BYTE, 
+        DateTime.nanoTime() - query_start_ns);
+  }
+  
   /**
    * Marks the query as complete and logs it to the proper logs. This is called
    * after the data has been sent to the client.
@@ -24,12 +24,14 @@ import net.opentsdb.core.Internal;
 import net.opentsdb.core.RowKey;
 import net.opentsdb.core.TSDB;
 import net.opentsdb.uid.UniqueId;
+import net.opentsdb.utils.Pair;
 
 import org.hbase.async.Bytes;
 import org.hbase.async.GetRequest;
 import org.hbase.async.HBaseClient;
 import org.hbase.async.HBaseException;
 import org.hbase.async.KeyValue;
+import org.hbase.async.RegionLocation;
 import org.hbase.async.Scanner;
 
 /**
@@ -156,15 +158,51 @@ final class CliUtils {
    */
   static final List<Scanner> getDataTableScanners(final TSDB tsdb, 
       final int num_scanners) {
+    final List<Pair<byte[], byte[]>> ranges = 
+        getDataTableRanges(tsdb, num_scanners);
+    final List<Scanner> scanners = new ArrayList<Scanner>(ranges.size());
+    for (final Pair<byte[], byte[]> range : ranges) {
+      scanners.add(getDataTableScanner(tsdb, range));
+    }
+    return scanners;
+  }
+
+  /**
+   * Returns a scanner set to iterate over a range of row keys in the main 
+   * tsdb-data table.
+   * @param tsdb The TSDB to use for data access
+   * @param range The start and stop keys, either of which may be empty
+   * @return A scanner on the "t" CF configured for the specified range
+   */
+  static final Scanner getDataTableScanner(final TSDB tsdb, 
+      final Pair<byte[], byte[]> range) {
+    final Scanner scanner = tsdb.getClient().newScanner(tsdb.dataTable());
+    scanner.setStartKey(Arrays.copyOf(range.getKey(), range.getKey().length));
+    scanner.setStopKey(Arrays.copyOf(range.getValue(), 
+        range.getValue().length));
+    scanner.setFamily(TSDB.FAMILY());
+    return scanner;
+  }
+
+  /**
+   * Splits the full TSDB data table into ranges without asking HBase where 
+   * the regions are. If salting is enabled then {@link Const.SaltBukets()} 
+   * ranges will be returned. If salting is disabled then {@link num_scanners} 
+   * ranges will be returned, split on the max metric ID.
+   * @param tsdb The TSDB to split the table for
+   * @param num_scanners The max number of ranges if salting is disabled
+   * @return A list of start and stop keys, in key order.
+   * @since 2.4
+   */
+  static final List<Pair<byte[], byte[]>> getDataTableRanges(final TSDB tsdb, 
+      final int num_scanners) {
     if (num_scanners < 1) {
       throw new IllegalArgumentException(
           "Number of scanners must be 1 or more: " + num_scanners);
     }
-    // TODO - It would be neater to get a list of regions then create scanners
-    // on those boundaries. We'll have to modify AsyncHBase for that to avoid
-    // creating lots of custom HBase logic in here.
     final short metric_width = TSDB.metrics_width();
-    final List<Scanner> scanners = new ArrayList<Scanner>();    
+    final List<Pair<byte[], byte[]>> ranges = 
+        new ArrayList<Pair<byte[], byte[]>>();
     
     if (Const.SALT_WIDTH() > 0) {
       // salting is enabled so we'll create one scanner per salt for now
@@ -182,11 +220,9 @@ final class CliUtils {
         } else {
           stop_key = RowKey.getSaltBytes(i);
         }
-        final Scanner scanner = tsdb.getClient().newScanner(tsdb.dataTable());
-        scanner.setStartKey(Arrays.copyOf(start_key, start_key.length));
-        scanner.setStopKey(Arrays.copyOf(stop_key, stop_key.length));
-        scanner.setFamily(TSDB.FAMILY());
-        scanners.add(scanner);
+        ranges.add(new Pair<byte[], byte[]>(
+            Arrays.copyOf(start_key, start_key.length),
+            Arrays.copyOf(stop_key, stop_key.length)));
       }
       
     } else {
@@ -221,20 +257,46 @@ final class CliUtils {
               0, metric_width);
         }
         
-        final Scanner scanner = tsdb.getClient().newScanner(tsdb.dataTable());
-        scanner.setStartKey(Arrays.copyOf(start_key, start_key.length));
-        if (stop_key != null) {
-          scanner.setStopKey(Arrays.copyOf(stop_key, stop_key.length));
-        }
-        scanner.setFamily(TSDB.FAMILY());
-        scanners.add(scanner);
+        ranges.add(new Pair<byte[], byte[]>(
+            Arrays.copyOf(start_key, start_key.length),
+            Arrays.copyOf(stop_key, stop_key.length)));
       }
       
     }
     
-    return scanners;
+    return ranges;
   }
-  
+
+  /**
+   * Walks the regions of the TSDB data table from the first to the last and
+   * returns their boundaries so that scans line up with region servers.
+   * @param tsdb The TSDB to use for data access
+   * @return A list of start and stop keys, one per region, in key order. The
+   * first start key and the last stop key are empty.
+   * @throws IllegalStateException if the regions don't line up, e.g. when a
+   * region was split while we were walking the table
+   * @throws Exception if a region couldn't be located
+   * @since 2.4
+   */
+  static final List<Pair<byte[], byte[]>> getDataTableRegions(final TSDB tsdb)
+      throws Exception {
+    final List<Pair<byte[], byte[]>> regions = 
+        new ArrayList<Pair<byte[], byte[]>>();
+    byte[] start_key = HBaseClient.EMPTY_ARRAY;
+    do {
+      final RegionLocation region = tsdb.getClient()
+          .locateRegion(tsdb.dataTable(), start_key).joinUninterruptibly();
+      final byte[] stop_key = region.getStopKey();
+      if (stop_key.length > 0 && Bytes.memcmp(stop_key, start_key) <= 0) {
+        throw new IllegalStateException("Region " + region 
+            + " doesn't end after " + Bytes.pretty(start_key));
+      }
+      regions.add(new Pair<byte[], byte[]>(start_key, stop_key));
+      start_key = stop_key;
+    } while (start_key.length > 0);
+    return regions;
+  }
+
   /**
    * Invokes the reflected {@code UniqueId.toBytes()} method with the given
    * string  using the UniqueId character set.
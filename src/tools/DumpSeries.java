@@ -27,6 +27,7 @@ import org.hbase.async.KeyValue;
 import org.hbase.async.Scanner;
 
 import net.opentsdb.core.Const;
+import net.opentsdb.core.GorillaColumn;
 import net.opentsdb.core.IllegalDataException;
 import net.opentsdb.core.Internal;
 import net.opentsdb.core.Internal.Cell;
@@ -182,7 +183,8 @@ final class DumpSeries {
     final byte[] value = kv.value();
     final int q_len = qualifier.length;
 
-    if (!AppendDataPoints.isAppendDataPoints(qualifier) && q_len % 2 != 0) {
+    if (!AppendDataPoints.isAppendDataPoints(qualifier)
+        && !GorillaColumn.isGorillaColumn(qualifier) && q_len % 2 != 0) {
       if (!importformat) {
         // custom data object, not a data point
         if (kv.qualifier()[0] == Annotation.PREFIX()) {
@@ -206,7 +208,7 @@ final class DumpSeries {
       }
     } else {
       final Collection<Cell> cells;
-      if (q_len == 3) {
+      if (AppendDataPoints.isAppendDataPoints(qualifier)) {
         // append data points
         final AppendDataPoints adps = new AppendDataPoints();
         cells = adps.parseKeyValue(tsdb, kv);
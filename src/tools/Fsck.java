@@ -12,6 +12,7 @@
 // see <http://www.gnu.org/licenses/>.
 package net.opentsdb.tools;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -28,6 +29,7 @@ import org.slf4j.LoggerFactory;
 import org.hbase.async.Bytes;
 import org.hbase.async.Bytes.ByteMap;
 import org.hbase.async.DeleteRequest;
+import org.hbase.async.HBaseClient;
 import org.hbase.async.KeyValue;
 import org.hbase.async.PutRequest;
 import org.hbase.async.Scanner;
@@ -37,6 +39,7 @@ import com.stumbleupon.async.Deferred;
 
 import net.opentsdb.core.AppendDataPoints;
 import net.opentsdb.core.Const;
+import net.opentsdb.core.GorillaColumn;
 import net.opentsdb.core.IllegalDataException;
 import net.opentsdb.core.Internal;
 import net.opentsdb.core.Internal.Cell;
@@ -49,6 +52,7 @@ import net.opentsdb.meta.Annotation;
 import net.opentsdb.uid.NoSuchUniqueId;
 import net.opentsdb.uid.UniqueId;
 import net.opentsdb.utils.Config;
+import net.opentsdb.utils.Pair;
 
 /**
  * Tool to look for and fix corrupted data in a TSDB. FSCK can be used to
@@ -97,6 +101,7 @@ final class Fsck {
   final AtomicLong annotations = new AtomicLong();
   final AtomicLong append_dps = new AtomicLong();
   final AtomicLong append_dps_fixed = new AtomicLong();
+  final AtomicLong gorilla_columns = new AtomicLong();
   final AtomicLong bad_key = new AtomicLong();
   final AtomicLong bad_key_fixed = new AtomicLong();
   final AtomicLong duplicates = new AtomicLong();
@@ -139,9 +144,12 @@ final class Fsck {
   }
 
   /**
-   * Fetches the max metric ID and splits the data table up amongst threads on
-   * a naive split. By default we execute cores * 2 threads but the user can
-   * specify more or fewer.
+   * Splits the data table on region boundaries and has the workers pull the
+   * regions off a work stealing queue. If the regions can't be located, or
+   * there are fewer regions than workers, the table is also split on salt
+   * buckets or the max metric ID. By default we execute cores * 2 threads but
+   * the user can specify more or fewer. If a checkpoint file was given,
+   * ranges completed by previous runs are skipped and new ones recorded.
    * @throws Exception If something goes pear shaped.
    */
   public void runFullTable() throws Exception {
@@ -150,24 +158,40 @@ final class Fsck {
     final int workers = options.threads() > 0 ? options.threads() :
       Runtime.getRuntime().availableProcessors() * 2;
 
-    final List<Scanner> scanners = CliUtils.getDataTableScanners(tsdb, workers);
-    LOG.info("Spooling up [" + scanners.size() + "] worker threads");
-    final List<Thread> threads = new ArrayList<Thread>(scanners.size());
-    int i = 0;
-    for (final Scanner scanner : scanners) {
-      final FsckWorker worker = new FsckWorker(scanner, i++, this.options);
-      worker.setName("Fsck #" + i);
-      worker.start();
-      threads.add(worker);
+    List<Pair<byte[], byte[]>> ranges;
+    try {
+      ranges = CliUtils.getDataTableRegions(tsdb);
+      LOG.info("Found [" + ranges.size() + "] regions in the data table");
+      if (ranges.size() < workers) {
+        ranges = mergeSplits(ranges, CliUtils.getDataTableRanges(tsdb, workers));
+      }
+    } catch (Exception e) {
+      LOG.warn("Unable to locate the data table regions, splitting on "
+          + (Const.SALT_WIDTH() > 0 ? "salt buckets" : "metric IDs"), e);
+      ranges = CliUtils.getDataTableRanges(tsdb, workers);
     }
 
-    final Thread reporter = new ProgressReporter();
-    reporter.start();
-    for (final Thread thread : threads) {
-      thread.join();
-      LOG.info("Thread [" + thread + "] Finished");
+    final FsckCheckpoint checkpoint = options.checkpoint() == null ? null :
+      new FsckCheckpoint(options.checkpoint());
+    if (checkpoint != null) {
+      final int total = ranges.size();
+      ranges = checkpoint.remaining(ranges);
+      LOG.info("Checkpoint [" + options.checkpoint() + "] has ["
+          + checkpoint.completedRanges() + "] completed ranges, skipping ["
+          + (total - ranges.size()) + "] of [" + total + "]");
+    }
+
+    final List<Chunk> chunks = new ArrayList<Chunk>(ranges.size());
+    for (final Pair<byte[], byte[]> range : ranges) {
+      chunks.add(new Chunk(CliUtils.getDataTableScanner(tsdb, range), range));
+    }
+    try {
+      runWorkers(chunks, workers, checkpoint);
+    } finally {
+      if (checkpoint != null) {
+        checkpoint.close();
+      }
     }
-    reporter.interrupt();
 
     logResults();
     final long duration = (System.currentTimeMillis() / 1000) - start_time;
@@ -176,42 +200,120 @@ final class Fsck {
 
   /**
    * Scans the rows matching one or more standard queries. An aggregator is still
-   * required though it's ignored.
+   * required though it's ignored. The scanners of all of the queries share
+   * the same pool of workers so that queries run concurrently without
+   * spinning up a thread per scanner.
    * @param queries The queries to execute
    * @throws Exception If something goes pear shaped.
    */
   public void runQueries(final List<Query> queries) throws Exception {
     final long start_time = System.currentTimeMillis() / 1000;
+    final int workers = options.threads() > 0 ? options.threads() :
+      Runtime.getRuntime().availableProcessors() * 2;
 
-    // TODO - threadify it. We *could* have hundreds of queries and we don't
-    // want to create that many threads. For now we'll just execute each one
-    // serially
-    final Thread reporter = new ProgressReporter();
-    reporter.start();
-
+    final List<Chunk> chunks = new ArrayList<Chunk>();
     for (final Query query : queries) {
-      final List<Scanner> scanners = Internal.getScanners(query);
-      final List<Thread> threads = new ArrayList<Thread>(scanners.size());
-      int i = 0;
-      for (final Scanner scanner : scanners) {
-        final FsckWorker worker = new FsckWorker(scanner, i++, this.options);
-        worker.setName("Fsck #" + i);
-        worker.start();
-        threads.add(worker);
-      }
-
-      for (final Thread thread : threads) {
-        thread.join();
-        LOG.info("Thread [" + thread + "] Finished");
+      for (final Scanner scanner : Internal.getScanners(query)) {
+        chunks.add(new Chunk(scanner, null));
       }
     }
-    reporter.interrupt();
+    runWorkers(chunks, workers, null);
 
     logResults();
     final long duration = (System.currentTimeMillis() / 1000) - start_time;
     LOG.info("Completed fsck in [" + duration + "] seconds");
   }
 
+  /**
+   * Spins up the workers on a work stealing queue of chunks along with the
+   * progress reporter and waits for them to finish.
+   * @param chunks The chunks of work to process
+   * @param workers The max number of workers to run
+   * @param checkpoint An optional checkpoint to record completed ranges in
+   * @throws InterruptedException if we were interrupted while waiting
+   */
+  private void runWorkers(final List<Chunk> chunks, final int workers,
+      final FsckCheckpoint checkpoint) throws InterruptedException {
+    final int num_workers = Math.max(1, Math.min(workers, chunks.size()));
+    final FsckWorkQueue<Chunk> queue =
+        new FsckWorkQueue<Chunk>(chunks, num_workers);
+    LOG.info("Spooling up [" + num_workers + "] worker threads for ["
+        + chunks.size() + "] chunks");
+    final List<FsckWorker> threads = new ArrayList<FsckWorker>(num_workers);
+    for (int i = 0; i < num_workers; i++) {
+      final FsckWorker worker = new FsckWorker(queue, i, this.options,
+          checkpoint);
+      worker.setName("Fsck #" + (i + 1));
+      worker.start();
+      threads.add(worker);
+    }
+
+    final Thread reporter = new ProgressReporter(threads, queue);
+    reporter.start();
+    for (final Thread thread : threads) {
+      thread.join();
+      LOG.info("Thread [" + thread + "] Finished");
+    }
+    reporter.interrupt();
+    LOG.info("Workers stole [" + queue.steals() + "] chunks from each other");
+  }
+
+  /**
+   * Splits the region ranges further on the boundaries of the naive ranges so
+   * that small tables with only a few regions still keep all workers busy.
+   * @param regions The region boundaries
+   * @param splits The naive salt bucket or metric ID splits
+   * @return The ranges between every boundary of either list, in key order
+   */
+  static List<Pair<byte[], byte[]>> mergeSplits(
+      final List<Pair<byte[], byte[]>> regions,
+      final List<Pair<byte[], byte[]>> splits) {
+    final TreeMap<byte[], Boolean> boundaries =
+        new TreeMap<byte[], Boolean>(Bytes.MEMCMP);
+    for (final Pair<byte[], byte[]> range : regions) {
+      boundaries.put(range.getKey(), true);
+    }
+    for (final Pair<byte[], byte[]> range : splits) {
+      boundaries.put(range.getKey(), true);
+    }
+    // the empty start key sorts first and is always present
+    boundaries.put(HBaseClient.EMPTY_ARRAY, true);
+    final List<Pair<byte[], byte[]>> merged =
+        new ArrayList<Pair<byte[], byte[]>>(boundaries.size());
+    byte[] start_key = null;
+    for (final byte[] key : boundaries.keySet()) {
+      if (start_key != null) {
+        merged.add(new Pair<byte[], byte[]>(start_key, key));
+      }
+      start_key = key;
+    }
+    merged.add(new Pair<byte[], byte[]>(start_key, HBaseClient.EMPTY_ARRAY));
+    return merged;
+  }
+
+  /**
+   * A unit of work for the workers: a scanner over a query or a range of the
+   * data table.
+   */
+  static final class Chunk {
+    /** The scanner to use for iterating over the chunk */
+    final Scanner scanner;
+    /** The start and stop keys on full table scans, null for queries */
+    final Pair<byte[], byte[]> range;
+
+    Chunk(final Scanner scanner, final Pair<byte[], byte[]> range) {
+      this.scanner = scanner;
+      this.range = range;
+    }
+
+    @Override
+    public String toString() {
+      return range == null ? scanner.toString() :
+        "[" + Bytes.pretty(range.getKey()) + ", "
+          + Bytes.pretty(range.getValue()) + ")";
+    }
+  }
+
   /** @return The total number of errors detected during the run */
   long totalErrors() {
     return bad_key.get() + duplicates.get() + orphans.get() + unknown.get() +
@@ -259,14 +361,20 @@ final class Fsck {
     final int thread_id;
     /** Optional query to execute instead of a full table scan */
     final Query query;
-    /** The scanner to use for iterating over a chunk of the table */
-    final Scanner scanner;
+    /** The queue to pull chunks of the table or queries off of */
+    final FsckWorkQueue<Chunk> queue;
+    /** Where to record completed ranges, may be null */
+    final FsckCheckpoint checkpoint;
     /** Set of TSUIDs this worker has seen. Used to avoid UID resolution for
      * previously processed row keys */
     final Set<String> tsuids = new HashSet<String>();
 
     final FsckOptions options;
 
+    /** Rows and chunks processed by this worker, read by the reporter */
+    volatile long rows_scanned;
+    volatile int chunks_done;
+
     /** Shared flags and values for compiling a compacted column */
     byte[] compact_qualifier = null;
     int qualifier_index = 0;
@@ -277,24 +385,52 @@ final class Fsck {
     int value_bytes = 0;
 
     /**
-     * Ctor for running a worker on a chunk of the data table
-     * @param scanner The scanner to use for iterationg
+     * Ctor for running a worker on chunks of the data table or queries
+     * @param queue The queue to pull chunks off of
      * @param thread_id Id of the thread this worker is assigned for logging
+     * @param options Options to use while iterating over rows
+     * @param checkpoint An optional checkpoint to record completed ranges in
      */
-    FsckWorker(final Scanner scanner, final int thread_id, final FsckOptions options) {
-      this.scanner = scanner;
+    FsckWorker(final FsckWorkQueue<Chunk> queue, final int thread_id,
+        final FsckOptions options, final FsckCheckpoint checkpoint) {
+      this.queue = queue;
       this.thread_id = thread_id;
       query = null;
       this.options = options;
+      this.checkpoint = checkpoint;
     }
 
     /**
-     * Determines the type of scanner to use, i.e. a specific query scanner or
-     * for a portion of the whole table. It then performs the actual scan,
-     * compiling a list of data points and fixing/compacting them when
-     * appropriate.
+     * Pulls chunks off the queue until there are none left, stealing from
+     * other workers once our own are done, and records each completed range
+     * in the checkpoint.
      */
     public void run() {
+      Chunk chunk;
+      while ((chunk = queue.next(thread_id)) != null) {
+        if (!fsckScanner(chunk.scanner)) {
+          LOG.error("Failed to fsck chunk " + chunk);
+          continue;
+        }
+        chunks_done++;
+        if (checkpoint != null && chunk.range != null) {
+          try {
+            checkpoint.complete(chunk.range);
+          } catch (IOException e) {
+            LOG.error("Failed to checkpoint chunk " + chunk, e);
+          }
+        }
+      }
+    }
+
+    /**
+     * Performs the actual scan, compiling a list of data points and
+     * fixing/compacting them when appropriate.
+     * @param scanner The scanner over a query or range of the table
+     * @return True if the whole chunk was processed, false if something
+     * went wrong along the way.
+     */
+    private boolean fsckScanner(final Scanner scanner) {
       // store every data point for the row in here
       final TreeMap<Long, ArrayList<DP>> datapoints =
         new TreeMap<Long, ArrayList<DP>>();
@@ -315,6 +451,7 @@ final class Fsck {
             if (last_key != null && Bytes.memcmp(row.get(0).key(), last_key) != 0) {
               // new row so flush the old one
               rows_processed.getAndIncrement();
+              rows_scanned++;
               if (!datapoints.isEmpty()) {
                 compact_qualifier = new byte[qualifier_bytes];
                 compact_value = new byte[value_bytes+1];
@@ -331,12 +468,18 @@ final class Fsck {
         // handle the last row
         if (!datapoints.isEmpty()) {
           rows_processed.getAndIncrement();
+          rows_scanned++;
           compact_qualifier = new byte[qualifier_bytes];
           compact_value = new byte[value_bytes+1];
           fsckDataPoints(datapoints);
         }
+        return true;
       } catch (Exception e) {
         LOG.error("Shouldn't be here", e);
+        return false;
+      } finally {
+        // the next chunk starts on a fresh row
+        resetCompaction();
       }
     }
 
@@ -415,6 +558,37 @@ final class Fsck {
           if (qual[0] == Annotation.PREFIX()) {
             annotations.getAndIncrement();
             continue;
+          } else if (GorillaColumn.isGorillaColumn(qual)) {
+            gorilla_columns.getAndIncrement();
+            // blocks are validated by decoding them and their data points go
+            // into the tree like those of any other compacted column
+            try {
+              for (final Cell cell : Internal.extractDataPoints(kv)) {
+                final long ts = cell.timestamp(base_time);
+                ArrayList<DP> dps = datapoints.get(ts);
+                if (dps == null) {
+                  dps = new ArrayList<DP>(1);
+                  datapoints.put(ts, dps);
+                }
+                dps.add(new DP(kv, cell));
+                qualifier_bytes += cell.qualifier().length;
+                value_bytes += cell.value().length;
+              }
+              compact_row = true;
+            } catch (IllegalDataException e) {
+              bad_compacted_columns.getAndIncrement();
+              LOG.error(e.getMessage() + ": " + kv);
+              if (options.fix() && options.deleteBadCompacts()) {
+                final DeleteRequest delete = new DeleteRequest(tsdb.dataTable(), kv);
+                Deferred<Object> operation_result = tsdb.getClient().delete(delete);
+                operation_result.addErrback(new GeneralErrCallBack(delete));
+                if (options.fixInSync()) {
+                  operation_result.join(options.getFixTimeout());
+                }
+                bad_compacted_columns_deleted.getAndIncrement();
+              }
+            }
+            continue;
           } else if (qual[0] == AppendDataPoints.APPEND_COLUMN_PREFIX) {
             append_dps.getAndIncrement();
             try {
@@ -760,10 +934,17 @@ final class Fsck {
           compact_value[value_index] = 1;
         }
         value_index++;
-        final byte[] new_qualifier = Arrays.copyOfRange(compact_qualifier, 0,
+        byte[] new_qualifier = Arrays.copyOfRange(compact_qualifier, 0,
             qualifier_index);
-        final byte[] new_value = Arrays.copyOfRange(compact_value, 0,
+        byte[] new_value = Arrays.copyOfRange(compact_value, 0,
             value_index);
+        if (tsdb.getConfig().getBoolean("tsd.storage.compaction.gorilla.enable")) {
+          final byte[] encoded = GorillaColumn.encode(new_qualifier, new_value);
+          if (encoded != null) {
+            new_qualifier = GorillaColumn.QUALIFIER;
+            new_value = encoded;
+          }
+        }
         final PutRequest put = RequestBuilder.buildPutRequest(tsdb.getConfig(), tsdb.dataTable(), key,
             TSDB.FAMILY(), new_qualifier, new_value, timestamp);
 
@@ -1188,14 +1369,23 @@ final class Fsck {
   }
 
   /**
-   * Silly little class to report the progress while fscking
+   * Silly little class to report the progress while fscking, along with the
+   * throughput of each worker since the last report.
    */
   final class ProgressReporter extends Thread {
-    ProgressReporter() {
+    private final List<FsckWorker> workers;
+    private final FsckWorkQueue<Chunk> queue;
+
+    ProgressReporter(final List<FsckWorker> workers,
+        final FsckWorkQueue<Chunk> queue) {
       super("Progress");
+      this.workers = workers;
+      this.queue = queue;
     }
     public void run() {
       long last_progress = 0;
+      long last_time = System.currentTimeMillis();
+      final long[] last_rows = new long[workers.size()];
       while(true) {
         try {
           long processed_rows = rows_processed.get();
@@ -1203,10 +1393,23 @@ final class Fsck {
           if (processed_rows - last_progress >= report_rows) {
             last_progress = processed_rows;
             LOG.info("Processed " + processed_rows + " rows, " +
-                valid_datapoints.get() + " valid datapoints");
+                valid_datapoints.get() + " valid datapoints, " +
+                queue.remaining() + " chunks left");
+            final long now = System.currentTimeMillis();
+            final long elapsed = Math.max(1, now - last_time);
+            last_time = now;
+            for (int i = 0; i < workers.size(); i++) {
+              final FsckWorker worker = workers.get(i);
+              final long rows = worker.rows_scanned;
+              LOG.info(worker.getName() + ": " 
+                  + ((rows - last_rows[i]) * 1000 / elapsed) + " rows/s, " 
+                  + rows + " rows, " + worker.chunks_done + " chunks");
+              last_rows[i] = rows;
+            }
           }
           Thread.sleep(1000);
         } catch (InterruptedException e) {
+          return;
         }
       }
     }
@@ -1237,6 +1440,7 @@ final class Fsck {
     LOG.info("Rows Processed: " + rows_processed.get());
     LOG.info("Valid Datapoints: " + valid_datapoints.get());
     LOG.info("Annotations: " + annotations.get());
+    LOG.info("Gorilla Compacted Columns: " + gorilla_columns.get());
     LOG.info("Invalid Row Keys Found: " + bad_key.get());
     LOG.info("Invalid Rows Deleted: " + bad_key_fixed.get());
     LOG.info("Duplicate Datapoints: " + duplicates.get());
@@ -0,0 +1,185 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tools;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.HBaseClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.opentsdb.core.Const;
+import net.opentsdb.uid.UniqueId;
+import net.opentsdb.utils.Pair;
+
+/**
+ * Records the data table ranges a full fsck has finished in a local file so
+ * that a run that died can pick up where it left off.
+ * <p>
+ * Each line holds the hex encoded start and stop keys of a completed range,
+ * with "-" standing in for the empty key at either end of the table. Lines
+ * are appended and flushed as ranges complete so a crash loses at most the
+ * ranges that were in flight. When resuming, a range is skipped if it lies
+ * entirely within a completed one, which still holds after regions split. If
+ * regions were merged in between, the merged range is scanned again.
+ * @since 2.4
+ */
+final class FsckCheckpoint {
+  private static final Logger LOG = LoggerFactory.getLogger(FsckCheckpoint.class);
+
+  /** Stands in for the empty start or stop key */
+  private static final String EMPTY_KEY = "-";
+
+  /** The ranges completed by previous runs */
+  private final List<Pair<byte[], byte[]>> completed;
+
+  /** Where we append completed ranges, guarded by this */
+  private final Writer writer;
+
+  /**
+   * Loads the completed ranges, if any, and opens the file for appending.
+   * @param path The path to the checkpoint file, created if it's missing.
+   * @throws IOException if the file couldn't be read or opened
+   */
+  FsckCheckpoint(final String path) throws IOException {
+    final File file = new File(path);
+    completed = new ArrayList<Pair<byte[], byte[]>>();
+    if (file.exists()) {
+      final BufferedReader reader = new BufferedReader(new InputStreamReader(
+          new FileInputStream(file), Const.ASCII_CHARSET));
+      try {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          final Pair<byte[], byte[]> range = parse(line);
+          if (range != null) {
+            completed.add(range);
+          } else if (!line.isEmpty()) {
+            // likely the last line of a run that died mid write
+            LOG.warn("Ignoring malformed checkpoint line: " + line);
+          }
+        }
+      } finally {
+        reader.close();
+      }
+    }
+    writer = new OutputStreamWriter(new FileOutputStream(file, true),
+        Const.ASCII_CHARSET);
+  }
+
+  /** @return The number of ranges completed by previous runs */
+  int completedRanges() {
+    return completed.size();
+  }
+
+  /**
+   * Filters out the ranges that previous runs already completed.
+   * @param ranges The ranges to scan.
+   * @return The ranges that still need scanning, in the same order.
+   */
+  List<Pair<byte[], byte[]>> remaining(final List<Pair<byte[], byte[]>> ranges) {
+    final List<Pair<byte[], byte[]>> remaining =
+        new ArrayList<Pair<byte[], byte[]>>(ranges.size());
+    for (final Pair<byte[], byte[]> range : ranges) {
+      boolean done = false;
+      for (final Pair<byte[], byte[]> previous : completed) {
+        if (contains(previous, range)) {
+          done = true;
+          break;
+        }
+      }
+      if (!done) {
+        remaining.add(range);
+      }
+    }
+    return remaining;
+  }
+
+  /**
+   * Records a range as completed and flushes it to disk.
+   * @param range The range that was scanned.
+   * @throws IOException if the write failed
+   */
+  synchronized void complete(final Pair<byte[], byte[]> range)
+      throws IOException {
+    writer.write(toString(range.getKey()) + " " + toString(range.getValue())
+        + "\n");
+    writer.flush();
+  }
+
+  /** Closes the checkpoint file. */
+  synchronized void close() throws IOException {
+    writer.close();
+  }
+
+  /**
+   * Whether the outer range covers the inner one, where an empty stop key
+   * means the end of the table.
+   * @param outer A completed range
+   * @param inner A range to scan
+   * @return True if the inner range has been scanned
+   */
+  static boolean contains(final Pair<byte[], byte[]> outer,
+      final Pair<byte[], byte[]> inner) {
+    if (Bytes.memcmp(outer.getKey(), inner.getKey()) > 0) {
+      return false;
+    }
+    if (outer.getValue().length == 0) {
+      return true;
+    }
+    return inner.getValue().length > 0
+        && Bytes.memcmp(inner.getValue(), outer.getValue()) <= 0;
+  }
+
+  /**
+   * Parses a checkpoint line.
+   * @param line The line to parse
+   * @return The range or null if the line was malformed
+   */
+  static Pair<byte[], byte[]> parse(final String line) {
+    final String[] keys = line.trim().split(" ");
+    if (keys.length != 2) {
+      return null;
+    }
+    try {
+      return new Pair<byte[], byte[]>(fromString(keys[0]), fromString(keys[1]));
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  /** @return The hex encoded key or "-" if it's empty */
+  private static String toString(final byte[] key) {
+    return key.length == 0 ? EMPTY_KEY : UniqueId.uidToString(key);
+  }
+
+  /** @return The decoded key */
+  private static byte[] fromString(final String key) {
+    if (EMPTY_KEY.equals(key)) {
+      return HBaseClient.EMPTY_ARRAY;
+    }
+    if (key.length() % 2 != 0) {
+      throw new IllegalArgumentException("Odd length key: " + key);
+    }
+    return UniqueId.stringToUid(key);
+  }
+}
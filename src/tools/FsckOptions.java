@@ -30,6 +30,7 @@ final class FsckOptions {
   private int threads;
   private long fix_timeout; // fix timeout for each operation results, time unit: milliseconds
   private boolean fix_in_sync_mode = false; // wait for each fix operation to finish to continue
+  private String checkpoint;
   
   /**
    * Default Ctor that sets the options based on command line flags and config
@@ -55,6 +56,7 @@ final class FsckOptions {
     delete_bad_compacts = argp.has("--delete-bad-compacts") || 
         argp.has("--fix-all");
     fix_in_sync_mode = argp.has("--sync");
+    checkpoint = argp.get("--checkpoint");
 
     if (argp.has("--threads")) {
       threads = Integer.parseInt(argp.get("--threads"));
@@ -95,8 +97,11 @@ final class FsckOptions {
     argp.addOption("--delete-bad-compacts", 
         "Delete compacted columns that cannot be parsed.");
     argp.addOption("--threads", "NUMBER",
-        "Number of threads to use when executing a full table scan.");
+        "Number of threads to use when executing a full table scan or queries.");
     argp.addOption("--sync", "Wait for each fix operation to finish to continue.");
+    argp.addOption("--checkpoint", "FILE",
+        "Record completed ranges of a full scan in FILE and skip them when "
+        + "re-run.");
   }
   
   /** @return Whether or not to fix errors while processing. Does not affect 
@@ -256,4 +261,14 @@ final class FsckOptions {
   public boolean fixInSync() {
     return this.fix_in_sync_mode;
   }
+
+  /** @return The file to record completed full scan ranges in, may be null */
+  public String checkpoint() {
+    return checkpoint;
+  }
+
+  /** @param checkpoint The file to record completed full scan ranges in */
+  public void setCheckpoint(final String checkpoint) {
+    this.checkpoint = checkpoint;
+  }
 }
@@ -0,0 +1,115 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tools;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out chunks of work, e.g. table regions, to a fixed set of fsck
+ * workers.
+ * <p>
+ * Each worker has its own deque, seeded round-robin so that neighbouring
+ * regions, which are likely on different region servers, go to different
+ * workers. A worker takes from the head of its own deque and, once that's
+ * empty, steals from the tail of the fullest other deque so that nobody sits
+ * idle while a slow worker still has a backlog.
+ * @param <T> The type of work handed out
+ * @since 2.4
+ */
+final class FsckWorkQueue<T> {
+
+  /** One deque per worker, each guarded by itself */
+  private final List<ArrayDeque<T>> deques;
+
+  /** How many chunks were taken from another worker's deque */
+  private final AtomicLong steals = new AtomicLong();
+
+  /**
+   * Default ctor.
+   * @param work The chunks of work, in the order they should be started.
+   * @param workers The number of workers that will call {@link #next}.
+   * @throws IllegalArgumentException if workers is less than 1
+   */
+  FsckWorkQueue(final List<T> work, final int workers) {
+    if (workers < 1) {
+      throw new IllegalArgumentException("Must have at least one worker");
+    }
+    deques = new ArrayList<ArrayDeque<T>>(workers);
+    for (int i = 0; i < workers; i++) {
+      deques.add(new ArrayDeque<T>());
+    }
+    int i = 0;
+    for (final T chunk : work) {
+      deques.get(i++ % workers).addLast(chunk);
+    }
+  }
+
+  /**
+   * Returns the next chunk for a worker, stealing from the others if its own
+   * deque is empty.
+   * @param worker The index of the worker, from 0 to workers - 1.
+   * @return A chunk of work or null if there's nothing left to do.
+   */
+  T next(final int worker) {
+    final ArrayDeque<T> own = deques.get(worker);
+    synchronized (own) {
+      final T chunk = own.pollFirst();
+      if (chunk != null) {
+        return chunk;
+      }
+    }
+
+    while (true) {
+      ArrayDeque<T> victim = null;
+      int most = 0;
+      for (final ArrayDeque<T> deque : deques) {
+        synchronized (deque) {
+          if (deque.size() > most) {
+            most = deque.size();
+            victim = deque;
+          }
+        }
+      }
+      if (victim == null) {
+        return null;
+      }
+      synchronized (victim) {
+        final T chunk = victim.pollLast();
+        if (chunk != null) {
+          steals.incrementAndGet();
+          return chunk;
+        }
+      }
+      // someone else emptied it in the mean time, look again
+    }
+  }
+
+  /** @return The number of chunks that haven't been handed out yet */
+  int remaining() {
+    int remaining = 0;
+    for (final ArrayDeque<T> deque : deques) {
+      synchronized (deque) {
+        remaining += deque.size();
+      }
+    }
+    return remaining;
+  }
+
+  /** @return How many chunks were taken from another worker's deque */
+  long steals() {
+    return steals.get();
+  }
+}
@@ -64,6 +64,9 @@ final class TextImporter {
     
     // get a config object
     Config config = CliOptions.getConfig(argp);
+    // the spool is only replayed once plugins are initialized, which the
+    // importer doesn't do, and it waits on the puts anyway
+    config.overrideConfig("tsd.storage.spool.enable", "false");
 
     final TSDB tsdb = new TSDB(config);
     final boolean skip_errors = argp.has("--skip-errors");
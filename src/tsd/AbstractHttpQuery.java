@@ -27,7 +27,9 @@ import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.handler.codec.http.DefaultHttpChunk;
 import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpChunk;
 import org.jboss.netty.handler.codec.http.HttpHeaders;
 import org.jboss.netty.handler.codec.http.HttpMethod;
 import org.jboss.netty.handler.codec.http.HttpRequest;
@@ -64,6 +66,9 @@ public abstract class AbstractHttpQuery {
   /** Parsed query string (lazily built on first access). */
   private Map<String, List<String>> querystring;
   
+  /** Whether or not we started a chunked response. */
+  private boolean chunked;
+  
   /** Deferred result of this query, to allow asynchronous processing.
    * (Optional.) */
   protected final Deferred<Object> deferred = new Deferred<Object>();
@@ -403,6 +408,10 @@ public abstract class AbstractHttpQuery {
    * @param status The response code to reply with
    */
   public void sendStatusOnly(final HttpResponseStatus status) {
+    if (chunked) {
+      abortChunked();
+      return;
+    }
     if (!chan.isConnected()) {
       if(stats != null) {
         stats.markSendFailed();
@@ -434,6 +443,10 @@ public abstract class AbstractHttpQuery {
   public void sendBuffer(final HttpResponseStatus status,
                           final ChannelBuffer buf,
                           final String contentType) {
+    if (chunked) {
+      abortChunked();
+      return;
+    }
     if (!chan.isConnected()) {
       if(stats != null) {
         stats.markSendFailed();
@@ -462,6 +475,70 @@ public abstract class AbstractHttpQuery {
     done();
   }
   
+  /**
+   * Starts a chunked HTTP response with a 200 status. The body must then be
+   * written with {@link #sendChunk} and terminated with 
+   * {@link #sendLastChunk}.
+   * @param contentType The content type of the response.
+   * @return The future of the write.
+   * @since 2.4
+   */
+  public ChannelFuture sendChunkedHeader(final String contentType) {
+    chunked = true;
+    response.setStatus(HttpResponseStatus.OK);
+    response.headers().set(HttpHeaders.Names.CONTENT_TYPE, contentType);
+    response.headers().set(HttpHeaders.Names.TRANSFER_ENCODING, 
+        HttpHeaders.Values.CHUNKED);
+    response.setChunked(true);
+    return chan.write(response);
+  }
+  
+  /**
+   * Writes a chunk of the body of a response started with 
+   * {@link #sendChunkedHeader}. The buffer must not be modified afterwards.
+   * @param buf The chunk to write.
+   * @return The future of the write.
+   * @since 2.4
+   */
+  public ChannelFuture sendChunk(final ChannelBuffer buf) {
+    return chan.write(new DefaultHttpChunk(buf));
+  }
+  
+  /**
+   * Terminates a chunked response and completes the query.
+   * @since 2.4
+   */
+  public void sendLastChunk() {
+    final ChannelFuture future = chan.write(HttpChunk.LAST_CHUNK);
+    if (stats != null) {
+      future.addListener(new SendSuccess());
+    }
+    if (!HttpHeaders.isKeepAlive(request)) {
+      future.addListener(ChannelFutureListener.CLOSE);
+    }
+    done();
+  }
+  
+  /** @return Whether or not a chunked response was started. 
+   * @since 2.4 */
+  public boolean isChunked() {
+    return chunked;
+  }
+  
+  /**
+   * Called when an error response is sent after a chunked response was 
+   * started. As the status was already sent, all we can do is close the
+   * connection so that the client sees a truncated response.
+   */
+  private void abortChunked() {
+    logWarn("Closing the connection as a chunked response failed");
+    if (stats != null) {
+      stats.markSendFailed();
+    }
+    chan.close();
+    done();
+  }
+  
   /** A simple class that marks a query as complete when the stats are set */
   private class SendSuccess implements ChannelFutureListener {
     @Override
@@ -0,0 +1,418 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.nio.charset.Charset;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+import net.opentsdb.core.IncomingDataPoint;
+
+/**
+ * Encoder and zero-copy decoder for the binary batch format accepted by
+ * {@code /api/put} when the request has the {@link #CONTENT_TYPE} content
+ * type. The batch carries a string dictionary for the metric and tag names
+ * followed by packed, fixed width columns for each series so that points can
+ * be read straight from the request buffer without materializing an object
+ * per data point.
+ * <p>
+ * All integers are big endian. Layout:
+ * <pre>
+ * int      magic "OTSP"
+ * byte     version
+ * byte     flags, reserved and must be 0
+ * int      number of dictionary strings, then for each: unsigned short
+ *          length and UTF-8 bytes
+ * int      number of series, then for each series:
+ *   int      metric dictionary index
+ *   short    number of tags, then key and value dictionary index pairs as
+ *            ints
+ *   int      number of points N
+ *   long[N]  timestamps in seconds or milliseconds
+ *   byte[ceil(N / 8)] types, bit i (MSB first) set if point i is an integer,
+ *            otherwise it's a double
+ *   long[N]  values, the long value or the IEEE 754 bits of the double
+ * </pre>
+ * @since 2.4
+ */
+public final class BinaryPutFormat {
+  /** "OTSP" */
+  public static final int MAGIC = 0x4F545350;
+  /** Current format version */
+  public static final byte VERSION = 1;
+  /** MIME type of the format */
+  public static final String CONTENT_TYPE = "application/x-opentsdb-put";
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private BinaryPutFormat() {
+    // static helpers only
+  }
+
+  /**
+   * Whether or not the request body is a binary put batch.
+   * @param query The HTTP query to check.
+   * @return True if the content type is {@link #CONTENT_TYPE}.
+   */
+  public static boolean isBinaryPut(final HttpQuery query) {
+    String content_type = query.request().headers().get("Content-Type");
+    if (content_type == null) {
+      return false;
+    }
+    if (content_type.indexOf(';') > -1) {
+      content_type = content_type.substring(0, content_type.indexOf(';'));
+    }
+    return CONTENT_TYPE.equalsIgnoreCase(content_type.trim());
+  }
+
+  /**
+   * Validates the structure of a batch and indexes its series. The point
+   * columns are not copied, they're read from the buffer on access so the
+   * buffer must not be modified while the batch is in use.
+   * @param buffer The buffer to decode, starting at its reader index.
+   * @return The decoded batch.
+   * @throws IllegalArgumentException if the batch is malformed.
+   */
+  public static Batch decode(final ChannelBuffer buffer) {
+    return new Batch(buffer);
+  }
+
+  /**
+   * A decoded batch of series. Names and tags are decoded once per batch or
+   * series, points are read from the underlying buffer by index.
+   */
+  public static final class Batch {
+    private final ChannelBuffer buffer;
+    private final String[] metrics;
+    private final List<Map<String, String>> tags;
+    private final int[] counts;
+    private final int[] timestamp_offsets;
+    private final int[] type_offsets;
+    private final int[] value_offsets;
+    private final int points;
+
+    private Batch(final ChannelBuffer buffer) {
+      this.buffer = buffer;
+      int idx = buffer.readerIndex();
+      final int end = buffer.writerIndex();
+
+      check(idx, 10, end, "header");
+      final int magic = buffer.getInt(idx);
+      if (magic != MAGIC) {
+        throw new IllegalArgumentException("Invalid magic 0x"
+            + Integer.toHexString(magic) + " for a binary put batch");
+      }
+      final byte version = buffer.getByte(idx + 4);
+      if (version != VERSION) {
+        throw new IllegalArgumentException("Unsupported binary put version "
+            + version);
+      }
+      final int num_strings = buffer.getInt(idx + 6);
+      idx += 10;
+      if (num_strings < 0 || num_strings > end - idx) {
+        throw new IllegalArgumentException("Invalid dictionary size "
+            + num_strings);
+      }
+      final String[] dictionary = new String[num_strings];
+      for (int i = 0; i < num_strings; i++) {
+        check(idx, 2, end, "dictionary");
+        final int length = buffer.getUnsignedShort(idx);
+        idx += 2;
+        check(idx, length, end, "dictionary");
+        dictionary[i] = buffer.toString(idx, length, UTF8);
+        idx += length;
+      }
+
+      check(idx, 4, end, "series count");
+      final int num_series = buffer.getInt(idx);
+      idx += 4;
+      if (num_series < 0 || num_series > end - idx) {
+        throw new IllegalArgumentException("Invalid series count "
+            + num_series);
+      }
+      metrics = new String[num_series];
+      tags = new ArrayList<Map<String, String>>(num_series);
+      counts = new int[num_series];
+      timestamp_offsets = new int[num_series];
+      type_offsets = new int[num_series];
+      value_offsets = new int[num_series];
+      long total = 0;
+      for (int s = 0; s < num_series; s++) {
+        check(idx, 6, end, "series header");
+        metrics[s] = lookup(dictionary, buffer.getInt(idx));
+        final int num_tags = buffer.getShort(idx + 4);
+        idx += 6;
+        if (num_tags < 0) {
+          throw new IllegalArgumentException("Invalid tag count " + num_tags
+              + " in series " + s);
+        }
+        check(idx, num_tags * 8, end, "tags");
+        final Map<String, String> series_tags =
+            new HashMap<String, String>(num_tags * 2);
+        for (int t = 0; t < num_tags; t++) {
+          series_tags.put(lookup(dictionary, buffer.getInt(idx)),
+              lookup(dictionary, buffer.getInt(idx + 4)));
+          idx += 8;
+        }
+        tags.add(Collections.unmodifiableMap(series_tags));
+
+        check(idx, 4, end, "point count");
+        final int count = buffer.getInt(idx);
+        idx += 4;
+        if (count < 0 || count > (end - idx) / 16) {
+          throw new IllegalArgumentException("Invalid point count " + count
+              + " in series " + s);
+        }
+        counts[s] = count;
+        timestamp_offsets[s] = idx;
+        idx += count * 8;
+        type_offsets[s] = idx;
+        idx += (count + 7) / 8;
+        value_offsets[s] = idx;
+        check(idx, count * 8, end, "values");
+        idx += count * 8;
+        total += count;
+      }
+      if (idx != end) {
+        throw new IllegalArgumentException((end - idx)
+            + " trailing bytes after the last series");
+      }
+      points = (int) total;
+    }
+
+    /** @return The number of series in the batch */
+    public int seriesCount() {
+      return metrics.length;
+    }
+
+    /** @return The total number of points in the batch */
+    public int size() {
+      return points;
+    }
+
+    /** @return The metric of the series */
+    public String metric(final int series) {
+      return metrics[series];
+    }
+
+    /** @return The tags of the series, not modifiable */
+    public Map<String, String> tags(final int series) {
+      return tags.get(series);
+    }
+
+    /** @return The number of points in the series */
+    public int pointCount(final int series) {
+      return counts[series];
+    }
+
+    /** @return The timestamp of a point */
+    public long timestamp(final int series, final int point) {
+      return buffer.getLong(timestamp_offsets[series] + point * 8);
+    }
+
+    /** @return Whether or not the point is an integer */
+    public boolean isInteger(final int series, final int point) {
+      return (buffer.getByte(type_offsets[series] + (point >>> 3))
+          & (0x80 >>> (point & 7))) != 0;
+    }
+
+    /** @return The value of an integer point */
+    public long longValue(final int series, final int point) {
+      return buffer.getLong(value_offsets[series] + point * 8);
+    }
+
+    /** @return The value of a floating point point */
+    public double doubleValue(final int series, final int point) {
+      return Double.longBitsToDouble(
+          buffer.getLong(value_offsets[series] + point * 8));
+    }
+
+    /**
+     * Materializes a point for error reporting.
+     * @return A new data point object.
+     */
+    public IncomingDataPoint toDataPoint(final int series, final int point) {
+      return new IncomingDataPoint(metrics[series], timestamp(series, point),
+          isInteger(series, point) ? Long.toString(longValue(series, point))
+              : Double.toString(doubleValue(series, point)),
+          tags.get(series));
+    }
+
+    /**
+     * A view of the batch as data point objects, materialized on access. Only
+     * meant for error reporting.
+     * @return A list of all points in series order.
+     */
+    public List<IncomingDataPoint> asDataPoints() {
+      return new AbstractList<IncomingDataPoint>() {
+        @Override
+        public IncomingDataPoint get(int index) {
+          if (index < 0 || index >= points) {
+            throw new IndexOutOfBoundsException("Index " + index
+                + " out of range [0, " + points + ")");
+          }
+          int series = 0;
+          while (index >= counts[series]) {
+            index -= counts[series++];
+          }
+          return toDataPoint(series, index);
+        }
+
+        @Override
+        public int size() {
+          return points;
+        }
+      };
+    }
+
+    private static String lookup(final String[] dictionary, final int index) {
+      if (index < 0 || index >= dictionary.length) {
+        throw new IllegalArgumentException("Dictionary index " + index
+            + " out of range [0, " + dictionary.length + ")");
+      }
+      return dictionary[index];
+    }
+
+    private static void check(final int idx, final long length, final int end,
+        final String what) {
+      if (length < 0 || idx + length > end) {
+        throw new IllegalArgumentException("Batch truncated reading the "
+            + what + " at offset " + idx);
+      }
+    }
+  }
+
+  /**
+   * Builds a batch one series at a time. Not thread safe. Call
+   * {@link #startSeries}, {@link #addPoint} for each point and finally
+   * {@link #finish}.
+   */
+  public static final class Encoder {
+    private final Map<String, Integer> dictionary =
+        new HashMap<String, Integer>();
+    private final List<String> strings = new ArrayList<String>();
+    private final ChannelBuffer body = ChannelBuffers.dynamicBuffer();
+    private int series;
+
+    // current series, arrays reused across series
+    private boolean started;
+    private long[] timestamps = new long[64];
+    private long[] bits = new long[64];
+    private boolean[] integers = new boolean[64];
+    private int points;
+
+    /**
+     * Starts a new series, writing the previous one if any.
+     * @param metric The metric name.
+     * @param tags The tags.
+     */
+    public void startSeries(final String metric,
+        final Map<String, String> tags) {
+      endSeries();
+      body.writeInt(intern(metric));
+      body.writeShort(tags.size());
+      for (final Map.Entry<String, String> tag : tags.entrySet()) {
+        body.writeInt(intern(tag.getKey()));
+        body.writeInt(intern(tag.getValue()));
+      }
+      started = true;
+      points = 0;
+      series++;
+    }
+
+    /** Adds an integer point to the current series. */
+    public void addPoint(final long timestamp, final long value) {
+      add(timestamp, value, true);
+    }
+
+    /** Adds a floating point value to the current series. */
+    public void addPoint(final long timestamp, final double value) {
+      add(timestamp, Double.doubleToRawLongBits(value), false);
+    }
+
+    /** @return The encoded batch */
+    public ChannelBuffer finish() {
+      endSeries();
+      final ChannelBuffer header = ChannelBuffers.dynamicBuffer();
+      header.writeInt(MAGIC);
+      header.writeByte(VERSION);
+      header.writeByte(0);
+      header.writeInt(strings.size());
+      for (final String string : strings) {
+        final byte[] raw = string.getBytes(UTF8);
+        header.writeShort(raw.length);
+        header.writeBytes(raw);
+      }
+      header.writeInt(series);
+      return ChannelBuffers.wrappedBuffer(header, body);
+    }
+
+    private void endSeries() {
+      if (!started) {
+        return;
+      }
+      body.writeInt(points);
+      for (int i = 0; i < points; i++) {
+        body.writeLong(timestamps[i]);
+      }
+      for (int i = 0; i < points; i += 8) {
+        int b = 0;
+        for (int j = 0; j < 8; j++) {
+          b <<= 1;
+          if (i + j < points && integers[i + j]) {
+            b |= 1;
+          }
+        }
+        body.writeByte(b);
+      }
+      for (int i = 0; i < points; i++) {
+        body.writeLong(bits[i]);
+      }
+      started = false;
+    }
+
+    private void add(final long timestamp, final long value,
+        final boolean integer) {
+      if (!started) {
+        throw new IllegalStateException("No series started");
+      }
+      if (points == timestamps.length) {
+        timestamps = Arrays.copyOf(timestamps, points * 2);
+        bits = Arrays.copyOf(bits, points * 2);
+        integers = Arrays.copyOf(integers, points * 2);
+      }
+      timestamps[points] = timestamp;
+      bits[points] = value;
+      integers[points] = integer;
+      points++;
+    }
+
+    private int intern(final String string) {
+      Integer index = dictionary.get(string);
+      if (index == null) {
+        index = strings.size();
+        dictionary.put(string, index);
+        strings.add(string);
+      }
+      return index;
+    }
+  }
+}
@@ -0,0 +1,503 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+import net.opentsdb.core.Const;
+
+/**
+ * Encoder and reference decoder for the compact, columnar query response
+ * emitted by {@link HttpBinarySerializer}.
+ * <p>
+ * All integers are unsigned LEB128 varints unless noted, signed values are
+ * zig-zag encoded first. Layout:
+ * <pre>
+ * int      magic "OTSC" (big endian)
+ * byte     version
+ * byte     flags, bit 0 set if timestamps are in milliseconds
+ * varint   number of dictionary strings, then for each: varint length and
+ *          UTF-8 bytes
+ * varint   number of series, then for each series:
+ *   varint   metric dictionary index
+ *   varint   number of tags, then key and value dictionary index pairs
+ *   varint   number of aggregated tags, then their dictionary indices
+ *   varint   number of points N
+ *   timestamps: the first timestamp, the first delta and then the deltas of
+ *            the deltas as zig-zag varints
+ *   types:   ceil(N / 8) bytes, bit i (MSB first) set if point i is an
+ *            integer, otherwise it's a double
+ *   varint   length of the values column in bytes, followed by the values
+ *            as 64 bit patterns (the long value or the IEEE 754 bits of the
+ *            double) compressed with the Gorilla XOR scheme
+ * </pre>
+ * Gorilla XOR: the first value is written as is in 64 bits. For each
+ * following value, XOR it with the previous one. A zero XOR is written as
+ * a single 0 bit. Otherwise a 1 bit, then either a 0 bit and the meaningful
+ * bits if they fit in the previous leading/trailing zero window, or a 1 bit,
+ * 6 bits of leading zeros, 6 bits of meaningful bit count (0 meaning 64) and
+ * the meaningful bits. Unlike the original scheme the leading zero count
+ * isn't capped at 31 since integer values have many leading zeros.
+ * @since 2.4
+ */
+public final class ColumnarQueryFormat {
+  /** "OTSC" */
+  public static final int MAGIC = 0x4F545343;
+  /** Current format version */
+  public static final byte VERSION = 1;
+  /** Set when timestamps are in milliseconds */
+  public static final byte FLAG_MS_RESOLUTION = 0x01;
+  /** MIME type of the format */
+  public static final String CONTENT_TYPE = "application/x-opentsdb-columnar";
+
+  private ColumnarQueryFormat() {
+    // static helpers only
+  }
+
+  /**
+   * Builds a response one series at a time. Not thread safe. Call
+   * {@link #startSeries}, {@link #addPoint} for each point in time order,
+   * {@link #endSeries} and finally {@link #finish}.
+   */
+  public static final class Encoder {
+    private final boolean ms_resolution;
+    private final Map<String, Integer> dictionary =
+        new HashMap<String, Integer>();
+    private final List<String> strings = new ArrayList<String>();
+    private final ChannelBuffer body = ChannelBuffers.dynamicBuffer();
+    private final BitWriter values = new BitWriter();
+    private int series;
+
+    // current series, arrays reused across series
+    private long[] timestamps = new long[64];
+    private long[] bits = new long[64];
+    private boolean[] integers = new boolean[64];
+    private int points;
+
+    /**
+     * Default ctor.
+     * @param ms_resolution Whether timestamps are in milliseconds.
+     */
+    public Encoder(final boolean ms_resolution) {
+      this.ms_resolution = ms_resolution;
+    }
+
+    /**
+     * Starts a new series, writing its header.
+     * @param metric The metric name.
+     * @param tags The tags, may be null.
+     * @param aggregated_tags The aggregated tags, may be null.
+     */
+    public void startSeries(final String metric,
+        final Map<String, String> tags, final List<String> aggregated_tags) {
+      writeVarint(body, intern(metric));
+      if (tags == null) {
+        writeVarint(body, 0);
+      } else {
+        writeVarint(body, tags.size());
+        for (final Map.Entry<String, String> tag : tags.entrySet()) {
+          writeVarint(body, intern(tag.getKey()));
+          writeVarint(body, intern(tag.getValue()));
+        }
+      }
+      if (aggregated_tags == null) {
+        writeVarint(body, 0);
+      } else {
+        writeVarint(body, aggregated_tags.size());
+        for (final String tag : aggregated_tags) {
+          writeVarint(body, intern(tag));
+        }
+      }
+      points = 0;
+    }
+
+    /** Adds an integer point to the current series. */
+    public void addPoint(final long timestamp, final long value) {
+      add(timestamp, value, true);
+    }
+
+    /** Adds a floating point value to the current series. */
+    public void addPoint(final long timestamp, final double value) {
+      add(timestamp, Double.doubleToRawLongBits(value), false);
+    }
+
+    /** Writes the columns of the current series. */
+    public void endSeries() {
+      writeVarint(body, points);
+      long prev_ts = 0;
+      long prev_delta = 0;
+      for (int i = 0; i < points; i++) {
+        if (i == 0) {
+          writeVarint(body, zigzag(timestamps[0]));
+        } else {
+          final long delta = timestamps[i] - prev_ts;
+          writeVarint(body, zigzag(i == 1 ? delta : delta - prev_delta));
+          prev_delta = delta;
+        }
+        prev_ts = timestamps[i];
+      }
+
+      for (int i = 0; i < points; i += 8) {
+        int b = 0;
+        for (int j = 0; j < 8; j++) {
+          b <<= 1;
+          if (i + j < points && integers[i + j]) {
+            b |= 1;
+          }
+        }
+        body.writeByte(b);
+      }
+
+      values.reset();
+      long prev = 0;
+      int prev_leading = -1;
+      int prev_trailing = 0;
+      for (int i = 0; i < points; i++) {
+        if (i == 0) {
+          values.write(bits[0], 64);
+          prev = bits[0];
+          continue;
+        }
+        final long xor = bits[i] ^ prev;
+        prev = bits[i];
+        if (xor == 0) {
+          values.write(0, 1);
+          continue;
+        }
+        values.write(1, 1);
+        final int leading = Long.numberOfLeadingZeros(xor);
+        final int trailing = Long.numberOfTrailingZeros(xor);
+        if (prev_leading >= 0 && leading >= prev_leading
+            && trailing >= prev_trailing) {
+          values.write(0, 1);
+          values.write(xor >>> prev_trailing, 64 - prev_leading - prev_trailing);
+        } else {
+          final int meaningful = 64 - leading - trailing;
+          values.write(1, 1);
+          values.write(leading, 6);
+          values.write(meaningful & 0x3F, 6);
+          values.write(xor >>> trailing, meaningful);
+          prev_leading = leading;
+          prev_trailing = trailing;
+        }
+      }
+      writeVarint(body, values.bytes());
+      body.writeBytes(values.buffer(), 0, values.bytes());
+      series++;
+    }
+
+    /** @return The complete response. The encoder must not be used after. */
+    public ChannelBuffer finish() {
+      final ChannelBuffer header = ChannelBuffers.dynamicBuffer(
+          64 + strings.size() * 16);
+      header.writeInt(MAGIC);
+      header.writeByte(VERSION);
+      header.writeByte(ms_resolution ? FLAG_MS_RESOLUTION : 0);
+      writeVarint(header, strings.size());
+      for (final String string : strings) {
+        final byte[] raw = string.getBytes(Const.UTF8_CHARSET);
+        writeVarint(header, raw.length);
+        header.writeBytes(raw);
+      }
+      writeVarint(header, series);
+      return ChannelBuffers.wrappedBuffer(header, body);
+    }
+
+    private void add(final long timestamp, final long value,
+        final boolean integer) {
+      if (points >= timestamps.length) {
+        final int size = timestamps.length * 2;
+        timestamps = Arrays.copyOf(timestamps, size);
+        bits = Arrays.copyOf(bits, size);
+        integers = Arrays.copyOf(integers, size);
+      }
+      timestamps[points] = timestamp;
+      bits[points] = value;
+      integers[points] = integer;
+      points++;
+    }
+
+    private int intern(final String string) {
+      final Integer idx = dictionary.get(string);
+      if (idx != null) {
+        return idx;
+      }
+      dictionary.put(string, strings.size());
+      strings.add(string);
+      return strings.size() - 1;
+    }
+  }
+
+  /** A decoded series. */
+  public static final class Series {
+    private final String metric;
+    private final Map<String, String> tags;
+    private final List<String> aggregated_tags;
+    private final long[] timestamps;
+    private final long[] values;
+    private final boolean[] integers;
+
+    Series(final String metric, final Map<String, String> tags,
+        final List<String> aggregated_tags, final long[] timestamps,
+        final long[] values, final boolean[] integers) {
+      this.metric = metric;
+      this.tags = tags;
+      this.aggregated_tags = aggregated_tags;
+      this.timestamps = timestamps;
+      this.values = values;
+      this.integers = integers;
+    }
+
+    /** @return The metric name */
+    public String metric() {
+      return metric;
+    }
+
+    /** @return The tags */
+    public Map<String, String> tags() {
+      return tags;
+    }
+
+    /** @return The aggregated tags */
+    public List<String> aggregatedTags() {
+      return aggregated_tags;
+    }
+
+    /** @return The number of points */
+    public int size() {
+      return timestamps.length;
+    }
+
+    /** @return The timestamp of the point at the given index */
+    public long timestamp(final int i) {
+      return timestamps[i];
+    }
+
+    /** @return Whether the point at the given index is an integer */
+    public boolean isInteger(final int i) {
+      return integers[i];
+    }
+
+    /** @return The integer value of the point at the given index */
+    public long longValue(final int i) {
+      if (!integers[i]) {
+        throw new ClassCastException("Not an integer at index " + i);
+      }
+      return values[i];
+    }
+
+    /** @return The value of the point at the given index as a double */
+    public double doubleValue(final int i) {
+      return integers[i] ? values[i] : Double.longBitsToDouble(values[i]);
+    }
+  }
+
+  /**
+   * Reference decoder.
+   * @param buf The response to decode.
+   * @return The series in the order they were encoded.
+   * @throws IllegalArgumentException if the buffer is not in this format.
+   */
+  public static List<Series> decode(final ChannelBuffer buf) {
+    if (buf.readableBytes() < 6 || buf.readInt() != MAGIC) {
+      throw new IllegalArgumentException("Not a columnar query response");
+    }
+    final byte version = buf.readByte();
+    if (version != VERSION) {
+      throw new IllegalArgumentException("Unsupported version: " + version);
+    }
+    buf.readByte(); // flags, resolution is up to the caller
+
+    final String[] strings = new String[(int) readVarint(buf)];
+    for (int i = 0; i < strings.length; i++) {
+      final byte[] raw = new byte[(int) readVarint(buf)];
+      buf.readBytes(raw);
+      strings[i] = new String(raw, Const.UTF8_CHARSET);
+    }
+
+    final int num_series = (int) readVarint(buf);
+    final List<Series> series = new ArrayList<Series>(num_series);
+    for (int s = 0; s < num_series; s++) {
+      final String metric = strings[(int) readVarint(buf)];
+      final int num_tags = (int) readVarint(buf);
+      final Map<String, String> tags = new HashMap<String, String>(num_tags);
+      for (int i = 0; i < num_tags; i++) {
+        tags.put(strings[(int) readVarint(buf)],
+            strings[(int) readVarint(buf)]);
+      }
+      final int num_agg = (int) readVarint(buf);
+      final List<String> agg_tags = num_agg == 0 ?
+          Collections.<String>emptyList() : new ArrayList<String>(num_agg);
+      for (int i = 0; i < num_agg; i++) {
+        agg_tags.add(strings[(int) readVarint(buf)]);
+      }
+
+      final int points = (int) readVarint(buf);
+      final long[] timestamps = new long[points];
+      long delta = 0;
+      for (int i = 0; i < points; i++) {
+        final long value = unzigzag(readVarint(buf));
+        if (i == 0) {
+          timestamps[0] = value;
+        } else {
+          delta = i == 1 ? value : delta + value;
+          timestamps[i] = timestamps[i - 1] + delta;
+        }
+      }
+
+      final boolean[] integers = new boolean[points];
+      for (int i = 0; i < points; i += 8) {
+        final int b = buf.readUnsignedByte();
+        for (int j = 0; j < 8 && i + j < points; j++) {
+          integers[i + j] = (b & (0x80 >>> j)) != 0;
+        }
+      }
+
+      final int length = (int) readVarint(buf);
+      final BitReader reader = new BitReader(buf.readSlice(length));
+      final long[] values = new long[points];
+      int leading = 0;
+      int trailing = 0;
+      for (int i = 0; i < points; i++) {
+        if (i == 0) {
+          values[0] = reader.read(64);
+          continue;
+        }
+        if (reader.read(1) == 0) {
+          values[i] = values[i - 1];
+          continue;
+        }
+        if (reader.read(1) == 1) {
+          leading = (int) reader.read(6);
+          int meaningful = (int) reader.read(6);
+          if (meaningful == 0) {
+            meaningful = 64;
+          }
+          trailing = 64 - leading - meaningful;
+        }
+        final long xor = reader.read(64 - leading - trailing) << trailing;
+        values[i] = values[i - 1] ^ xor;
+      }
+      series.add(new Series(metric, tags, agg_tags, timestamps, values,
+          integers));
+    }
+    return series;
+  }
+
+  /** Writes an unsigned LEB128 varint. */
+  static void writeVarint(final ChannelBuffer buf, long value) {
+    while ((value & ~0x7FL) != 0) {
+      buf.writeByte((int) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    buf.writeByte((int) value);
+  }
+
+  /** Reads an unsigned LEB128 varint. */
+  static long readVarint(final ChannelBuffer buf) {
+    long value = 0;
+    int shift = 0;
+    while (true) {
+      final int b = buf.readUnsignedByte();
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+      shift += 7;
+      if (shift > 63) {
+        throw new IllegalArgumentException("Varint is too long");
+      }
+    }
+  }
+
+  /** Maps signed to unsigned so small magnitudes stay small. */
+  static long zigzag(final long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  /** Reverses {@link #zigzag}. */
+  static long unzigzag(final long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  /** Appends bits MSB first to a growable array. */
+  static final class BitWriter {
+    private byte[] buf = new byte[64];
+    private int bit_count;
+
+    /** Writes the {@code nbits} low bits of the value, from 1 to 64. */
+    void write(final long value, int nbits) {
+      while (nbits > 0) {
+        final int idx = bit_count >>> 3;
+        if (idx >= buf.length) {
+          buf = Arrays.copyOf(buf, buf.length * 2);
+        }
+        final int free = 8 - (bit_count & 7);
+        final int n = Math.min(free, nbits);
+        final int bits = (int) (value >>> (nbits - n)) & ((1 << n) - 1);
+        buf[idx] |= bits << (free - n);
+        bit_count += n;
+        nbits -= n;
+      }
+    }
+
+    /** @return The number of bytes used, including the last partial one. */
+    int bytes() {
+      return (bit_count + 7) >>> 3;
+    }
+
+    byte[] buffer() {
+      return buf;
+    }
+
+    /** Clears the written bits. */
+    void reset() {
+      Arrays.fill(buf, 0, bytes(), (byte) 0);
+      bit_count = 0;
+    }
+  }
+
+  /** Reads bits MSB first. */
+  static final class BitReader {
+    private final ChannelBuffer buf;
+    private final int start;
+    private int position;
+
+    BitReader(final ChannelBuffer buf) {
+      this.buf = buf;
+      start = buf.readerIndex();
+    }
+
+    /** Reads {@code nbits} bits, from 1 to 64. */
+    long read(int nbits) {
+      long value = 0;
+      while (nbits > 0) {
+        final int b = buf.getUnsignedByte(start + (position >>> 3));
+        final int avail = 8 - (position & 7);
+        final int n = Math.min(avail, nbits);
+        value = (value << n) | ((b >>> (avail - n)) & ((1 << n) - 1));
+        position += n;
+        nbits -= n;
+      }
+      return value;
+    }
+  }
+}
@@ -0,0 +1,271 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.core.DataPoint;
+import net.opentsdb.core.DataPoints;
+import net.opentsdb.core.QueryException;
+import net.opentsdb.core.TSQuery;
+import net.opentsdb.meta.Annotation;
+import net.opentsdb.stats.QueryStats.QueryStat;
+import net.opentsdb.utils.DateTime;
+
+/**
+ * Serializes data query results in the compact columnar format described in
+ * {@link ColumnarQueryFormat}. Everything else, including parsing of the
+ * query itself, is handled as JSON by the parent class. Clients pick this
+ * serializer with {@code serializer=binary} in the query string.
+ * <p>
+ * Annotations, per-query stats and the query echo are not part of the
+ * format and are ignored. Requests are still parsed as JSON so the request
+ * content type is the JSON one. The response content type is JSON as well
+ * except for data query results, which switch it to the columnar type, so
+ * the other endpoints and errors are sent with the type they're encoded in.
+ * @since 2.4
+ */
+class HttpBinarySerializer extends HttpJsonSerializer {
+
+  /** The JSON content type of the parent, used for errors */
+  private final String json_content_type = response_content_type;
+
+  /**
+   * Default constructor necessary for plugin implementation
+   */
+  public HttpBinarySerializer() {
+    super();
+  }
+
+  /**
+   * Constructor that sets the query object
+   * @param query Request/resposne object
+   */
+  public HttpBinarySerializer(final HttpQuery query) {
+    super(query);
+  }
+
+  /** @return the version */
+  @Override
+  public String version() {
+    return "2.4.0";
+  }
+
+  /** @return the shortname */
+  @Override
+  public String shortName() {
+    return "binary";
+  }
+
+  /**
+   * Formats a 404 error as JSON and switches the response to the JSON
+   * content type.
+   * @return A standard JSON error
+   */
+  @Override
+  public ChannelBuffer formatNotFoundV1() {
+    response_content_type = json_content_type;
+    return super.formatNotFoundV1();
+  }
+
+  /**
+   * Formats a bad request error as JSON and switches the response to the
+   * JSON content type.
+   * @param exception The exception to format
+   * @return A standard JSON error
+   */
+  @Override
+  public ChannelBuffer formatErrorV1(final BadRequestException exception) {
+    response_content_type = json_content_type;
+    return super.formatErrorV1(exception);
+  }
+
+  /**
+   * Formats an internal error as JSON and switches the response to the JSON
+   * content type.
+   * @param exception The system exception to format
+   * @return A standard JSON error
+   */
+  @Override
+  public ChannelBuffer formatErrorV1(final Exception exception) {
+    response_content_type = json_content_type;
+    return super.formatErrorV1(exception);
+  }
+
+  /**
+   * Format the results from a timeseries data query
+   * @param data_query The TSQuery object used to fetch the results
+   * @param results The data fetched from storage
+   * @param globals Ignored
+   * @return A ChannelBuffer object to pass on to the caller
+   */
+  @Override
+  public ChannelBuffer formatQueryV1(final TSQuery data_query,
+      final List<DataPoints[]> results, final List<Annotation> globals) {
+    try {
+      return formatQueryAsyncV1(data_query, results, globals)
+          .joinUninterruptibly();
+    } catch (QueryException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new RuntimeException("Shouldn't be here", e);
+    }
+  }
+
+  /**
+   * Format the results from a timeseries data query. Series are resolved
+   * and encoded one after the other so the output order matches the
+   * results. Switches the response to the columnar content type.
+   * @param data_query The TSQuery object used to fetch the results
+   * @param results The data fetched from storage
+   * @param globals Ignored
+   * @return A Deferred<ChannelBuffer> object to pass on to the caller
+   */
+  @Override
+  public Deferred<ChannelBuffer> formatQueryAsyncV1(final TSQuery data_query,
+      final List<DataPoints[]> results, final List<Annotation> globals)
+          throws IOException {
+    response_content_type = ColumnarQueryFormat.CONTENT_TYPE;
+    final ColumnarQueryFormat.Encoder encoder =
+        new ColumnarQueryFormat.Encoder(data_query.getMsResolution());
+
+    /** Resolves the names of a series then encodes it */
+    class SeriesEncoder implements Callback<Deferred<Object>, Object> {
+      final DataPoints dps;
+      String metric;
+      Map<String, String> tags;
+      List<String> agg_tags;
+      long uid_start;
+
+      SeriesEncoder(final DataPoints dps) {
+        this.dps = dps;
+      }
+
+      class MetricResolver implements Callback<Object, String> {
+        public Object call(final String name) throws Exception {
+          metric = name;
+          return null;
+        }
+      }
+
+      class TagResolver implements Callback<Object, Map<String, String>> {
+        public Object call(final Map<String, String> resolved)
+            throws Exception {
+          tags = resolved;
+          return null;
+        }
+      }
+
+      class AggTagResolver implements Callback<Object, List<String>> {
+        public Object call(final List<String> resolved) throws Exception {
+          agg_tags = resolved;
+          return null;
+        }
+      }
+
+      class Encode implements Callback<Object, ArrayList<Object>> {
+        public Object call(final ArrayList<Object> ignored) throws Exception {
+          data_query.getQueryStats().addStat(dps.getQueryIndex(),
+              QueryStat.UID_TO_STRING_TIME, DateTime.nanoTime() - uid_start);
+          final long serialization_start = DateTime.nanoTime();
+          encoder.startSeries(metric, tags, agg_tags);
+          long counter = 0;
+          for (final DataPoint dp : dps) {
+            if (dp.timestamp() < data_query.startTime() ||
+                dp.timestamp() > data_query.endTime()) {
+              continue;
+            }
+            final long timestamp = data_query.getMsResolution() ?
+                dp.timestamp() : dp.timestamp() / 1000;
+            if (dp.isInteger()) {
+              encoder.addPoint(timestamp, dp.longValue());
+            } else {
+              encoder.addPoint(timestamp, dp.doubleValue());
+            }
+            ++counter;
+          }
+          encoder.endSeries();
+          data_query.getQueryStats().addStat(dps.getQueryIndex(),
+              QueryStat.AGGREGATED_SIZE, counter);
+          data_query.getQueryStats().addStat(dps.getQueryIndex(),
+              QueryStat.SERIALIZATION_TIME,
+              DateTime.nanoTime() - serialization_start);
+          return null;
+        }
+      }
+
+      public Deferred<Object> call(final Object ignored) throws Exception {
+        uid_start = DateTime.nanoTime();
+        final List<Deferred<Object>> deferreds =
+            new ArrayList<Deferred<Object>>(3);
+        deferreds.add(dps.metricNameAsync().addCallback(new MetricResolver()));
+        deferreds.add(dps.getTagsAsync().addCallback(new TagResolver()));
+        deferreds.add(dps.getAggregatedTagsAsync()
+            .addCallback(new AggTagResolver()));
+        return Deferred.group(deferreds).addCallback(new Encode());
+      }
+    }
+
+    final Deferred<Object> cb_chain = new Deferred<Object>();
+    for (final DataPoints[] separate_dps : results) {
+      for (final DataPoints dps : separate_dps) {
+        cb_chain.addCallbackDeferring(new SeriesEncoder(dps));
+      }
+    }
+
+    /** Writes the dictionary and returns the complete response */
+    class FinalCB implements Callback<ChannelBuffer, Object> {
+      public ChannelBuffer call(final Object ignored) throws Exception {
+        data_query.getQueryStats().markSerializationSuccessful();
+        final ChannelBuffer response = encoder.finish();
+        data_query.getQueryStats().addStat(QueryStat.MAX_BUFFERED_BYTES,
+            (long) response.readableBytes());
+        return response;
+      }
+    }
+
+    cb_chain.callback(null);
+    return cb_chain.addCallback(new FinalCB());
+  }
+
+  /**
+   * The dictionary is written ahead of the series so the response can't be
+   * streamed. Falls back to sending the complete response in one go.
+   * @param data_query The TSQuery object used to fetch the results
+   * @param results The data fetched from storage
+   * @param globals Ignored
+   * @return A deferred called back once the response was handed to the
+   * channel
+   */
+  @Override
+  public Deferred<Object> streamQueryAsyncV1(final TSQuery data_query,
+      final List<DataPoints[]> results, final List<Annotation> globals)
+          throws IOException {
+    class SendCB implements Callback<Object, ChannelBuffer> {
+      public Object call(final ChannelBuffer response) throws Exception {
+        query.sendReply(response);
+        return null;
+      }
+    }
+    return formatQueryAsyncV1(data_query, results, globals)
+        .addCallback(new SendCB());
+  }
+}
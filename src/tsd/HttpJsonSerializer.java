@@ -26,6 +26,8 @@ import java.util.TreeMap;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBufferOutputStream;
 import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.handler.codec.http.HttpResponseStatus;
 
 import com.fasterxml.jackson.core.JsonGenerator;
@@ -88,6 +90,9 @@ class HttpJsonSerializer extends HttpSerializer {
     new TypeReference<HashMap<String, Object>>() {};
   private static TypeReference<List<Annotation>> TR_ANNOTATIONS = 
       new TypeReference<List<Annotation>>() {};
+  
+  /** Size at which a streamed response is flushed in the middle of a series */
+  static final int STREAM_CHUNK_SIZE = 64 * 1024;
     
   /**
    * Default constructor necessary for plugin implementation
@@ -641,6 +646,49 @@ class HttpJsonSerializer extends HttpSerializer {
   public Deferred<ChannelBuffer> formatQueryAsyncV1(final TSQuery data_query, 
       final List<DataPoints[]> results, final List<Annotation> globals) 
           throws IOException {
+    return serializeQuery(data_query, results, globals, false);
+  }
+  
+  /**
+   * Streams the results from a timeseries data query to the client as a 
+   * chunked HTTP response. Each result is flushed as soon as its UIDs have 
+   * been resolved and serialized so that we never hold more than roughly one
+   * series worth of output in memory. If the channel is not writable after a 
+   * flush, serialization pauses until the pending write completes.
+   * @param data_query The TSQuery object used to fetch the results
+   * @param results The data fetched from storage
+   * @param globals An optional list of global annotation objects
+   * @return A deferred called back once the last chunk was written
+   * @throws IOException if serialization failed
+   * @since 2.4
+   */
+  public Deferred<Object> streamQueryAsyncV1(final TSQuery data_query, 
+      final List<DataPoints[]> results, final List<Annotation> globals) 
+          throws IOException {
+    class LastChunkCB implements Callback<Object, ChannelBuffer> {
+      public Object call(final ChannelBuffer ignored) throws Exception {
+        query.sendLastChunk();
+        return null;
+      }
+    }
+    return serializeQuery(data_query, results, globals, true)
+        .addCallback(new LastChunkCB());
+  }
+  
+  /**
+   * Serializes the results of a data query either to a single buffer or as
+   * a stream of chunks written to the query channel.
+   * @param data_query The TSQuery object used to fetch the results
+   * @param results The data fetched from storage
+   * @param globals An optional list of global annotation objects
+   * @param stream Whether or not to stream the results as chunks
+   * @return The complete response buffer or, when streaming, a deferred 
+   * with a null buffer once the body has been written.
+   * @throws IOException if serialization failed
+   */
+  private Deferred<ChannelBuffer> serializeQuery(final TSQuery data_query, 
+      final List<DataPoints[]> results, final List<Annotation> globals,
+      final boolean stream) throws IOException {
     
     final long start = DateTime.currentTimeMillis();
     final boolean as_arrays = this.query.hasQueryStringParam("arrays");
@@ -661,6 +709,70 @@ class HttpJsonSerializer extends HttpSerializer {
     // start the JSON generator and write the opening array
     final JsonGenerator json = JSON.getFactory().createGenerator(output);
     json.writeStartArray();
+    
+    /**
+     * Hands the buffered output to the channel as a chunk when streaming. The
+     * response buffer is reused so the heap held is bounded by the largest 
+     * chunk instead of the whole response.
+     */
+    final class ChunkWriter {
+      /** Number of chunks written */
+      long chunks;
+      /** The largest amount of serialized data we held at once */
+      long max_buffered;
+      /** Time spent waiting for the channel to drain in nanoseconds */
+      long blocked_time;
+      /** The last chunk write, used to wait for the channel to drain */
+      ChannelFuture last_write;
+      
+      /** Writes any buffered data as a new chunk */
+      void flush() throws IOException {
+        json.flush();
+        final int size = response.readableBytes();
+        if (size > max_buffered) {
+          max_buffered = size;
+        }
+        if (!stream || size < 1) {
+          return;
+        }
+        if (chunks == 0) {
+          query.sendChunkedHeader(responseContentType());
+          data_query.getQueryStats().markFirstByte();
+        }
+        last_write = query.sendChunk(ChannelBuffers.copiedBuffer(response));
+        response.clear();
+        chunks++;
+      }
+      
+      /**
+       * Flushes and, if the channel buffers are above the high water mark, 
+       * waits for the last write to complete before continuing.
+       * @return A deferred to wait on.
+       */
+      Deferred<Object> flushAndWait() throws IOException {
+        flush();
+        if (!stream || last_write == null || query.channel().isWritable()) {
+          return Deferred.fromResult(null);
+        }
+        final long wait_start = DateTime.nanoTime();
+        final Deferred<Object> drained = new Deferred<Object>();
+        last_write.addListener(new ChannelFutureListener() {
+          @Override
+          public void operationComplete(final ChannelFuture future) {
+            blocked_time += DateTime.nanoTime() - wait_start;
+            if (future.isSuccess()) {
+              drained.callback(null);
+            } else {
+              drained.callback(future.getCause() instanceof Exception ?
+                  future.getCause() : new IOException("Failed to write chunk", 
+                      future.getCause()));
+            }
+          }
+        });
+        return drained;
+      }
+    }
+    final ChunkWriter writer = new ChunkWriter();
  
     /**
      * Every individual data point set (the result of a query and possibly a
@@ -841,6 +953,9 @@ class HttpJsonSerializer extends HttpSerializer {
               }
               json.writeEndArray();
               ++counter;
+              if (stream && response.writerIndex() >= STREAM_CHUNK_SIZE) {
+                writer.flush();
+              }
             }
             json.writeEndArray();
           } else if (!timeout_flag.get(0)) {
@@ -865,6 +980,9 @@ class HttpJsonSerializer extends HttpSerializer {
                 }
               }
               ++counter;
+              if (stream && response.writerIndex() >= STREAM_CHUNK_SIZE) {
+                writer.flush();
+              }
             }
             json.writeEndObject();
             
@@ -918,8 +1036,19 @@ class HttpJsonSerializer extends HttpSerializer {
             .addCallback(new TagResolver()));
         resolve_deferreds.add(dps.getAggregatedTagsAsync()
             .addCallback(new AggTagResolver()));
-        return Deferred.group(resolve_deferreds)
+        final Deferred<Object> written = Deferred.group(resolve_deferreds)
             .addCallback(new WriteToBuffer(dps));
+        if (!stream) {
+          return written;
+        }
+        
+        /** Flushes the serialized series to the client */
+        class FlushCB implements Callback<Deferred<Object>, Object> {
+          public Deferred<Object> call(final Object ignored) throws Exception {
+            return writer.flushAndWait();
+          }
+        }
+        return written.addCallbackDeferring(new FlushCB());
       }
 
     }
@@ -966,6 +1095,15 @@ class HttpJsonSerializer extends HttpSerializer {
         if (jsonp != null && !jsonp.isEmpty()) {
           output.write(")".getBytes());
         }
+        
+        writer.flush();
+        final QueryStats stats = data_query.getQueryStats();
+        stats.addStat(QueryStat.MAX_BUFFERED_BYTES, writer.max_buffered);
+        if (stream) {
+          stats.addStat(QueryStat.STREAMED_CHUNKS, writer.chunks);
+          stats.addStat(QueryStat.WRITE_BLOCKED_TIME, writer.blocked_time);
+          return null;
+        }
         return response;
       }
     }
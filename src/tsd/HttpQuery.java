@@ -798,6 +798,7 @@ final class HttpQuery extends AbstractHttpQuery {
     }
     final HttpSerializer default_serializer = new HttpJsonSerializer();
     serializers.add(default_serializer);
+    serializers.add(new HttpBinarySerializer());
 
     serializer_map_content_type =
       new HashMap<String, Constructor<? extends HttpSerializer>>();
@@ -809,17 +810,27 @@ final class HttpQuery extends AbstractHttpQuery {
       final Constructor<? extends HttpSerializer> ctor =
         serializer.getClass().getDeclaredConstructor(HttpQuery.class);
 
+      // serializers extending the JSON one that only change the output parse
+      // JSON requests, so they are picked by name and not by content type
+      final boolean json_input = serializer != default_serializer &&
+          serializer instanceof HttpJsonSerializer &&
+          serializer.requestContentType().equals(
+              default_serializer.requestContentType());
+
       // check for collisions before adding serializers to the maps
-      Constructor<? extends HttpSerializer> map_ctor =
-        serializer_map_content_type.get(serializer.requestContentType());
-      if (map_ctor != null) {
-        final String err = "Serializer content type collision between \"" +
-        serializer.getClass().getCanonicalName() + "\" and \"" +
-        map_ctor.getClass().getCanonicalName() + "\"";
-        LOG.error(err);
-        throw new IllegalStateException(err);
+      Constructor<? extends HttpSerializer> map_ctor;
+      if (!json_input) {
+        map_ctor =
+          serializer_map_content_type.get(serializer.requestContentType());
+        if (map_ctor != null) {
+          final String err = "Serializer content type collision between \"" +
+          serializer.getClass().getCanonicalName() + "\" and \"" +
+          map_ctor.getClass().getCanonicalName() + "\"";
+          LOG.error(err);
+          throw new IllegalStateException(err);
+        }
+        serializer_map_content_type.put(serializer.requestContentType(), ctor);
       }
-      serializer_map_content_type.put(serializer.requestContentType(), ctor);
 
       map_ctor = serializer_map_query_string.get(serializer.shortName());
       if (map_ctor != null) {
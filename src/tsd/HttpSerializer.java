@@ -522,6 +522,25 @@ public abstract class HttpSerializer {
         " has not implemented formatQueryV1");
   }
   
+  /**
+   * Streams the results from a timeseries data query to the client as a
+   * chunked response.
+   * @param query The TSQuery object used to fetch the results
+   * @param results The data fetched from storage
+   * @param globals An optional list of global annotation objects
+   * @return A deferred called back once the response has been written
+   * @throws BadRequestException if the plugin has not implemented this method
+   * @since 2.4
+   */
+  public Deferred<Object> streamQueryAsyncV1(final TSQuery query, 
+      final List<DataPoints[]> results, final List<Annotation> globals) 
+      throws IOException {
+    throw new BadRequestException(HttpResponseStatus.NOT_IMPLEMENTED, 
+        "The requested API endpoint has not been implemented", 
+        this.getClass().getCanonicalName() + 
+        " has not implemented streamQueryAsyncV1");
+  }
+  
   /**
    * Format a list of last data points
    * @param data_points The results of the query
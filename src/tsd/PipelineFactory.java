@@ -54,6 +54,9 @@ public final class PipelineFactory implements ChannelPipelineFactory {
   private final Timer timer;
   private final ChannelHandler timeoutHandler;
 
+  /** Decoder for telnet put lines, null if disabled. */
+  private final TelnetPutDecoder put_decoder;
+
   /** Stateless handler for RPCs. */
   private final RpcHandler rpchandler;
   
@@ -108,6 +111,8 @@ public final class PipelineFactory implements ChannelPipelineFactory {
     timeoutHandler = new IdleStateHandler(timer, 0, 0, socketTimeout);
     rpchandler = new RpcHandler(tsdb, manager);
     connmgr = new ConnectionManager(connections_limit);
+    put_decoder = tsdb.getConfig().getBoolean(
+        "tsd.rpc.telnet.put_decoder.enable") ? new TelnetPutDecoder() : null;
     try {
       HttpQuery.initializeSerializerMaps(tsdb);
     } catch (RuntimeException e) {
@@ -159,7 +164,12 @@ public final class PipelineFactory implements ChannelPipelineFactory {
       } else {
         pipeline.addLast("framer", new LineBasedFrameDecoder(1024));
         pipeline.addLast("encoder", ENCODER);
-        pipeline.addLast("decoder", DECODER);
+        // the authentication handler only understands split words
+        if (put_decoder != null && tsdb.getAuth() == null) {
+          pipeline.addLast("decoder", put_decoder);
+        } else {
+          pipeline.addLast("decoder", DECODER);
+        }
       }
 
       if (tsdb.getAuth() != null) {
@@ -98,6 +98,20 @@ class PutDataPointRpc implements TelnetRpc, HttpRpc {
   
   /** Whether or not to send error messages back over telnet */
   private final boolean send_telnet_errors;
+
+  /** Counts successful writes from the telnet put decoder, it's stateless */
+  private static final Callback<Object, Object> TELNET_PUT_SUCCESS = 
+      new Callback<Object, Object>() {
+    @Override
+    public Object call(final Object obj) {
+      raw_stored.incrementAndGet();
+      return true;
+    }
+    @Override
+    public String toString() {
+      return "telnet put success";
+    }
+  };
   
   /** The type of data point we're writing.
    * @since 2.4 */
@@ -259,6 +273,96 @@ class PutDataPointRpc implements TelnetRpc, HttpRpc {
     return Deferred.fromResult(null);
   }
 
+  /**
+   * Writes a put line parsed by the {@link TelnetPutDecoder}. Counters,
+   * error messages and storage exception handling match the telnet
+   * {@code execute} method.
+   * @param tsdb The TSDB to which we belong
+   * @param chan The channel to write errors to
+   * @param put The parsed data point
+   * @return A deferred to wait on for the write
+   * @since 2.4
+   */
+  public Deferred<Object> executePut(final TSDB tsdb, final Channel chan,
+                                     final TelnetPutDecoder.Put put) {
+    telnet_requests.incrementAndGet();
+    raw_dps.incrementAndGet();
+    final DataPointType type = DataPointType.PUT;
+
+    String errmsg = null;
+    try {
+      checkAuthorization(tsdb, chan, "put");
+
+      /** Reports storage failures to the channel and the SEH */
+      final class PutErrback implements Callback<Object, Exception> {
+        @Override
+        public Object call(final Exception arg) {
+          String errmsg = null;
+          if (arg instanceof PleaseThrottleException) {
+            if (send_telnet_errors) {
+              errmsg = type + ": Please throttle writes: " + arg.getMessage() + '\n';
+            }
+            inflight_exceeded.incrementAndGet();
+          } else {
+            if (send_telnet_errors) {
+              errmsg = type + ": HBase error: " + arg.getMessage()+ '\n';
+            }
+            if (arg instanceof HBaseException) {
+              hbase_errors.incrementAndGet();
+            } else if (arg instanceof IllegalArgumentException) {
+              illegal_arguments.incrementAndGet();
+            } else {
+              unknown_errors.incrementAndGet();
+            }
+          }
+          
+          handleStorageException(tsdb, put.toDataPoint(), arg);
+          
+          if (send_telnet_errors) {
+            if (chan.isConnected()) {
+              if (chan.isWritable()) {
+                chan.write(errmsg);
+              } else {
+                writes_blocked.incrementAndGet();
+              }
+            }
+          }
+          
+          return null;
+        }
+        public String toString() {
+          return "report error to channel";
+        }
+      }
+      
+      return put.write(tsdb)
+          .addCallback(TELNET_PUT_SUCCESS)
+          .addErrback(new PutErrback());
+    } catch (IllegalArgumentException x) {
+      errmsg = type + ": illegal argument: " + x.getMessage() + '\n';
+      illegal_arguments.incrementAndGet();
+    } catch (NoSuchUniqueName x) {
+      errmsg = type + ": unknown metric: " + x.getMessage() + '\n';
+      unknown_metrics.incrementAndGet();
+    } catch (PleaseThrottleException x) {
+      errmsg = type + ": Throttling exception: " + x.getMessage() + '\n';
+      inflight_exceeded.incrementAndGet();
+      handleStorageException(tsdb, put.toDataPoint(), x);
+    } catch (TimeoutException tex) {
+      errmsg = type + ": Request timed out: " + tex.getMessage() + '\n';
+      handleStorageException(tsdb, put.toDataPoint(), tex);
+    }
+    
+    if (errmsg != null && chan.isConnected()) {
+      if (chan.isWritable()) {
+        chan.write(errmsg);
+      } else {
+        writes_blocked.incrementAndGet();
+      }
+    }
+    return Deferred.fromResult(null);
+  }
+
   /**
    * Handles HTTP RPC put requests
    * @param tsdb The TSDB to which we belong
@@ -280,12 +384,22 @@ class PutDataPointRpc implements TelnetRpc, HttpRpc {
           "] is not permitted for this endpoint");
     }
 
-    final List<IncomingDataPoint> dps;
+    List<IncomingDataPoint> dps = null;
+    BinaryPutFormat.Batch batch = null;
     //noinspection TryWithIdenticalCatches
     try {
       checkAuthorization(tsdb, query);
-      dps = query.serializer()
-              .parsePutV1(IncomingDataPoint.class, HttpJsonSerializer.TR_INCOMING);
+      if (BinaryPutFormat.isBinaryPut(query)) {
+        try {
+          batch = BinaryPutFormat.decode(query.request().getContent());
+        } catch (IllegalArgumentException e) {
+          throw new BadRequestException(HttpResponseStatus.BAD_REQUEST,
+              "Unable to decode the binary put batch", e);
+        }
+      } else {
+        dps = query.serializer()
+                .parsePutV1(IncomingDataPoint.class, HttpJsonSerializer.TR_INCOMING);
+      }
     } catch (BadRequestException e) {
       illegal_arguments.incrementAndGet();
       throw e;
@@ -293,7 +407,150 @@ class PutDataPointRpc implements TelnetRpc, HttpRpc {
       illegal_arguments.incrementAndGet();
       throw e;
     }
-    processDataPoint(tsdb, query, dps);
+    if (batch != null) {
+      processBinaryDataPoints(tsdb, query, batch);
+    } else {
+      processDataPoint(tsdb, query, dps);
+    }
+  }
+  
+  /**
+   * Writes the points of a binary put batch. Points are read straight from
+   * the request buffer and handed to {@link TSDB#addPoint} without creating
+   * an object per point, data point objects are only materialized to report
+   * errors. Responds like {@link #processDataPoint}.
+   * @param tsdb The TSDB to which we belong
+   * @param query The query to respond to
+   * @param batch The decoded batch
+   * @throws BadRequestException if the batch is empty
+   * @since 2.4
+   */
+  void processBinaryDataPoints(final TSDB tsdb, final HttpQuery query, 
+      final BinaryPutFormat.Batch batch) {
+    if (batch.size() < 1) {
+      throw new BadRequestException("No datapoints found in content");
+    }
+    
+    final boolean show_details = query.hasQueryStringParam("details");
+    final boolean synchronous = query.hasQueryStringParam("sync");
+    final List<Map<String, Object>> details = show_details
+        ? new ArrayList<Map<String, Object>>() : null;
+    int queued = 0;
+    final List<Deferred<Boolean>> deferreds = synchronous ? 
+        new ArrayList<Deferred<Boolean>>(batch.size()) : null;
+    
+    /** Counts successful writes, shared by all points */
+    final class SuccessCB implements Callback<Boolean, Object> {
+      @Override
+      public Boolean call(final Object obj) {
+        raw_stored.incrementAndGet();
+        return true;
+      }
+    }
+    final SuccessCB success_cb = new SuccessCB();
+    
+    /** Error back callback to handle storage failures */
+    final class PutErrback implements Callback<Boolean, Exception> {
+      final int series;
+      final int point;
+      PutErrback(final int series, final int point) {
+        this.series = series;
+        this.point = point;
+      }
+      public Boolean call(final Exception arg) {
+        if (arg instanceof PleaseThrottleException) {
+          inflight_exceeded.incrementAndGet();
+        } else {
+          hbase_errors.incrementAndGet();
+        }
+        final IncomingDataPoint dp = batch.toDataPoint(series, point);
+        if (show_details) {
+          details.add(getHttpDetails("Storage exception: " 
+              + arg.getMessage(), dp));
+        }
+        handleStorageException(tsdb, dp, arg);
+        return false;
+      }
+      public String toString() {
+        return "HTTP binary put exception";
+      }
+    }
+    
+    for (int s = 0; s < batch.seriesCount(); s++) {
+      final String metric = batch.metric(s);
+      final Map<String, String> tags = batch.tags(s);
+      final boolean valid_series = metric != null && !metric.isEmpty() && 
+          !tags.isEmpty();
+      for (int i = 0; i < batch.pointCount(s); i++) {
+        raw_dps.incrementAndGet();
+        final long timestamp = batch.timestamp(s, i);
+        if (!valid_series || timestamp <= 0) {
+          // let the data point object log and report the problem
+          batch.toDataPoint(s, i).validate(details);
+          illegal_arguments.incrementAndGet();
+          continue;
+        }
+        
+        try {
+          final Deferred<Object> write;
+          if (batch.isInteger(s, i)) {
+            write = tsdb.addPoint(metric, timestamp, batch.longValue(s, i), 
+                tags);
+          } else {
+            final double value = batch.doubleValue(s, i);
+            if ((double) (float) value == value) {
+              write = tsdb.addPoint(metric, timestamp, (float) value, tags);
+            } else {
+              write = tsdb.addPoint(metric, timestamp, value, tags);
+            }
+          }
+          final Deferred<Boolean> deferred = write.addCallback(success_cb)
+              .addErrback(new PutErrback(s, i));
+          ++queued;
+          if (synchronous) {
+            deferreds.add(deferred);
+          }
+        } catch (IllegalArgumentException iae) {
+          final IncomingDataPoint dp = batch.toDataPoint(s, i);
+          if (show_details) {
+            details.add(getHttpDetails(iae.getMessage(), dp));
+          }
+          LOG.warn(iae.getMessage() + ": " + dp);
+          illegal_arguments.incrementAndGet();
+        } catch (NoSuchUniqueName nsu) {
+          final IncomingDataPoint dp = batch.toDataPoint(s, i);
+          if (show_details) {
+            details.add(getHttpDetails("Unknown metric", dp));
+          }
+          LOG.warn("Unknown metric: " + dp);
+          unknown_metrics.incrementAndGet();
+        } catch (PleaseThrottleException x) {
+          final IncomingDataPoint dp = batch.toDataPoint(s, i);
+          handleStorageException(tsdb, dp, x);
+          if (show_details) {
+            details.add(getHttpDetails("Please throttle", dp));
+          }
+          inflight_exceeded.incrementAndGet();
+        } catch (TimeoutException tex) {
+          final IncomingDataPoint dp = batch.toDataPoint(s, i);
+          handleStorageException(tsdb, dp, tex);
+          if (show_details) {
+            details.add(getHttpDetails("Timeout exception", dp));
+          }
+          requests_timedout.incrementAndGet();
+        } catch (RuntimeException e) {
+          final IncomingDataPoint dp = batch.toDataPoint(s, i);
+          if (show_details) {
+            details.add(getHttpDetails("Unexpected exception", dp));
+          }
+          LOG.warn("Unexpected exception: " + dp);
+          unknown_errors.incrementAndGet();
+        }
+      }
+    }
+    
+    sendPutResponse(tsdb, query, batch.asDataPoints(), queued, deferreds, 
+        details);
   }
   
   /**
@@ -314,13 +571,7 @@ class PutDataPointRpc implements TelnetRpc, HttpRpc {
 
     final HashMap<String, String> query_tags = new HashMap<String, String>();
     final boolean show_details = query.hasQueryStringParam("details");
-    final boolean show_summary = query.hasQueryStringParam("summary");
     final boolean synchronous = query.hasQueryStringParam("sync");
-    final int sync_timeout = query.hasQueryStringParam("sync_timeout") ? 
-        Integer.parseInt(query.getQueryStringParam("sync_timeout")) : 0;
-    // this is used to coordinate timeouts
-    final AtomicBoolean sending_response = new AtomicBoolean();
-    sending_response.set(false);
     
     final List<Map<String, Object>> details = show_details
         ? new ArrayList<Map<String, Object>>() : null;
@@ -544,6 +795,37 @@ class PutDataPointRpc implements TelnetRpc, HttpRpc {
       }
     }
 
+    sendPutResponse(tsdb, query, dps, queued, deferreds, details);
+  }
+  
+  /**
+   * Responds to the client once all of the data points of a put have been
+   * queued, waiting on the writes first if the caller asked for a
+   * synchronous put.
+   * @param tsdb The TSDB to which we belong
+   * @param query The query to respond to
+   * @param dps The data points of the request, in the same order as the
+   * deferreds
+   * @param queued The number of data points that were queued for storage
+   * @param deferreds The writes to wait on for synchronous puts, null if
+   * the put was asynchronous
+   * @param details A list of errors to return if requested, may be null
+   */
+  private void sendPutResponse(final TSDB tsdb, 
+                               final HttpQuery query, 
+                               final List<? extends IncomingDataPoint> dps, 
+                               final int queued, 
+                               final List<Deferred<Boolean>> deferreds, 
+                               final List<Map<String, Object>> details) {
+    final boolean show_details = query.hasQueryStringParam("details");
+    final boolean show_summary = query.hasQueryStringParam("summary");
+    final boolean synchronous = deferreds != null;
+    final int sync_timeout = query.hasQueryStringParam("sync_timeout") ? 
+        Integer.parseInt(query.getQueryStringParam("sync_timeout")) : 0;
+    // this is used to coordinate timeouts
+    final AtomicBoolean sending_response = new AtomicBoolean();
+    sending_response.set(false);
+    
     /** A timer task that will respond to the user with the number of timeouts
      * for synchronous writes. */
     class PutTimeout implements TimerTask {
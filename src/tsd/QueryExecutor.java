@@ -60,6 +60,7 @@ import net.opentsdb.query.pojo.Output;
 import net.opentsdb.query.pojo.Query;
 import net.opentsdb.query.pojo.Timespan;
 import net.opentsdb.stats.QueryStats;
+import net.opentsdb.stats.QueryStats.QueryStat;
 import net.opentsdb.uid.NoSuchUniqueName;
 import net.opentsdb.uid.UniqueId.UniqueIdType;
 import net.opentsdb.utils.DateTime;
@@ -431,6 +432,21 @@ public class QueryExecutor {
           }
         }
 
+        long join_time = 0;
+        long join_input = 0;
+        long join_output = 0;
+        for (final ExpressionIterator ei : compile_stack) {
+          join_time += ei.getJoinTime();
+          join_input += ei.getJoinInputSeries();
+          join_output += ei.size();
+        }
+        final QueryStats stats = ts_query.getQueryStats();
+        if (stats != null) {
+          stats.addStat(QueryStat.EXPRESSION_JOIN_TIME, join_time);
+          stats.addStat(QueryStat.EXPRESSION_JOIN_INPUT_SERIES, join_input);
+          stats.addStat(QueryStat.EXPRESSION_JOIN_OUTPUT_SERIES, join_output);
+        }
+
         if (LOG.isDebugEnabled()) {
           LOG.debug("Finished compilations in " +
               (DateTime.currentTimeMillis() - intersect_start) + " ms");
@@ -30,6 +30,7 @@ import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.handler.codec.http.HttpMethod;
 import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -42,6 +43,7 @@ import net.opentsdb.core.DataPoints;
 import net.opentsdb.core.IncomingDataPoint;
 import net.opentsdb.core.Query;
 import net.opentsdb.core.QueryException;
+import net.opentsdb.core.QueryResultCache;
 import net.opentsdb.core.RateOptions;
 import net.opentsdb.core.TSDB;
 import net.opentsdb.core.TSQuery;
@@ -176,10 +178,17 @@ final class QueryRpc implements HttpRpc {
     final ArrayList<DataPoints[]> results = new ArrayList<DataPoints[]>(nqueries);
     final List<Annotation> globals = new ArrayList<Annotation>();
     
+    // raw data is decoded into off-heap columns that are recycled once the
+    // response has been sent or the query failed
+    if (tsdb.getColumnarArena() != null) {
+      data_query.setArenaRegion(tsdb.getColumnarArena().newRegion());
+    }
+    
     /** This has to be attached to callbacks or we may never respond to clients */
     class ErrorCB implements Callback<Object, Exception> {
       public Object call(final Exception e) throws Exception {
         Throwable ex = e;
+        releaseArenaRegion(data_query);
         try {
           LOG.error("Query exception: ", e);
           if (ex instanceof DeferredGroupException) {
@@ -256,17 +265,34 @@ final class QueryRpc implements HttpRpc {
         /** Simply returns the buffer once serialization is complete and logs it */
         class SendIt implements Callback<Object, ChannelBuffer> {
           public Object call(final ChannelBuffer buffer) throws Exception {
+            releaseArenaRegion(data_query);
             query.sendReply(buffer);
             query_success.incrementAndGet();
             return null;
           }
         }
 
+        /** Counts a streamed response once the last chunk was written */
+        class StreamedIt implements Callback<Object, Object> {
+          public Object call(final Object ignored) throws Exception {
+            releaseArenaRegion(data_query);
+            query_success.incrementAndGet();
+            return null;
+          }
+        }
+
         switch (query.apiVersion()) {
         case 0:
         case 1:
+          // chunked transfer encoding requires HTTP/1.1
+          if (query.hasQueryStringParam("stream") && 
+              !query.request().getProtocolVersion().equals(HttpVersion.HTTP_1_0)) {
+            query.serializer().streamQueryAsyncV1(data_query, results, 
+                globals).addCallback(new StreamedIt()).addErrback(new ErrorCB());
+          } else {
             query.serializer().formatQueryAsyncV1(data_query, results, 
                globals).addCallback(new SendIt()).addErrback(new ErrorCB());
+          }
           break;
         default: 
           query_invalid.incrementAndGet();
@@ -308,10 +334,16 @@ final class QueryRpc implements HttpRpc {
       }
     }
  
-    // if we the caller wants to search for global annotations, fire that off 
-    // first then scan for the notes, then pass everything off to the formatter
-    // when complete
-    if (!data_query.getNoAnnotations() && data_query.getGlobalAnnotations()) {
+    // cacheable queries only fetch the ranges that aren't cached yet. 
+    // Otherwise if we the caller wants to search for global annotations, fire
+    // that off first then scan for the notes, then pass everything off to the
+    // formatter when complete
+    final QueryResultCache cache = tsdb.getQueryResultCache();
+    if (cache != null && cache.isCacheable(data_query)) {
+      cache.runAsync(data_query).addCallback(new QueriesCB())
+        .addErrback(new ErrorCB());
+    } else if (!data_query.getNoAnnotations() && 
+        data_query.getGlobalAnnotations()) {
       Annotation.getGlobalAnnotations(tsdb, 
         data_query.startTime() / 1000, data_query.endTime() / 1000)
           .addCallback(new GlobalCB()).addErrback(new ErrorCB());
@@ -320,7 +352,18 @@ final class QueryRpc implements HttpRpc {
         .addErrback(new ErrorCB());
     }
   }
-  
+
+  /**
+   * Hands the off-heap columns of a query back to the arena. The results must
+   * not be read afterwards.
+   * @param data_query The query to release the region of.
+   */
+  private static void releaseArenaRegion(final TSQuery data_query) {
+    if (data_query.getArenaRegion() != null) {
+      data_query.getArenaRegion().release();
+    }
+  }
+
   /**
    * Handles an expression query
    * @param tsdb The TSDB to which we belong
@@ -129,6 +129,8 @@ final class RpcHandler extends IdleStateAwareChannelUpstreamHandler {
       final Object message = msgevent.getMessage();
       if (message instanceof String[]) {
         handleTelnetRpc(msgevent.getChannel(), (String[]) message);
+      } else if (message instanceof TelnetPutDecoder.Put) {
+        handleTelnetPut(msgevent.getChannel(), (TelnetPutDecoder.Put) message);
       } else if (message instanceof HttpRequest) {
         handleHttpQuery(tsdb, msgevent.getChannel(), (HttpRequest) message);
       } else {
@@ -161,6 +163,24 @@ final class RpcHandler extends IdleStateAwareChannelUpstreamHandler {
     rpc.execute(tsdb, chan, command);
   }
 
+  /**
+   * Executes a put line parsed by the {@link TelnetPutDecoder}. If the put
+   * RPC has been replaced, disabled or overridden by a subclass, the line is
+   * split into words and handled like any other telnet command.
+   * @param chan The channel on which the RPC was received.
+   * @param put The parsed data point.
+   */
+  private void handleTelnetPut(final Channel chan,
+                               final TelnetPutDecoder.Put put) {
+    final TelnetRpc rpc = rpc_manager.lookupTelnetRpc("put");
+    if (rpc != null && rpc.getClass() == PutDataPointRpc.class) {
+      telnet_rpcs_received.incrementAndGet();
+      ((PutDataPointRpc) rpc).executePut(tsdb, chan, put);
+    } else {
+      handleTelnetRpc(chan, put.words());
+    }
+  }
+
   /**
    * Using the request URI, creates a query instance capable of handling 
    * the given request.
@@ -20,6 +20,7 @@ import org.jboss.netty.handler.codec.http.HttpMethod;
 import org.jboss.netty.handler.codec.http.HttpResponseStatus;
 
 import net.opentsdb.core.TSDB;
+import net.opentsdb.uid.NoSuchUniqueName;
 import net.opentsdb.utils.JSON;
 
 /**
@@ -50,6 +51,7 @@ final class SuggestRpc implements HttpRpc {
     final String type;
     final String q;
     final String max;
+    final String metric;
     if (query.apiVersion() > 0 && query.method() == HttpMethod.POST) {
       final HashMap<String, String> map = query.serializer().parseSuggestV1();
       type = map.get("type");
@@ -58,10 +60,12 @@ final class SuggestRpc implements HttpRpc {
       }
       q = map.get("q") == null ? "" : map.get("q");
       max = map.get("max");
+      metric = map.get("metric");
     } else { 
       type = query.getRequiredQueryStringParam("type");
       q = query.hasQueryStringParam("q") ? query.getQueryStringParam("q") : "";
       max = query.getQueryStringParam("max");
+      metric = query.getQueryStringParam("metric");
     }
     
     final int max_results;
@@ -76,7 +80,26 @@ final class SuggestRpc implements HttpRpc {
     }
     
     List<String> suggestions;
-    if ("metrics".equals(type)) {
+    if (metric != null && !metric.isEmpty()) {
+      // scoped to the tags observed with a metric, only served from memory
+      final int scoped_max = max_results > 0 ? max_results : 25;
+      try {
+        if ("tagk".equals(type)) {
+          suggestions = tsdb.suggestTagNames(q, scoped_max, metric);
+        } else if ("tagv".equals(type)) {
+          suggestions = tsdb.suggestTagValues(q, scoped_max, metric);
+        } else {
+          throw new BadRequestException("The 'metric' parameter is only "
+              + "supported for the tagk and tagv types");
+        }
+      } catch (IllegalStateException e) {
+        throw new BadRequestException(HttpResponseStatus.NOT_IMPLEMENTED, 
+            "Scoped suggestions are disabled", e.getMessage());
+      } catch (NoSuchUniqueName e) {
+        throw new BadRequestException(HttpResponseStatus.NOT_FOUND, 
+            "No such metric", e.getMessage());
+      }
+    } else if ("metrics".equals(type)) {
       suggestions = max_results > 0 ? tsdb.suggestMetrics(q, max_results) :
          tsdb.suggestMetrics(q);
     } else if ("tagk".equals(type)) {
@@ -0,0 +1,440 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.handler.codec.oneone.OneToOneDecoder;
+
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.core.IncomingDataPoint;
+import net.opentsdb.core.TSDB;
+import net.opentsdb.core.Tags;
+
+/**
+ * Decodes telnet style "put" lines by scanning the bytes of the frame in
+ * place instead of splitting the line into Strings. The timestamp and value
+ * are parsed as primitives and the metric name and tag set are looked up in
+ * caches keyed on the raw bytes, so a line for a series seen before doesn't
+ * create any Strings or tag maps. The cached names are the same instances
+ * on every hit so their hash codes, used by the UID cache lookups, are only
+ * computed once.
+ * <p>
+ * Any other command, as well as put lines that don't parse cleanly, are
+ * split into words like {@link WordSplitter} does so they're handled, and
+ * errors reported, exactly as before.
+ * <p>
+ * The caches are direct mapped and bounded, a colliding entry replaces the
+ * previous one. Entries are immutable so the decoder can be shared across
+ * channels.
+ * @since 2.4
+ */
+final class TelnetPutDecoder extends OneToOneDecoder {
+
+  private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+  /** Number of metric names cached, must be a power of 2 */
+  private static final int METRIC_CACHE_SIZE = 4096;
+
+  /** Number of tag sets cached, must be a power of 2 */
+  private static final int TAGS_CACHE_SIZE = 16384;
+
+  /** Powers of ten that are exact doubles */
+  private static final double[] POWERS_OF_TEN = new double[23];
+  static {
+    POWERS_OF_TEN[0] = 1;
+    for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+      POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+    }
+  }
+
+  private final CacheEntry<String>[] metrics;
+  private final CacheEntry<Map<String, String>>[] tag_sets;
+
+  /** Constructor. */
+  @SuppressWarnings("unchecked")
+  public TelnetPutDecoder() {
+    metrics = new CacheEntry[METRIC_CACHE_SIZE];
+    tag_sets = new CacheEntry[TAGS_CACHE_SIZE];
+  }
+
+  @Override
+  protected Object decode(final ChannelHandlerContext ctx,
+                          final Channel channel,
+                          final Object msg) throws Exception {
+    final ChannelBuffer buffer = (ChannelBuffer) msg;
+    final Put put = parse(buffer);
+    if (put != null) {
+      return put;
+    }
+    return Tags.splitString(buffer.toString(CHARSET), ' ');
+  }
+
+  /**
+   * Parses a put line.
+   * @param buffer The line without the line terminator.
+   * @return The parsed data point or null if the line isn't a put or has to
+   * go through the regular parsing to report an error.
+   */
+  Put parse(final ChannelBuffer buffer) {
+    final int length = buffer.readableBytes();
+    final byte[] line;
+    final int base;
+    if (buffer.hasArray()) {
+      line = buffer.array();
+      base = buffer.arrayOffset() + buffer.readerIndex();
+    } else {
+      line = new byte[length];
+      buffer.getBytes(buffer.readerIndex(), line);
+      base = 0;
+    }
+    final int end = base + length;
+
+    if (length < 4 || line[base] != 'p' || line[base + 1] != 'u'
+        || line[base + 2] != 't' || line[base + 3] != ' ') {
+      return null;
+    }
+
+    // metric
+    int idx = base + 4;
+    int token_end = nextSpace(line, idx, end);
+    if (token_end == idx || token_end == end) {
+      return null;
+    }
+    final String metric = lookupMetric(line, idx, token_end);
+
+    // timestamp, dots are ignored so "1365465600.500" is in milliseconds
+    idx = token_end + 1;
+    token_end = nextSpace(line, idx, end);
+    if (token_end == end) {
+      return null;
+    }
+    long timestamp = 0;
+    int digits = 0;
+    for (int i = idx; i < token_end; i++) {
+      final byte b = line[i];
+      if (b >= '0' && b <= '9') {
+        timestamp = timestamp * 10 + (b - '0');
+        digits++;
+      } else if (b != '.') {
+        return null;
+      }
+    }
+    if (digits == 0 || digits > 18 || timestamp <= 0) {
+      return null;
+    }
+
+    // value
+    idx = token_end + 1;
+    token_end = nextSpace(line, idx, end);
+    if (token_end == end || token_end == idx) {
+      return null;
+    }
+    final Put put = parseValue(line, idx, token_end);
+    if (put == null) {
+      return null;
+    }
+
+    // tags, the whole section is the cache key
+    idx = token_end + 1;
+    final Map<String, String> tags = lookupTags(line, idx, end);
+    if (tags == null) {
+      return null;
+    }
+
+    put.line = buffer;
+    put.metric = metric;
+    put.timestamp = timestamp;
+    put.tags = tags;
+    return put;
+  }
+
+  /**
+   * Parses the value with the same rules as {@code PutDataPointRpc}: integers
+   * are longs, decimals that are exactly representable as floats are floats
+   * and everything else is a double. Decimals that can't be converted exactly
+   * with double arithmetic fall back to {@link Double#parseDouble}.
+   * @return A new put with the value set or null if the value is invalid.
+   */
+  private static Put parseValue(final byte[] line, final int start,
+                                final int end) {
+    int i = start;
+    boolean negative = false;
+    if (line[i] == '-' || line[i] == '+') {
+      negative = line[i] == '-';
+      i++;
+      if (i == end) {
+        return null;
+      }
+    }
+
+    long mantissa = 0;
+    int digits = 0;
+    int fraction_digits = -1;
+    for (; i < end; i++) {
+      final byte b = line[i];
+      if (b >= '0' && b <= '9') {
+        if (digits < 18) {
+          mantissa = mantissa * 10 + (b - '0');
+        }
+        digits++;
+        if (fraction_digits >= 0) {
+          fraction_digits++;
+        }
+      } else if (b == '.' && fraction_digits < 0) {
+        fraction_digits = 0;
+      } else if (b == 'e' || b == 'E') {
+        return parseDouble(line, start, end);
+      } else {
+        return null;
+      }
+    }
+
+    if (digits == 0) {
+      return null;
+    }
+    final Put put = new Put();
+    if (fraction_digits < 0) {
+      // integers, leave overflows to the regular parsing
+      if (digits > 18) {
+        return null;
+      }
+      put.integer = true;
+      put.long_value = negative ? -mantissa : mantissa;
+      return put;
+    }
+    if (digits > 15 || fraction_digits >= POWERS_OF_TEN.length) {
+      return parseDouble(line, start, end);
+    }
+    // both operands are exact so the division is correctly rounded
+    double value = mantissa / POWERS_OF_TEN[fraction_digits];
+    if (negative) {
+      value = -value;
+    }
+    put.double_value = value;
+    return put;
+  }
+
+  /** Slow path for values with exponents or many significant digits */
+  private static Put parseDouble(final byte[] line, final int start,
+                                 final int end) {
+    final double value;
+    try {
+      value = Double.parseDouble(new String(line, start, end - start,
+          CHARSET));
+    } catch (NumberFormatException e) {
+      return null;
+    }
+    final Put put = new Put();
+    put.double_value = value;
+    return put;
+  }
+
+  /** @return The cached metric name for the bytes, creating it on a miss */
+  private String lookupMetric(final byte[] line, final int start,
+                              final int end) {
+    final int hash = hash(line, start, end);
+    final int slot = hash & (metrics.length - 1);
+    final CacheEntry<String> entry = metrics[slot];
+    if (entry != null && entry.matches(hash, line, start, end)) {
+      return entry.value;
+    }
+    final String metric = new String(line, start, end - start, CHARSET);
+    metrics[slot] = new CacheEntry<String>(hash, line, start, end, metric);
+    return metric;
+  }
+
+  /**
+   * Looks up or parses the tags at the end of a line.
+   * @return An unmodifiable map of the tags or null if the tags are missing
+   * or invalid.
+   */
+  private Map<String, String> lookupTags(final byte[] line, final int start,
+                                         final int end) {
+    if (start >= end) {
+      return null;
+    }
+    final int hash = hash(line, start, end);
+    final int slot = hash & (tag_sets.length - 1);
+    final CacheEntry<Map<String, String>> entry = tag_sets[slot];
+    if (entry != null && entry.matches(hash, line, start, end)) {
+      return entry.value;
+    }
+
+    final Map<String, String> tags = new HashMap<String, String>();
+    int idx = start;
+    while (idx < end) {
+      final int token_end = nextSpace(line, idx, end);
+      if (token_end == idx) {
+        // consecutive spaces, the regular parsing skips empty words
+        idx++;
+        continue;
+      }
+      int equals = -1;
+      for (int i = idx; i < token_end; i++) {
+        if (line[i] == '=') {
+          if (equals >= 0) {
+            return null;
+          }
+          equals = i;
+        }
+      }
+      if (equals <= idx || equals == token_end - 1) {
+        return null;
+      }
+      final String key = new String(line, idx, equals - idx, CHARSET);
+      final String value = new String(line, equals + 1,
+          token_end - equals - 1, CHARSET);
+      final String existing = tags.put(key, value);
+      if (existing != null && !existing.equals(value)) {
+        return null;
+      }
+      idx = token_end + 1;
+    }
+    if (tags.isEmpty()) {
+      return null;
+    }
+    final Map<String, String> cached = Collections.unmodifiableMap(tags);
+    tag_sets[slot] = new CacheEntry<Map<String, String>>(hash, line, start,
+        end, cached);
+    return cached;
+  }
+
+  /** @return The index of the next space or {@code end} */
+  private static int nextSpace(final byte[] line, int idx, final int end) {
+    while (idx < end && line[idx] != ' ') {
+      idx++;
+    }
+    return idx;
+  }
+
+  private static int hash(final byte[] line, final int start, final int end) {
+    int hash = 0x811C9DC5;
+    for (int i = start; i < end; i++) {
+      hash ^= line[i];
+      hash *= 0x01000193;
+    }
+    return hash ^ (hash >>> 16);
+  }
+
+  /** An immutable cache entry mapping raw bytes to a value */
+  private static final class CacheEntry<T> {
+    final int hash;
+    final byte[] key;
+    final T value;
+
+    CacheEntry(final int hash, final byte[] line, final int start,
+               final int end, final T value) {
+      this.hash = hash;
+      key = new byte[end - start];
+      System.arraycopy(line, start, key, 0, key.length);
+      this.value = value;
+    }
+
+    boolean matches(final int hash, final byte[] line, final int start,
+                    final int end) {
+      if (this.hash != hash || key.length != end - start) {
+        return false;
+      }
+      for (int i = 0; i < key.length; i++) {
+        if (key[i] != line[start + i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /**
+   * A put line parsed by the decoder. The tags are shared with other puts
+   * for the same tag set and must not be modified.
+   */
+  static final class Put {
+    private ChannelBuffer line;
+    private String metric;
+    private long timestamp;
+    private boolean integer;
+    private long long_value;
+    private double double_value;
+    private Map<String, String> tags;
+
+    /** @return The metric name */
+    String metric() {
+      return metric;
+    }
+
+    /** @return The timestamp in seconds or milliseconds */
+    long timestamp() {
+      return timestamp;
+    }
+
+    /** @return Whether or not the value is an integer */
+    boolean isInteger() {
+      return integer;
+    }
+
+    /** @return The integer value */
+    long longValue() {
+      return long_value;
+    }
+
+    /** @return The floating point value */
+    double doubleValue() {
+      return double_value;
+    }
+
+    /** @return The tags, not modifiable */
+    Map<String, String> tags() {
+      return tags;
+    }
+
+    /**
+     * Writes the data point.
+     * @param tsdb The TSDB to write to.
+     * @return The deferred from {@link TSDB#addPoint}.
+     */
+    Deferred<Object> write(final TSDB tsdb) {
+      if (integer) {
+        return tsdb.addPoint(metric, timestamp, long_value, tags);
+      }
+      final float f = (float) double_value;
+      if (f == double_value) {
+        return tsdb.addPoint(metric, timestamp, f, tags);
+      }
+      return tsdb.addPoint(metric, timestamp, double_value, tags);
+    }
+
+    /** @return The line split into words as {@link WordSplitter} would */
+    String[] words() {
+      return Tags.splitString(line.toString(CHARSET), ' ');
+    }
+
+    /** @return A new data point object for error reporting */
+    IncomingDataPoint toDataPoint() {
+      final String[] words = words();
+      return new IncomingDataPoint(metric, timestamp, words[3], tags);
+    }
+
+    @Override
+    public String toString() {
+      return line.toString(CHARSET);
+    }
+  }
+}
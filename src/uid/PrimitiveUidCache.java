@@ -0,0 +1,417 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.uid;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * A bidirectional UID cache backed by open-addressing hash tables keyed on
+ * primitives instead of the {@code String} keyed maps used by default.
+ * <p>
+ * Each mapping is stored once as an entry holding the UID as a {@code long}
+ * (UIDs are at most 8 bytes wide) and the name as a single {@code String}
+ * instance shared by both directions. Two slot tables index the entries, one
+ * by UID and one by name, using linear probing. Reverse lookups therefore
+ * don't allocate anything and the cache carries no per-entry map nodes.
+ * <p>
+ * Because {@link UniqueId} may cache only one direction depending on the
+ * operation mode, an entry may be indexed by one or both slot tables.
+ * <p>
+ * Reads are lock free. Writers serialize on the cache and publish entries
+ * through volatile writes on the slot arrays. When the entry space is
+ * exhausted, the tables are rebuilt, dropping removed entries, and the new
+ * table is swapped in atomically. A reader racing with a rebuild may miss a
+ * mapping added in the meantime, which is treated as a regular cache miss.
+ * @since 2.4
+ */
+final class PrimitiveUidCache {
+  /** Marks an unused slot. */
+  private static final int EMPTY = 0;
+  /** Marks a slot whose entry was removed. Probing continues past it. */
+  private static final int DELETED = -1;
+  /** Minimum number of slots of a table, must be a power of 2. */
+  private static final int MIN_CAPACITY = 16;
+
+  /** Width of the UIDs, used to convert to and from byte arrays. */
+  private final short width;
+
+  /** The current table, swapped on rebuild. */
+  private volatile Table table;
+
+  /**
+   * Default ctor.
+   * @param width The width of the UIDs in bytes, from 1 to 8.
+   * @throws IllegalArgumentException if the width is out of range.
+   */
+  PrimitiveUidCache(final short width) {
+    if (width < 1 || width > 8) {
+      throw new IllegalArgumentException("Invalid width: " + width);
+    }
+    this.width = width;
+    table = new Table(MIN_CAPACITY);
+  }
+
+  /**
+   * Finds the name mapped to the given UID.
+   * @param id The UID to look up, must be {@code width} bytes long.
+   * @return The name if cached, null if not.
+   */
+  String getName(final byte[] id) {
+    final Table t = table;
+    final int entry = t.findId(toLong(id));
+    return entry < 0 ? null : t.names[entry];
+  }
+
+  /**
+   * Finds the UID mapped to the given name.
+   * @param name The name to look up.
+   * @return A new array with the UID if cached, null if not.
+   */
+  byte[] getId(final String name) {
+    final Table t = table;
+    final int entry = t.findName(name, spread(name.hashCode()));
+    return entry < 0 ? null : toBytes(t.ids[entry]);
+  }
+
+  /**
+   * Adds a UID to name mapping if the UID isn't cached yet.
+   * @param id The UID.
+   * @param name The name.
+   * @return The name already mapped to the UID, or null if the mapping was
+   * added.
+   */
+  synchronized String putNameIfAbsent(final byte[] id, final String name) {
+    final long uid = toLong(id);
+    final int existing = table.findId(uid);
+    if (existing >= 0) {
+      return table.names[existing];
+    }
+    final int hash = spread(name.hashCode());
+    int entry = table.findName(name, hash);
+    if (entry < 0 || table.ids[entry] != uid) {
+      entry = newEntry(uid, name, hash);
+    }
+    table.indexId(entry);
+    return null;
+  }
+
+  /**
+   * Adds a name to UID mapping if the name isn't cached yet.
+   * @param name The name.
+   * @param id The UID.
+   * @return The UID already mapped to the name, or null if the mapping was
+   * added.
+   */
+  synchronized byte[] putIdIfAbsent(final String name, final byte[] id) {
+    final long uid = toLong(id);
+    final int hash = spread(name.hashCode());
+    final int existing = table.findName(name, hash);
+    if (existing >= 0) {
+      return toBytes(table.ids[existing]);
+    }
+    int entry = table.findId(uid);
+    if (entry < 0 || !table.names[entry].equals(name)) {
+      entry = newEntry(uid, name, hash);
+    }
+    table.indexName(entry);
+    return null;
+  }
+
+  /**
+   * Maps the UID to the given name, replacing any existing UID to name
+   * mapping. Used when renaming.
+   * @param id The UID.
+   * @param name The new name.
+   */
+  synchronized void putName(final byte[] id, final String name) {
+    removeName(id);
+    putNameIfAbsent(id, name);
+  }
+
+  /**
+   * Removes the UID to name mapping if present.
+   * @param id The UID to remove.
+   */
+  synchronized void removeName(final byte[] id) {
+    table.unindexId(toLong(id));
+  }
+
+  /**
+   * Removes the name to UID mapping if present.
+   * @param name The name to remove.
+   */
+  synchronized void removeId(final String name) {
+    table.unindexName(name, spread(name.hashCode()));
+  }
+
+  /** @return The number of name to UID mappings cached. */
+  int nameCount() {
+    return table.name_count;
+  }
+
+  /** @return The number of UID to name mappings cached. */
+  int idCount() {
+    return table.id_count;
+  }
+
+  /**
+   * Passes each cached entry to the visitor once. Lock free, entries added
+   * or removed while visiting may or may not be seen.
+   * @param visitor The visitor to call.
+   * @throws IOException if the visitor failed.
+   */
+  void visit(final UidCacheSnapshot.Visitor visitor) throws IOException {
+    final Table t = table;
+    final boolean[] seen = new boolean[t.ids.length];
+    for (int i = 0; i <= t.mask; i++) {
+      int slot = t.name_slots.get(i);
+      if (slot > 0 && !seen[slot - 1]) {
+        seen[slot - 1] = true;
+        visitor.visit(t.names[slot - 1], toBytes(t.ids[slot - 1]));
+      }
+      slot = t.id_slots.get(i);
+      if (slot > 0 && !seen[slot - 1]) {
+        seen[slot - 1] = true;
+        visitor.visit(t.names[slot - 1], toBytes(t.ids[slot - 1]));
+      }
+    }
+  }
+
+  /** Drops all of the mappings. */
+  synchronized void clear() {
+    table = new Table(MIN_CAPACITY);
+  }
+
+  /**
+   * Allocates a new entry, rebuilding the table if we ran out of space.
+   * @return The index of the new entry.
+   */
+  private int newEntry(final long uid, final String name, final int hash) {
+    if (table.next >= table.ids.length) {
+      table = table.rebuild();
+    }
+    final Table t = table;
+    final int entry = t.next++;
+    t.ids[entry] = uid;
+    t.names[entry] = name;
+    t.hashes[entry] = hash;
+    return entry;
+  }
+
+  /** Converts the UID to an unsigned long. */
+  private long toLong(final byte[] id) {
+    if (id.length != width) {
+      throw new IllegalArgumentException("UID was " + id.length
+          + " bytes long but expected to be " + width);
+    }
+    long value = 0;
+    for (int i = 0; i < id.length; i++) {
+      value = (value << 8) | (id[i] & 0xFF);
+    }
+    return value;
+  }
+
+  /** Converts the UID to a byte array of {@code width} bytes. */
+  private byte[] toBytes(long uid) {
+    final byte[] id = new byte[width];
+    for (int i = width - 1; i >= 0; i--) {
+      id[i] = (byte) uid;
+      uid >>>= 8;
+    }
+    return id;
+  }
+
+  /** Scrambles the String hash so sequential names don't cluster. */
+  private static int spread(final int hash) {
+    return (hash ^ (hash >>> 16)) * 0x9E3779B9;
+  }
+
+  /** Scrambles the UID, the finalizer from MurmurHash3. */
+  private static int spread(long uid) {
+    uid ^= uid >>> 33;
+    uid *= 0xFF51AFD7ED558CCDL;
+    uid ^= uid >>> 33;
+    uid *= 0xC4CEB9FE1A85EC53L;
+    uid ^= uid >>> 33;
+    return (int) uid;
+  }
+
+  /**
+   * The entries and slot tables. Entries are appended and never reused until
+   * the next rebuild. Slots hold the entry index plus one so that zero means
+   * an empty slot. The load factor stays at or below 0.5 since the entry
+   * arrays hold half as many elements as there are slots.
+   */
+  private static final class Table {
+    final int mask;
+    final AtomicIntegerArray id_slots;
+    final AtomicIntegerArray name_slots;
+    final long[] ids;
+    final String[] names;
+    final int[] hashes;
+    /** Next entry to allocate. Only written under the cache lock. */
+    int next;
+    /** Number of indexed UIDs. */
+    volatile int id_count;
+    /** Number of indexed names. */
+    volatile int name_count;
+
+    Table(final int capacity) {
+      mask = capacity - 1;
+      id_slots = new AtomicIntegerArray(capacity);
+      name_slots = new AtomicIntegerArray(capacity);
+      ids = new long[capacity / 2];
+      names = new String[capacity / 2];
+      hashes = new int[capacity / 2];
+    }
+
+    /** @return The entry index indexed under the UID or -1 if not found. */
+    int findId(final long uid) {
+      int i = spread(uid) & mask;
+      while (true) {
+        final int slot = id_slots.get(i);
+        if (slot == EMPTY) {
+          return -1;
+        }
+        if (slot != DELETED && ids[slot - 1] == uid) {
+          return slot - 1;
+        }
+        i = (i + 1) & mask;
+      }
+    }
+
+    /** @return The entry index indexed under the name or -1 if not found. */
+    int findName(final String name, final int hash) {
+      int i = hash & mask;
+      while (true) {
+        final int slot = name_slots.get(i);
+        if (slot == EMPTY) {
+          return -1;
+        }
+        if (slot != DELETED && hashes[slot - 1] == hash
+            && names[slot - 1].equals(name)) {
+          return slot - 1;
+        }
+        i = (i + 1) & mask;
+      }
+    }
+
+    /** Indexes the entry by UID. The caller must check for duplicates. */
+    void indexId(final int entry) {
+      int i = spread(ids[entry]) & mask;
+      while (id_slots.get(i) > 0) {
+        i = (i + 1) & mask;
+      }
+      id_slots.set(i, entry + 1);
+      id_count++;
+    }
+
+    /** Indexes the entry by name. The caller must check for duplicates. */
+    void indexName(final int entry) {
+      int i = hashes[entry] & mask;
+      while (name_slots.get(i) > 0) {
+        i = (i + 1) & mask;
+      }
+      name_slots.set(i, entry + 1);
+      name_count++;
+    }
+
+    /** Tombstones the UID slot if found. */
+    void unindexId(final long uid) {
+      int i = spread(uid) & mask;
+      while (true) {
+        final int slot = id_slots.get(i);
+        if (slot == EMPTY) {
+          return;
+        }
+        if (slot != DELETED && ids[slot - 1] == uid) {
+          id_slots.set(i, DELETED);
+          id_count--;
+          return;
+        }
+        i = (i + 1) & mask;
+      }
+    }
+
+    /** Tombstones the name slot if found. */
+    void unindexName(final String name, final int hash) {
+      int i = hash & mask;
+      while (true) {
+        final int slot = name_slots.get(i);
+        if (slot == EMPTY) {
+          return;
+        }
+        if (slot != DELETED && hashes[slot - 1] == hash
+            && names[slot - 1].equals(name)) {
+          name_slots.set(i, DELETED);
+          name_count--;
+          return;
+        }
+        i = (i + 1) & mask;
+      }
+    }
+
+    /**
+     * Copies the live entries into a new table sized so that the live
+     * entries fill at most a quarter of the slots, leaving room to grow.
+     * @return The new table.
+     */
+    Table rebuild() {
+      final boolean[] by_id = new boolean[next];
+      final boolean[] by_name = new boolean[next];
+      int live = 0;
+      for (int i = 0; i <= mask; i++) {
+        int slot = id_slots.get(i);
+        if (slot > 0) {
+          if (!by_id[slot - 1] && !by_name[slot - 1]) {
+            live++;
+          }
+          by_id[slot - 1] = true;
+        }
+        slot = name_slots.get(i);
+        if (slot > 0) {
+          if (!by_id[slot - 1] && !by_name[slot - 1]) {
+            live++;
+          }
+          by_name[slot - 1] = true;
+        }
+      }
+
+      int capacity = MIN_CAPACITY;
+      while (capacity < live * 4) {
+        capacity <<= 1;
+        if (capacity < 0) {
+          throw new IllegalStateException("Too many UIDs to cache: " + live);
+        }
+      }
+      final Table t = new Table(capacity);
+      for (int i = 0; i < next; i++) {
+        if (!by_id[i] && !by_name[i]) {
+          continue;
+        }
+        final int entry = t.next++;
+        t.ids[entry] = ids[i];
+        t.names[entry] = names[i];
+        t.hashes[entry] = hashes[i];
+        if (by_id[i]) {
+          t.indexId(entry);
+        }
+        if (by_name[i]) {
+          t.indexName(entry);
+        }
+      }
+      return t;
+    }
+  }
+}
@@ -0,0 +1,250 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.uid;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-memory, sorted index of every name of one kind of UID so that prefix
+ * suggestions can be answered without scanning the UID table.
+ * <p>
+ * Names are kept in a concurrent skip list sorted the same way as the rows of
+ * the UID table (names are ISO-8859-1 so {@link String#compareTo} matches the
+ * unsigned byte order) and a prefix lookup is a seek followed by a walk of at
+ * most {@code max_results} entries. The name strings are shared with the UID
+ * cache so the index only costs the skip list nodes and the UID keys.
+ * <p>
+ * The index is filled from a scan of the UID table at startup and then kept
+ * up to date through the UID cache as names are assigned, renamed or deleted
+ * by this TSD. Until that first scan completes, {@link UniqueId} keeps
+ * serving suggestions from HBase. The table is rescanned every
+ * {@code tsd.uid.suggest.refresh_interval}, six hours by default as every TSD
+ * scans the whole table for each kind, to pick up names assigned, renamed or
+ * deleted through other TSDs: every name seen by the scan or added locally
+ * meanwhile is kept and the others are dropped once the scan completes.
+ * <p>
+ * The index can also record which names were observed in the series of a
+ * scope, the metric, to suggest for example only the tag values written for
+ * a given metric. Each scope keeps its names sorted so a scoped lookup is a
+ * seek in the scope followed by a walk of at most {@code max_results}
+ * entries, regardless of how many names the index holds. Scopes only reflect
+ * the series written to this TSD since it started.
+ * @since 2.4
+ */
+public final class SuggestIndex {
+  /** Names mapped to their UIDs as ISO-8859-1 strings, sorted */
+  private final ConcurrentSkipListMap<String, String> names =
+      new ConcurrentSkipListMap<String, String>();
+
+  /** Sorted names observed per scope keyed on the scope UID as an ISO-8859-1
+   * string */
+  private final ConcurrentMap<String, ConcurrentSkipListSet<String>> scopes =
+      new ConcurrentHashMap<String, ConcurrentSkipListSet<String>>();
+
+  /** The maximum number of results to return for a suggestion */
+  private final int max_results;
+
+  /** Whether or not the index holds every name from storage */
+  private volatile boolean complete;
+
+  /** Names added since the refresh in progress started, null if none is */
+  private volatile Set<String> refreshed;
+
+  /** Number of suggestions served from the index */
+  private final AtomicLong suggestions = new AtomicLong();
+
+  /** Number of scoped suggestions served from the index */
+  private final AtomicLong scoped_suggestions = new AtomicLong();
+
+  /**
+   * Default ctor.
+   * @param max_results The maximum number of results any suggestion may
+   * return, regardless of what the caller asked for.
+   * @throws IllegalArgumentException if max results was less than 1.
+   */
+  public SuggestIndex(final int max_results) {
+    if (max_results < 1) {
+      throw new IllegalArgumentException("Max results must be greater "
+          + "than 0: " + max_results);
+    }
+    this.max_results = max_results;
+  }
+
+  /**
+   * Adds or replaces a name in the index.
+   * @param name The name.
+   * @param id The UID of the name.
+   */
+  void add(final String name, final byte[] id) {
+    // marked first so that finishing a refresh never drops a name being added
+    final Set<String> seen = refreshed;
+    if (seen != null) {
+      seen.add(name);
+    }
+    names.put(name, UniqueId.fromBytes(id));
+  }
+
+  /**
+   * Removes a name from the index.
+   * @param name The name to remove.
+   */
+  void remove(final String name) {
+    names.remove(name);
+  }
+
+  /**
+   * Records that a name was seen in a series of the scope.
+   * @param scope The UID of the scope, i.e. the metric.
+   * @param name The name observed.
+   */
+  public void observe(final byte[] scope, final String name) {
+    final String scope_key = UniqueId.fromBytes(scope);
+    ConcurrentSkipListSet<String> scoped = scopes.get(scope_key);
+    if (scoped == null) {
+      scoped = new ConcurrentSkipListSet<String>();
+      final ConcurrentSkipListSet<String> existing =
+          scopes.putIfAbsent(scope_key, scoped);
+      if (existing != null) {
+        scoped = existing;
+      }
+    }
+    scoped.add(name);
+  }
+
+  /**
+   * Starts tracking the names added so that the ones no longer in storage
+   * can be dropped by {@link #finishRefresh}.
+   */
+  void startRefresh() {
+    refreshed = Collections.newSetFromMap(
+        new ConcurrentHashMap<String, Boolean>());
+  }
+
+  /**
+   * Drops the names that weren't added since {@link #startRefresh}, i.e. that
+   * the scan of the UID table didn't find, and flags the index as holding
+   * every name from storage.
+   * @return The number of names dropped.
+   */
+  int finishRefresh() {
+    final Set<String> seen = refreshed;
+    int dropped = 0;
+    if (seen != null) {
+      // sweep while names added concurrently are still marked. add() marks
+      // before it puts so a name it put is always seen here, and a name it
+      // re-adds while we remove it is put back.
+      final Iterator<Map.Entry<String, String>> it =
+          names.entrySet().iterator();
+      while (it.hasNext()) {
+        final Map.Entry<String, String> entry = it.next();
+        final String name = entry.getKey();
+        if (seen.contains(name) || !names.remove(name, entry.getValue())) {
+          continue;
+        }
+        if (seen.contains(name)) {
+          names.putIfAbsent(name, entry.getValue());
+        } else {
+          dropped++;
+        }
+      }
+    }
+    refreshed = null;
+    complete = true;
+    return dropped;
+  }
+
+  /** Stops tracking added names after a failed refresh. */
+  void abortRefresh() {
+    refreshed = null;
+  }
+
+  /** @return Whether or not the index holds every name from storage. */
+  public boolean isComplete() {
+    return complete;
+  }
+
+  /** @return The number of names in the index. */
+  public int size() {
+    return names.size();
+  }
+
+  /** @return The number of suggestions served from the index. */
+  public long suggestions() {
+    return suggestions.get();
+  }
+
+  /** @return The number of scoped suggestions served from the index. */
+  public long scopedSuggestions() {
+    return scoped_suggestions.get();
+  }
+
+  /**
+   * Returns the names starting with the search string in sorted order.
+   * @param search The prefix to search for, may be empty.
+   * @param max_results The maximum number of results, capped by the limit
+   * given at construction.
+   * @return A list of names, possibly empty.
+   */
+  public List<String> suggest(final String search, final int max_results) {
+    suggestions.incrementAndGet();
+    final int limit = Math.min(max_results, this.max_results);
+    final List<String> results = new ArrayList<String>(Math.min(limit, 64));
+    for (final String name : names.tailMap(search, true).keySet()) {
+      if (!name.startsWith(search) || results.size() >= limit) {
+        break;
+      }
+      results.add(name);
+    }
+    return results;
+  }
+
+  /**
+   * Returns the names starting with the search string that were observed in
+   * the scope, in sorted order. Names renamed or deleted since are skipped.
+   * @param search The prefix to search for, may be empty.
+   * @param max_results The maximum number of results, capped by the limit
+   * given at construction.
+   * @param scope The UID of the scope, i.e. the metric.
+   * @return A list of names, empty if nothing was observed for the scope.
+   */
+  public List<String> suggest(final String search, final int max_results,
+                              final byte[] scope) {
+    scoped_suggestions.incrementAndGet();
+    final ConcurrentSkipListSet<String> scoped =
+        scopes.get(UniqueId.fromBytes(scope));
+    if (scoped == null) {
+      return new ArrayList<String>(0);
+    }
+    final int limit = Math.min(max_results, this.max_results);
+    final List<String> results = new ArrayList<String>(Math.min(limit, 64));
+    for (final String name : scoped.tailSet(search, true)) {
+      if (!name.startsWith(search) || results.size() >= limit) {
+        break;
+      }
+      if (names.containsKey(name)) {
+        results.add(name);
+      }
+    }
+    return results;
+  }
+}
@@ -0,0 +1,223 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.uid;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hbase.async.AtomicIncrementRequest;
+import org.hbase.async.HBaseClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+/**
+ * Hands out serial UIDs from blocks reserved with a single atomic increment
+ * of the max ID cell.
+ * <p>
+ * Requests are served locally while the current block has IDs left. When it
+ * runs out, the first request starts a reservation and any request arriving
+ * while it's in flight waits on it. Each reservation covers at least all of
+ * the waiting requests, so a burst of new names costs one increment instead
+ * of one per name, even with a block size of 1.
+ * <p>
+ * The monitor of the allocator only guards the block bounds and the list of
+ * waiters, it's never held during an RPC or while calling back a waiter.
+ * IDs remaining in a block when the TSD shuts down are never assigned.
+ * @since 2.4
+ */
+final class UidBlockAllocator {
+  private static final Logger LOG =
+      LoggerFactory.getLogger(UidBlockAllocator.class);
+
+  private final HBaseClient client;
+  private final byte[] table;
+  private final byte[] row;
+  private final byte[] family;
+  private final byte[] kind;
+
+  /** Minimum number of IDs to reserve at once. */
+  private final int block_size;
+
+  /** The next ID to hand out. */
+  private long next;
+  /** The last ID of the current block, inclusive. */
+  private long last = -1;
+  /** Whether or not a reservation is in flight. */
+  private boolean reserving;
+  /** Requests waiting on the reservation in flight. */
+  private ArrayList<Deferred<Long>> waiters = new ArrayList<Deferred<Long>>();
+
+  /** Number of atomic increments sent. */
+  private final AtomicLong reservations = new AtomicLong();
+  /** Total number of IDs reserved. */
+  private final AtomicLong reserved = new AtomicLong();
+  /** Total number of IDs handed out. */
+  private final AtomicLong allocated = new AtomicLong();
+
+  /**
+   * Default ctor.
+   * @param client The HBase client to use.
+   * @param table The UID table.
+   * @param row The row of the max ID cell.
+   * @param family The family of the max ID cell.
+   * @param kind The qualifier of the max ID cell.
+   * @param block_size The minimum number of IDs to reserve at once.
+   * @throws IllegalArgumentException if the block size is less than 1.
+   */
+  UidBlockAllocator(final HBaseClient client, final byte[] table,
+      final byte[] row, final byte[] family, final byte[] kind,
+      final int block_size) {
+    if (block_size < 1) {
+      throw new IllegalArgumentException("Block size must be at least 1: "
+          + block_size);
+    }
+    this.client = client;
+    this.table = table;
+    this.row = row;
+    this.family = family;
+    this.kind = kind;
+    this.block_size = block_size;
+  }
+
+  /**
+   * Allocates a new ID.
+   * @return A deferred resolving to the ID or an exception if the reservation
+   * failed.
+   */
+  Deferred<Long> allocate() {
+    final Deferred<Long> deferred;
+    final int amount;
+    synchronized (this) {
+      if (next <= last) {
+        allocated.incrementAndGet();
+        return Deferred.fromResult(next++);
+      }
+      deferred = new Deferred<Long>();
+      waiters.add(deferred);
+      if (reserving) {
+        return deferred;
+      }
+      reserving = true;
+      amount = Math.max(block_size, waiters.size());
+    }
+    reserve(amount);
+    return deferred;
+  }
+
+  /** @return The number of atomic increments sent to reserve IDs. */
+  long reservations() {
+    return reservations.get();
+  }
+
+  /** @return The total number of IDs reserved. */
+  long reserved() {
+    return reserved.get();
+  }
+
+  /** @return The total number of IDs handed out. */
+  long allocated() {
+    return allocated.get();
+  }
+
+  /** @return The number of IDs reserved and not handed out yet. */
+  synchronized long available() {
+    return next <= last ? last - next + 1 : 0;
+  }
+
+  /** Sends the atomic increment for a new block. */
+  private void reserve(final int amount) {
+    reservations.incrementAndGet();
+
+    /** Serves the waiters from the new block, reserving more if needed */
+    final class ReserveCB implements Callback<Object, Long> {
+      @Override
+      public Object call(final Long max) {
+        if (max - amount + 1 <= 0) {
+          fail(new IllegalStateException("Got a negative ID from HBase: "
+              + max));
+          return null;
+        }
+        reserved.addAndGet(amount);
+        final ArrayList<Deferred<Long>> served;
+        final long first;
+        int more = 0;
+        synchronized (UidBlockAllocator.this) {
+          next = max - amount + 1;
+          last = max;
+          if (waiters.size() <= amount) {
+            served = waiters;
+            waiters = new ArrayList<Deferred<Long>>();
+            reserving = false;
+          } else {
+            served = new ArrayList<Deferred<Long>>(
+                waiters.subList(0, amount));
+            waiters = new ArrayList<Deferred<Long>>(
+                waiters.subList(amount, waiters.size()));
+            more = Math.max(block_size, waiters.size());
+          }
+          first = next;
+          next += served.size();
+          allocated.addAndGet(served.size());
+        }
+        if (amount > 1) {
+          LOG.debug("Reserved IDs " + (max - amount + 1) + " to " + max
+              + " for kind='" + new String(kind) + "'");
+        }
+        if (more > 0) {
+          reserve(more);
+        }
+        for (int i = 0; i < served.size(); i++) {
+          served.get(i).callback(first + i);
+        }
+        return null;
+      }
+      @Override
+      public String toString() {
+        return "UID block reservation callback";
+      }
+    }
+
+    /** Fails all of the waiters so they can retry */
+    final class ReserveErrCB implements Callback<Object, Exception> {
+      @Override
+      public Object call(final Exception e) {
+        fail(e);
+        return null;
+      }
+      @Override
+      public String toString() {
+        return "UID block reservation errback";
+      }
+    }
+
+    client.atomicIncrement(new AtomicIncrementRequest(table, row, family,
+        kind, amount))
+      .addCallbacks(new ReserveCB(), new ReserveErrCB());
+  }
+
+  /** Passes the exception to everyone waiting on a reservation. */
+  private void fail(final Exception e) {
+    final ArrayList<Deferred<Long>> failed;
+    synchronized (this) {
+      failed = waiters;
+      waiters = new ArrayList<Deferred<Long>>();
+      reserving = false;
+    }
+    for (final Deferred<Long> deferred : failed) {
+      deferred.callback(e);
+    }
+  }
+}
@@ -0,0 +1,445 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.uid;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import org.hbase.async.Bytes.ByteMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.opentsdb.core.Const;
+import net.opentsdb.core.TSDB;
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.utils.Config;
+
+/**
+ * A local snapshot of the {@link UniqueId} caches used to warm them up on
+ * restart instead of scanning the UID table.
+ * <p>
+ * When enabled via {@code tsd.uid.snapshot.enable}, a background thread writes
+ * the cached mappings to {@code tsd.uid.snapshot.file} every
+ * {@code tsd.uid.snapshot.interval} seconds and once more on shutdown. The
+ * snapshot is written to a temporary file, synced and renamed over the old
+ * one so a crash never leaves a partial snapshot behind.
+ * <p>
+ * On startup the file is memory-mapped, checksummed and loaded into the
+ * caches. Snapshots older than {@code tsd.uid.snapshot.max_age} seconds or
+ * failing validation are ignored and the TSD falls back to the regular
+ * preload, if configured. After loading, the background thread catches up
+ * with HBase by scanning only the reverse mappings of serial UIDs greater than
+ * the largest one in the snapshot. Names assigned elsewhere below that ID and
+ * kinds with random UIDs are not scanned, those are simply cache misses.
+ * <p>
+ * File layout: a header {@code [int magic][int version][long timestamp]
+ * [int kinds]} followed by one section per kind, {@code [short kind length]
+ * [kind][short width]}, then entries of {@code [short name length][name][id]}.
+ * A zero name length ends the section and is followed by the {@code [int
+ * count]} of entries. The file ends with the {@code [long crc32]} of all the
+ * preceding bytes.
+ * @since 2.4
+ */
+public final class UidCacheSnapshot {
+  private static final Logger LOG = LoggerFactory.getLogger(UidCacheSnapshot.class);
+
+  /** Magic at the start of the file, "OTUC". */
+  static final int MAGIC = 0x4F545543;
+  /** File format version. */
+  static final int VERSION = 1;
+  /** Suffix of the file written before renaming it over the snapshot. */
+  static final String TMP_SUFFIX = ".tmp";
+
+  /** Size of the buffer used when checksumming the mapped file. */
+  private static final int CRC_CHUNK = 65536;
+
+  /** The caches to snapshot, keyed on the kind. */
+  private final ByteMap<UniqueId> uids;
+
+  /** Where we keep the snapshot. */
+  private final File file;
+
+  /** How often to write the snapshot in milliseconds. */
+  private final long interval;
+
+  /** Maximum age of a snapshot to load, in milliseconds, 0 for no limit. */
+  private final long max_age;
+
+  /** The largest serial UID loaded per kind, null if nothing was loaded. */
+  private ByteMap<Long> loaded_max_ids;
+
+  private volatile boolean running;
+  private Thread writer;
+
+  private final AtomicLong writes = new AtomicLong();
+  private final AtomicLong write_failures = new AtomicLong();
+  private volatile long last_write_entries;
+  private volatile long last_write_time;
+  private volatile long loaded_entries;
+  private volatile long delta_entries;
+
+  /**
+   * Default ctor. Nothing is read until {@link #load} is called.
+   * @param tsdb The TSDB to pull the config from.
+   * @param uids The caches to snapshot, keyed on the kind.
+   * @throws IllegalArgumentException if the configuration is invalid.
+   */
+  public UidCacheSnapshot(final TSDB tsdb, final ByteMap<UniqueId> uids) {
+    final Config config = tsdb.getConfig();
+    final String path = config.getString("tsd.uid.snapshot.file");
+    if (path == null || path.isEmpty()) {
+      throw new IllegalArgumentException("The UID snapshot was enabled but "
+          + "'tsd.uid.snapshot.file' is null or empty.");
+    }
+    interval = config.getLong("tsd.uid.snapshot.interval") * 1000;
+    if (interval < 1000) {
+      throw new IllegalArgumentException(
+          "The UID snapshot interval must be at least 1 second: "
+          + config.getString("tsd.uid.snapshot.interval"));
+    }
+    max_age = config.getLong("tsd.uid.snapshot.max_age") * 1000;
+    this.uids = uids;
+    file = new File(path);
+    final File parent = file.getAbsoluteFile().getParentFile();
+    if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+      throw new IllegalArgumentException(
+          "Unable to create the UID snapshot directory: " + parent);
+    }
+  }
+
+  /**
+   * Loads the snapshot into the caches if it exists, is recent enough and
+   * passes validation.
+   * @return True if the snapshot was loaded, false if the caller should fall
+   * back to scanning the UID table.
+   */
+  public boolean load() {
+    if (!file.exists()) {
+      LOG.info("No UID snapshot found at " + file);
+      return false;
+    }
+    final long start = System.currentTimeMillis();
+    try {
+      final RandomAccessFile raf = new RandomAccessFile(file, "r");
+      final MappedByteBuffer buffer;
+      try {
+        buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+            raf.length());
+      } finally {
+        // the mapping stays valid after the channel is closed
+        raf.close();
+      }
+      if (!validate(buffer)) {
+        return false;
+      }
+      loaded_max_ids = read(buffer);
+    } catch (IOException e) {
+      LOG.error("Failed to read the UID snapshot " + file, e);
+      return false;
+    } catch (RuntimeException e) {
+      LOG.error("Corrupted UID snapshot " + file, e);
+      return false;
+    }
+    LOG.info("Loaded " + loaded_entries + " UIDs from snapshot " + file
+        + " in " + (System.currentTimeMillis() - start) + " ms");
+    return true;
+  }
+
+  /**
+   * Starts the background thread, catching up with HBase first if a
+   * snapshot was loaded.
+   */
+  public void start() {
+    running = true;
+    writer = new SnapshotThread();
+    writer.start();
+  }
+
+  /** Stops the background thread and writes a final snapshot. */
+  public void shutdown() {
+    running = false;
+    if (writer != null) {
+      writer.interrupt();
+    }
+    write();
+  }
+
+  /**
+   * Writes the cached mappings to disk, replacing the previous snapshot.
+   * Failures are logged and counted.
+   * @return True if the snapshot was written, false if not.
+   */
+  public synchronized boolean write() {
+    final long start = System.currentTimeMillis();
+    final File tmp = new File(file.getPath() + TMP_SUFFIX);
+    final CRC32 crc = new CRC32();
+    long entries = 0;
+    try {
+      final FileOutputStream fos = new FileOutputStream(tmp);
+      try {
+        final DataOutputStream out = new DataOutputStream(
+            new CheckedOutputStream(new BufferedOutputStream(fos, 65536), crc));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(start);
+        out.writeInt(uids.size());
+        for (final Map.Entry<byte[], UniqueId> kind : uids.entrySet()) {
+          entries += writeKind(out, kind.getKey(), kind.getValue());
+        }
+        out.flush();
+        // the checksum itself isn't part of the checksum
+        final DataOutputStream trailer = new DataOutputStream(fos);
+        trailer.writeLong(crc.getValue());
+        trailer.flush();
+        fos.getFD().sync();
+      } finally {
+        fos.close();
+      }
+      if (!tmp.renameTo(file)) {
+        throw new IOException("Unable to rename " + tmp + " to " + file);
+      }
+    } catch (IOException e) {
+      write_failures.incrementAndGet();
+      LOG.error("Failed to write the UID snapshot " + file, e);
+      tmp.delete();
+      return false;
+    }
+    writes.incrementAndGet();
+    last_write_entries = entries;
+    last_write_time = System.currentTimeMillis();
+    LOG.info("Wrote " + entries + " UIDs to snapshot " + file + " in "
+        + (last_write_time - start) + " ms");
+    return true;
+  }
+
+  /**
+   * Scans HBase for the serial UIDs assigned after the largest ID found in
+   * the snapshot. Does nothing if the snapshot wasn't loaded.
+   * @return The number of mappings cached.
+   */
+  long catchUp() {
+    if (loaded_max_ids == null) {
+      return 0;
+    }
+    long cached = 0;
+    for (final Map.Entry<byte[], Long> max : loaded_max_ids.entrySet()) {
+      final UniqueId uid = uids.get(max.getKey());
+      if (uid == null || uid.isRandomized()) {
+        continue;
+      }
+      try {
+        final int found = uid.cacheAssignedAfter(max.getValue());
+        LOG.info("Cached " + found + " " + uid.kind() + " UIDs assigned "
+            + "after ID " + max.getValue());
+        cached += found;
+      } catch (Exception e) {
+        LOG.error("Failed to scan for " + uid.kind() + " UIDs assigned after "
+            + "the snapshot, they will be fetched on demand", e);
+      }
+    }
+    loaded_max_ids = null;
+    delta_entries += cached;
+    return cached;
+  }
+
+  /**
+   * Collects the stats for the snapshot.
+   * @param collector The collector to use.
+   */
+  public void collectStats(final StatsCollector collector) {
+    collector.record("uid.snapshot.writes", writes.get());
+    collector.record("uid.snapshot.write_failures", write_failures.get());
+    collector.record("uid.snapshot.entries", last_write_entries);
+    collector.record("uid.snapshot.age.ms", last_write_time > 0 ?
+        System.currentTimeMillis() - last_write_time : 0);
+    collector.record("uid.snapshot.loaded", loaded_entries);
+    collector.record("uid.snapshot.delta", delta_entries);
+  }
+
+  /** @return The snapshot file. */
+  File file() {
+    return file;
+  }
+
+  /** Writes one kind section. @return The number of entries written. */
+  private long writeKind(final DataOutputStream out, final byte[] kind,
+      final UniqueId uid) throws IOException {
+    final short width = uid.width();
+    out.writeShort(kind.length);
+    out.write(kind);
+    out.writeShort(width);
+
+    /** Writes the entries, skipping anything that can't be read back */
+    final class EntryWriter implements Visitor {
+      int count;
+      @Override
+      public void visit(final String name, final byte[] id) throws IOException {
+        final byte[] bytes = name.getBytes(Const.ASCII_CHARSET);
+        if (bytes.length == 0 || bytes.length > Short.MAX_VALUE
+            || id.length != width) {
+          return;
+        }
+        out.writeShort(bytes.length);
+        out.write(bytes);
+        out.write(id);
+        count++;
+      }
+    }
+
+    final EntryWriter entries = new EntryWriter();
+    uid.visitCache(entries);
+    out.writeShort(0);
+    out.writeInt(entries.count);
+    return entries.count;
+  }
+
+  /**
+   * Checks the header, age and checksum of the mapped snapshot.
+   * @return True if the snapshot can be loaded.
+   */
+  private boolean validate(final ByteBuffer buffer) {
+    if (buffer.capacity() < 28 || buffer.getInt(0) != MAGIC
+        || buffer.getInt(4) != VERSION) {
+      LOG.warn("Invalid UID snapshot header in " + file + ", ignoring it");
+      return false;
+    }
+    final long age = System.currentTimeMillis() - buffer.getLong(8);
+    if (max_age > 0 && age > max_age) {
+      LOG.warn("UID snapshot " + file + " is " + (age / 1000)
+          + " seconds old, ignoring it");
+      return false;
+    }
+    final int end = buffer.capacity() - 8;
+    final CRC32 crc = new CRC32();
+    final ByteBuffer buf = buffer.duplicate();
+    final byte[] chunk = new byte[CRC_CHUNK];
+    buf.position(0);
+    while (buf.position() < end) {
+      final int length = Math.min(chunk.length, end - buf.position());
+      buf.get(chunk, 0, length);
+      crc.update(chunk, 0, length);
+    }
+    if (crc.getValue() != buffer.getLong(end)) {
+      LOG.warn("Checksum mismatch in UID snapshot " + file + ", ignoring it");
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Loads the entries of a validated snapshot into the caches.
+   * @return The largest UID found per kind.
+   */
+  private ByteMap<Long> read(final ByteBuffer buffer) {
+    final ByteBuffer buf = buffer.duplicate();
+    buf.position(16);
+    final int kinds = buf.getInt();
+    final ByteMap<Long> max_ids = new ByteMap<Long>();
+    long total = 0;
+    for (int i = 0; i < kinds; i++) {
+      final byte[] kind = new byte[buf.getShort()];
+      buf.get(kind);
+      final short width = buf.getShort();
+      final UniqueId uid = uids.get(kind);
+      if (uid != null && uid.width() != width) {
+        throw new IllegalStateException("UID width for kind "
+            + new String(kind, Const.ASCII_CHARSET) + " changed from "
+            + width + " to " + uid.width());
+      }
+      long max_id = 0;
+      int count = 0;
+      short length;
+      while ((length = buf.getShort()) != 0) {
+        final byte[] name = new byte[length];
+        buf.get(name);
+        final byte[] id = new byte[width];
+        buf.get(id);
+        count++;
+        if (uid == null) {
+          continue;
+        }
+        max_id = Math.max(max_id, UniqueId.uidToLong(id, width));
+        try {
+          uid.cacheMapping(new String(name, Const.ASCII_CHARSET), id);
+        } catch (IllegalStateException e) {
+          // already mapped differently, trust what's in the cache
+          LOG.debug("Skipping conflicting snapshot entry", e);
+        }
+      }
+      if (buf.getInt() != count) {
+        throw new IllegalStateException("Entry count mismatch for kind "
+            + new String(kind, Const.ASCII_CHARSET));
+      }
+      if (uid != null) {
+        max_ids.put(kind, max_id);
+        total += count;
+      }
+    }
+    loaded_entries = total;
+    return max_ids;
+  }
+
+  /** Receives the mappings of a cache. */
+  interface Visitor {
+    /**
+     * Called once per cached name.
+     * @param name The name.
+     * @param id The UID, must not be modified.
+     * @throws IOException if the mapping couldn't be written.
+     */
+    void visit(final String name, final byte[] id) throws IOException;
+  }
+
+  /** Catches up with HBase, then periodically writes the snapshot. */
+  final class SnapshotThread extends Thread {
+    SnapshotThread() {
+      super("UidSnapshotThread");
+      setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      try {
+        catchUp();
+      } catch (Exception e) {
+        LOG.error("Uncaught exception catching up the UID snapshot", e);
+      }
+      while (running) {
+        try {
+          Thread.sleep(interval);
+        } catch (InterruptedException e) {
+          break;
+        }
+        if (!running) {
+          break;
+        }
+        try {
+          write();
+        } catch (Exception e) {
+          LOG.error("Uncaught exception in UID snapshot thread", e);
+        }
+      }
+    }
+  }
+}
@@ -12,6 +12,7 @@
 // see <http://www.gnu.org/licenses/>.
 package net.opentsdb.uid;
 
+import java.io.IOException;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -23,6 +24,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.xml.bind.DatatypeConverter;
 
@@ -32,7 +35,6 @@ import com.google.common.cache.CacheBuilder;
 import com.stumbleupon.async.Callback;
 import com.stumbleupon.async.Deferred;
 
-import org.hbase.async.AtomicIncrementRequest;
 import org.hbase.async.Bytes;
 import org.hbase.async.DeleteRequest;
 import org.hbase.async.GetRequest;
@@ -113,9 +115,20 @@ public final class UniqueId implements UniqueIdInterface {
    * The ID in the key is a byte[] converted to a String to be Comparable. */
   private final Cache<String, String> lru_id_cache;
   
+  /** Primitive keyed cache for both directions, used in place of the maps
+   * above when "tsd.uid.cache.impl" is set to "primitive". */
+  private final PrimitiveUidCache primitive_cache;
+  
   /** Map of pending UID assignments */
-  private final HashMap<String, Deferred<byte[]>> pending_assignments =
-    new HashMap<String, Deferred<byte[]>>();
+  private final ConcurrentHashMap<String, Deferred<byte[]>> pending_assignments =
+    new ConcurrentHashMap<String, Deferred<byte[]>>();
+  
+  /** Reserves blocks of serial IDs, null when IDs are randomized. */
+  private final UidBlockAllocator allocator;
+  /** In-memory index of names for suggestions, null when disabled. */
+  private final SuggestIndex suggest_index;
+  /** Whether a scan of the table into the suggest index is running. */
+  private final AtomicBoolean suggest_scanning = new AtomicBoolean();
   /** Set of UID rename */
   private final Set<String> renaming_id_names =
     Collections.synchronizedSet(new HashSet<String>());
@@ -129,6 +142,10 @@ public final class UniqueId implements UniqueIdInterface {
   private volatile int random_id_collisions;
   /** How many times assignments have been rejected by the UID filter */
   private volatile int rejected_assignments;
+  /** Number of UIDs successfully assigned */
+  private final AtomicLong assignments = new AtomicLong();
+  /** Number of UIDs burned by failed CAS calls on the mappings */
+  private final AtomicLong leaked_ids = new AtomicLong();
   
   /** The mode of operation for this TSD. */
   private OperationMode mode;
@@ -139,6 +156,9 @@ public final class UniqueId implements UniqueIdInterface {
   /** Whether or not to use the Guava LRU cache for IDs. */
   private boolean use_lru;
   
+  /** Whether or not to use the primitive cache for IDs. */
+  private boolean use_primitive;
+  
   /** TSDB object used for filtering and/or meta generation. */
   private TSDB tsdb;
   
@@ -181,12 +201,16 @@ public final class UniqueId implements UniqueIdInterface {
     }
     this.id_width = (short) width;
     this.randomize_id = randomize_id;
+    allocator = randomize_id ? null : new UidBlockAllocator(client, table, 
+        MAXID_ROW, ID_FAMILY, this.kind, 1);
     mode = OperationMode.READWRITE;
     name_cache = new ConcurrentHashMap<String, byte[]>();
     id_cache = new ConcurrentHashMap<String, String>();
     lru_name_cache = null;
     lru_id_cache = null;
+    primitive_cache = null;
     use_lru = false;
+    suggest_index = null;
   }
   
   /**
@@ -215,9 +239,18 @@ public final class UniqueId implements UniqueIdInterface {
     }
     this.id_width = (short) width;
     this.randomize_id = randomize_id;
+    allocator = randomize_id ? null : new UidBlockAllocator(client, table, 
+        MAXID_ROW, ID_FAMILY, this.kind, 
+        tsdb.getConfig().getInt("tsd.uid.assign.block_size"));
     mode = tsdb.getMode();
     use_mode = tsdb.getConfig().getBoolean("tsd.uid.use_mode");
-    use_lru = tsdb.getConfig().getBoolean("tsd.uid.lru.enable");
+    final String impl = tsdb.getConfig().getString("tsd.uid.cache.impl");
+    use_lru = tsdb.getConfig().getBoolean("tsd.uid.lru.enable") || 
+        "lru".equalsIgnoreCase(impl);
+    use_primitive = !use_lru && "primitive".equalsIgnoreCase(impl);
+    suggest_index = tsdb.getConfig().getBoolean("tsd.uid.suggest.enable") ?
+        new SuggestIndex(tsdb.getConfig().getInt("tsd.uid.suggest.max_results"))
+        : null;
     if (use_lru) {
       name_cache = null;
       id_cache = null;
@@ -227,11 +260,19 @@ public final class UniqueId implements UniqueIdInterface {
       lru_id_cache = CacheBuilder.newBuilder()
           .maximumSize(tsdb.getConfig().getInt("tsd.uid.lru.id.size"))
           .build();
+      primitive_cache = null;
+    } else if (use_primitive) {
+      name_cache = null;
+      id_cache = null;
+      lru_name_cache = null;
+      lru_id_cache = null;
+      primitive_cache = new PrimitiveUidCache(id_width);
     } else {
       name_cache = new ConcurrentHashMap<String, byte[]>();
       id_cache = new ConcurrentHashMap<String, String>();
       lru_name_cache = null;
       lru_id_cache = null;
+      primitive_cache = null;
     }
   }
 
@@ -247,10 +288,29 @@ public final class UniqueId implements UniqueIdInterface {
 
   /** Returns the number of elements stored in the internal cache. */
   public long cacheSize() {
+    return nameCacheSize() + idCacheSize();
+  }
+
+  /** @return The number of name to ID mappings cached. */
+  private long nameCacheSize() {
     if (use_lru) {
-      return (int) (lru_name_cache.size() + lru_id_cache.size());
+      return lru_name_cache.size();
     }
-    return name_cache.size() + id_cache.size();
+    if (use_primitive) {
+      return primitive_cache.nameCount();
+    }
+    return name_cache.size();
+  }
+
+  /** @return The number of ID to name mappings cached. */
+  private long idCacheSize() {
+    if (use_lru) {
+      return lru_id_cache.size();
+    }
+    if (use_primitive) {
+      return primitive_cache.idCount();
+    }
+    return id_cache.size();
   }
 
   /**
@@ -286,6 +346,37 @@ public final class UniqueId implements UniqueIdInterface {
   public int rejectedAssignments() {
     return rejected_assignments;
   }
+
+  /** @return The number of UIDs successfully assigned by this TSD. 
+   * @since 2.4 */
+  public long assignments() {
+    return assignments.get();
+  }
+  
+  /** @return The number of UIDs lost to failed reverse or forward mapping 
+   * CAS calls, e.g. when another TSD assigned the same name first. 
+   * @since 2.4 */
+  public long leakedIds() {
+    return leaked_ids.get();
+  }
+  
+  /** @return The number of atomic increments sent to reserve serial UIDs.
+   * @since 2.4 */
+  public long idReservations() {
+    return allocator == null ? 0 : allocator.reservations();
+  }
+  
+  /** @return The number of serial UIDs reserved in the UID table by this 
+   * TSD. @since 2.4 */
+  public long reservedIds() {
+    return allocator == null ? 0 : allocator.reserved();
+  }
+  
+  /** @return The number of reserved UIDs that haven't been handed out yet
+   * and will be wasted if the TSD shuts down. @since 2.4 */
+  public long unusedReservedIds() {
+    return allocator == null ? 0 : allocator.available();
+  }
   
   public String kind() {
     return fromBytes(kind);
@@ -295,6 +386,11 @@ public final class UniqueId implements UniqueIdInterface {
     return id_width;
   }
 
+  /** @return Whether or not new UIDs are randomized. @since 2.4 */
+  boolean isRandomized() {
+    return randomize_id;
+  }
+
   /** @param tsdb Whether or not to track new UIDMeta objects */
   public void setTSDB(final TSDB tsdb) {
     this.tsdb = tsdb;
@@ -318,6 +414,8 @@ public final class UniqueId implements UniqueIdInterface {
     if (use_lru) {
       lru_name_cache.invalidateAll();
       lru_id_cache.invalidateAll();
+    } else if (use_primitive) {
+      primitive_cache.clear();
     } else {
       name_cache.clear();
       id_cache.clear();
@@ -398,6 +496,9 @@ public final class UniqueId implements UniqueIdInterface {
   }
 
   private String getNameFromCache(final byte[] id) {
+    if (use_primitive) {
+      return primitive_cache.getName(id);
+    }
     return use_lru ? lru_id_cache.getIfPresent(fromBytes(id)) : 
                      id_cache.get(fromBytes(id));
   }
@@ -412,6 +513,14 @@ public final class UniqueId implements UniqueIdInterface {
   }
 
   private void addNameToCache(final byte[] id, final String name) {
+    if (use_primitive) {
+      final String found = primitive_cache.putNameIfAbsent(id, name);
+      if (found != null && !found.equals(name)) {
+        throw new IllegalStateException("id=" + Arrays.toString(id) 
+            + " => name=" + name + ", already mapped to " + found);
+      }
+      return;
+    }
     final String key = fromBytes(id);
     String found = use_lru ? lru_id_cache.getIfPresent(key) : id_cache.get(key);
     if (found == null) {
@@ -477,6 +586,9 @@ public final class UniqueId implements UniqueIdInterface {
   }
 
   private byte[] getIdFromCache(final String name) {
+    if (use_primitive) {
+      return primitive_cache.getId(name);
+    }
     return use_lru ? lru_name_cache.getIfPresent(name) : name_cache.get(name);
   }
 
@@ -485,11 +597,13 @@ public final class UniqueId implements UniqueIdInterface {
   }
 
   private void addIdToCache(final String name, final byte[] id) {
-    byte[] found = use_lru ? lru_name_cache.getIfPresent(name) : 
-                             name_cache.get(name);
+    byte[] found = getIdFromCache(name);
     if (found == null) {
       if (use_lru) {
         lru_name_cache.put(name, Arrays.copyOf(id, id.length));
+      } else if (use_primitive) {
+        // the primitive cache stores a copy of the ID as a long
+        found = primitive_cache.putIdIfAbsent(name, id);
       } else {
         found = name_cache.putIfAbsent(name,
                                       // Must make a defensive copy to be immune
@@ -503,6 +617,9 @@ public final class UniqueId implements UniqueIdInterface {
           + Arrays.toString(id) + ", already mapped to "
           + Arrays.toString(found));
     }
+    if (suggest_index != null) {
+      suggest_index.add(name, id);
+    }
   }
 
   /**
@@ -621,8 +738,7 @@ public final class UniqueId implements UniqueIdInterface {
       if (randomize_id) {
         return Deferred.fromResult(RandomUniqueId.getRandomUID());
       } else {
-        return client.atomicIncrement(new AtomicIncrementRequest(table, 
-                                      MAXID_ROW, ID_FAMILY, kind));
+        return allocator.allocate();
       }
     }
 
@@ -693,6 +809,7 @@ public final class UniqueId implements UniqueIdInterface {
           // something is really messed up then
           LOG.error("WTF!  Failed to CAS reverse mapping: " + reverseMapping()
               + " -- run an fsck against the UID table!");
+          leaked_ids.incrementAndGet();
         }
         attempt--;
         state = ALLOCATE_UID;
@@ -723,6 +840,7 @@ public final class UniqueId implements UniqueIdInterface {
         // manage to CAS this KV into existence.  The one that loses the
         // race will retry and discover the UID assigned by the winner TSD,
         // and a UID will have been wasted in the process.  No big deal.
+        leaked_ids.incrementAndGet();
         if (randomize_id) {
           // This random Id is already used by another row
           LOG.warn("Detected random id collision between two tsdb "
@@ -741,6 +859,7 @@ public final class UniqueId implements UniqueIdInterface {
       }
 
       cacheMapping(name, row);
+      assignments.incrementAndGet();
       
       if (tsdb != null && tsdb.getConfig().enable_realtime_uid()) {
         final UIDMeta meta = new UIDMeta(type, row, name);
@@ -749,10 +868,8 @@ public final class UniqueId implements UniqueIdInterface {
         tsdb.indexUIDMeta(meta);
       }
       
-      synchronized(pending_assignments) {
-        if (pending_assignments.remove(name) != null) {
-          LOG.info("Completed pending assignment for: " + name);
-        }
+      if (pending_assignments.remove(name) != null) {
+        LOG.info("Completed pending assignment for: " + name);
       }
       assignment.callback(row);
       return assignment;
@@ -761,7 +878,7 @@ public final class UniqueId implements UniqueIdInterface {
   }
 
   /** Adds the bidirectional mapping in the cache. */
-  private void cacheMapping(final String name, final byte[] id) {
+  void cacheMapping(final String name, final byte[] id) {
     addIdToCache(name, id);
     addNameToCache(id, name);
   } 
@@ -803,27 +920,18 @@ public final class UniqueId implements UniqueIdInterface {
         }
       }
       
-      Deferred<byte[]> assignment = null;
-      boolean pending = false;
-      synchronized (pending_assignments) {
-        assignment = pending_assignments.get(name);
-        if (assignment == null) {
-          // to prevent UID leaks that can be caused when multiple time
-          // series for the same metric or tags arrive, we need to write a 
-          // deferred to the pending map as quickly as possible. Then we can 
-          // start the assignment process after we've stashed the deferred 
-          // and released the lock
-          assignment = new Deferred<byte[]>();
-          pending_assignments.put(name, assignment);
-        } else {
-          pending = true;
-        }
-      }
+      // to prevent UID leaks that can be caused when multiple time
+      // series for the same metric or tags arrive, we need to write a 
+      // deferred to the pending map as quickly as possible. Then we can 
+      // start the assignment process after we've stashed the deferred
+      final Deferred<byte[]> assignment = new Deferred<byte[]>();
+      final Deferred<byte[]> pending = 
+          pending_assignments.putIfAbsent(name, assignment);
       
-      if (pending) {
+      if (pending != null) {
         LOG.info("Already waiting for UID assignment: " + name);
         try {
-          return assignment.joinUninterruptibly();
+          return pending.joinUninterruptibly();
         } catch (Exception e1) {
           throw new RuntimeException("Should never be here", e1);
         }
@@ -838,10 +946,8 @@ public final class UniqueId implements UniqueIdInterface {
       } catch (Exception e1) {
         throw new RuntimeException("Should never be here", e);
       } finally {
-        synchronized (pending_assignments) {
-          if (pending_assignments.remove(name) != null) {
-            LOG.info("Completed pending assignment for: " + name);
-          }
+        if (pending_assignments.remove(name) != null) {
+          LOG.info("Completed pending assignment for: " + name);
         }
       }
       return uid;
@@ -900,21 +1006,16 @@ public final class UniqueId implements UniqueIdInterface {
               new String(kind), name, 0, "Blocked by UID filter."));
         }
         
-        Deferred<byte[]> assignment = null;
-        synchronized (pending_assignments) {
-          assignment = pending_assignments.get(name);
-          if (assignment == null) {
-            // to prevent UID leaks that can be caused when multiple time
-            // series for the same metric or tags arrive, we need to write a 
-            // deferred to the pending map as quickly as possible. Then we can 
-            // start the assignment process after we've stashed the deferred 
-            // and released the lock
-            assignment = new Deferred<byte[]>();
-            pending_assignments.put(name, assignment);
-          } else {
-            LOG.info("Already waiting for UID assignment: " + name);
-            return assignment;
-          }
+        // to prevent UID leaks that can be caused when multiple time
+        // series for the same metric or tags arrive, we need to write a 
+        // deferred to the pending map as quickly as possible. Then we can 
+        // start the assignment process after we've stashed the deferred
+        final Deferred<byte[]> assignment = new Deferred<byte[]>();
+        final Deferred<byte[]> pending = 
+            pending_assignments.putIfAbsent(name, assignment);
+        if (pending != null) {
+          LOG.info("Already waiting for UID assignment: " + name);
+          return pending;
         }
         
         // start the assignment dance after stashing the deferred
@@ -1013,9 +1114,107 @@ public final class UniqueId implements UniqueIdInterface {
    */
   public Deferred<List<String>> suggestAsync(final String search, 
       final int max_results) {
+    if (suggest_index != null && suggest_index.isComplete()) {
+      return Deferred.fromResult(suggest_index.suggest(search, max_results));
+    }
     return new SuggestCB(search, max_results).search();
   }
 
+  /**
+   * Finds the names starting with the search term that were observed in the
+   * series of the given scope since the TSD started. Only served from the
+   * in-memory suggest index.
+   * @param search The search term (possibly empty).
+   * @param max_results The number of results to return.
+   * @param scope The UID of the scope, i.e. the metric.
+   * @return A list of names, possibly empty.
+   * @throws IllegalStateException if the suggest index is disabled.
+   * @since 2.4
+   */
+  public List<String> suggest(final String search, final int max_results,
+                              final byte[] scope) {
+    if (suggest_index == null) {
+      throw new IllegalStateException("Scoped suggestions require "
+          + "'tsd.uid.suggest.enable'");
+    }
+    return suggest_index.suggest(search, max_results, scope);
+  }
+
+  /** @return The in-memory suggest index, null if disabled.
+   * @since 2.4 */
+  public SuggestIndex suggestIndex() {
+    return suggest_index;
+  }
+
+  /**
+   * Fills the suggest index with every name of this kind from the UID table
+   * and flags it as complete so that suggestions are served from memory.
+   * Names assigned meanwhile are added through the cache. Called again, the
+   * scan refreshes the index, dropping the names no longer in the table.
+   * @return A deferred resolving to the number of names scanned, or 0 if a
+   * scan was already running.
+   * @throws IllegalStateException if the suggest index is disabled.
+   * @since 2.4
+   */
+  public Deferred<Integer> buildSuggestIndex() {
+    if (suggest_index == null) {
+      throw new IllegalStateException("The suggest index is disabled");
+    }
+    final Scanner scanner = getSuggestScanner(client, table, "", kind, 4096);
+    if (!suggest_scanning.compareAndSet(false, true)) {
+      return Deferred.fromResult(0);
+    }
+    suggest_index.startRefresh();
+
+    class BuildCB implements Callback<Object, ArrayList<ArrayList<KeyValue>>> {
+      private int scanned;
+
+      @SuppressWarnings("unchecked")
+      Deferred<Integer> scan() {
+        return (Deferred) scanner.nextRows().addCallback(this);
+      }
+
+      @Override
+      public Object call(final ArrayList<ArrayList<KeyValue>> rows) {
+        if (rows == null) {
+          final int dropped = suggest_index.finishRefresh();
+          suggest_scanning.set(false);
+          LOG.info("Built the suggest index for " + kind() + " with "
+              + suggest_index.size() + " names, dropped " + dropped);
+          return scanned;
+        }
+        for (final ArrayList<KeyValue> row : rows) {
+          for (final KeyValue kv : row) {
+            suggest_index.add(fromBytes(kv.key()), kv.value());
+            ++scanned;
+          }
+        }
+        return scan();
+      }
+
+      @Override
+      public String toString() {
+        return "Suggest index build callback";
+      }
+    }
+
+    class BuildErrCB implements Callback<Exception, Exception> {
+      @Override
+      public Exception call(final Exception e) {
+        suggest_index.abortRefresh();
+        suggest_scanning.set(false);
+        return e;
+      }
+
+      @Override
+      public String toString() {
+        return "Suggest index build error callback";
+      }
+    }
+
+    return new BuildCB().scan().addErrback(new BuildErrCB());
+  }
+
   /**
    * Helper callback to asynchronously scan HBase for suggestions.
    */
@@ -1051,8 +1250,7 @@ public final class UniqueId implements UniqueIdInterface {
         final byte[] key = row.get(0).key();
         final String name = fromBytes(key);
         final byte[] id = row.get(0).value();
-        final byte[] cached_id = use_lru ? lru_name_cache.getIfPresent(name) : 
-                                           name_cache.get(name);
+        final byte[] cached_id = getIdFromCache(name);
         if (cached_id == null) {
           cacheMapping(name, id); 
         } else if (!Arrays.equals(id, cached_id)) {
@@ -1158,10 +1356,16 @@ public final class UniqueId implements UniqueIdInterface {
     if (use_lru) {
       lru_id_cache.put(fromBytes(row), newname);
       lru_name_cache.invalidate(oldname);
+    } else if (use_primitive) {
+      primitive_cache.putName(row, newname);
+      primitive_cache.removeId(oldname);
     } else {
       id_cache.put(fromBytes(row), newname);  // update  ID -> new name
       name_cache.remove(oldname);             // remove  old name -> ID
     }
+    if (suggest_index != null) {
+      suggest_index.remove(oldname);
+    }
 
     // Delete the old forward mapping.
     try {
@@ -1221,13 +1425,7 @@ public final class UniqueId implements UniqueIdInterface {
     class ErrCB implements Callback<Object, Exception> {
       @Override
       public Object call(final Exception ex) throws Exception {
-        if (use_lru) {
-          lru_name_cache.invalidate(name);
-          lru_id_cache.invalidate(fromBytes(uid));
-        } else {
-          name_cache.remove(name);
-          id_cache.remove(fromBytes(uid));
-        }
+        removeFromCache(name, uid);
         LOG.error("Failed to delete " + fromBytes(kind) + " UID " + name 
             + " but still cleared the cache", ex);
         return ex;
@@ -1239,13 +1437,7 @@ public final class UniqueId implements UniqueIdInterface {
       @Override
       public Deferred<Object> call(final ArrayList<Object> response) 
           throws Exception {
-        if (use_lru) {
-          lru_name_cache.invalidate(name);
-          lru_id_cache.invalidate(fromBytes(uid));
-        } else {
-          name_cache.remove(name);
-          id_cache.remove(fromBytes(uid));
-        }
+        removeFromCache(name, uid);
         LOG.info("Successfully deleted " + fromBytes(kind) + " UID " + name);
         return Deferred.fromResult(null);
       }
@@ -1274,8 +1466,7 @@ public final class UniqueId implements UniqueIdInterface {
       }
     }
     
-    final byte[] cached_uid = use_lru ? lru_name_cache.getIfPresent(name) : 
-                                        name_cache.get(name);
+    final byte[] cached_uid = getIdFromCache(name);
     if (cached_uid == null) {
       return getIdFromHBase(name).addCallbackDeferring(new LookupCB())
           .addErrback(new ErrCB());
@@ -1296,6 +1487,27 @@ public final class UniqueId implements UniqueIdInterface {
         .addErrback(new ErrCB());
   }
   
+  /**
+   * Removes both mappings from whichever cache is in use.
+   * @param name The name to remove.
+   * @param uid The UID to remove.
+   */
+  private void removeFromCache(final String name, final byte[] uid) {
+    if (use_lru) {
+      lru_name_cache.invalidate(name);
+      lru_id_cache.invalidate(fromBytes(uid));
+    } else if (use_primitive) {
+      primitive_cache.removeId(name);
+      primitive_cache.removeName(uid);
+    } else {
+      name_cache.remove(name);
+      id_cache.remove(fromBytes(uid));
+    }
+    if (suggest_index != null) {
+      suggest_index.remove(name);
+    }
+  }
+  
   /** The start row to scan on empty search strings.  `!' = first ASCII char. */
   private static final byte[] START_ROW = new byte[] { '!' };
 
@@ -1392,7 +1604,7 @@ public final class UniqueId implements UniqueIdInterface {
     return s.getBytes(CHARSET);
   }
 
-  private static String fromBytes(final byte[] b) {
+  static String fromBytes(final byte[] b) {
     return new String(b, CHARSET);
   }
 
@@ -1792,10 +2004,8 @@ public final class UniqueId implements UniqueIdInterface {
       for (UniqueId unique_id_table : uid_cache_map.values()) {
         LOG.info("After preloading, uid cache '{}' has {} ids and {} names.",
                  unique_id_table.kind(),
-                 unique_id_table.use_lru ? unique_id_table.lru_id_cache.size() : 
-                                           unique_id_table.id_cache.size(),
-                 unique_id_table.use_lru ? unique_id_table.lru_name_cache.size() : 
-                                           unique_id_table.name_cache.size());
+                 unique_id_table.idCacheSize(),
+                 unique_id_table.nameCacheSize());
       }
     } catch (Exception e) {
       if (e instanceof HBaseException) {
@@ -1812,6 +2022,91 @@ public final class UniqueId implements UniqueIdInterface {
     }
   }
 
+  /**
+   * Passes each cached mapping to the visitor, once per name. Mappings added
+   * or removed while visiting may or may not be seen.
+   * @param visitor The visitor to call.
+   * @throws IOException if the visitor failed.
+   * @since 2.4
+   */
+  void visitCache(final UidCacheSnapshot.Visitor visitor) throws IOException {
+    if (use_primitive) {
+      primitive_cache.visit(visitor);
+      return;
+    }
+    final Map<String, byte[]> names = use_lru ? 
+        lru_name_cache.asMap() : name_cache;
+    final Map<String, String> ids = use_lru ? lru_id_cache.asMap() : id_cache;
+    for (final Map.Entry<String, byte[]> entry : names.entrySet()) {
+      visitor.visit(entry.getKey(), entry.getValue());
+    }
+    // some modes only cache the reverse mappings
+    for (final Map.Entry<String, String> entry : ids.entrySet()) {
+      if (!names.containsKey(entry.getValue())) {
+        visitor.visit(entry.getValue(), toBytes(entry.getKey()));
+      }
+    }
+  }
+
+  /**
+   * Scans the reverse mappings of the serial UIDs assigned after the given
+   * ID, up to the current max ID, and caches them. Used to catch up after
+   * loading a cache snapshot.
+   * <strong>This method is blocking.</strong>
+   * @param last_id The largest UID already cached.
+   * @return The number of mappings cached.
+   * @throws HBaseException if there is a problem communicating with HBase.
+   * @throws Exception if the scan failed.
+   * @since 2.4
+   */
+  int cacheAssignedAfter(final long last_id) throws Exception {
+    final GetRequest get = new GetRequest(table, MAXID_ROW);
+    get.family(ID_FAMILY).qualifier(kind);
+    final ArrayList<KeyValue> max_row = client.get(get).join();
+    if (max_row == null || max_row.isEmpty()) {
+      return 0;
+    }
+    long max_id = Bytes.getLong(max_row.get(0).value());
+    if (id_width < 8) {
+      // the counter keeps going when all of the IDs were assigned
+      max_id = Math.min(max_id, (1L << (id_width * 8)) - 1);
+    }
+    if (max_id <= last_id) {
+      return 0;
+    }
+    
+    final Scanner scanner = client.newScanner(table);
+    scanner.setStartKey(longToUID(last_id + 1, id_width));
+    // the stop key is exclusive so append a byte to include the max ID
+    scanner.setStopKey(Arrays.copyOf(longToUID(max_id, id_width), 
+        id_width + 1));
+    scanner.setFamily(NAME_FAMILY);
+    scanner.setQualifier(kind);
+    scanner.setMaxNumRows(4096);
+    int cached = 0;
+    try {
+      for (ArrayList<ArrayList<KeyValue>> rows = scanner.nextRows().join();
+          rows != null;
+          rows = scanner.nextRows().join()) {
+        for (final ArrayList<KeyValue> row : rows) {
+          for (final KeyValue kv : row) {
+            if (kv.key().length != id_width) {
+              continue;
+            }
+            final String name = fromBytes(kv.value());
+            if (getIdFromCache(name) == null) {
+              cacheMapping(name, kv.key());
+              cached++;
+            }
+          }
+        }
+      }
+    } finally {
+      scanner.close();
+    }
+    return cached;
+  }
+
   @VisibleForTesting
   Map<String, byte[]> nameCache() {
     return name_cache;
@@ -1831,4 +2126,9 @@ public final class UniqueId implements UniqueIdInterface {
   Cache<String, String> lruIdCache() {
     return lru_id_cache;
   }
+  
+  @VisibleForTesting
+  PrimitiveUidCache primitiveCache() {
+    return primitive_cache;
+  }
 }
@@ -543,12 +543,23 @@ public class Config {
     default_map.put("tsd.core.connections.limit", "0");
     default_map.put("tsd.core.enable_api", "true");
     default_map.put("tsd.core.enable_ui", "true");
+    default_map.put("tsd.core.last_point_cache.enable", "false");
+    default_map.put("tsd.core.last_point_cache.max_entries", "1000000");
+    default_map.put("tsd.core.last_point_cache.max_age", "1m");
     default_map.put("tsd.core.meta.enable_realtime_ts", "false");
     default_map.put("tsd.core.meta.enable_realtime_uid", "false");
     default_map.put("tsd.core.meta.enable_tsuid_incrementing", "false");
     default_map.put("tsd.core.meta.enable_tsuid_tracking", "false");
     default_map.put("tsd.core.meta.cache.enable", "false");
+    default_map.put("tsd.core.meta.cache.stripes", "16");
+    default_map.put("tsd.core.meta.cache.stripe_size", "8192");
+    default_map.put("tsd.core.meta.cache.flush_interval", "10000");
+    default_map.put("tsd.core.meta.cache.bloom.expected", "10000000");
+    default_map.put("tsd.core.meta.cache.bloom.fpp", "0.001");
     default_map.put("tsd.core.plugin_path", "");
+    default_map.put("tsd.core.tag_index.enable", "false");
+    default_map.put("tsd.core.tag_index.query", "false");
+    default_map.put("tsd.core.tag_index.cache_size", "1000000");
     default_map.put("tsd.core.socket.timeout", "0");
     default_map.put("tsd.core.tree.enable_processing", "false");
     default_map.put("tsd.core.preload_uid_cache", "false");
@@ -570,13 +581,30 @@ public class Config {
     default_map.put("tsd.query.multi_get.batch_size", "1024");
     default_map.put("tsd.query.multi_get.concurrent", "20");
     default_map.put("tsd.query.multi_get.get_all_salts", "false");
+    default_map.put("tsd.query.salt_merge.threads", "0");
+    default_map.put("tsd.query.columnar_spans.enable", "false");
+    default_map.put("tsd.query.columnar_spans.slab_size", "1048576");
+    default_map.put("tsd.query.columnar_spans.max_pool_bytes", "268435456");
+    default_map.put("tsd.query.aggregation.batch.enable", "false");
+    default_map.put("tsd.query.cache.enable", "false");
+    default_map.put("tsd.query.cache.bucket_interval", "10m");
+    default_map.put("tsd.query.cache.settle_interval", "1m");
+    default_map.put("tsd.query.cache.max_bytes", "67108864");
     default_map.put("tsd.rpc.telnet.return_errors", "true");
+    default_map.put("tsd.rpc.telnet.put_decoder.enable", "true");
     // Rollup related settings
     default_map.put("tsd.rollups.enable", "false");
     default_map.put("tsd.rollups.tag_raw", "false");
     default_map.put("tsd.rollups.agg_tag_key", "_aggregate");
     default_map.put("tsd.rollups.raw_agg_tag_value", "RAW");
     default_map.put("tsd.rollups.block_derived", "true");
+    default_map.put("tsd.rollups.generator.enable", "false");
+    default_map.put("tsd.rollups.generator.checkpoint", "");
+    default_map.put("tsd.rollups.generator.watermark", "5m");
+    default_map.put("tsd.rollups.generator.flush_interval", "30s");
+    default_map.put("tsd.rollups.generator.max_windows", "1000000");
+    default_map.put("tsd.rollups.stitch.enable", "false");
+    default_map.put("tsd.rollups.stitch.lag", "10m");
     default_map.put("tsd.rtpublisher.enable", "false");
     default_map.put("tsd.rtpublisher.plugin", "");
     default_map.put("tsd.search.enable", "false");
@@ -591,6 +619,7 @@ public class Config {
     default_map.put("tsd.storage.hbase.uid_table", "tsdb-uid");
     default_map.put("tsd.storage.hbase.tree_table", "tsdb-tree");
     default_map.put("tsd.storage.hbase.meta_table", "tsdb-meta");
+    default_map.put("tsd.storage.hbase.tag_index_table", "tsdb-tagidx");
     default_map.put("tsd.storage.hbase.zk_quorum", "localhost");
     default_map.put("tsd.storage.hbase.zk_basedir", "/hbase");
     default_map.put("tsd.storage.hbase.prefetch_meta", "false");
@@ -601,11 +630,37 @@ public class Config {
     default_map.put("tsd.storage.compaction.min_flush_threshold", "100");
     default_map.put("tsd.storage.compaction.max_concurrent_flushes", "10000");
     default_map.put("tsd.storage.compaction.flush_speed", "2");
+    default_map.put("tsd.storage.compaction.shards", "1");
+    default_map.put("tsd.storage.compaction.gorilla.enable", "false");
+    default_map.put("tsd.storage.compaction.throttle.enable", "false");
+    default_map.put("tsd.storage.compaction.throttle.put_p99_ms", "100");
+    default_map.put("tsd.storage.compaction.throttle.get_p99_ms", "250");
+    default_map.put("tsd.storage.compaction.throttle.min_rate", "10");
+    default_map.put("tsd.storage.compaction.throttle.max_rate", "400");
+    default_map.put("tsd.storage.compaction.read_through.enable", "false");
+    default_map.put("tsd.storage.compaction.read_through.max_pending", "10000");
+    default_map.put("tsd.storage.spool.enable", "false");
+    default_map.put("tsd.storage.spool.directory", "");
+    default_map.put("tsd.storage.spool.segment_size", "67108864");
+    default_map.put("tsd.storage.spool.max_segments", "16");
+    default_map.put("tsd.storage.spool.max_inflight", "10000");
+    default_map.put("tsd.storage.spool.commit_interval", "10");
     default_map.put("tsd.timeseriesfilter.enable", "false");
     default_map.put("tsd.uid.use_mode", "false");
+    default_map.put("tsd.uid.cache.impl", "default");
     default_map.put("tsd.uid.lru.enable", "false");
     default_map.put("tsd.uid.lru.name.size", "5000000");
     default_map.put("tsd.uid.lru.id.size", "5000000");
+    default_map.put("tsd.uid.assign.block_size", "1");
+    default_map.put("tsd.uid.snapshot.enable", "false");
+    default_map.put("tsd.uid.snapshot.file", "");
+    default_map.put("tsd.uid.snapshot.interval", "3600");
+    default_map.put("tsd.uid.snapshot.max_age", "86400");
+    default_map.put("tsd.uid.suggest.enable", "false");
+    default_map.put("tsd.uid.suggest.max_results", "1000");
+    default_map.put("tsd.uid.suggest.refresh_interval", "6h");
+    default_map.put("tsd.uid.suggest.scoped.enable", "false");
+    default_map.put("tsd.uid.suggest.scoped.cache_size", "1000000");
     default_map.put("tsd.uidfilter.enable", "false");
     default_map.put("tsd.core.stats_with_port", "false");
     default_map.put("tsd.http.show_stack_trace", "true");
@@ -15,6 +15,9 @@ package net.opentsdb.utils;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.jboss.netty.util.HashedWheelTimer;
@@ -95,5 +98,28 @@ public class Threads {
         new TimerThreadNamer(), ticks, MILLISECONDS, ticks_per_wheel);
   }
   
-  
+  /**
+   * Returns a new fixed size pool of daemon threads. Tasks submitted after
+   * the pool was shut down run on the calling thread.
+   * @param threads The number of threads in the pool
+   * @param name The name to add to the thread names
+   * @return A thread pool
+   * @since 2.4
+   */
+  public static ThreadPoolExecutor newFixedPool(final int threads, 
+      final String name) {
+    final AtomicInteger tid = new AtomicInteger();
+    class PoolThreadFactory implements ThreadFactory {
+      @Override
+      public Thread newThread(final Runnable runnable) {
+        final Thread thread = new Thread(runnable, 
+            "OpenTSDB " + name + " #" + tid.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    }
+    return new ThreadPoolExecutor(threads, threads, 
+        /* 5m = */ 300000, MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+        new PoolThreadFactory(), new ThreadPoolExecutor.CallerRunsPolicy());
+  }
 }
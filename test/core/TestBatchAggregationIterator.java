@@ -0,0 +1,415 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import net.opentsdb.core.Aggregators.Interpolation;
+import net.opentsdb.utils.DateTime;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/** Tests {@link BatchAggregationIterator}. */
+public class TestBatchAggregationIterator {
+
+  private static final long BASE_TIME = 1356998400000L;
+  private static final DataPoint[] DATA_POINTS_1 = new DataPoint[] {
+    MutableDataPoint.ofLongValue(BASE_TIME, 40),
+    MutableDataPoint.ofLongValue(BASE_TIME + 10000, 50),
+    MutableDataPoint.ofLongValue(BASE_TIME + 30000, 70)
+  };
+  private static final DataPoint[] DATA_POINTS_2 = new DataPoint[] {
+    MutableDataPoint.ofLongValue(BASE_TIME + 10000, 37),
+    MutableDataPoint.ofLongValue(BASE_TIME + 20000, 48)
+  };
+  private static final Aggregator[] AGGREGATORS = new Aggregator[] {
+    Aggregators.SUM, Aggregators.ZIMSUM, Aggregators.PFSUM,
+    Aggregators.MIN, Aggregators.MIMMIN, Aggregators.MAX, Aggregators.MIMMAX,
+    Aggregators.AVG, Aggregators.COUNT
+  };
+
+  private long start_time_ms;
+  private long end_time_ms;
+
+  @Before
+  public void setUp() {
+    start_time_ms = 1356998400L * 1000;
+    end_time_ms = 1356998500L * 1000;
+  }
+
+  @Test
+  public void supports() throws Exception {
+    for (final Aggregator agg : AGGREGATORS) {
+      assertTrue(BatchAggregationIterator.supports(agg, false));
+      assertFalse(BatchAggregationIterator.supports(agg, true));
+    }
+    assertFalse(BatchAggregationIterator.supports(Aggregators.DEV, false));
+    assertFalse(BatchAggregationIterator.supports(Aggregators.MEDIAN, false));
+    assertNull(BatchAggregationIterator.kernelFor(Aggregators.FIRST));
+    assertEquals(BatchAggregationIterator.Kernel.SUM,
+        BatchAggregationIterator.kernelFor(Aggregators.ZIMSUM));
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorUnsupportedAggregator() throws Exception {
+    new BatchAggregationIterator(new SeekableView[] {
+        SeekableViewsForTest.fromArray(DATA_POINTS_1) }, start_time_ms,
+        end_time_ms, Aggregators.DEV, Interpolation.LERP);
+  }
+
+  @Test
+  public void singleSpan() throws Exception {
+    final BatchAggregationIterator it = new BatchAggregationIterator(
+        new SeekableView[] { SeekableViewsForTest.fromArray(DATA_POINTS_1) },
+        start_time_ms, end_time_ms, Aggregators.SUM, Interpolation.LERP);
+    for (DataPoint expected: DATA_POINTS_1) {
+      assertTrue(it.hasNext());
+      DataPoint dp = it.next();
+      assertEquals(expected.timestamp(), dp.timestamp());
+      assertEquals(expected.longValue(), dp.longValue());
+    }
+    assertFalse(it.hasNext());
+    assertEquals(2, it.valueCount());
+  }
+
+  @Test
+  public void doubleSpans() throws Exception {
+    final BatchAggregationIterator it = new BatchAggregationIterator(
+        new SeekableView[] {
+          SeekableViewsForTest.fromArray(DATA_POINTS_1),
+          SeekableViewsForTest.fromArray(DATA_POINTS_2) },
+        start_time_ms, end_time_ms, Aggregators.SUM, Interpolation.LERP);
+    final DataPoint[] expected_data_points = new DataPoint[] {
+        MutableDataPoint.ofLongValue(BASE_TIME, 40),
+        MutableDataPoint.ofLongValue(BASE_TIME + 10000, 50 + 37),
+        // 60 is the interpolated value.
+        MutableDataPoint.ofLongValue(BASE_TIME + 20000, 60 + 48),
+        MutableDataPoint.ofLongValue(BASE_TIME + 30000, 70)
+      };
+    for (DataPoint expected: expected_data_points) {
+      assertTrue(it.hasNext());
+      DataPoint dp = it.next();
+      assertEquals(expected.timestamp(), dp.timestamp());
+      assertEquals(expected.longValue(), dp.longValue());
+    }
+    assertFalse(it.hasNext());
+  }
+
+  @Test
+  public void pfsum() throws Exception {
+    final BatchAggregationIterator it = new BatchAggregationIterator(
+        new SeekableView[] {
+          SeekableViewsForTest.fromArray(new DataPoint[] {
+              MutableDataPoint.ofLongValue(BASE_TIME, 40),
+              MutableDataPoint.ofLongValue(BASE_TIME + 30000, 70)
+            }),
+          SeekableViewsForTest.fromArray(DATA_POINTS_2) },
+        start_time_ms, end_time_ms, Aggregators.PFSUM, Interpolation.PREV);
+    final long[] expected = new long[] { 40, 37 + 40, 48 + 40, 70 };
+    for (int i = 0; i < expected.length; i++) {
+      assertTrue(it.hasNext());
+      final DataPoint dp = it.next();
+      assertEquals(BASE_TIME + (i * 10000), dp.timestamp());
+      assertEquals(expected[i], dp.longValue());
+    }
+    assertFalse(it.hasNext());
+  }
+
+  @Test
+  public void emptySpan() throws Exception {
+    final BatchAggregationIterator it = new BatchAggregationIterator(
+        new SeekableView[] {
+          SeekableViewsForTest.fromArray(new DataPoint[0]),
+          SeekableViewsForTest.fromArray(DATA_POINTS_1) },
+        BASE_TIME, end_time_ms, Aggregators.SUM, Interpolation.LERP);
+    for (DataPoint expected: DATA_POINTS_1) {
+      assertTrue(it.hasNext());
+      DataPoint dp = it.next();
+      assertEquals(expected.timestamp(), dp.timestamp());
+      assertEquals(expected.longValue(), dp.longValue());
+    }
+    assertFalse(it.hasNext());
+  }
+
+  @Test
+  public void noSpans() throws Exception {
+    final BatchAggregationIterator it = new BatchAggregationIterator(
+        new SeekableView[0], start_time_ms, end_time_ms, Aggregators.SUM,
+        Interpolation.LERP);
+    assertFalse(it.hasNext());
+  }
+
+  @Test
+  public void timeRange() throws Exception {
+    final BatchAggregationIterator it = new BatchAggregationIterator(
+        new SeekableView[] {
+          SeekableViewsForTest.fromArray(DATA_POINTS_1),
+          SeekableViewsForTest.fromArray(DATA_POINTS_2) },
+        BASE_TIME + 5000, BASE_TIME + 20000, Aggregators.SUM,
+        Interpolation.LERP);
+    assertTrue(it.hasNext());
+    DataPoint dp = it.next();
+    assertEquals(BASE_TIME + 10000, dp.timestamp());
+    assertEquals(87, dp.longValue());
+    assertTrue(it.hasNext());
+    dp = it.next();
+    assertEquals(BASE_TIME + 20000, dp.timestamp());
+    assertEquals(108, dp.longValue());
+    assertFalse(it.hasNext());
+  }
+
+  @Test
+  public void mixedTypes() throws Exception {
+    final BatchAggregationIterator it = new BatchAggregationIterator(
+        new SeekableView[] {
+          SeekableViewsForTest.fromArray(DATA_POINTS_1),
+          SeekableViewsForTest.fromArray(new DataPoint[] {
+              MutableDataPoint.ofDoubleValue(BASE_TIME + 10000, 1.5),
+              MutableDataPoint.ofDoubleValue(BASE_TIME + 20000, 2.5)
+            }) },
+        start_time_ms, end_time_ms, Aggregators.SUM, Interpolation.LERP);
+    // the next data point of the second span is a double
+    assertTrue(it.hasNext());
+    DataPoint dp = it.next();
+    assertFalse(dp.isInteger());
+    assertEquals(40, dp.doubleValue(), 0.0001);
+    dp = it.next();
+    assertEquals(51.5, dp.doubleValue(), 0.0001);
+    dp = it.next();
+    assertEquals(62.5, dp.doubleValue(), 0.0001);
+    dp = it.next();
+    assertTrue(dp.isInteger());
+    assertEquals(70, dp.longValue());
+    assertFalse(it.hasNext());
+  }
+
+  @Test (expected = ClassCastException.class)
+  public void longValueOnDouble() throws Exception {
+    final BatchAggregationIterator it = new BatchAggregationIterator(
+        new SeekableView[] { SeekableViewsForTest.fromArray(new DataPoint[] {
+            MutableDataPoint.ofDoubleValue(BASE_TIME, 1.5) }) },
+        start_time_ms, end_time_ms, Aggregators.SUM, Interpolation.LERP);
+    it.next().longValue();
+  }
+
+  @Test
+  public void seek() throws Exception {
+    final BatchAggregationIterator it = new BatchAggregationIterator(
+        new SeekableView[] {
+          SeekableViewsForTest.fromArray(DATA_POINTS_1),
+          SeekableViewsForTest.fromArray(DATA_POINTS_2) },
+        start_time_ms, end_time_ms, Aggregators.SUM, Interpolation.LERP);
+    while (it.hasNext()) {
+      it.next();
+    }
+    it.seek(BASE_TIME + 15000);
+    assertTrue(it.hasNext());
+    DataPoint dp = it.next();
+    assertEquals(BASE_TIME + 20000, dp.timestamp());
+    assertEquals(48, dp.longValue());
+    dp = it.next();
+    assertEquals(BASE_TIME + 30000, dp.timestamp());
+    assertEquals(70, dp.longValue());
+    assertFalse(it.hasNext());
+  }
+
+  @Test
+  public void matchesAggregationIteratorRandom() throws Exception {
+    final Random random = new Random(42);
+    for (int round = 0; round < 20; round++) {
+      final int num_spans = 1 + random.nextInt(12);
+      final DataPoint[][] series = new DataPoint[num_spans][];
+      for (int i = 0; i < num_spans; i++) {
+        series[i] = randomSeries(random, round % 3);
+      }
+      for (final Aggregator agg : AGGREGATORS) {
+        for (final Interpolation method : Interpolation.values()) {
+          final long start = BASE_TIME + random.nextInt(20) * 1000;
+          final long end = BASE_TIME + 200000 + random.nextInt(400) * 1000;
+          assertMatches(series, start, end, agg, method);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void matchesAggregationIteratorDownsampled() throws Exception {
+    for (final Aggregator agg : AGGREGATORS) {
+      final SeekableView[] expected = createSeekableViews(200,
+          1356990000000L, 1356993600000L, 100);
+      final SeekableView[] actual = createSeekableViews(200,
+          1356990000000L, 1356993600000L, 100);
+      assertSame(AggregationIterator.createForTesting(expected,
+          1356990000000L, 1356993600000L, agg, agg.interpolationMethod(),
+          false),
+          new BatchAggregationIterator(actual, 1356990000000L,
+          1356993600000L, agg, agg.interpolationMethod()));
+    }
+  }
+
+  /**
+   * Microbenchmark comparing both engines across series counts and
+   * interpolation methods.
+   */
+  private void testMeasureAggregationLatency(final int num_views,
+                                             final Interpolation method,
+                                             final double max_secs) {
+    for (int engine = 0; engine < 2; engine++) {
+      final SeekableView[] views = createSeekableViews(num_views,
+          1356990000000L, 1356993600000L, 100);
+      final SeekableView it = engine == 0 ?
+          AggregationIterator.createForTesting(views, 1356990000000L,
+              1356993600000L, Aggregators.SUM, method, false) :
+          new BatchAggregationIterator(views, 1356990000000L,
+              1356993600000L, Aggregators.SUM, method);
+      final long start_time_nano = System.nanoTime();
+      long total_data_points = 0;
+      long timestamp_checksum = 0;
+      double value_checksum = 0;
+      while (it.hasNext()) {
+        final DataPoint dp = it.next();
+        ++total_data_points;
+        timestamp_checksum += dp.timestamp();
+        value_checksum += dp.toDouble();
+      }
+      final long finish_time_nano = System.nanoTime();
+      final double elapsed =
+          (finish_time_nano - start_time_nano) / 1000000000.0;
+      System.out.println(String.format("%s %s: %f seconds, %d data points, "
+          + "(%d, %g) for %d views", engine == 0 ? "iterator" : "batch",
+          method, elapsed, total_data_points, timestamp_checksum,
+          value_checksum, num_views));
+      assertTrue("Too slow, " + elapsed + " > " + max_secs,
+          elapsed <= max_secs);
+    }
+  }
+
+  @Test
+  public void testAggregate100Spans() {
+    for (final Interpolation method : Interpolation.values()) {
+      testMeasureAggregationLatency(100, method, 10.0);
+    }
+  }
+
+  @Test
+  public void testAggregate1000Spans() {
+    for (final Interpolation method : Interpolation.values()) {
+      testMeasureAggregationLatency(1000, method, 10.0);
+    }
+  }
+
+  @Test
+  public void testAggregate10000Spans() {
+    testMeasureAggregationLatency(10000, Interpolation.LERP, 10.0);
+    testMeasureAggregationLatency(10000, Interpolation.ZIM, 10.0);
+  }
+
+  /**
+   * Runs both engines over copies of the same series and compares the
+   * outputs.
+   */
+  private void assertMatches(final DataPoint[][] series,
+                             final long start,
+                             final long end,
+                             final Aggregator agg,
+                             final Interpolation method) {
+    final SeekableView[] expected = new SeekableView[series.length];
+    final SeekableView[] actual = new SeekableView[series.length];
+    for (int i = 0; i < series.length; i++) {
+      expected[i] = SeekableViewsForTest.fromArray(series[i]);
+      actual[i] = SeekableViewsForTest.fromArray(series[i]);
+    }
+    assertSame(AggregationIterator.createForTesting(expected, start, end,
+        agg, method, false),
+        new BatchAggregationIterator(actual, start, end, agg, method));
+  }
+
+  private static void assertSame(final SeekableView expected,
+                                 final SeekableView actual) {
+    while (expected.hasNext()) {
+      assertTrue(actual.hasNext());
+      final DataPoint e = expected.next();
+      final DataPoint a = actual.next();
+      assertEquals(e.timestamp(), a.timestamp());
+      assertEquals(e.isInteger(), a.isInteger());
+      if (e.isInteger()) {
+        assertEquals(e.longValue(), a.longValue());
+      } else {
+        double e_value;
+        try {
+          e_value = e.doubleValue();
+        } catch (IllegalStateException ex) {
+          try {
+            a.doubleValue();
+            fail("Expected an IllegalStateException");
+          } catch (IllegalStateException ignored) { }
+          continue;
+        }
+        assertEquals(e_value, a.doubleValue(), 0.0);
+      }
+    }
+    assertFalse(actual.hasNext());
+  }
+
+  /**
+   * @param type 0 for integers, 1 for doubles with some NaNs, 2 for both.
+   */
+  private static DataPoint[] randomSeries(final Random random,
+                                          final int type) {
+    final List<DataPoint> dps = new ArrayList<DataPoint>();
+    long ts = BASE_TIME + random.nextInt(60) * 1000;
+    final int count = random.nextInt(300);
+    for (int i = 0; i < count; i++) {
+      final boolean is_integer = type == 0 ||
+          (type == 2 && random.nextBoolean());
+      if (is_integer) {
+        dps.add(MutableDataPoint.ofLongValue(ts, random.nextInt(1000) - 500));
+      } else if (random.nextInt(20) == 0) {
+        dps.add(MutableDataPoint.ofDoubleValue(ts, Double.NaN));
+      } else {
+        dps.add(MutableDataPoint.ofDoubleValue(ts,
+            (random.nextDouble() * 1000) - 500));
+      }
+      ts += 1000 + random.nextInt(4) * 1000;
+    }
+    return dps.toArray(new DataPoint[dps.size()]);
+  }
+
+  private SeekableView[] createSeekableViews(final int num_views,
+                                             final long start_time_ms,
+                                             final long end_time_ms,
+                                             final int num_points_per_span) {
+    final SeekableView[] views = new SeekableView[num_views];
+    final long sample_period_ms = 5000;
+    final long increment_ms =
+        (end_time_ms - start_time_ms) / num_views;
+    long current_time = start_time_ms;
+    for (int i = 0; i < num_views; ++i) {
+      final SeekableView view = SeekableViewsForTest.generator(
+          current_time, sample_period_ms, num_points_per_span, true);
+      views[i] = new Downsampler(view, (int)DateTime.parseDuration("10s"),
+                                 Aggregators.AVG);
+      current_time += increment_ms;
+    }
+    return views;
+  }
+}
@@ -0,0 +1,242 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import net.opentsdb.meta.Annotation;
+
+import org.hbase.async.Bytes.ByteMap;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+public final class TestCachedSeries {
+  private static final byte[] METRIC_UID = new byte[] { 0, 0, 1 };
+  private static final byte[] HOST_UID = new byte[] { 0, 0, 1 };
+  private static final byte[] DC_UID = new byte[] { 0, 0, 2 };
+  private static final long BASE_TIME = 1356998400000L;
+
+  @Test
+  public void iterate() throws Exception {
+    final CachedSeries series = series("web01", "lga", 0, 5);
+    assertEquals(5, series.size());
+    assertEquals(5, series.aggregatedSize());
+    final SeekableView it = series.iterator();
+    int i = 0;
+    while (it.hasNext()) {
+      final DataPoint dp = it.next();
+      assertEquals(BASE_TIME + i * 60000L, dp.timestamp());
+      if (i % 2 == 0) {
+        assertTrue(dp.isInteger());
+        assertEquals(i, dp.longValue());
+      } else {
+        assertFalse(dp.isInteger());
+        assertEquals(i + 0.5, dp.doubleValue(), 0.0);
+      }
+      i++;
+    }
+    assertEquals(5, i);
+  }
+
+  @Test (expected = NoSuchElementException.class)
+  public void iterateTooFar() throws Exception {
+    final SeekableView it = series("web01", "lga", 0, 1).iterator();
+    it.next();
+    it.next();
+  }
+
+  @Test
+  public void seek() throws Exception {
+    final SeekableView it = series("web01", "lga", 0, 5).iterator();
+    it.seek(BASE_TIME + 90000);
+    assertEquals(BASE_TIME + 120000, it.next().timestamp());
+    it.seek(BASE_TIME + 60000);
+    assertEquals(BASE_TIME + 60000, it.next().timestamp());
+    it.seek(BASE_TIME + 600000);
+    assertFalse(it.hasNext());
+  }
+
+  @Test
+  public void indexedAccess() throws Exception {
+    final CachedSeries series = series("web01", "lga", 0, 2);
+    assertEquals(BASE_TIME + 60000, series.timestamp(1));
+    assertTrue(series.isInteger(0));
+    assertEquals(0, series.longValue(0));
+    assertEquals(1.5, series.doubleValue(1), 0.0);
+  }
+
+  @Test (expected = ClassCastException.class)
+  public void longValueOfFloat() throws Exception {
+    series("web01", "lga", 0, 2).longValue(1);
+  }
+
+  @Test (expected = ClassCastException.class)
+  public void doubleValueOfLong() throws Exception {
+    series("web01", "lga", 0, 2).doubleValue(0);
+  }
+
+  @Test
+  public void slice() throws Exception {
+    final CachedSeries series = series("web01", "lga", 0, 10);
+    final CachedSeries slice = series.slice(BASE_TIME + 60000,
+        BASE_TIME + 240000);
+    assertArrayEquals(new long[] { BASE_TIME + 60000, BASE_TIME + 120000,
+        BASE_TIME + 180000 }, slice.timestamps());
+    assertEquals(1.5, slice.doubleValue(0), 0.0);
+    assertEquals(2, slice.longValue(1));
+    assertEquals(series.getTags(), slice.getTags());
+    assertEquals(series.getTSUIDs(), slice.getTSUIDs());
+
+    // in between data points
+    assertEquals(2, series.slice(BASE_TIME + 30000, BASE_TIME + 150000)
+        .size());
+    assertEquals(0, series.slice(BASE_TIME + 30000, BASE_TIME + 30001)
+        .size());
+    assertSame(series, series.slice(BASE_TIME, BASE_TIME + 600000));
+  }
+
+  @Test
+  public void sliceAnnotations() throws Exception {
+    final Annotation seconds = new Annotation();
+    seconds.setStartTime((BASE_TIME + 60000) / 1000);
+    final Annotation millis = new Annotation();
+    millis.setStartTime(BASE_TIME + 300001);
+    final CachedSeries series = new CachedSeries("sys.cpu.user", METRIC_UID,
+        Collections.<String, String>emptyMap(), new ByteMap<byte[]>(),
+        Collections.<String>emptyList(), Collections.<byte[]>emptyList(),
+        Collections.<String>emptyList(), Lists.newArrayList(seconds, millis),
+        0, new byte[0], new long[] { BASE_TIME }, new long[] { 1 },
+        new boolean[1]);
+    List<Annotation> notes = series.slice(BASE_TIME, BASE_TIME + 120000)
+        .getAnnotations();
+    assertEquals(1, notes.size());
+    assertSame(seconds, notes.get(0));
+    notes = series.slice(BASE_TIME + 120000, BASE_TIME + 600000)
+        .getAnnotations();
+    assertEquals(1, notes.size());
+    assertSame(millis, notes.get(0));
+  }
+
+  @Test
+  public void fill() throws Exception {
+    final CachedSeries series = series("web01", "lga", 0, 2);
+    final long[] timestamps = new long[] { BASE_TIME + 600000,
+        BASE_TIME + 660000, BASE_TIME + 720000 };
+    final CachedSeries filled = series.fill(timestamps, Double.NaN);
+    assertEquals(3, filled.size());
+    assertArrayEquals(timestamps, filled.timestamps());
+    for (int i = 0; i < 3; i++) {
+      assertFalse(filled.isInteger(i));
+      assertTrue(Double.isNaN(filled.doubleValue(i)));
+    }
+    assertEquals(series.getTags(), filled.getTags());
+    assertSame(series.groupKey(), filled.groupKey());
+    assertTrue(filled.getTSUIDs().isEmpty());
+  }
+
+  @Test
+  public void merge() throws Exception {
+    final CachedSeries merged = CachedSeries.merge(Lists.newArrayList(
+        series("web01", "lga", 0, 3), series("web01", "lga", 3, 2)));
+    assertEquals(5, merged.size());
+    for (int i = 0; i < 5; i++) {
+      assertEquals(BASE_TIME + i * 60000L, merged.timestamp(i));
+    }
+    assertEquals(4, merged.longValue(4));
+    assertEquals(3.5, merged.doubleValue(3), 0.0);
+    assertEquals(2, merged.getTags().size());
+    assertTrue(merged.getAggregatedTags().isEmpty());
+    assertEquals(1, merged.getTSUIDs().size());
+  }
+
+  @Test
+  public void mergeDifferingTags() throws Exception {
+    final CachedSeries merged = CachedSeries.merge(Lists.newArrayList(
+        series("web01", "lga", 0, 3), series("web02", "lga", 3, 2)));
+    assertEquals(5, merged.size());
+    assertEquals(1, merged.getTags().size());
+    assertEquals("lga", merged.getTags().get("dc"));
+    assertEquals(Lists.newArrayList("host"), merged.getAggregatedTags());
+    assertEquals(1, merged.getTagUids().size());
+    assertArrayEquals(DC_UID, merged.getTagUids().firstKey());
+    assertEquals(1, merged.getAggregatedTagUids().size());
+    assertArrayEquals(HOST_UID, merged.getAggregatedTagUids().get(0));
+    assertEquals(2, merged.getTSUIDs().size());
+  }
+
+  @Test
+  public void mergeSingle() throws Exception {
+    final CachedSeries series = series("web01", "lga", 0, 3);
+    assertSame(series, CachedSeries.merge(Collections.singletonList(series)));
+  }
+
+  @Test
+  public void estimateBytes() throws Exception {
+    final long small = series("web01", "lga", 0, 10).estimateBytes();
+    final long large = series("web01", "lga", 0, 100).estimateBytes();
+    assertTrue(small > 10 * 17);
+    assertEquals(90 * 17, large - small);
+  }
+
+  @Test (expected = UnsupportedOperationException.class)
+  public void getPercentile() throws Exception {
+    final CachedSeries series = series("web01", "lga", 0, 1);
+    assertFalse(series.isPercentile());
+    series.getPercentile();
+  }
+
+  /**
+   * Builds a series with a data point every minute starting at BASE_TIME plus
+   * {@code offset} minutes. Even points are longs, odd ones doubles.
+   */
+  private static CachedSeries series(final String host, final String dc,
+      final int offset, final int count) {
+    final Map<String, String> tags = new HashMap<String, String>();
+    tags.put("host", host);
+    tags.put("dc", dc);
+    final ByteMap<byte[]> tag_uids = new ByteMap<byte[]>();
+    tag_uids.put(HOST_UID, new byte[] { 0, 0, (byte) host.hashCode() });
+    tag_uids.put(DC_UID, new byte[] { 0, 0, (byte) dc.hashCode() });
+    final long[] timestamps = new long[count];
+    final long[] values = new long[count];
+    final boolean[] floats = new boolean[count];
+    for (int i = 0; i < count; i++) {
+      final int n = offset + i;
+      timestamps[i] = BASE_TIME + n * 60000L;
+      if (n % 2 == 0) {
+        values[i] = n;
+      } else {
+        values[i] = Double.doubleToRawLongBits(n + 0.5);
+        floats[i] = true;
+      }
+    }
+    final List<String> tsuids = new ArrayList<String>();
+    tsuids.add("000001000001" + host + "000002" + dc);
+    return new CachedSeries("sys.cpu.user", METRIC_UID, tags, tag_uids,
+        Collections.<String>emptyList(), Collections.<byte[]>emptyList(),
+        tsuids, Collections.<Annotation>emptyList(), 0, new byte[0],
+        timestamps, values, floats);
+  }
+}
@@ -0,0 +1,138 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.junit.Test;
+
+public final class TestColumnarArena {
+
+  @Test
+  public void ctor() throws Exception {
+    final ColumnarArena arena = new ColumnarArena(1024, 4096);
+    assertEquals(1024, arena.slabSize());
+    assertEquals(0, arena.pooledSlabs());
+    assertEquals(0, arena.slabsInUse());
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorZeroSlab() throws Exception {
+    new ColumnarArena(0, 4096);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorNegativePool() throws Exception {
+    new ColumnarArena(1024, -1);
+  }
+
+  @Test
+  public void allocate() throws Exception {
+    final ColumnarArena arena = new ColumnarArena(64, 4096);
+    final ColumnarArena.Region region = arena.newRegion();
+    final ByteBuffer a = region.allocate(17);
+    final ByteBuffer b = region.allocate(24);
+    assertTrue(a.isDirect());
+    assertEquals(ByteOrder.nativeOrder(), a.order());
+    assertEquals(24, a.capacity());
+    assertEquals(24, b.capacity());
+    assertEquals(48, region.allocatedBytes());
+    assertEquals(1, arena.slabsInUse());
+
+    // buffers don't overlap
+    a.putLong(16, -1L);
+    b.putLong(0, 42L);
+    assertEquals(-1L, a.getLong(16));
+    assertEquals(42L, b.getLong(0));
+
+    // doesn't fit in the remainder of the first slab
+    region.allocate(24);
+    assertEquals(2, arena.slabsInUse());
+  }
+
+  @Test
+  public void allocateOversized() throws Exception {
+    final ColumnarArena arena = new ColumnarArena(64, 4096);
+    final ColumnarArena.Region region = arena.newRegion();
+    final ByteBuffer buffer = region.allocate(100);
+    assertEquals(104, buffer.capacity());
+    assertEquals(0, arena.slabsInUse());
+    region.release();
+    assertEquals(0, arena.pooledSlabs());
+  }
+
+  @Test
+  public void releaseRecyclesSlabs() throws Exception {
+    final ColumnarArena arena = new ColumnarArena(64, 4096);
+    ColumnarArena.Region region = arena.newRegion();
+    region.allocate(64);
+    region.allocate(64);
+    assertEquals(2, arena.slabsInUse());
+    region.release();
+    assertTrue(region.isReleased());
+    assertEquals(0, arena.slabsInUse());
+    assertEquals(2, arena.pooledSlabs());
+
+    // idempotent
+    region.release();
+    assertEquals(2, arena.pooledSlabs());
+
+    region = arena.newRegion();
+    region.allocate(8);
+    assertEquals(1, arena.slabsInUse());
+    assertEquals(1, arena.pooledSlabs());
+  }
+
+  @Test
+  public void releaseDropsSlabsOverPoolSize() throws Exception {
+    final ColumnarArena arena = new ColumnarArena(64, 128);
+    final ColumnarArena.Region region = arena.newRegion();
+    for (int i = 0; i < 4; i++) {
+      region.allocate(64);
+    }
+    region.release();
+    assertEquals(0, arena.slabsInUse());
+    assertEquals(2, arena.pooledSlabs());
+  }
+
+  @Test
+  public void regionsDontShareSlabs() throws Exception {
+    final ColumnarArena arena = new ColumnarArena(64, 4096);
+    final ColumnarArena.Region r1 = arena.newRegion();
+    final ColumnarArena.Region r2 = arena.newRegion();
+    final ByteBuffer a = r1.allocate(8);
+    final ByteBuffer b = r2.allocate(8);
+    assertNotSame(a, b);
+    a.putLong(0, 1L);
+    b.putLong(0, 2L);
+    assertEquals(1L, a.getLong(0));
+    assertEquals(2, arena.slabsInUse());
+    r1.release();
+    assertFalse(r2.isReleased());
+    assertEquals(2L, b.getLong(0));
+  }
+
+  @Test (expected = IllegalStateException.class)
+  public void allocateAfterRelease() throws Exception {
+    final ColumnarArena.Region region =
+        new ColumnarArena(64, 4096).newRegion();
+    region.release();
+    region.allocate(8);
+  }
+}
@@ -0,0 +1,308 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static net.opentsdb.core.TestRowSeq.KEY;
+import static net.opentsdb.core.TestRowSeq.SALTED_KEY;
+import static net.opentsdb.core.TestRowSeq.ZERO;
+import static net.opentsdb.core.TestRowSeq.makekv;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mock;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+import net.opentsdb.storage.MockBase;
+import net.opentsdb.uid.UniqueId;
+import net.opentsdb.utils.Config;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.KeyValue;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
+
+@RunWith(PowerMockRunner.class)
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+               "ch.qos.*", "org.slf4j.*",
+               "com.sum.*", "org.xml.*"})
+@PrepareForTest({ TSDB.class, UniqueId.class, KeyValue.class,
+  Config.class, RowKey.class, Const.class })
+public final class TestColumnarRowSeq {
+  private TSDB tsdb = mock(TSDB.class);
+  private Config config = mock(Config.class);
+  private UniqueId metrics = mock(UniqueId.class);
+  private ColumnarArena arena;
+  private ColumnarArena.Region region;
+
+  @Before
+  public void before() throws Exception {
+    Whitebox.setInternalState(tsdb, "metrics", metrics);
+    Whitebox.setInternalState(tsdb, "config", config);
+    when(tsdb.getConfig()).thenReturn(config);
+    when(tsdb.metrics.width()).thenReturn((short)3);
+    arena = new ColumnarArena(1024, 4096);
+    region = arena.newRegion();
+  }
+
+  @Test
+  public void setRow() throws Exception {
+    final ColumnarRowSeq rs = new ColumnarRowSeq(tsdb, region);
+    rs.setRow(makekv(KEY, MockBase.concatByteArrays(
+        new byte[] { 0x00, 0x07 }, new byte[] { 0x00, 0x27 }),
+        MockBase.concatByteArrays(Bytes.fromLong(4L), Bytes.fromLong(5L),
+            ZERO)));
+    assertEquals(2, rs.size());
+    assertEquals(1356998400, rs.baseTime());
+    assertEquals(1356998400000L, rs.timestamp(0));
+    assertEquals(4, rs.longValue(0));
+    assertEquals(1356998402000L, rs.timestamp(1));
+    assertEquals(5, rs.longValue(1));
+    assertEquals(40, region.allocatedBytes());
+  }
+
+  @Test
+  public void setRowSalted() throws Exception {
+    setupSalt();
+    final ColumnarRowSeq rs = new ColumnarRowSeq(tsdb, region);
+    rs.setRow(makekv(SALTED_KEY, new byte[] { 0x00, 0x07 },
+        Bytes.fromLong(4L)));
+    assertEquals(1, rs.size());
+    assertEquals(1356998400000L, rs.timestamp(0));
+    assertEquals(4, rs.longValue(0));
+  }
+
+  @Test (expected = IllegalStateException.class)
+  public void setRowAlreadySet() throws Exception {
+    final KeyValue kv = makekv(KEY, new byte[] { 0x00, 0x07 },
+        Bytes.fromLong(4L));
+    final ColumnarRowSeq rs = new ColumnarRowSeq(tsdb, region);
+    rs.setRow(kv);
+    rs.setRow(kv);
+  }
+
+  @Test
+  public void setRowMixedTypesAndWidths() throws Exception {
+    final byte[] qual1 = { 0x00, 0x00 };
+    final byte[] val1 = { 42 };
+    final byte[] qual2 = { 0x00, 0x21 };
+    final byte[] val2 = Bytes.fromShort((short) -300);
+    final byte[] qual3 = { 0x00, 0x3B };
+    final byte[] val3 = Bytes.fromInt(Float.floatToRawIntBits(1.5F));
+    final byte[] qual4 = { 0x00, 0x4F };
+    final byte[] val4 = Bytes.fromLong(Double.doubleToRawLongBits(-2.25));
+    final ColumnarRowSeq rs = new ColumnarRowSeq(tsdb, region);
+    rs.setRow(makekv(KEY, MockBase.concatByteArrays(qual1, qual2, qual3, qual4),
+        MockBase.concatByteArrays(val1, val2, val3, val4, ZERO)));
+
+    assertEquals(4, rs.size());
+    assertTrue(rs.isInteger(0));
+    assertEquals(42, rs.longValue(0));
+    assertTrue(rs.isInteger(1));
+    assertEquals(-300, rs.longValue(1));
+    assertFalse(rs.isInteger(2));
+    assertEquals(1.5, rs.doubleValue(2), 0.0);
+    assertFalse(rs.isInteger(3));
+    assertEquals(-2.25, rs.doubleValue(3), 0.0);
+  }
+
+  @Test
+  public void setRowMs() throws Exception {
+    final byte[] qual1 = { (byte) 0xF0, 0x00, 0x00, 0x07 };
+    final byte[] qual2 = { (byte) 0xF0, 0x00, (byte) 0xFA, 0x07 };
+    final byte[] qual3 = { 0x00, 0x27 };
+    final ColumnarRowSeq rs = new ColumnarRowSeq(tsdb, region);
+    rs.setRow(makekv(KEY, MockBase.concatByteArrays(qual1, qual2, qual3),
+        MockBase.concatByteArrays(Bytes.fromLong(4L), Bytes.fromLong(5L),
+            Bytes.fromLong(6L), new byte[] { Const.MS_MIXED_COMPACT })));
+    assertEquals(3, rs.size());
+    assertEquals(1356998400000L, rs.timestamp(0));
+    assertEquals(1356998401000L, rs.timestamp(1));
+    assertEquals(5, rs.longValue(1));
+    assertEquals(1356998402000L, rs.timestamp(2));
+    assertEquals(6, rs.longValue(2));
+  }
+
+  @Test
+  public void addRowMergeLater() throws Exception {
+    final ColumnarRowSeq rs = new ColumnarRowSeq(tsdb, region);
+    rs.setRow(makekv(KEY, MockBase.concatByteArrays(
+        new byte[] { 0x00, 0x07 }, new byte[] { 0x00, 0x27 }),
+        MockBase.concatByteArrays(Bytes.fromLong(4L), Bytes.fromLong(5L),
+            ZERO)));
+    rs.addRow(makekv(KEY, MockBase.concatByteArrays(
+        new byte[] { 0x00, 0x37 }, new byte[] { 0x00, 0x47 }),
+        MockBase.concatByteArrays(Bytes.fromLong(6L), Bytes.fromLong(7L),
+            ZERO)));
+    assertEquals(4, rs.size());
+    for (int i = 0; i < 4; i++) {
+      assertEquals(4 + i, rs.longValue(i));
+    }
+    assertEquals(1356998400000L, rs.timestamp(0));
+    assertEquals(1356998402000L, rs.timestamp(1));
+    assertEquals(1356998403000L, rs.timestamp(2));
+    assertEquals(1356998404000L, rs.timestamp(3));
+  }
+
+  @Test
+  public void addRowMergeMiddleSaltedWithDupes() throws Exception {
+    setupSalt();
+    final ColumnarRowSeq rs = new ColumnarRowSeq(tsdb, region);
+    rs.setRow(makekv(SALTED_KEY, MockBase.concatByteArrays(
+        new byte[] { 0x00, 0x07 }, new byte[] { 0x00, 0x47 }),
+        MockBase.concatByteArrays(Bytes.fromLong(4L), Bytes.fromLong(7L),
+            ZERO)));
+    final byte[] salted_key2 = Arrays.copyOf(SALTED_KEY, SALTED_KEY.length);
+    salted_key2[0] = 1;
+    rs.addRow(makekv(salted_key2, MockBase.concatByteArrays(
+        new byte[] { 0x00, 0x07 }, new byte[] { 0x00, 0x27 },
+        new byte[] { 0x00, 0x37 }),
+        MockBase.concatByteArrays(Bytes.fromLong(42L), Bytes.fromLong(5L),
+            Bytes.fromLong(6L), ZERO)));
+
+    assertEquals(4, rs.size());
+    // the local value wins on duplicates
+    for (int i = 0; i < 4; i++) {
+      assertEquals(4 + i, rs.longValue(i));
+    }
+    assertEquals(1356998403000L, rs.timestamp(2));
+  }
+
+  @Test
+  public void addRowManyParts() throws Exception {
+    final ColumnarRowSeq rs = new ColumnarRowSeq(tsdb, region);
+    rs.setRow(makekv(KEY, new byte[] { 0x00, 0x07 }, Bytes.fromLong(0L)));
+    for (int i = 1; i < 256; i++) {
+      rs.addRow(makekv(KEY, new byte[] { (byte) (i >> 4),
+          (byte) ((i << 4) | 0x07) }, Bytes.fromLong(i)));
+    }
+    // a duplicate doesn't grow the sequence
+    rs.addRow(makekv(KEY, new byte[] { 0x00, 0x07 }, Bytes.fromLong(42L)));
+
+    assertEquals(256, rs.size());
+    for (int i = 0; i < 256; i++) {
+      assertEquals(1356998400000L + (i * 1000), rs.timestamp(i));
+      assertEquals(i, rs.longValue(i));
+    }
+    // the columns double so the region use is linear in the points
+    assertTrue(region.allocatedBytes() < 256 * 17 * 4);
+  }
+
+  @Test (expected = IllegalStateException.class)
+  public void addRowNotSet() throws Exception {
+    new ColumnarRowSeq(tsdb, region).addRow(makekv(KEY,
+        new byte[] { 0x00, 0x07 }, Bytes.fromLong(4L)));
+  }
+
+  @Test (expected = IllegalDataException.class)
+  public void addRowDiffMetric() throws Exception {
+    final ColumnarRowSeq rs = new ColumnarRowSeq(tsdb, region);
+    rs.setRow(makekv(KEY, new byte[] { 0x00, 0x07 }, Bytes.fromLong(4L)));
+    final byte[] key2 = Arrays.copyOf(KEY, KEY.length);
+    key2[2] = 2;
+    rs.addRow(makekv(key2, new byte[] { 0x00, 0x27 }, Bytes.fromLong(5L)));
+  }
+
+  @Test
+  public void iterateAndSeek() throws Exception {
+    final ColumnarRowSeq rs = new ColumnarRowSeq(tsdb, region);
+    rs.setRow(makekv(KEY, MockBase.concatByteArrays(
+        new byte[] { 0x00, 0x07 }, new byte[] { 0x00, 0x27 },
+        new byte[] { 0x00, 0x4F }),
+        MockBase.concatByteArrays(Bytes.fromLong(4L), Bytes.fromLong(5L),
+            Bytes.fromLong(Double.doubleToRawLongBits(6.5)), ZERO)));
+
+    final ColumnarRowSeq.Iterator it = rs.internalIterator();
+    assertTrue(it.hasNext());
+    assertEquals(1356998400000L, it.next().timestamp());
+    assertEquals(4, it.longValue());
+    assertEquals(5, it.next().toDouble(), 0.0);
+    assertFalse(it.next().isInteger());
+    assertEquals(6.5, it.doubleValue(), 0.0);
+    assertFalse(it.hasNext());
+
+    it.seek(1356998401000L);
+    assertEquals(1356998402000L, it.next().timestamp());
+    it.seek(1356998400000L);
+    assertEquals(1356998400000L, it.next().timestamp());
+    it.seek(1356998405000L);
+    assertFalse(it.hasNext());
+  }
+
+  @Test (expected = NoSuchElementException.class)
+  public void iterateTooFar() throws Exception {
+    final ColumnarRowSeq rs = new ColumnarRowSeq(tsdb, region);
+    rs.setRow(makekv(KEY, new byte[] { 0x00, 0x07 }, Bytes.fromLong(4L)));
+    final ColumnarRowSeq.Iterator it = rs.internalIterator();
+    it.next();
+    it.next();
+  }
+
+  @Test (expected = ClassCastException.class)
+  public void longValueOfFloat() throws Exception {
+    final ColumnarRowSeq rs = new ColumnarRowSeq(tsdb, region);
+    rs.setRow(makekv(KEY, new byte[] { 0x00, 0x0B },
+        Bytes.fromInt(Float.floatToRawIntBits(1.5F))));
+    rs.longValue(0);
+  }
+
+  @Test (expected = IndexOutOfBoundsException.class)
+  public void timestampOutOfBounds() throws Exception {
+    final ColumnarRowSeq rs = new ColumnarRowSeq(tsdb, region);
+    rs.setRow(makekv(KEY, new byte[] { 0x00, 0x07 }, Bytes.fromLong(4L)));
+    rs.timestamp(1);
+  }
+
+  @Test
+  public void spanWithRegion() throws Exception {
+    final Span span = new Span(tsdb, region);
+    span.addRow(makekv(KEY, MockBase.concatByteArrays(
+        new byte[] { 0x00, 0x07 }, new byte[] { 0x00, 0x27 }),
+        MockBase.concatByteArrays(Bytes.fromLong(4L), Bytes.fromLong(5L),
+            ZERO)));
+    final byte[] key2 = Arrays.copyOf(KEY, KEY.length);
+    key2[5] = 0x35; // next hour
+    key2[6] = 0x10;
+    span.addRow(makekv(key2, new byte[] { 0x00, 0x07 }, Bytes.fromLong(6L)));
+
+    assertEquals(3, span.size());
+    assertEquals(1356998400000L, span.timestamp(0));
+    assertEquals(1357002000000L, span.timestamp(2));
+    final SeekableView it = span.iterator();
+    long value = 4;
+    while (it.hasNext()) {
+      assertEquals(value++, it.next().longValue());
+    }
+    assertEquals(7, value);
+    assertEquals(1, arena.slabsInUse());
+
+    region.release();
+    assertEquals(0, arena.slabsInUse());
+    assertEquals(1, arena.pooledSlabs());
+  }
+
+  /** Helper to mockout the salt configuration */
+  private void setupSalt() {
+    PowerMockito.mockStatic(Const.class);
+    PowerMockito.when(Const.SALT_WIDTH()).thenReturn(1);
+    PowerMockito.when(Const.SALT_BUCKETS()).thenReturn(2);
+  }
+}
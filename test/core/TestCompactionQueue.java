@@ -14,7 +14,10 @@ package net.opentsdb.core;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import java.nio.charset.Charset;
 import java.util.ArrayList;
@@ -23,13 +26,16 @@ import com.stumbleupon.async.Deferred;
 
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Random;
 import java.util.Set;
 
 import org.hbase.async.Bytes;
 import org.hbase.async.KeyValue;
 
+import net.opentsdb.core.CompactionQueue.Shard;
 import net.opentsdb.meta.Annotation;
+import net.opentsdb.stats.StatsCollector;
 import net.opentsdb.storage.MockBase;
 import net.opentsdb.uid.UniqueId;
 import net.opentsdb.utils.Config;
@@ -93,7 +99,8 @@ public final class TestCompactionQueue {
     Whitebox.setInternalState(tsdb, "config", config);
     when(tsdb.getConfig()).thenReturn(config);
     // Stub out the compaction thread, so it doesn't even start.
-    PowerMockito.whenNew(CompactionQueue.Thrd.class).withNoArguments()
+    PowerMockito.whenNew(CompactionQueue.Thrd.class)
+      .withArguments(any(Shard.class))
       .thenReturn(mock(CompactionQueue.Thrd.class));
     PowerMockito.when(config.enable_compactions()).thenReturn(true);
     PowerMockito.when(config.fix_duplicates()).thenReturn(true);
@@ -1526,6 +1533,250 @@ public final class TestCompactionQueue {
     verify(tsdb, never()).delete(anyBytes(), any(byte[][].class));
   }
 
+  @Test
+  public void shardedFlush() throws Exception {
+    PowerMockito.when(config.getInt("tsd.storage.compaction.shards"))
+      .thenReturn(4);
+    PowerMockito.when(config.getInt(
+        "tsd.storage.compaction.max_concurrent_flushes")).thenReturn(10000);
+    compactionq = new CompactionQueue(tsdb);
+    when(tsdb.get(anyBytes())).thenAnswer(
+        new Answer<Deferred<ArrayList<KeyValue>>>() {
+      @Override
+      public Deferred<ArrayList<KeyValue>> answer(
+          final InvocationOnMock invocation) {
+        return Deferred.fromResult(new ArrayList<KeyValue>(0));
+      }
+    });
+    
+    for (int i = 0; i < 32; i++) {
+      final byte[] row = Arrays.copyOf(KEY, KEY.length);
+      row[row.length - 1] = (byte) i;
+      compactionq.add(row);
+    }
+    // duplicates don't count
+    compactionq.add(KEY);
+    assertEquals(32, compactionq.size());
+    
+    final Shard[] shards = Whitebox.getInternalState(compactionq, "shards");
+    assertEquals(4, shards.length);
+    int populated = 0;
+    for (final Shard shard : shards) {
+      if (shard.size() > 0) {
+        populated++;
+      }
+    }
+    assertTrue(populated > 1);
+    
+    compactionq.flush().join();
+    // flush() randomly skips some rows so they're picked up on the next run
+    final int left = compactionq.size();
+    assertTrue(left < 32);
+    verify(tsdb, times(32 - left)).get(anyBytes());
+  }
+  
+  @Test
+  public void shardedStats() throws Exception {
+    PowerMockito.when(config.getInt("tsd.storage.compaction.shards"))
+      .thenReturn(2);
+    compactionq = new CompactionQueue(tsdb);
+    compactionq.add(KEY);
+    
+    final List<String> stats = new ArrayList<String>();
+    compactionq.collectStats(new StatsCollector("tsd") {
+      @Override
+      public void emit(final String datapoint) {
+        stats.add(datapoint);
+      }
+    });
+    int sizes = 0;
+    int ages = 0;
+    for (final String stat : stats) {
+      if (stat.startsWith("tsd.compaction.shard.size")) {
+        sizes++;
+      } else if (stat.startsWith("tsd.compaction.shard.age")) {
+        ages++;
+      }
+    }
+    assertEquals(2, sizes);
+    assertEquals(2, ages);
+  }
+  
+  @Test
+  public void discardShard() throws Exception {
+    PowerMockito.when(config.getInt("tsd.storage.compaction.shards"))
+      .thenReturn(2);
+    compactionq = new CompactionQueue(tsdb);
+    for (int i = 0; i < 16; i++) {
+      final byte[] row = Arrays.copyOf(KEY, KEY.length);
+      row[row.length - 1] = (byte) i;
+      compactionq.add(row);
+    }
+    final Shard[] shards = Whitebox.getInternalState(compactionq, "shards");
+    final int remaining = shards[1].size();
+    assertEquals(16 - remaining, shards[0].discard());
+    assertEquals(remaining, compactionq.size());
+  }
+
+  @Test
+  public void gorillaEncoding() throws Exception {
+    PowerMockito.when(config.getBoolean("tsd.storage.compaction.gorilla.enable"))
+      .thenReturn(true);
+    compactionq = new CompactionQueue(tsdb);
+    ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(4);
+    ArrayList<Annotation> annotations = new ArrayList<Annotation>(0);
+    final byte[] qual1 = { 0x00, 0x07 };
+    final byte[] val1 = Bytes.fromLong(4L);
+    kvs.add(makekv(qual1, val1));
+    final byte[] qual2 = { 0x00, (byte) 0xF7 };
+    final byte[] val2 = Bytes.fromLong(5L);
+    kvs.add(makekv(qual2, val2));
+    final byte[] qual3 = { 0x01, (byte) 0xE7 };
+    final byte[] val3 = Bytes.fromLong(5L);
+    kvs.add(makekv(qual3, val3));
+    final byte[] qual4 = { 0x02, (byte) 0xD7 };
+    final byte[] val4 = Bytes.fromLong(6L);
+    kvs.add(makekv(qual4, val4));
+
+    // callers still get the legacy form
+    final byte[] cqual = MockBase.concatByteArrays(qual1, qual2, qual3, qual4);
+    final byte[] cval = MockBase.concatByteArrays(val1, val2, val3, val4, ZERO);
+    final KeyValue kv = compactionq.compact(kvs, annotations, null);
+    assertArrayEquals(cqual, kv.qualifier());
+    assertArrayEquals(cval, kv.value());
+
+    // but storage gets the block
+    final byte[] block = GorillaColumn.encode(cqual, cval);
+    assertTrue(block.length < cval.length);
+    verify(tsdb, times(1)).put(KEY, GorillaColumn.QUALIFIER, block, kvCount - 1);
+    verify(tsdb, times(1)).delete(eq(KEY),
+        eqAnyOrder(new byte[][] { qual1, qual2, qual3, qual4 }));
+  }
+
+  @Test
+  public void gorillaColumnOnly() throws Exception {
+    ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(1);
+    ArrayList<Annotation> annotations = new ArrayList<Annotation>(0);
+    final byte[] cqual = { 0x00, 0x07, 0x00, 0x17, 0x00, 0x27 };
+    final byte[] cval = MockBase.concatByteArrays(Bytes.fromLong(4L),
+        Bytes.fromLong(5L), Bytes.fromLong(6L), ZERO);
+    kvs.add(makekv(GorillaColumn.QUALIFIER, GorillaColumn.encode(cqual, cval)));
+
+    final KeyValue kv = compactionq.compact(kvs, annotations, null);
+    assertArrayEquals(cqual, kv.qualifier());
+    assertArrayEquals(cval, kv.value());
+
+    // We had nothing to do so...
+    // ... verify there were no put.
+    verify(tsdb, never()).put(anyBytes(), anyBytes(), anyBytes(), anyLong());
+    // ... verify there were no delete.
+    verify(tsdb, never()).delete(anyBytes(), any(byte[][].class));
+  }
+
+  @Test
+  public void gorillaColumnAndCell() throws Exception {
+    PowerMockito.when(config.getBoolean("tsd.storage.compaction.gorilla.enable"))
+      .thenReturn(true);
+    compactionq = new CompactionQueue(tsdb);
+    ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(2);
+    ArrayList<Annotation> annotations = new ArrayList<Annotation>(0);
+    final byte[] cqual = { 0x00, 0x07, 0x00, 0x17, 0x00, 0x27 };
+    final byte[] val = Bytes.fromLong(4L);
+    final byte[] cval = MockBase.concatByteArrays(val, val, val, ZERO);
+    kvs.add(makekv(GorillaColumn.QUALIFIER, GorillaColumn.encode(cqual, cval)));
+    final byte[] qual4 = { 0x00, 0x37 };
+    kvs.add(makekv(qual4, val));
+
+    final byte[] merged_qual = MockBase.concatByteArrays(cqual, qual4);
+    final byte[] merged_val = MockBase.concatByteArrays(val, val, val, val, ZERO);
+    final KeyValue kv = compactionq.compact(kvs, annotations, null);
+    assertArrayEquals(merged_qual, kv.qualifier());
+    assertArrayEquals(merged_val, kv.value());
+
+    // the block is re-written with the new point and the cell deleted
+    verify(tsdb, times(1)).put(KEY, GorillaColumn.QUALIFIER,
+        GorillaColumn.encode(merged_qual, merged_val), kvCount - 1);
+    verify(tsdb, times(1)).delete(KEY, new byte[][] { qual4 });
+  }
+
+  @Test
+  public void readThroughQueuesRow() throws Exception {
+    enableReadThrough(10);
+    ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(2);
+    ArrayList<Annotation> annotations = new ArrayList<Annotation>(0);
+    final byte[] qual1 = { 0x00, 0x07 };
+    final byte[] val1 = Bytes.fromLong(4L);
+    kvs.add(makekv(qual1, val1));
+    final byte[] qual2 = { 0x00, 0x17 };
+    final byte[] val2 = Bytes.fromLong(5L);
+    kvs.add(makekv(qual2, val2));
+
+    final KeyValue kv = compactionq.compact(kvs, annotations, null);
+    assertArrayEquals(MockBase.concatByteArrays(qual1, qual2), kv.qualifier());
+    assertArrayEquals(MockBase.concatByteArrays(val1, val2, ZERO), kv.value());
+
+    // the query doesn't write, the row is queued instead
+    verify(tsdb, never()).put(anyBytes(), anyBytes(), anyBytes(), anyLong());
+    verify(tsdb, never()).delete(anyBytes(), any(byte[][].class));
+    assertEquals(1, compactionq.size());
+    // reading it again doesn't queue it twice
+    compactionq.compact(kvs, annotations, null);
+    assertEquals(1, compactionq.size());
+  }
+
+  @Test
+  public void readThroughCompactedRow() throws Exception {
+    enableReadThrough(10);
+    ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(1);
+    ArrayList<Annotation> annotations = new ArrayList<Annotation>(0);
+    kvs.add(makekv(MockBase.concatByteArrays(new byte[] { 0x00, 0x07 },
+        new byte[] { 0x00, 0x17 }), MockBase.concatByteArrays(
+            Bytes.fromLong(4L), Bytes.fromLong(5L), ZERO)));
+
+    compactionq.compact(kvs, annotations, null);
+    assertEquals(0, compactionq.size());
+  }
+
+  @Test
+  public void readThroughQueueFull() throws Exception {
+    enableReadThrough(1);
+    compactionq.add(KEY);
+    ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(2);
+    ArrayList<Annotation> annotations = new ArrayList<Annotation>(0);
+    final byte[] key = Arrays.copyOf(KEY, KEY.length);
+    key[key.length - 1] = 3;
+    kvs.add(new KeyValue(key, FAMILY, new byte[] { 0x00, 0x07 },
+        Bytes.fromLong(4L)));
+    kvs.add(new KeyValue(key, FAMILY, new byte[] { 0x00, 0x17 },
+        Bytes.fromLong(5L)));
+
+    assertNotNull(compactionq.compact(kvs, annotations, null));
+    assertEquals(1, compactionq.size());
+    assertFalse(compactionq.addReadThrough(key));
+    verify(tsdb, never()).put(anyBytes(), anyBytes(), anyBytes(), anyLong());
+  }
+
+  @Test
+  public void readThroughWritesWithCompactionsDisabled() throws Exception {
+    PowerMockito.when(config.enable_compactions()).thenReturn(false);
+    enableReadThrough(10);
+    ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(2);
+    ArrayList<Annotation> annotations = new ArrayList<Annotation>(0);
+    final byte[] qual1 = { 0x00, 0x07 };
+    final byte[] val1 = Bytes.fromLong(4L);
+    kvs.add(makekv(qual1, val1));
+    final byte[] qual2 = { 0x00, 0x17 };
+    final byte[] val2 = Bytes.fromLong(5L);
+    kvs.add(makekv(qual2, val2));
+
+    // the compaction thread reads the row back without asking for the result
+    compactionq.compact(kvs, null, annotations, null);
+    verify(tsdb, times(1)).put(KEY, MockBase.concatByteArrays(qual1, qual2),
+        MockBase.concatByteArrays(val1, val2, ZERO), kvCount - 1);
+    verify(tsdb, times(1)).delete(eq(KEY),
+        eqAnyOrder(new byte[][] { qual1, qual2 }));
+  }
+
   // ----------------- //
   // Helper functions. //
   // ----------------- //
@@ -1542,6 +1793,16 @@ public final class TestCompactionQueue {
     return new KeyValue(KEY, FAMILY, qualifier, ts, value);
   }
 
+  /** Turns on read-through compactions and re-creates the queue. */
+  private void enableReadThrough(final int max_pending) {
+    PowerMockito.when(config.getBoolean(
+        "tsd.storage.compaction.read_through.enable")).thenReturn(true);
+    PowerMockito.when(config.getInt(
+        "tsd.storage.compaction.read_through.max_pending"))
+      .thenReturn(max_pending);
+    compactionq = new CompactionQueue(tsdb);
+  }
+
   private static byte[] anyBytes() {
     return any(byte[].class);
   }
@@ -0,0 +1,140 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import net.opentsdb.utils.Config;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public final class TestCompactionThrottle {
+  private static final long INTERVAL = 10000;
+
+  private Config config;
+  private CompactionThrottle throttle;
+  private long now;
+
+  @Before
+  public void before() throws Exception {
+    config = new Config(false);
+    throttle = new CompactionThrottle(config, INTERVAL);
+    now = System.currentTimeMillis();
+  }
+
+  @Test
+  public void defaults() throws Exception {
+    assertEquals(100, throttle.rate());
+    assertEquals(50, throttle.maxFlushes(50));
+    assertEquals(1000, throttle.concurrency(1000));
+  }
+
+  @Test
+  public void updateTooSoon() throws Exception {
+    assertFalse(throttle.update(now));
+    assertEquals(100, throttle.rate());
+  }
+
+  @Test
+  public void idleSpeedsUp() throws Exception {
+    assertTrue(throttle.update(now += INTERVAL));
+    assertEquals(100 + CompactionThrottle.RATE_STEP, throttle.rate());
+    // flushes more rows but never more at once than configured
+    assertEquals(110, throttle.maxFlushes(100));
+    assertEquals(1000, throttle.concurrency(1000));
+
+    for (int i = 0; i < 100; i++) {
+      throttle.update(now += INTERVAL);
+    }
+    assertEquals(400, throttle.rate());
+  }
+
+  @Test
+  public void slowPutsThrottle() throws Exception {
+    for (int i = 0; i < 100; i++) {
+      throttle.recordPut(5);
+    }
+    throttle.recordPut(1000);
+    throttle.recordPut(1000);
+    assertTrue(throttle.update(now += INTERVAL));
+    assertEquals(50, throttle.rate());
+    assertEquals(25, throttle.maxFlushes(50));
+    assertEquals(500, throttle.concurrency(1000));
+
+    for (int i = 0; i < 10; i++) {
+      throttle.recordPut(1000);
+      throttle.update(now += INTERVAL);
+    }
+    assertEquals(10, throttle.rate());
+    assertEquals(1, throttle.maxFlushes(5));
+    assertEquals(1, throttle.concurrency(5));
+  }
+
+  @Test
+  public void slowGetsThrottle() throws Exception {
+    throttle.recordPut(5);
+    throttle.recordGet(1000);
+    throttle.update(now += INTERVAL);
+    assertEquals(50, throttle.rate());
+  }
+
+  @Test
+  public void nearTargetHolds() throws Exception {
+    // above half the target but below it
+    throttle.recordPut(80);
+    throttle.update(now += INTERVAL);
+    assertEquals(100, throttle.rate());
+  }
+
+  @Test
+  public void windowResets() throws Exception {
+    throttle.recordPut(1000);
+    throttle.update(now += INTERVAL);
+    assertEquals(50, throttle.rate());
+    // the slow put isn't counted again
+    throttle.update(now += INTERVAL);
+    assertEquals(50 + CompactionThrottle.RATE_STEP, throttle.rate());
+  }
+
+  @Test
+  public void latencyCallback() throws Exception {
+    final Object result = new Object();
+    assertEquals(result, throttle.new LatencyCB<Object>(true).call(result));
+    final Exception e = new RuntimeException("Boo!");
+    assertEquals(e, throttle.new LatencyCB<Object>(false).call(e));
+    // both were fast so we speed up
+    throttle.update(now += INTERVAL);
+    assertEquals(100 + CompactionThrottle.RATE_STEP, throttle.rate());
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorBadTarget() throws Exception {
+    config.overrideConfig("tsd.storage.compaction.throttle.put_p99_ms", "0");
+    new CompactionThrottle(config, INTERVAL);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorBadMinRate() throws Exception {
+    config.overrideConfig("tsd.storage.compaction.throttle.min_rate", "0");
+    new CompactionThrottle(config, INTERVAL);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorBadMaxRate() throws Exception {
+    config.overrideConfig("tsd.storage.compaction.throttle.max_rate", "50");
+    new CompactionThrottle(config, INTERVAL);
+  }
+}
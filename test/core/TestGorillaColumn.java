@@ -0,0 +1,208 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import net.opentsdb.core.Internal.Cell;
+import net.opentsdb.storage.MockBase;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.KeyValue;
+import org.junit.Test;
+
+public final class TestGorillaColumn {
+  private static final byte[] KEY =
+    { 0, 0, 1, 0x50, (byte) 0xE2, 0x27, 0, 0, 0, 1, 0, 0, 1 };
+  private static final byte[] FAMILY = { 't' };
+  private static final byte[] ZERO = { 0 };
+  private static final byte[] MIXED = { Const.MS_MIXED_COMPACT };
+
+  @Test
+  public void isGorillaColumn() throws Exception {
+    assertTrue(GorillaColumn.isGorillaColumn(GorillaColumn.QUALIFIER));
+    assertFalse(GorillaColumn.isGorillaColumn(
+        AppendDataPoints.APPEND_COLUMN_QUALIFIER));
+    assertFalse(GorillaColumn.isGorillaColumn(new byte[] { 0x07, 0x00 }));
+    assertFalse(GorillaColumn.isGorillaColumn(null));
+  }
+
+  @Test
+  public void roundTripSeconds() throws Exception {
+    final byte[] qualifiers = new byte[120];
+    final byte[] values = new byte[60 * 8 + 1];
+    for (int i = 0; i < 60; i++) {
+      final short offset = (short) ((i * 60) << Const.FLAG_BITS | 0x7);
+      System.arraycopy(Bytes.fromShort(offset), 0, qualifiers, i * 2, 2);
+      System.arraycopy(Bytes.fromLong(1000 + (i % 3)), 0, values, i * 8, 8);
+    }
+    assertRoundTrip(qualifiers, values, 60);
+  }
+
+  @Test
+  public void roundTripMilliseconds() throws Exception {
+    final byte[] qualifiers = MockBase.concatByteArrays(
+        new byte[] { (byte) 0xF0, 0x00, 0x00, 0x07 },
+        new byte[] { (byte) 0xF0, 0x00, 0x01, 0x07 },
+        new byte[] { (byte) 0xF0, 0x00, 0x02, 0x07 },
+        new byte[] { (byte) 0xF0, 0x00, 0x04, 0x07 });
+    final byte[] values = MockBase.concatByteArrays(Bytes.fromLong(4L),
+        Bytes.fromLong(4L), Bytes.fromLong(-5L), Bytes.fromLong(Long.MAX_VALUE),
+        ZERO);
+    assertRoundTrip(qualifiers, values, 4);
+  }
+
+  @Test
+  public void roundTripMixed() throws Exception {
+    // alternates second and millisecond qualifiers every 500ms
+    final byte[] qualifiers = new byte[10 * 2 + 10 * 4];
+    final byte[] values = new byte[20 * 8 + 1];
+    int q_idx = 0;
+    for (int i = 0; i < 20; i++) {
+      if (i % 2 == 0) {
+        final short offset = (short) ((i / 2) << Const.FLAG_BITS | 0x7);
+        System.arraycopy(Bytes.fromShort(offset), 0, qualifiers, q_idx, 2);
+        q_idx += 2;
+      } else {
+        final int offset = Const.MS_FLAG | (i * 500) << Const.MS_FLAG_BITS | 0x7;
+        System.arraycopy(Bytes.fromInt(offset), 0, qualifiers, q_idx, 4);
+        q_idx += 4;
+      }
+      System.arraycopy(Bytes.fromLong(i), 0, values, i * 8, 8);
+    }
+    values[values.length - 1] = Const.MS_MIXED_COMPACT;
+    assertRoundTrip(qualifiers, values, 20);
+  }
+
+  @Test
+  public void roundTripFloats() throws Exception {
+    final byte[] qualifiers = new byte[200];
+    final byte[] values = new byte[100 * 8 + 1];
+    double value = 12.5;
+    for (int i = 0; i < 100; i++) {
+      final short offset = (short) ((i * 30) << Const.FLAG_BITS | 0xF);
+      System.arraycopy(Bytes.fromShort(offset), 0, qualifiers, i * 2, 2);
+      value += i % 5 == 0 ? 0.125 : 0;
+      System.arraycopy(Bytes.fromLong(Double.doubleToRawLongBits(value)), 0,
+          values, i * 8, 8);
+    }
+    assertRoundTrip(qualifiers, values, 100);
+  }
+
+  @Test
+  public void encodeSingleValue() throws Exception {
+    assertNull(GorillaColumn.encode(new byte[] { 0x00, 0x07 },
+        Bytes.fromLong(42L)));
+  }
+
+  @Test
+  public void encodeBadValueLength() throws Exception {
+    // the float flags claim 4 bytes but we have 8
+    assertNull(GorillaColumn.encode(new byte[] { 0x00, 0x0B, 0x00, 0x1B },
+        MockBase.concatByteArrays(Bytes.fromLong(1L), Bytes.fromLong(1L),
+            ZERO)));
+  }
+
+  @Test
+  public void encodeBadMetaByte() throws Exception {
+    // the meta byte says we're mixed but we're not
+    assertNull(GorillaColumn.encode(new byte[] { 0x00, 0x07, 0x00, 0x17 },
+        MockBase.concatByteArrays(Bytes.fromLong(1L), Bytes.fromLong(1L),
+            MIXED)));
+  }
+
+  @Test
+  public void encodeNotSmaller() throws Exception {
+    // two single byte integers far apart don't gain anything
+    assertNull(GorillaColumn.encode(new byte[] { 0x00, 0x00, (byte) 0xE0, 0x00 },
+        new byte[] { 1, (byte) 0xFF, 0 }));
+  }
+
+  @Test
+  public void decodeKeyValue() throws Exception {
+    final byte[] qualifiers = { 0x00, 0x07, 0x00, 0x17, 0x00, 0x27 };
+    final byte[] values = MockBase.concatByteArrays(Bytes.fromLong(4L),
+        Bytes.fromLong(5L), Bytes.fromLong(6L), ZERO);
+    final KeyValue block = new KeyValue(KEY, FAMILY, GorillaColumn.QUALIFIER,
+        42, GorillaColumn.encode(qualifiers, values));
+    final KeyValue kv = GorillaColumn.decode(block);
+    assertArrayEquals(KEY, kv.key());
+    assertArrayEquals(FAMILY, kv.family());
+    assertArrayEquals(qualifiers, kv.qualifier());
+    assertArrayEquals(values, kv.value());
+    assertEquals(42, kv.timestamp());
+  }
+
+  @Test
+  public void extractDataPoints() throws Exception {
+    final byte[] qualifiers = { 0x00, 0x07, 0x00, 0x17, 0x00, 0x27 };
+    final byte[] values = MockBase.concatByteArrays(Bytes.fromLong(4L),
+        Bytes.fromLong(5L), Bytes.fromLong(6L), ZERO);
+    final ArrayList<Cell> cells = Internal.extractDataPoints(new KeyValue(KEY,
+        FAMILY, GorillaColumn.QUALIFIER, 1,
+        GorillaColumn.encode(qualifiers, values)));
+    assertEquals(3, cells.size());
+    assertArrayEquals(new byte[] { 0x00, 0x17 }, cells.get(1).qualifier());
+    assertEquals(6L, cells.get(2).parseValue().longValue());
+  }
+
+  @Test (expected = IllegalDataException.class)
+  public void decodeFutureVersion() throws Exception {
+    final byte[] encoded = encodeSample();
+    encoded[0] = GorillaColumn.VERSION + 1;
+    GorillaColumn.decode(encoded);
+  }
+
+  @Test (expected = IllegalDataException.class)
+  public void decodeTruncated() throws Exception {
+    final byte[] encoded = encodeSample();
+    GorillaColumn.decode(Arrays.copyOf(encoded, encoded.length - 2));
+  }
+
+  @Test (expected = IllegalDataException.class)
+  public void decodeMissingHeader() throws Exception {
+    GorillaColumn.decode(new byte[] { GorillaColumn.VERSION, 1 });
+  }
+
+  /** Encodes, checks the size and count and decodes again */
+  private static void assertRoundTrip(final byte[] qualifiers,
+      final byte[] values, final int count) {
+    final byte[] encoded = GorillaColumn.encode(qualifiers, values);
+    assertNotNull(encoded);
+    assertTrue(encoded.length < (qualifiers.length + values.length) / 2);
+    assertEquals(count, GorillaColumn.count(encoded));
+    final byte[][] decoded = GorillaColumn.decode(encoded);
+    assertArrayEquals(qualifiers, decoded[0]);
+    assertArrayEquals(values, decoded[1]);
+  }
+
+  /** @return A block with a handful of data points */
+  private static byte[] encodeSample() {
+    final byte[] qualifiers = new byte[20];
+    final byte[] values = new byte[10 * 8 + 1];
+    for (int i = 0; i < 10; i++) {
+      final short offset = (short) ((i * 60) << Const.FLAG_BITS | 0x7);
+      System.arraycopy(Bytes.fromShort(offset), 0, qualifiers, i * 2, 2);
+      System.arraycopy(Bytes.fromLong(i * 1000), 0, values, i * 8, 8);
+    }
+    return GorillaColumn.encode(qualifiers, values);
+  }
+}
@@ -0,0 +1,139 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.when;
+
+import org.hbase.async.Bytes;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import net.opentsdb.utils.DateTime;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ DateTime.class })
+public class TestLastPointCache {
+  private static final long BASE = 1356998400L;
+  private static final byte[] TSUID_A = new byte[] { 0, 0, 1, 0, 0, 1, 0, 0, 1 };
+  private static final byte[] TSUID_B = new byte[] { 0, 0, 1, 0, 0, 1, 0, 0, 2 };
+
+  private LastPointCache cache;
+
+  @Before
+  public void before() throws Exception {
+    PowerMockito.mockStatic(DateTime.class);
+    when(DateTime.currentTimeMillis()).thenReturn((BASE + 60) * 1000);
+    cache = new LastPointCache(1024, 0);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorZeroEntries() throws Exception {
+    new LastPointCache(0, 0);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorNegativeAge() throws Exception {
+    new LastPointCache(1024, -1);
+  }
+
+  @Test
+  public void integer() throws Exception {
+    cache.put(TSUID_A, BASE, new byte[] { 42 }, (short) 0);
+    final IncomingDataPoint dp = cache.get(TSUID_A.clone(), 0);
+    assertEquals(BASE * 1000, dp.getTimestamp());
+    assertEquals("42", dp.getValue());
+    assertEquals(1, cache.hits());
+    assertEquals(0, cache.misses());
+  }
+
+  @Test
+  public void floatingPoint() throws Exception {
+    cache.put(TSUID_A, BASE * 1000 + 250,
+        Bytes.fromLong(Double.doubleToRawLongBits(-2.5)),
+        (short) (Const.FLAG_FLOAT | 0x7));
+    final IncomingDataPoint dp = cache.get(TSUID_A, 0);
+    assertEquals(BASE * 1000 + 250, dp.getTimestamp());
+    assertEquals("-2.5", dp.getValue());
+  }
+
+  @Test
+  public void keepsNewest() throws Exception {
+    cache.put(TSUID_A, BASE + 10, new byte[] { 2 }, (short) 0);
+    cache.put(TSUID_A, BASE, new byte[] { 1 }, (short) 0);
+    assertEquals("2", cache.get(TSUID_A, 0).getValue());
+
+    cache.put(TSUID_A, (BASE + 11) * 1000, new byte[] { 3 }, (short) 0);
+    assertEquals("3", cache.get(TSUID_A, 0).getValue());
+    assertEquals(1, cache.size());
+  }
+
+  @Test
+  public void miss() throws Exception {
+    cache.put(TSUID_A, BASE, new byte[] { 1 }, (short) 0);
+    assertNull(cache.get(TSUID_B, 0));
+    assertEquals(0, cache.hits());
+    assertEquals(1, cache.misses());
+    assertEquals(0, cache.stale());
+  }
+
+  @Test
+  public void olderThanMinTimestamp() throws Exception {
+    cache.put(TSUID_A, BASE, new byte[] { 1 }, (short) 0);
+    assertNull(cache.get(TSUID_A, BASE * 1000 + 1));
+    assertEquals(1, cache.misses());
+    assertEquals(1, cache.stale());
+  }
+
+  @Test
+  public void maxAge() throws Exception {
+    cache = new LastPointCache(1024, 30000);
+    cache.put(TSUID_A, BASE, new byte[] { 1 }, (short) 0);
+    cache.put(TSUID_B, BASE + 30, new byte[] { 1 }, (short) 0);
+    assertNull(cache.get(TSUID_A, 0));
+    assertEquals("1", cache.get(TSUID_B, 0).getValue());
+    assertEquals(1, cache.stale());
+  }
+
+  @Test
+  public void bounded() throws Exception {
+    cache = new LastPointCache(1, 0);
+    cache.put(TSUID_A, BASE, new byte[] { 1 }, (short) 0);
+    cache.put(TSUID_B, BASE, new byte[] { 1 }, (short) 0);
+    assertEquals(1, cache.size());
+    assertNull(cache.get(TSUID_A, 0));
+  }
+
+  @Test
+  public void remove() throws Exception {
+    cache.put(TSUID_A, BASE, new byte[] { 1 }, (short) 0);
+    cache.put(TSUID_B, BASE, new byte[] { 1 }, (short) 0);
+    cache.remove(TSUID_A.clone());
+    assertEquals(1, cache.size());
+    assertNull(cache.get(TSUID_A, 0));
+    assertEquals("1", cache.get(TSUID_B, 0).getValue());
+  }
+
+  @Test
+  public void clear() throws Exception {
+    cache.put(TSUID_A, BASE, new byte[] { 1 }, (short) 0);
+    cache.clear();
+    assertEquals(0, cache.size());
+    assertNull(cache.get(TSUID_A, 0));
+  }
+}
@@ -0,0 +1,325 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeSet;
+
+import net.opentsdb.query.filter.TagVFilter;
+import net.opentsdb.utils.DateTime;
+
+import org.hbase.async.Scanner;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import com.google.common.collect.Lists;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ Scanner.class })
+public class TestQueryResultCache extends BaseTsdbTest {
+  private QueryResultCache cache;
+
+  @Before
+  public void beforeLocal() throws Exception {
+    cache = new QueryResultCache(tsdb, 600000, 0, 64 * 1024 * 1024);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorZeroBucket() throws Exception {
+    new QueryResultCache(tsdb, 0, 0, 1024);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorNegativeSettle() throws Exception {
+    new QueryResultCache(tsdb, 600000, -1, 1024);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorZeroBytes() throws Exception {
+    new QueryResultCache(tsdb, 600000, 0, 0);
+  }
+
+  @Test
+  public void isCacheable() throws Exception {
+    assertTrue(cache.isCacheable(
+        buildQuery("1356998400", "1357005600", "1m-sum-nan", "sum", true)));
+    assertTrue(cache.isCacheable(
+        buildQuery("1356998400", "1357005600", "5m-avg-null", "avg", false)));
+    // linear interpolation across missing intervals
+    assertFalse(cache.isCacheable(
+        buildQuery("1356998400", "1357005600", "1m-sum", "sum", true)));
+    assertFalse(cache.isCacheable(
+        buildQuery("1356998400", "1357005600", "1m-sum-zero", "sum", true)));
+    assertFalse(cache.isCacheable(
+        buildQuery("1356998400", "1357005600", null, "sum", true)));
+    assertFalse(cache.isCacheable(
+        buildQuery("1356998400", "1357005600", "0all-sum-nan", "sum", true)));
+    // doesn't divide the bucket
+    assertFalse(cache.isCacheable(
+        buildQuery("1356998400", "1357005600", "7m-sum-nan", "sum", true)));
+    assertFalse(cache.isCacheable(
+        buildQuery("1356998400", "1357005600", "1m-sum-nan", "dev", true)));
+
+    TSQuery query = buildQuery("1356998400", "1357005600", "1m-sum-nan",
+        "sum", true);
+    query.getQueries().get(0).setRate(true);
+    assertFalse(cache.isCacheable(query));
+
+    query = buildQuery("1356998400", "1357005600", "1m-sum-nan", "sum", true);
+    query.setDelete(true);
+    assertFalse(cache.isCacheable(query));
+
+    query = buildQuery("1356998400", "1357005600", "1m-sum-nan", "sum", true);
+    query.setGlobalAnnotations(true);
+    assertFalse(cache.isCacheable(query));
+  }
+
+  @Test
+  public void cacheKey() throws Exception {
+    final String key = QueryResultCache.cacheKey(
+        buildQuery("1356998400", "1357005600", "1m-sum-nan", "sum", true));
+    // time range doesn't matter
+    assertEquals(key, QueryResultCache.cacheKey(
+        buildQuery("1356998700", "1357009200", "1m-sum-nan", "sum", true)));
+    assertNotEquals(key, QueryResultCache.cacheKey(
+        buildQuery("1356998400", "1357005600", "1m-max-nan", "sum", true)));
+    assertNotEquals(key, QueryResultCache.cacheKey(
+        buildQuery("1356998400", "1357005600", "1m-sum-nan", "max", true)));
+    assertNotEquals(key, QueryResultCache.cacheKey(
+        buildQuery("1356998400", "1357005600", "1m-sum-nan", "sum", false)));
+
+    // filter order doesn't matter
+    final TSQuery query = buildQuery("1356998400", "1357005600", "1m-sum-nan",
+        "sum", false);
+    final TSQuery reversed = buildQuery("1356998400", "1357005600",
+        "1m-sum-nan", "sum", false);
+    final TagVFilter host = new TagVFilter.Builder().setTagk("host")
+        .setFilter("*").setType("wildcard").setGroupBy(true).build();
+    final TagVFilter owner = new TagVFilter.Builder().setTagk("owner")
+        .setFilter("*").setType("wildcard").build();
+    query.getQueries().get(0).setFilters(Lists.newArrayList(host, owner));
+    reversed.getQueries().get(0).setFilters(
+        Lists.newArrayList(owner.getCopy(), host.getCopy()));
+    assertEquals(QueryResultCache.cacheKey(query),
+        QueryResultCache.cacheKey(reversed));
+  }
+
+  @Test
+  public void copyQuery() throws Exception {
+    final TSQuery query = buildQuery("1356998400", "1357005600", "1m-sum-nan",
+        "sum", true);
+    final TSQuery copy = QueryResultCache.copyQuery(query, 1356999000000L,
+        1357000000000L);
+    assertEquals(1356999000000L, copy.startTime());
+    assertEquals(1357000000000L, copy.endTime());
+    assertEquals(QueryResultCache.cacheKey(query),
+        QueryResultCache.cacheKey(copy));
+    assertTrue(query.getQueries().get(0) != copy.getQueries().get(0));
+    assertTrue(query.getQueries().get(0).getFilters().get(0) !=
+        copy.getQueries().get(0).getFilters().get(0));
+  }
+
+  @Test
+  public void missThenHit() throws Exception {
+    storeLongTimeSeriesSeconds(true, false);
+    assertCachedMatchesStorage("1356998400", "1357005600", "1m-sum-nan",
+        "sum", true);
+    assertEquals(12, cache.size());
+    assertEquals(0, cache.hits());
+    assertEquals(12, cache.misses());
+    assertTrue(cache.bytes() > 0);
+
+    // same window
+    assertCachedMatchesStorage("1356998400", "1357005600", "1m-sum-nan",
+        "sum", true);
+    assertEquals(12, cache.hits());
+    assertEquals(12, cache.misses());
+    assertEquals(12, cache.size());
+  }
+
+  @Test
+  public void slidingWindow() throws Exception {
+    storeLongTimeSeriesSeconds(true, false);
+    assertCachedMatchesStorage("1356998400", "1357005600", "1m-sum-nan",
+        "sum", true);
+
+    // slide by a few minutes, unaligned on both ends
+    assertCachedMatchesStorage("1356998617", "1357005817", "1m-sum-nan",
+        "sum", true);
+    // 11 cached buckets are reused and the new one at the end is stored
+    assertEquals(11, cache.hits());
+    assertEquals(12, cache.misses());
+    assertEquals(12, cache.size());
+
+    assertCachedMatchesStorage("1356999037", "1357006237", "1m-sum-nan",
+        "sum", true);
+    assertEquals(21, cache.hits());
+    assertEquals(13, cache.size());
+  }
+
+  @Test
+  public void slidingWindowNoGroupBy() throws Exception {
+    storeLongTimeSeriesSeconds(true, false);
+    assertCachedMatchesStorage("1356998400", "1357005600", "5m-avg-null",
+        "avg", false);
+    assertCachedMatchesStorage("1356998617", "1357005817", "5m-avg-null",
+        "avg", false);
+    assertEquals(11, cache.hits());
+  }
+
+  @Test
+  public void seriesMissingFromBuckets() throws Exception {
+    setDataPointStorage();
+    final HashMap<String, String> tags_local =
+        new HashMap<String, String>(tags);
+    for (long ts = 1356998400; ts < 1357006200; ts += 60) {
+      tsdb.addPoint(METRIC_STRING, ts, ts % 100, tags_local)
+        .joinUninterruptibly();
+    }
+    // web02 stops reporting after half an hour
+    tags_local.put(TAGK_STRING, TAGV_B_STRING);
+    for (long ts = 1356998400; ts < 1357000200; ts += 60) {
+      tsdb.addPoint(METRIC_STRING, ts, 42, tags_local).joinUninterruptibly();
+    }
+
+    assertCachedMatchesStorage("1356998400", "1357003800", "1m-max-nan",
+        "max", true);
+    assertCachedMatchesStorage("1357000500", "1357005300", "1m-max-nan",
+        "max", true);
+    assertCachedMatchesStorage("1357000500", "1357005300", "1m-count-nan",
+        "count", true);
+    assertTrue(cache.hits() > 0);
+  }
+
+  @Test
+  public void unsettledBucketsNotCached() throws Exception {
+    storeLongTimeSeriesSeconds(true, false);
+    cache = new QueryResultCache(tsdb, 600000,
+        DateTime.currentTimeMillis() - 1357002000000L, 64 * 1024 * 1024);
+    assertCachedMatchesStorage("1356998400", "1357005600", "1m-sum-nan",
+        "sum", true);
+    // only the buckets ending before the settle cut off
+    assertTrue(cache.size() <= 6);
+  }
+
+  @Test
+  public void evictsToBudget() throws Exception {
+    storeLongTimeSeriesSeconds(true, false);
+    cache = new QueryResultCache(tsdb, 600000, 0, 8192);
+    assertCachedMatchesStorage("1356998400", "1357005600", "1m-sum-nan",
+        "sum", true);
+    assertTrue(cache.size() < 12);
+    assertTrue(cache.size() > 0);
+    assertTrue(cache.bytes() <= 8192);
+
+    // still correct with partial cache contents
+    assertCachedMatchesStorage("1356998617", "1357005817", "1m-sum-nan",
+        "sum", true);
+
+    cache.clear();
+    assertEquals(0, cache.size());
+    assertEquals(0, cache.bytes());
+  }
+
+  /**
+   * Runs a query through the cache and directly against storage and makes
+   * sure the results are identical.
+   */
+  private void assertCachedMatchesStorage(final String start,
+                                          final String end,
+                                          final String downsample,
+                                          final String aggregator,
+                                          final boolean group_by)
+                                              throws Exception {
+    final TSQuery cached_query = buildQuery(start, end, downsample,
+        aggregator, group_by);
+    assertTrue(cache.isCacheable(cached_query));
+    final ArrayList<DataPoints[]> cached =
+        cache.runAsync(cached_query).joinUninterruptibly();
+    final ArrayList<DataPoints[]> expected = runFromStorage(
+        buildQuery(start, end, downsample, aggregator, group_by));
+
+    assertEquals(expected.size(), cached.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertEquals(expected.get(i).length, cached.get(i).length);
+      for (int j = 0; j < expected.get(i).length; j++) {
+        final DataPoints e = expected.get(i)[j];
+        final DataPoints a = cached.get(i)[j];
+        assertEquals(e.metricName(), a.metricName());
+        assertEquals(e.getTags(), a.getTags());
+        assertEquals(new TreeSet<String>(e.getAggregatedTags()),
+            new TreeSet<String>(a.getAggregatedTags()));
+        assertEquals(new TreeSet<String>(e.getTSUIDs()),
+            new TreeSet<String>(a.getTSUIDs()));
+        assertEquals(e.getQueryIndex(), a.getQueryIndex());
+        final SeekableView e_it = e.iterator();
+        final SeekableView a_it = a.iterator();
+        while (e_it.hasNext()) {
+          assertTrue(a_it.hasNext());
+          final DataPoint e_dp = e_it.next();
+          final DataPoint a_dp = a_it.next();
+          assertEquals(e_dp.timestamp(), a_dp.timestamp());
+          assertEquals(e_dp.isInteger(), a_dp.isInteger());
+          if (e_dp.isInteger()) {
+            assertEquals(e_dp.longValue(), a_dp.longValue());
+          } else {
+            assertEquals(e_dp.doubleValue(), a_dp.doubleValue(), 0.0);
+          }
+        }
+        assertFalse(a_it.hasNext());
+      }
+    }
+  }
+
+  private ArrayList<DataPoints[]> runFromStorage(final TSQuery ts_query)
+      throws Exception {
+    final Query[] queries = ts_query.buildQueries(tsdb);
+    final ArrayList<DataPoints[]> results = new ArrayList<DataPoints[]>();
+    for (final Query query : queries) {
+      results.add(query.run());
+    }
+    return results;
+  }
+
+  private TSQuery buildQuery(final String start,
+                             final String end,
+                             final String downsample,
+                             final String aggregator,
+                             final boolean group_by) {
+    final TSQuery ts_query = new TSQuery();
+    ts_query.setStart(start);
+    ts_query.setEnd(end);
+    final TSSubQuery sub = new TSSubQuery();
+    sub.setMetric(METRIC_STRING);
+    sub.setAggregator(aggregator);
+    sub.setDownsample(downsample);
+    if (group_by) {
+      sub.setFilters(Lists.newArrayList(new TagVFilter.Builder()
+          .setTagk(TAGK_STRING).setFilter("*").setType("wildcard")
+          .setGroupBy(true).build()));
+    }
+    ts_query.setQueries(Lists.newArrayList(sub));
+    ts_query.validateAndSetQuery();
+    return ts_query;
+  }
+}
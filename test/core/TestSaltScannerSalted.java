@@ -12,14 +12,32 @@
 // see <http://www.gnu.org/licenses/>.
 package net.opentsdb.core;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
 import java.util.ArrayList;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import net.opentsdb.query.filter.TagVFilter;
+import net.opentsdb.stats.QueryStats;
+import net.opentsdb.stats.QueryStats.QueryStat;
 import net.opentsdb.uid.UniqueId;
 
+import org.hbase.async.KeyValue;
 import org.hbase.async.Scanner;
+import org.junit.After;
 import org.junit.Before;
+import org.junit.Test;
+
+import com.stumbleupon.async.Deferred;
 import org.junit.runner.RunWith;
 import org.powermock.api.mockito.PowerMockito;
 import org.powermock.core.classloader.annotations.PowerMockIgnore;
@@ -33,6 +51,7 @@ import org.powermock.modules.junit4.PowerMockRunner;
 @PrepareForTest({ TSDB.class, Scanner.class, SaltScanner.class, Span.class, 
   Const.class, UniqueId.class })
 public class TestSaltScannerSalted extends TestSaltScanner {
+  private ExecutorService pool;
   
   @Before
   public void beforeLocal() throws Exception {
@@ -50,4 +69,68 @@ public class TestSaltScannerSalted extends TestSaltScanner {
     setupMockScanners(true);
   }
 
+  @After
+  public void afterLocal() throws Exception {
+    if (pool != null) {
+      pool.shutdownNow();
+    }
+  }
+  
+  @Test
+  public void scanParallel() throws Exception {
+    setupMockScanners(false);
+    // bucket B only has series that aren't in bucket A
+    final ArrayList<ArrayList<KeyValue>> rows = 
+        new ArrayList<ArrayList<KeyValue>>(1);
+    final ArrayList<KeyValue> row = new ArrayList<KeyValue>(1);
+    final byte[] key = getRowKey(METRIC_STRING, 1359680400, TAGK_STRING, 
+        TAGV_B_STRING);
+    row.add(new KeyValue(key, FAMILY, QUALIFIER_A, 0, VALUE));
+    rows.add(row);
+    when(scanner_b.nextRows())
+      .thenReturn(Deferred.fromResult(rows))
+      .thenReturn(Deferred.<ArrayList<ArrayList<KeyValue>>>fromResult(null));
+    pool = Executors.newFixedThreadPool(2);
+    doReturn(pool).when(tsdb).getSaltMergeExecutor();
+    final QueryStats stats = mock(QueryStats.class);
+    
+    final SaltScanner scanner = new SaltScanner(tsdb, METRIC_BYTES, scanners, 
+        spans, filters, false, null, stats, 0, null, 0, 0);
+    assertTrue(spans == scanner.scan().joinUninterruptibly());
+    assertEquals(4, spans.size());
+    byte[] last = null;
+    for (final byte[] k : spans.keySet()) {
+      if (last != null) {
+        assertTrue(spans.comparator().compare(last, k) < 0);
+      }
+      last = k;
+    }
+    assertEquals(1, spans.get(KEY_A).size());
+    assertEquals(1, spans.get(KEY_B).size());
+    assertEquals(1, spans.get(KEY_C).size());
+    assertEquals(VALUE_LONG, spans.get(key).longValue(0));
+    verify(stats).addStat(eq(0), eq(QueryStat.SPAN_BUILD_TIME), anyLong());
+    verify(stats).addStat(eq(0), eq(QueryStat.SPAN_COMBINE_TIME), anyLong());
+    verify(stats).addStat(eq(0), eq(QueryStat.SCANNER_MERGE_TIME), anyLong());
+  }
+  
+  @Test
+  public void scanParallelOverlappingBuckets() throws Exception {
+    // the same rows show up in both buckets so we fall back to a serial merge
+    setupMockScanners(false);
+    pool = Executors.newFixedThreadPool(2);
+    doReturn(pool).when(tsdb).getSaltMergeExecutor();
+    final SaltScanner scanner = new SaltScanner(tsdb, METRIC_BYTES, scanners, 
+        spans, filters);
+    assertTrue(spans == scanner.scan().joinUninterruptibly());
+    assertEquals(3, spans.size());
+
+    Span span = spans.get(KEY_A);
+    assertEquals(2, span.size());
+    assertEquals(1356998400000L, span.timestamp(0));
+    assertEquals(1356998401000L, span.timestamp(1));
+    assertEquals(1, span.getAnnotations().size());
+    assertEquals(1, spans.get(KEY_B).size());
+    assertEquals(2, spans.get(KEY_C).size());
+  }
 }
@@ -26,6 +26,7 @@ import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.io.File;
 import java.util.HashMap;
 import java.util.Map.Entry;
 import java.util.TreeMap;
@@ -37,6 +38,10 @@ import org.powermock.reflect.Whitebox;
 
 import com.stumbleupon.async.Deferred;
 
+import net.opentsdb.rollup.RollupConfig;
+import net.opentsdb.rollup.RollupGenerator;
+import net.opentsdb.rollup.RollupInterval;
+import net.opentsdb.stats.StatsCollector;
 import net.opentsdb.uid.NoSuchUniqueName;
 
 public class TestTSDBAddPoint extends BaseTsdbTest {
@@ -562,6 +567,57 @@ public class TestTSDBAddPoint extends BaseTsdbTest {
         any(byte[].class), eq(tags), anyShort());
   }
 
+  @Test
+  public void addPointUpdatesLastPointCache() throws Exception {
+    Whitebox.setInternalState(tsdb, "last_point_cache",
+        new LastPointCache(1024, 0));
+    tsdb.addPoint(METRIC_STRING, 1356998400, 42, tags).joinUninterruptibly();
+    assertEquals(1, tsdb.getLastPointCache().size());
+  }
+
+  @Test
+  public void addPointFailedSkipsLastPointCache() throws Exception {
+    Whitebox.setInternalState(tsdb, "last_point_cache",
+        new LastPointCache(1024, 0));
+    storage.throwException(row, new UnitTestException("Boo!"));
+
+    final Deferred<Object> deferred =
+        tsdb.addPoint(METRIC_STRING, 1356998400, 42, tags);
+    try {
+      deferred.join();
+      fail("Expected an UnitTestException");
+    } catch (UnitTestException e) { };
+    assertEquals(0, tsdb.getLastPointCache().size());
+  }
+
+  @Test
+  public void addPointUpdatesRollupGenerator() throws Exception {
+    final RollupGenerator generator = setRollupGenerator();
+    tsdb.addPoint(METRIC_STRING, 1356998400, 42, tags).joinUninterruptibly();
+
+    final StatsCollector collector = mock(StatsCollector.class);
+    generator.collectStats(collector);
+    verify(collector).record("rollup.generator.points", 1L, null);
+  }
+
+  @Test
+  public void addPointFailedSkipsRollupGenerator() throws Exception {
+    final RollupGenerator generator = setRollupGenerator();
+    storage.throwException(row, new UnitTestException("Boo!"));
+
+    final Deferred<Object> deferred =
+        tsdb.addPoint(METRIC_STRING, 1356998400, 42, tags);
+    try {
+      deferred.join();
+      fail("Expected an UnitTestException");
+    } catch (UnitTestException e) { };
+
+    final StatsCollector collector = mock(StatsCollector.class);
+    generator.collectStats(collector);
+    verify(collector).record("rollup.generator.points", 0L, null);
+    verify(collector).record("rollup.generator.windows.open", 0L, null);
+  }
+
   @Test
   public void addPointWithOTSDBTimeStamp() throws Exception {
     long ts = 1356998400;
@@ -587,4 +643,29 @@ public class TestTSDBAddPoint extends BaseTsdbTest {
       assert((ts * 1000) != retrievedTs);
     }
   }
-}
\ No newline at end of file
+
+  /** @return A rollup generator with a 10m interval set on the TSDB */
+  private RollupGenerator setRollupGenerator() {
+    final RollupConfig rollup_config = RollupConfig.builder()
+        .addAggregationId("sum", 0)
+        .addAggregationId("count", 1)
+        .addInterval(RollupInterval.builder()
+            .setTable("tsdb")
+            .setPreAggregationTable("tsdb")
+            .setInterval("1m")
+            .setRowSpan("1h")
+            .setDefaultInterval(true))
+        .addInterval(RollupInterval.builder()
+            .setTable("tsdb-rollup-10m")
+            .setPreAggregationTable("tsdb-rollup-agg-10m")
+            .setInterval("10m")
+            .setRowSpan("1d"))
+        .build();
+    final RollupGenerator generator = new RollupGenerator(tsdb, rollup_config,
+        Long.MAX_VALUE / 2, 30000, 1000000,
+        // nothing is flushed so the checkpoint is never written
+        new File(System.getProperty("java.io.tmpdir"), "rollups.ckpt"));
+    Whitebox.setInternalState(tsdb, "rollup_generator", generator);
+    return generator;
+  }
+}
@@ -547,6 +547,22 @@ public final class TestTsdbQuery extends BaseTsdbTest {
     assertEquals(0, dps2.length);
   }
 
+  @Test
+  public void deleteDatapointsClearsLastPointCache() throws Exception {
+    setDataPointStorage();
+    Whitebox.setInternalState(tsdb, "last_point_cache",
+        new LastPointCache(1024, 0));
+
+    tsdb.addPoint(METRIC_STRING, 1356998400, 42, tags).joinUninterruptibly();
+    assertEquals(1, tsdb.getLastPointCache().size());
+    query.setStartTime(1356998400);
+    query.setTimeSeries(METRIC_STRING, tags, Aggregators.SUM, false);
+
+    query.setDelete(true);
+    assertEquals(1, query.run().length);
+    assertEquals(0, tsdb.getLastPointCache().size());
+  }
+
   @Test
   public void scannerException() throws Exception {
     storeLongTimeSeriesSeconds(true, false);
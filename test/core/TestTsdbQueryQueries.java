@@ -87,6 +87,34 @@ public class TestTsdbQueryQueries extends BaseTsdbTest {
     assertEquals(300, dps[0].aggregatedSize());
   }
 
+  @Test
+  public void runLongSingleTSColumnar() throws Exception {
+    storeLongTimeSeriesSeconds(true, false);
+    final ColumnarArena arena = new ColumnarArena(4096, 1048576);
+    final ColumnarArena.Region region = arena.newRegion();
+    Whitebox.setInternalState(query, "arena_region", region);
+
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries(METRIC_STRING, tags, Aggregators.SUM, false);
+
+    final DataPoints[] dps = query.run();
+    assertMeta(dps, 0, false);
+
+    int value = 1;
+    long timestamp = 1356998430000L;
+    for (DataPoint dp : dps[0]) {
+      assertEquals(value, dp.longValue());
+      assertEquals(timestamp, dp.timestamp());
+      value++;
+      timestamp += 30000;
+    }
+    assertEquals(300, dps[0].aggregatedSize());
+    assertTrue(region.allocatedBytes() >= 300 * 17);
+    region.release();
+    assertEquals(0, arena.slabsInUse());
+  }
+
   @Test
   public void runLongSingleTSMs() throws Exception {
     storeLongTimeSeriesMs();
@@ -27,14 +27,18 @@ import java.util.List;
 
 import net.opentsdb.rollup.RollupConfig;
 import net.opentsdb.rollup.RollupInterval;
+import net.opentsdb.rollup.RollupQuery;
 import net.opentsdb.storage.MockBase;
 import net.opentsdb.uid.UniqueId;
 import net.opentsdb.utils.Config;
+import net.opentsdb.utils.DateTime;
 
 import org.hbase.async.KeyValue;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.Matchers;
+import org.powermock.api.mockito.PowerMockito;
 import org.powermock.core.classloader.annotations.PowerMockIgnore;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
@@ -47,7 +51,7 @@ import org.powermock.reflect.Whitebox;
              "ch.qos.*", "org.slf4j.*",
              "com.sum.*", "org.xml.*"})
 @PrepareForTest({ RowSeq.class, TSDB.class, UniqueId.class, KeyValue.class, 
-Config.class, RowKey.class })
+Config.class, RowKey.class, DateTime.class })
 public class TestTsdbQueryRollup extends BaseTsdbTest {
   protected final static byte[] FAMILY = "t".getBytes(MockBase.ASCII());
   protected TsdbQuery query = null;
@@ -851,9 +855,96 @@ public class TestTsdbQueryRollup extends BaseTsdbTest {
     assertEquals(1, dps[0].size());
   }
   
+  @Test
+  public void planCoarsestInterval() throws Exception {
+    setQuery("1h", Aggregators.SUM, tags, Aggregators.SUM);
+    query.configureFromQuery(ts_query, 0);
+    
+    final RollupQuery rollup_query = 
+        Whitebox.getInternalState(query, "rollup_query");
+    assertEquals("1h", rollup_query.getRollupInterval().getInterval());
+    assertEquals(0L, (long) (Long) Whitebox.getInternalState(query, 
+        "raw_stitch_start"));
+  }
+  
+  // The 1h tier's rows span a day so none of them are complete, so the 10m
+  // tier is picked and the last 6 hours are read from the raw table
+  @Test
+  public void planStitchFinerInterval() throws Exception {
+    config.overrideConfig("tsd.rollups.stitch.enable", "true");
+    setQuery("1h", Aggregators.SUM, tags, Aggregators.SUM);
+    mockCurrentTime(1357041600000L);
+    query.configureFromQuery(ts_query, 0);
+    
+    final RollupQuery rollup_query = 
+        Whitebox.getInternalState(query, "rollup_query");
+    assertEquals("10m", rollup_query.getRollupInterval().getInterval());
+    assertEquals(1357020000L, (long) (Long) Whitebox.getInternalState(query, 
+        "raw_stitch_start"));
+  }
+  
+  @Test
+  public void planStitchRawOnly() throws Exception {
+    config.overrideConfig("tsd.rollups.stitch.enable", "true");
+    setQuery("10m", Aggregators.SUM, tags, Aggregators.SUM);
+    mockCurrentTime(1357000000000L);
+    query.configureFromQuery(ts_query, 0);
+    
+    assertNull(Whitebox.getInternalState(query, "rollup_query"));
+    assertEquals(0L, (long) (Long) Whitebox.getInternalState(query, 
+        "raw_stitch_start"));
+  }
+  
+  @Test
+  public void run10mSumLongSingleTSStitched() throws Exception {
+    config.overrideConfig("tsd.rollups.stitch.enable", "true");
+    final RollupInterval interval = rollup_config.getRollupInterval("10m");
+    final Aggregator aggr = Aggregators.SUM;
+    long start_timestamp = 1356998400L;
+    storeLongRollup(start_timestamp, 1357041599L, false, false, 
+        interval, aggr);
+    // raw data in the row that hasn't been rolled up yet
+    for (int i = 0; i < 6; i++) {
+      tsdb.addPoint(METRIC_STRING, 1357020000L + (i * 60), 1, tags)
+        .joinUninterruptibly();
+    }
+    
+    setQuery(interval.getInterval(), aggr, tags, aggr);
+    mockCurrentTime(1357041600000L);
+    query.configureFromQuery(ts_query, 0);
+    
+    final DataPoints[] dps = query.run();
+    assertEquals(1, dps.length);
+    assertEquals(TAGV_STRING, dps[0].getTags().get(TAGK_STRING));
+    
+    int i = 600;
+    long ts = start_timestamp * 1000;
+    int count = 0;
+    for (final DataPoint dp : dps[0]) {
+      assertEquals(ts, dp.timestamp());
+      if (ts < 1357020000000L) {
+        assertEquals(i, dp.doubleValue(), 0.0001);
+      } else {
+        // the rollups in this row are ignored
+        assertEquals(6, dp.doubleValue(), 0.0001);
+      }
+      ts += interval.getIntervalSeconds() * 1000;
+      i += interval.getIntervalSeconds();
+      count++;
+    }
+    assertEquals(37, count);
+  }
+  
   // ----------------- //
   // Helper functions. //
   // ----------------- //
+  
+  private void mockCurrentTime(final long ms) {
+    PowerMockito.mockStatic(DateTime.class);
+    PowerMockito.when(DateTime.currentTimeMillis()).thenReturn(ms);
+    PowerMockito.when(DateTime.parseDuration(Matchers.anyString()))
+      .thenCallRealMethod();
+  }
 
   private void storeLongRollup(final long start_timestamp,
         final long end_timestamp,
@@ -0,0 +1,357 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Matchers.anyShort;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.HBaseException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.powermock.reflect.Whitebox;
+
+import com.google.common.io.Files;
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.stats.StatsCollector;
+
+public class TestWriteAheadSpool extends BaseTsdbTest {
+  private byte[] row;
+  private File directory;
+  private WriteAheadSpool spool;
+
+  @Before
+  public void beforeLocal() throws Exception {
+    row = getRowKey(METRIC_STRING, 1356998400, TAGK_STRING, TAGV_STRING);
+    setDataPointStorage();
+    directory = Files.createTempDir();
+    config.overrideConfig("tsd.storage.spool.directory",
+        directory.getAbsolutePath());
+    config.overrideConfig("tsd.storage.spool.segment_size", "1024");
+    config.overrideConfig("tsd.storage.spool.max_segments", "4");
+    spool = new WriteAheadSpool(tsdb);
+    Whitebox.setInternalState(tsdb, "spool", spool);
+  }
+
+  @After
+  public void afterLocal() throws Exception {
+    final File[] files = directory.listFiles();
+    if (files != null) {
+      for (final File file : files) {
+        file.delete();
+      }
+    }
+    directory.delete();
+  }
+
+  @Test
+  public void ctor() throws Exception {
+    assertEquals(1, spool.segmentCount());
+    assertEquals(1, directory.listFiles().length);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorNoDirectory() throws Exception {
+    config.overrideConfig("tsd.storage.spool.directory", "");
+    new WriteAheadSpool(tsdb);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorSegmentTooSmall() throws Exception {
+    config.overrideConfig("tsd.storage.spool.segment_size", "16");
+    new WriteAheadSpool(tsdb);
+  }
+
+  @Test
+  public void addPointAckOnCommit() throws Exception {
+    final Deferred<Object> deferred =
+        tsdb.addPoint(METRIC_STRING, 1356998400, 42, tags);
+    assertEquals(1, spool.appended());
+    assertNull(storage.getColumn(row, new byte[] { 0, 0 }));
+    try {
+      deferred.join(1);
+      fail("Expected a TimeoutException");
+    } catch (com.stumbleupon.async.TimeoutException e) { }
+
+    spool.commit();
+    deferred.joinUninterruptibly();
+    assertNull(storage.getColumn(row, new byte[] { 0, 0 }));
+
+    assertEquals(1, spool.replay());
+    final byte[] value = storage.getColumn(row, new byte[] { 0, 0 });
+    assertNotNull(value);
+    assertEquals(42, value[0]);
+    assertEquals(1, spool.replayed());
+  }
+
+  @Test
+  public void addPointFloat() throws Exception {
+    tsdb.addPoint(METRIC_STRING, 1356998400, 42.5F, tags);
+    spool.commit();
+    spool.replay();
+    final byte[] value = storage.getColumn(row, new byte[] { 0, 11 });
+    assertNotNull(value);
+    assertEquals(42.5F, Float.intBitsToFloat(Bytes.getInt(value)), 0.0001);
+  }
+
+  @Test
+  public void addPointMilliseconds() throws Exception {
+    tsdb.addPoint(METRIC_STRING, 1356998400500L, 42, tags);
+    spool.commit();
+    spool.replay();
+    final byte[] value = storage.getColumn(row,
+        new byte[] { (byte) 0xF0, 0, 0x7D, 0 });
+    assertNotNull(value);
+    assertEquals(42, value[0]);
+  }
+
+  @Test
+  public void addHistogramPoint() throws Exception {
+    final byte[] raw = new byte[] { 0, 1, 2, 3, 4, 5 };
+    final byte[] histo_row = getRowKey(HISTOGRAM_METRIC_STRING, 1356998400,
+        TAGK_STRING, TAGV_STRING);
+    tsdb.addHistogramPoint(HISTOGRAM_METRIC_STRING, 1356998400, raw, tags);
+    spool.commit();
+    spool.replay();
+    assertArrayEquals(raw, storage.getColumn(histo_row,
+        Internal.getQualifier(1356998400, HistogramDataPoint.PREFIX)));
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void addPointValidatedBeforeSpooling() throws Exception {
+    tsdb.addPoint(METRIC_STRING, -1, 42, tags);
+  }
+
+  @Test
+  public void rollAndDeleteSegments() throws Exception {
+    for (int i = 0; i < 40; i++) {
+      tsdb.addPoint(METRIC_STRING, 1356998400 + i, i, tags);
+    }
+    assertTrue(spool.segmentCount() > 1);
+    spool.commit();
+    assertEquals(40, spool.replay());
+    assertEquals(40, spool.replayed());
+    assertEquals(1, spool.segmentCount());
+    assertEquals(1, directory.listFiles().length);
+    for (int i = 0; i < 40; i++) {
+      final byte[] qualifier = Internal.buildQualifier(1356998400 + i, (short) 0);
+      assertEquals(i, storage.getColumn(row, qualifier)[0]);
+    }
+  }
+
+  @Test
+  public void spoolFull() throws Exception {
+    Deferred<Object> deferred = null;
+    for (int i = 0; i < 200; i++) {
+      deferred = tsdb.addPoint(METRIC_STRING, 1356998400 + i, i, tags);
+    }
+    assertEquals(4, spool.segmentCount());
+    try {
+      deferred.joinUninterruptibly();
+      fail("Expected an IllegalStateException");
+    } catch (IllegalStateException e) { }
+  }
+
+  @Test
+  public void backpressure() throws Exception {
+    config.overrideConfig("tsd.storage.spool.max_inflight", "2");
+    spool = new WriteAheadSpool(tsdb);
+    Whitebox.setInternalState(tsdb, "spool", spool);
+    final Deferred<Object> stalled = new Deferred<Object>();
+    doAnswer(new Answer<Deferred<Object>>() {
+      @Override
+      public Deferred<Object> answer(final InvocationOnMock invocation)
+          throws Throwable {
+        return stalled;
+      }
+    }).when(tsdb).storeSpooled(anyString(), anyLong(), any(byte[].class),
+        anyMapOf(String.class, String.class), anyShort(), anyBoolean());
+    for (int i = 0; i < 5; i++) {
+      tsdb.addPoint(METRIC_STRING, 1356998400 + i, i, tags);
+    }
+    spool.commit();
+    assertEquals(2, spool.replay());
+    assertEquals(0, spool.replay());
+    stalled.callback(null);
+    assertEquals(2, spool.replayed());
+    assertEquals(3, spool.replay());
+    assertEquals(5, spool.replayed());
+  }
+
+  @Test
+  public void retryOnHBaseException() throws Exception {
+    storage.throwException(row, mock(HBaseException.class));
+    tsdb.addPoint(METRIC_STRING, 1356998400, 42, tags);
+    spool.commit();
+    assertEquals(1, spool.replay());
+    assertEquals(0, spool.replayed());
+    assertEquals(1, spool.retryQueueSize());
+
+    storage.clearExceptions();
+    Thread.sleep(150);
+    assertEquals(1, spool.replay());
+    assertEquals(1, spool.replayed());
+    assertEquals(0, spool.retryQueueSize());
+    assertEquals(42, storage.getColumn(row, new byte[] { 0, 0 })[0]);
+  }
+
+  @Test
+  public void retriesHoldInflightPermits() throws Exception {
+    config.overrideConfig("tsd.storage.spool.max_inflight", "2");
+    spool = new WriteAheadSpool(tsdb);
+    Whitebox.setInternalState(tsdb, "spool", spool);
+    storage.throwException(row, mock(HBaseException.class));
+    for (int i = 0; i < 5; i++) {
+      tsdb.addPoint(METRIC_STRING, 1356998400 + i, i, tags);
+    }
+    spool.commit();
+    assertEquals(2, spool.replay());
+    assertEquals(2, spool.retryQueueSize());
+
+    // nothing more is read from the segments while the retries wait
+    assertEquals(0, spool.replay());
+    Thread.sleep(150);
+    assertEquals(2, spool.replay());
+    assertEquals(2, spool.retryQueueSize());
+    assertEquals(0, spool.replayed());
+
+    storage.clearExceptions();
+    Thread.sleep(250);
+    assertEquals(5, spool.replay());
+    assertEquals(5, spool.replayed());
+    assertEquals(0, spool.retryQueueSize());
+  }
+
+  @Test
+  public void dropOnOtherException() throws Exception {
+    storage.throwException(row, new IllegalArgumentException("Boo!"));
+    tsdb.addPoint(METRIC_STRING, 1356998400, 42, tags);
+    spool.commit();
+    assertEquals(1, spool.replay());
+    assertEquals(0, spool.replayed());
+    assertEquals(0, spool.retryQueueSize());
+
+    final StatsCollector collector = mock(StatsCollector.class);
+    spool.collectStats(collector);
+    verify(collector).record("spool.dropped", 1L);
+    verify(collector).record("spool.lag.records", 0L);
+  }
+
+  @Test
+  public void recover() throws Exception {
+    for (int i = 0; i < 20; i++) {
+      tsdb.addPoint(METRIC_STRING, 1356998400 + i, i, tags);
+    }
+    spool.commit();
+    final int segments = spool.segmentCount();
+
+    // simulate a restart before anything was replayed
+    spool = new WriteAheadSpool(tsdb);
+    assertEquals(segments + 1, spool.segmentCount());
+    spool.replay();
+    spool.replay();
+    assertEquals(20, spool.replayed());
+    assertEquals(1, spool.segmentCount());
+    for (int i = 0; i < 20; i++) {
+      final byte[] qualifier = Internal.buildQualifier(1356998400 + i, (short) 0);
+      assertEquals(i, storage.getColumn(row, qualifier)[0]);
+    }
+  }
+
+  @Test
+  public void recoverTruncatedAtCorruption() throws Exception {
+    for (int i = 0; i < 3; i++) {
+      tsdb.addPoint(METRIC_STRING, 1356998400 + i, i, tags);
+    }
+    spool.commit();
+    final File file = directory.listFiles()[0];
+    final int record_size = WriteAheadSpool.encode(0,
+        WriteAheadSpool.TYPE_POINT, 1356998400, (short) 0, new byte[1],
+        METRIC_STRING, tags).length;
+    // flip a byte in the payload of the third record
+    final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    raf.seek(WriteAheadSpool.HEADER_SIZE + (record_size * 2) +
+        WriteAheadSpool.RECORD_HEADER_SIZE + 2);
+    raf.write(0x42);
+    raf.close();
+
+    spool = new WriteAheadSpool(tsdb);
+    spool.replay();
+    assertEquals(2, spool.replayed());
+    assertFalse(file.exists());
+  }
+
+  @Test
+  public void recoverInvalidHeader() throws Exception {
+    final File file = new File(directory, "spool-00000000000000ff.seg");
+    Files.write(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 }, file);
+    spool = new WriteAheadSpool(tsdb);
+    assertTrue(file.exists());
+    assertEquals(1, spool.segmentCount());
+    assertTrue(new File(directory, "spool-0000000000000100.seg").exists());
+  }
+
+  @Test
+  public void startedByInitializePlugins() throws Exception {
+    // nothing is replayed before the plugins are loaded
+    assertNull(Whitebox.getInternalState(spool, "replayer"));
+    tsdb.initializePlugins(true);
+    final Thread replayer = Whitebox.getInternalState(spool, "replayer");
+    assertNotNull(replayer);
+    spool.start();
+    assertTrue(replayer == Whitebox.getInternalState(spool, "replayer"));
+    spool.shutdown();
+  }
+
+  @Test
+  public void collectStats() throws Exception {
+    for (int i = 0; i < 3; i++) {
+      tsdb.addPoint(METRIC_STRING, 1356998400 + i, i, tags);
+    }
+    spool.commit();
+    final StatsCollector collector = mock(StatsCollector.class);
+    spool.collectStats(collector);
+    verify(collector).record("spool.appended", 3L);
+    verify(collector).record("spool.replayed", 0L);
+    verify(collector).record("spool.lag.records", 3L);
+    verify(collector).record("spool.commits", 1L);
+    verify(collector).record("spool.segments", 1L);
+
+    spool.replay();
+    spool.collectStats(collector);
+    verify(collector).record("spool.replayed", 3L);
+    verify(collector, times(2)).record("spool.lag.ms", 0L);
+  }
+}
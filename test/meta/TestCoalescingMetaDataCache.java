@@ -0,0 +1,184 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.meta;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mock;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hbase.async.AtomicIncrementRequest;
+import org.hbase.async.HBaseClient;
+import org.hbase.async.PutRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.core.TSDB;
+import net.opentsdb.utils.Config;
+
+@RunWith(PowerMockRunner.class)
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+                  "ch.qos.*", "org.slf4j.*",
+                  "com.sum.*", "org.xml.*"})
+@PrepareForTest({ TSDB.class, HBaseClient.class })
+public final class TestCoalescingMetaDataCache {
+  private static final byte[] META_TABLE = "tsdb-meta".getBytes();
+  private static final byte[] TSUID_A = { 0, 0, 1, 0, 0, 1, 0, 0, 1 };
+  private static final byte[] TSUID_B = { 0, 0, 1, 0, 0, 1, 0, 0, 2 };
+
+  private TSDB tsdb;
+  private HBaseClient client;
+  private Config config;
+  private CoalescingMetaDataCache cache;
+  /** Increments sent to the client */
+  private List<AtomicIncrementRequest> increments;
+
+  @Before
+  public void before() throws Exception {
+    tsdb = mock(TSDB.class);
+    client = mock(HBaseClient.class);
+    config = new Config(false);
+    config.overrideConfig("tsd.core.meta.enable_tsuid_tracking", "true");
+    config.overrideConfig("tsd.core.meta.enable_tsuid_incrementing", "true");
+    config.overrideConfig("tsd.core.meta.enable_realtime_ts", "true");
+    when(tsdb.getConfig()).thenReturn(config);
+    when(tsdb.getClient()).thenReturn(client);
+    when(tsdb.metaTable()).thenReturn(META_TABLE);
+
+    increments = new ArrayList<AtomicIncrementRequest>();
+    when(client.atomicIncrement(any(AtomicIncrementRequest.class)))
+      .thenAnswer(new Answer<Deferred<Long>>() {
+        @Override
+        public Deferred<Long> answer(final InvocationOnMock invocation) {
+          final AtomicIncrementRequest request =
+              (AtomicIncrementRequest) invocation.getArguments()[0];
+          increments.add(request);
+          // counters already exist so no TSMeta is created
+          return Deferred.fromResult(request.getAmount() + 42);
+        }
+      });
+    when(client.put(any(PutRequest.class)))
+      .thenReturn(Deferred.<Object>fromResult(null));
+    cache = new CoalescingMetaDataCache();
+  }
+
+  @After
+  public void after() throws Exception {
+    cache.shutdown();
+  }
+
+  @Test
+  public void increment() throws Exception {
+    cache.initialize(tsdb);
+    cache.increment(TSUID_A);
+    cache.increment(TSUID_A);
+    cache.increment(TSUID_B);
+    cache.increment(TSUID_A);
+    assertEquals(0, increments.size());
+
+    cache.flush();
+    assertEquals(2, increments.size());
+    for (final AtomicIncrementRequest request : increments) {
+      assertArrayEquals(META_TABLE, request.table());
+      assertEquals(request.key()[8] == 1 ? 3 : 1, request.getAmount());
+    }
+
+    // counters start over after a flush
+    cache.increment(TSUID_B);
+    cache.flush();
+    assertEquals(3, increments.size());
+    assertArrayEquals(TSUID_B, increments.get(2).key());
+    assertEquals(1, increments.get(2).getAmount());
+  }
+
+  @Test
+  public void incrementEarlyFlush() throws Exception {
+    config.overrideConfig("tsd.core.meta.cache.stripes", "1");
+    config.overrideConfig("tsd.core.meta.cache.stripe_size", "16");
+    cache.initialize(tsdb);
+    // 12 slots out of 16 before the stripe is full
+    for (int i = 0; i < 13; i++) {
+      cache.increment(new byte[] { 0, 0, 1, 0, 0, 1, 0, 0, (byte) i });
+    }
+    assertEquals(12, increments.size());
+    cache.flush();
+    assertEquals(13, increments.size());
+    assertEquals(12, increments.get(12).key()[8]);
+  }
+
+  @Test
+  public void incrementTooLong() throws Exception {
+    cache.initialize(tsdb);
+    final byte[] tsuid = new byte[1024];
+    cache.increment(tsuid);
+    assertEquals(1, increments.size());
+    assertEquals(1, increments.get(0).getAmount());
+  }
+
+  @Test
+  public void incrementTrackingDisabled() throws Exception {
+    config.overrideConfig("tsd.core.meta.enable_tsuid_tracking", "false");
+    cache.initialize(tsdb);
+    cache.increment(TSUID_A);
+    cache.flush();
+    assertEquals(0, increments.size());
+  }
+
+  @Test
+  public void trackFirstSight() throws Exception {
+    config.overrideConfig("tsd.core.meta.enable_tsuid_incrementing", "false");
+    config.overrideConfig("tsd.core.meta.enable_realtime_ts", "false");
+    cache.initialize(tsdb);
+    cache.increment(TSUID_A);
+    cache.increment(TSUID_A);
+    cache.increment(TSUID_B);
+    verify(client, times(2)).put(any(PutRequest.class));
+    verify(client, never()).atomicIncrement(any(AtomicIncrementRequest.class));
+  }
+
+  @Test
+  public void shutdownFlushes() throws Exception {
+    cache.initialize(tsdb);
+    cache.increment(TSUID_A);
+    cache.shutdown().join();
+    assertEquals(1, increments.size());
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void initializeBadStripes() throws Exception {
+    config.overrideConfig("tsd.core.meta.cache.stripes", "3");
+    cache.initialize(tsdb);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void initializeBadStripeSize() throws Exception {
+    config.overrideConfig("tsd.core.meta.cache.stripe_size", "8");
+    cache.initialize(tsdb);
+  }
+}
@@ -25,6 +25,7 @@ import java.util.List;
 
 import net.opentsdb.core.BaseTsdbTest;
 import net.opentsdb.core.IncomingDataPoint;
+import net.opentsdb.core.LastPointCache;
 import net.opentsdb.core.TSDB;
 import net.opentsdb.storage.MockBase;
 import net.opentsdb.uid.NoSuchUniqueId;
@@ -409,6 +410,44 @@ public final class TestTSUIDQuery extends BaseTsdbTest {
     assertEquals(UniqueId.uidToString(TSUID), dp.getTSUID());
   }
   
+  @Test
+  public void getLastPointMetricFromCache() throws Exception {
+    Whitebox.setInternalState(config, "enable_tsuid_incrementing", false);
+    Whitebox.setInternalState(config, "enable_realtime_ts", false);
+    Whitebox.setInternalState(tsdb, "last_point_cache",
+        new LastPointCache(1024, 0));
+    tsdb.addPoint(METRIC_STRING, 1356998400L, 42, tags);
+    tsdb.addPoint(METRIC_STRING, 1356998401L, 24.5F, tags);
+    // only the cache has the points now
+    storage.flushStorage();
+    
+    PowerMockito.mockStatic(DateTime.class);
+    PowerMockito.when(DateTime.currentTimeMillis()).thenReturn(1357002000000L);
+    query = new TSUIDQuery(tsdb, METRIC_STRING, tags);
+    final IncomingDataPoint dp = query.getLastPoint(true, 1).join();
+    assertEquals(1356998401000L, dp.getTimestamp());
+    assertEquals(METRIC_STRING, dp.getMetric());
+    assertEquals(tags, dp.getTags());
+    assertEquals("24.5", dp.getValue());
+    assertEquals(UniqueId.uidToString(TSUID), dp.getTSUID());
+  }
+  
+  @Test
+  public void getLastPointMetricFromCacheOutOfRange() throws Exception {
+    Whitebox.setInternalState(config, "enable_tsuid_incrementing", false);
+    Whitebox.setInternalState(config, "enable_realtime_ts", false);
+    Whitebox.setInternalState(tsdb, "last_point_cache",
+        new LastPointCache(1024, 0));
+    storage.flushStorage();
+    tsdb.addPoint(METRIC_STRING, 1356998400L, 42, tags);
+    
+    // the cached point is older than the back scan so storage is read
+    PowerMockito.mockStatic(DateTime.class);
+    PowerMockito.when(DateTime.currentTimeMillis()).thenReturn(1357010600000L);
+    query = new TSUIDQuery(tsdb, METRIC_STRING, tags);
+    assertNull(query.getLastPoint(false, 1).join());
+  }
+  
   @Test
   public void getLastPointMetricOneBackscanOutOfRange() throws Exception {
     Whitebox.setInternalState(config, "enable_tsuid_incrementing", false);
@@ -0,0 +1,163 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.query.expression;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertNotSame;
+
+import org.junit.Test;
+
+public class TestCompiledExpression {
+
+  @Test
+  public void compile() throws Exception {
+    final CompiledExpression exp = CompiledExpression.compile("(a + b) * b");
+    assertNotNull(exp);
+    assertArrayEquals(new String[] { "a", "b" }, exp.variables());
+    assertEquals("(a + b) * b", exp.toString());
+
+    assertNotNull(CompiledExpression.compile("a > b && !(c == 0) ? a : -b"));
+    assertNotNull(CompiledExpression.compile("a / 0"));
+    assertNotNull(CompiledExpression.compile("a % 2.5"));
+  }
+
+  @Test
+  public void compileUnsupported() throws Exception {
+    assertNull(CompiledExpression.compile(null));
+    assertNull(CompiledExpression.compile(""));
+    assertNull(CompiledExpression.compile(" a / "));
+    assertNull(CompiledExpression.compile("math:abs(a)"));
+    assertNull(CompiledExpression.compile("a.b + 1"));
+    assertNull(CompiledExpression.compile("a[0]"));
+    assertNull(CompiledExpression.compile("a = 1"));
+    assertNull(CompiledExpression.compile("a & b"));
+    assertNull(CompiledExpression.compile("a lt b or a ge 1.5d"));
+    assertNull(CompiledExpression.compile("a + 010"));
+    assertNull(CompiledExpression.compile("a + 0x10"));
+    assertNull(CompiledExpression.compile("a * 1e3"));
+    assertNull(CompiledExpression.compile("(a > b) + 1"));
+    assertNull(CompiledExpression.compile("a > b ? 1 : a"));
+    // integer results make the iterator throw, leave that to JEXL
+    assertNull(CompiledExpression.compile("1 + 1"));
+  }
+
+  @Test
+  public void arithmetic() throws Exception {
+    assertEquals(15, eval("(a + b) * b", 2, 3), 0.0001);
+    assertEquals(-1, eval("a - b", 2, 3), 0.0001);
+    assertEquals(3, eval("a + 1", 2), 0.0001);
+    assertEquals(0.5, eval("a % b", 2.5, 1), 0.0001);
+    assertEquals(-2, eval("-a", 2), 0.0001);
+  }
+
+  @Test
+  public void divideByZero() throws Exception {
+    assertEquals(0, eval("a / 0", 42), 0.0);
+    assertEquals(0, eval("a / b", 42, 0), 0.0);
+    assertEquals(0, eval("a % b", 42, 0), 0.0);
+  }
+
+  @Test
+  public void floatLiterals() throws Exception {
+    // undecorated decimals are floats in JEXL
+    assertEquals((double) 0.1f, eval("a + 0.1", 0), 0.0);
+    assertEquals(0.1d, eval("a + 0.1d", 0), 0.0);
+  }
+
+  @Test
+  public void comparisons() throws Exception {
+    assertEquals(1, eval("a < b", 1, 2), 0.0);
+    assertEquals(0, eval("a > b", 1, 2), 0.0);
+    assertEquals(1, eval("a <= b", 2, 2), 0.0);
+    assertEquals(1, eval("a != b", 1, 2), 0.0);
+    // JEXL compares Doubles with equals()
+    assertEquals(1, eval("a == b", Double.NaN, Double.NaN), 0.0);
+    assertEquals(1, eval("a <= b", Double.NaN, Double.NaN), 0.0);
+    assertEquals(0, eval("a == b", 0.0, -0.0), 0.0);
+    assertEquals(1, eval("a == 0", -0.0), 0.0);
+  }
+
+  @Test
+  public void logic() throws Exception {
+    assertEquals(1, eval("a > 0 && b > 0", 1, 1), 0.0);
+    assertEquals(0, eval("a > 0 && b > 0", 1, -1), 0.0);
+    assertEquals(1, eval("a > 0 || b > 0", -1, 1), 0.0);
+    assertEquals(0, eval("!(a > 0)", 1), 0.0);
+    assertEquals(0, eval("a && b", 1, Double.NaN), 0.0);
+  }
+
+  @Test
+  public void ternary() throws Exception {
+    assertEquals(2, eval("a > b ? a : b", 1, 2), 0.0);
+    assertEquals(5, eval("a > b ? a : b", 5, 2), 0.0);
+    assertEquals(3, eval("a ? a : b", Double.NaN, 3), 0.0);
+  }
+
+  @Test
+  public void columns() throws Exception {
+    final CompiledExpression exp = CompiledExpression.compile(
+        "a > 0 ? a / b * 100 : -b + 0.1");
+    final double[][] columns = new double[][] {
+        { 1, 2, 3, Double.NaN, -1 },
+        { 4, 0, 6, 1, 2 } };
+    final double[] results = new double[5];
+    exp.evaluate(columns, 5, results);
+
+    for (int i = 0; i < results.length; i++) {
+      assertEquals(exp.evaluate(new double[] { columns[0][i], columns[1][i] }),
+          results[i], 0.0);
+    }
+    assertEquals(25, results[0], 0.0001);
+    assertEquals(0, results[1], 0.0001);
+    assertEquals(50, results[2], 0.0001);
+    assertEquals(-2 + (double) 0.1f, results[4], 0.0001);
+  }
+
+  @Test
+  public void columnsCountLessThanLength() throws Exception {
+    final CompiledExpression exp = CompiledExpression.compile("a * 2");
+    final double[] results = new double[] { -1, -1, -1 };
+    exp.evaluate(new double[][] { { 1, 2, 3 } }, 2, results);
+    assertArrayEquals(new double[] { 2, 4, -1 }, results, 0.0);
+  }
+
+  @Test
+  public void copy() throws Exception {
+    final CompiledExpression exp = CompiledExpression.compile("a * 2 + b");
+    final CompiledExpression copy = exp.copy();
+    assertNotSame(exp, copy);
+    assertArrayEquals(exp.variables(), copy.variables());
+
+    final double[] results = new double[2];
+    final double[] copy_results = new double[2];
+    exp.evaluate(new double[][] { { 1, 2 }, { 1, 1 } }, 2, results);
+    copy.evaluate(new double[][] { { 3, 4 }, { 0, 0 } }, 2, copy_results);
+    assertArrayEquals(new double[] { 3, 5 }, results, 0.0);
+    assertArrayEquals(new double[] { 6, 8 }, copy_results, 0.0);
+  }
+
+  /**
+   * Compiles and evaluates an expression for a single row.
+   * @param expression The expression to compile
+   * @param values The value of each variable in order of appearance
+   * @return The result
+   */
+  private static double eval(final String expression, final double... values) {
+    final CompiledExpression exp = CompiledExpression.compile(expression);
+    assertNotNull(expression, exp);
+    return exp.evaluate(values);
+  }
+}
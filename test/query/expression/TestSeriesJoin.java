@@ -0,0 +1,101 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.query.expression;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class TestSeriesJoin {
+  private static final byte[] KEY_A = new byte[] { 0, 0, 1, 0, 0, 1 };
+  private static final byte[] KEY_B = new byte[] { 0, 0, 1, 0, 0, 2 };
+  private static final byte[] KEY_C = new byte[] { 0, 0, 1, 0, 0, 3 };
+
+  @Test
+  public void addAndProbe() throws Exception {
+    final SeriesJoin join = new SeriesJoin(2, 2);
+    final ExpressionDataPoint a0 = new ExpressionDataPoint();
+    final ExpressionDataPoint a1 = new ExpressionDataPoint();
+    final ExpressionDataPoint b0 = new ExpressionDataPoint();
+    join.add(KEY_B, 0, 0, a0);
+    join.add(KEY_A, 0, 1, a1);
+    assertEquals(2, join.size());
+
+    // a copy of the key must match
+    final SeriesJoin.Row row = join.probe(KEY_A.clone(), 1, 0, b0);
+    assertSame(a1, row.dps[0]);
+    assertSame(b0, row.dps[1]);
+    assertArrayEquals(new int[] { 1, 0 }, row.indices);
+    assertNull(join.probe(KEY_C, 1, 1, new ExpressionDataPoint()));
+    assertEquals(2, join.size());
+  }
+
+  @Test
+  public void retainComplete() throws Exception {
+    final SeriesJoin join = new SeriesJoin(3, 3);
+    join.add(KEY_A, 0, 0, new ExpressionDataPoint());
+    join.add(KEY_B, 0, 1, new ExpressionDataPoint());
+    join.add(KEY_C, 0, 2, new ExpressionDataPoint());
+    join.probe(KEY_A, 1, 0, new ExpressionDataPoint());
+    join.probe(KEY_B, 1, 1, new ExpressionDataPoint());
+    join.probe(KEY_B, 2, 0, new ExpressionDataPoint());
+
+    final List<SeriesJoin.Row> removed = join.retainComplete();
+    assertEquals(2, removed.size());
+    assertEquals(1, join.size());
+    assertArrayEquals(new int[] { 1, 1, 0 }, join.sortedRows().get(0).indices);
+  }
+
+  @Test
+  public void duplicateKeyReplaces() throws Exception {
+    final SeriesJoin join = new SeriesJoin(2, 2);
+    join.add(KEY_A, 0, 0, new ExpressionDataPoint());
+    final ExpressionDataPoint dupe = new ExpressionDataPoint();
+    join.add(KEY_A, 0, 1, dupe);
+    assertEquals(1, join.size());
+
+    // a second series from the same set doesn't complete the row
+    assertEquals(1, join.retainComplete().size());
+    assertEquals(0, join.size());
+  }
+
+  @Test
+  public void sortedRows() throws Exception {
+    final SeriesJoin join = new SeriesJoin(1, 3);
+    join.add(KEY_C, 0, 0, new ExpressionDataPoint());
+    join.add(new byte[0], 0, 1, new ExpressionDataPoint());
+    join.add(KEY_A, 0, 2, new ExpressionDataPoint());
+    join.add(KEY_B, 0, 3, new ExpressionDataPoint());
+
+    final List<SeriesJoin.Row> rows = join.sortedRows();
+    assertEquals(4, rows.size());
+    assertEquals(1, rows.get(0).indices[0]);
+    assertEquals(2, rows.get(1).indices[0]);
+    assertEquals(3, rows.get(2).indices[0]);
+    assertEquals(0, rows.get(3).indices[0]);
+  }
+
+  @Test
+  public void fingerprint() throws Exception {
+    assertEquals(0xcbf29ce484222325L, SeriesJoin.fingerprint(new byte[0]));
+    assertEquals(SeriesJoin.fingerprint(KEY_A),
+        SeriesJoin.fingerprint(KEY_A.clone()));
+    assertNotEquals(SeriesJoin.fingerprint(KEY_A), SeriesJoin.fingerprint(KEY_B));
+  }
+}
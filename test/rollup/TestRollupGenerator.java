@@ -0,0 +1,375 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.rollup;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyDouble;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.hbase.async.Bytes;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import com.google.common.io.Files;
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.core.Const;
+import net.opentsdb.core.TSDB;
+import net.opentsdb.utils.Config;
+import net.opentsdb.utils.DateTime;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ TSDB.class, DateTime.class })
+public class TestRollupGenerator {
+  private static final long BASE = 1356998400L;
+  private static final long WINDOW_END = (BASE + 600) * 1000;
+  private static final long WATERMARK = 300000;
+  private static final byte[] TSUID = new byte[] { 0, 0, 1, 0, 0, 1, 0, 0, 1 };
+
+  private TSDB tsdb;
+  private RollupConfig config;
+  private Map<String, String> tags;
+  private File directory;
+
+  @Before
+  public void before() throws Exception {
+    tsdb = PowerMockito.mock(TSDB.class);
+    when(tsdb.addAggregatePoint(anyString(), anyLong(), anyLong(),
+        anyMapOf(String.class, String.class), anyBoolean(), anyString(),
+        anyString(), (String) isNull()))
+      .thenReturn(Deferred.fromResult(null));
+    when(tsdb.addAggregatePoint(anyString(), anyLong(), anyDouble(),
+        anyMapOf(String.class, String.class), anyBoolean(), anyString(),
+        anyString(), (String) isNull()))
+      .thenReturn(Deferred.fromResult(null));
+
+    PowerMockito.mockStatic(DateTime.class);
+    when(DateTime.currentTimeMillis()).thenReturn(BASE * 1000);
+    // the rollup intervals parse their durations
+    when(DateTime.parseDuration(anyString())).thenCallRealMethod();
+
+    config = buildConfig("sum", "count", "min", "max");
+    tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    directory = Files.createTempDir();
+  }
+
+  @After
+  public void after() throws Exception {
+    final File[] files = directory.listFiles();
+    if (files != null) {
+      for (final File file : files) {
+        file.delete();
+      }
+    }
+    directory.delete();
+  }
+
+  @Test
+  public void integers() throws Exception {
+    final RollupGenerator generator = newGenerator(1000000);
+    generator.add(TSUID, "sys.cpu.user", tags, BASE, new byte[] { 1 }, (short) 0);
+    generator.add(TSUID, "sys.cpu.user", tags, BASE + 60, new byte[] { 5 },
+        (short) 0);
+    generator.add(TSUID, "sys.cpu.user", tags, (BASE + 120) * 1000,
+        new byte[] { 3 }, (short) 0);
+    assertEquals(1, generator.openWindows());
+
+    // still within the watermark
+    generator.flush(WINDOW_END + WATERMARK - 1).join();
+    assertEquals(1, generator.openWindows());
+    verify(tsdb, never()).addAggregatePoint(anyString(), anyLong(), anyLong(),
+        anyMapOf(String.class, String.class), anyBoolean(), anyString(),
+        anyString(), (String) isNull());
+
+    generator.flush(WINDOW_END + WATERMARK).join();
+    assertEquals(0, generator.openWindows());
+    verifyLong("sum", 9);
+    verifyLong("count", 3);
+    verifyLong("min", 1);
+    verifyLong("max", 5);
+  }
+
+  @Test
+  public void floatsWidenIntegers() throws Exception {
+    final RollupGenerator generator = newGenerator(1000000);
+    generator.add(TSUID, "sys.cpu.user", tags, BASE, new byte[] { 4 }, (short) 0);
+    generator.add(TSUID, "sys.cpu.user", tags, BASE + 60,
+        Bytes.fromLong(Double.doubleToRawLongBits(-2.5)),
+        (short) (Const.FLAG_FLOAT | 0x7));
+    generator.add(TSUID, "sys.cpu.user", tags, BASE + 120, new byte[] { 1 },
+        (short) 0);
+
+    generator.flush(WINDOW_END + WATERMARK).join();
+    verifyDouble("sum", 2.5);
+    verifyLong("count", 3);
+    verifyDouble("min", -2.5);
+    verifyDouble("max", 4);
+  }
+
+  @Test
+  public void separateWindows() throws Exception {
+    final RollupGenerator generator = newGenerator(1000000);
+    generator.add(TSUID, "sys.cpu.user", tags, BASE, new byte[] { 1 }, (short) 0);
+    generator.add(TSUID, "sys.cpu.user", tags, BASE + 600, new byte[] { 2 },
+        (short) 0);
+    assertEquals(2, generator.openWindows());
+
+    generator.flush(WINDOW_END + WATERMARK).join();
+    assertEquals(1, generator.openWindows());
+    verifyLong("sum", 1);
+    verify(tsdb, never()).addAggregatePoint(eq("sys.cpu.user"), eq(BASE + 600),
+        anyLong(), anyMapOf(String.class, String.class), eq(false), eq("10m"),
+        anyString(), (String) isNull());
+  }
+
+  @Test
+  public void lateData() throws Exception {
+    final RollupGenerator generator = newGenerator(1000000);
+    when(DateTime.currentTimeMillis()).thenReturn(WINDOW_END + WATERMARK);
+    generator.add(TSUID, "sys.cpu.user", tags, BASE, new byte[] { 1 }, (short) 0);
+    assertEquals(1, generator.lateDataPoints());
+    assertEquals(0, generator.openWindows());
+
+    // late but within the watermark
+    when(DateTime.currentTimeMillis()).thenReturn(WINDOW_END + WATERMARK - 1);
+    generator.add(TSUID, "sys.cpu.user", tags, BASE, new byte[] { 1 }, (short) 0);
+    assertEquals(1, generator.lateDataPoints());
+    assertEquals(1, generator.openWindows());
+  }
+
+  @Test
+  public void maxWindows() throws Exception {
+    // one window per shard
+    final RollupGenerator generator = newGenerator(16);
+    generator.add(TSUID, "sys.cpu.user", tags, BASE, new byte[] { 1 }, (short) 0);
+    generator.add(TSUID, "sys.cpu.user", tags, BASE + 600, new byte[] { 1 },
+        (short) 0);
+    assertEquals(1, generator.droppedDataPoints());
+    assertEquals(1, generator.openWindows());
+
+    // existing windows still accumulate
+    generator.add(TSUID, "sys.cpu.user", tags, BASE + 1, new byte[] { 1 },
+        (short) 0);
+    assertEquals(1, generator.droppedDataPoints());
+
+    // and the slot is reused once flushed
+    generator.flush(WINDOW_END + WATERMARK).join();
+    generator.add(TSUID, "sys.cpu.user", tags, BASE + 600, new byte[] { 1 },
+        (short) 0);
+    assertEquals(1, generator.droppedDataPoints());
+    assertEquals(1, generator.openWindows());
+  }
+
+  @Test
+  public void shutdownSavesOpenWindows() throws Exception {
+    final RollupGenerator generator = newGenerator(1000000);
+    generator.add(TSUID, "sys.cpu.user", tags, BASE, new byte[] { 7 }, (short) 0);
+    generator.add(TSUID, "sys.cpu.user", tags, BASE + 600, new byte[] { 3 },
+        (short) 0);
+
+    // the first window closed, the second is saved instead of written
+    when(DateTime.currentTimeMillis()).thenReturn(WINDOW_END + WATERMARK);
+    generator.flush().join();
+    assertEquals(0, generator.openWindows());
+    assertTrue(generator.checkpoint().exists());
+    verifyLong("sum", 7);
+    verify(tsdb, never()).addAggregatePoint(eq("sys.cpu.user"), eq(BASE + 600),
+        anyLong(), anyMapOf(String.class, String.class), anyBoolean(),
+        anyString(), anyString(), (String) isNull());
+  }
+
+  @Test
+  public void restartMergesPartialWindow() throws Exception {
+    RollupGenerator generator = newGenerator(1000000);
+    generator.add(TSUID, "sys.cpu.user", tags, BASE, new byte[] { 1 }, (short) 0);
+    generator.add(TSUID, "sys.cpu.user", tags, BASE + 60, new byte[] { 5 },
+        (short) 0);
+    generator.flush().join();
+    verify(tsdb, never()).addAggregatePoint(anyString(), anyLong(), anyLong(),
+        anyMapOf(String.class, String.class), anyBoolean(), anyString(),
+        anyString(), (String) isNull());
+
+    // restart partway through the window
+    generator = newGenerator(1000000);
+    assertEquals(1, generator.load());
+    assertFalse(generator.checkpoint().exists());
+    assertEquals(1, generator.openWindows());
+    generator.add(TSUID, "sys.cpu.user", tags, BASE + 120, new byte[] { 3 },
+        (short) 0);
+    generator.add(TSUID, "sys.cpu.user", tags, BASE + 180,
+        Bytes.fromLong(Double.doubleToRawLongBits(-0.5)),
+        (short) (Const.FLAG_FLOAT | 0x7));
+
+    generator.flush(WINDOW_END + WATERMARK).join();
+    assertEquals(0, generator.openWindows());
+    verifyDouble("sum", 8.5);
+    verifyLong("count", 4);
+    verifyDouble("min", -0.5);
+    verifyDouble("max", 5);
+  }
+
+  @Test
+  public void restoreMergesIntoOpenWindow() throws Exception {
+    RollupGenerator generator = newGenerator(1000000);
+    generator.add(TSUID, "sys.cpu.user", tags, BASE,
+        Bytes.fromLong(Double.doubleToRawLongBits(1.5)),
+        (short) (Const.FLAG_FLOAT | 0x7));
+    generator.flush().join();
+
+    generator = newGenerator(1000000);
+    generator.add(TSUID, "sys.cpu.user", tags, BASE + 60, new byte[] { 4 },
+        (short) 0);
+    assertEquals(1, generator.load());
+    assertEquals(1, generator.openWindows());
+
+    generator.flush(WINDOW_END + WATERMARK).join();
+    verifyDouble("sum", 5.5);
+    verifyLong("count", 2);
+    verifyDouble("min", 1.5);
+    verifyDouble("max", 4);
+  }
+
+  @Test
+  public void loadNoCheckpoint() throws Exception {
+    final RollupGenerator generator = newGenerator(1000000);
+    assertEquals(0, generator.load());
+    assertEquals(0, generator.openWindows());
+  }
+
+  @Test
+  public void loadCorrupted() throws Exception {
+    RollupGenerator generator = newGenerator(1000000);
+    generator.add(TSUID, "sys.cpu.user", tags, BASE, new byte[] { 1 }, (short) 0);
+    generator.flush().join();
+
+    final RandomAccessFile raf =
+        new RandomAccessFile(generator.checkpoint(), "rw");
+    try {
+      // flip the last byte before the checksum
+      final long offset = raf.length() - 9;
+      raf.seek(offset);
+      final int value = raf.read();
+      raf.seek(offset);
+      raf.write(value ^ 0xFF);
+    } finally {
+      raf.close();
+    }
+
+    generator = newGenerator(1000000);
+    assertEquals(0, generator.load());
+    assertEquals(0, generator.openWindows());
+    assertFalse(generator.checkpoint().exists());
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void fromConfigNoCheckpoint() throws Exception {
+    when(tsdb.getConfig()).thenReturn(new Config(false));
+    when(tsdb.getRollupConfig()).thenReturn(config);
+    RollupGenerator.fromConfig(tsdb);
+  }
+
+  @Test
+  public void onlyConfiguredAggregators() throws Exception {
+    config = buildConfig("sum", "max");
+    final RollupGenerator generator = newGenerator(1000000);
+    generator.add(TSUID, "sys.cpu.user", tags, BASE, new byte[] { 7 }, (short) 0);
+    generator.flush(WINDOW_END + WATERMARK).join();
+    verifyLong("sum", 7);
+    verifyLong("max", 7);
+    verify(tsdb, never()).addAggregatePoint(anyString(), anyLong(), anyLong(),
+        anyMapOf(String.class, String.class), anyBoolean(), anyString(),
+        eq("count"), (String) isNull());
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void noAggregators() throws Exception {
+    config = buildConfig("avg");
+    newGenerator(1000000);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void noRollupIntervals() throws Exception {
+    config = RollupConfig.builder()
+        .addAggregationId("sum", 0)
+        .addInterval(RollupInterval.builder()
+            .setTable("tsdb")
+            .setPreAggregationTable("tsdb")
+            .setInterval("1m")
+            .setRowSpan("1h")
+            .setDefaultInterval(true))
+        .build();
+    newGenerator(1000000);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void negativeWatermark() throws Exception {
+    new RollupGenerator(tsdb, config, -1, 30000, 1000000,
+        new File(directory, "rollups.ckpt"));
+  }
+
+  private RollupGenerator newGenerator(final int max_windows) {
+    return new RollupGenerator(tsdb, config, WATERMARK, 30000, max_windows,
+        new File(directory, "rollups.ckpt"));
+  }
+
+  private void verifyLong(final String agg, final long value) {
+    verify(tsdb, times(1)).addAggregatePoint(eq("sys.cpu.user"), eq(BASE),
+        eq(value), eq(tags), eq(false), eq("10m"), eq(agg), (String) isNull());
+  }
+
+  private void verifyDouble(final String agg, final double value) {
+    verify(tsdb, times(1)).addAggregatePoint(eq("sys.cpu.user"), eq(BASE),
+        eq(value), eq(tags), eq(false), eq("10m"), eq(agg), (String) isNull());
+  }
+
+  private static RollupConfig buildConfig(final String... aggregators) {
+    final RollupConfig.Builder builder = RollupConfig.builder()
+        .addInterval(RollupInterval.builder()
+            .setTable("tsdb")
+            .setPreAggregationTable("tsdb")
+            .setInterval("1m")
+            .setRowSpan("1h")
+            .setDefaultInterval(true))
+        .addInterval(RollupInterval.builder()
+            .setTable("tsdb-rollup-10m")
+            .setPreAggregationTable("tsdb-rollup-agg-10m")
+            .setInterval("10m")
+            .setRowSpan("1d"));
+    for (int i = 0; i < aggregators.length; i++) {
+      builder.addAggregationId(aggregators[i], i);
+    }
+    return builder.build();
+  }
+}
@@ -0,0 +1,156 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.search;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mock;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hbase.async.Bytes.ByteMap;
+import org.hbase.async.HBaseClient;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import net.opentsdb.core.TSDB;
+import net.opentsdb.storage.MockBase;
+import net.opentsdb.utils.Config;
+
+@RunWith(PowerMockRunner.class)
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+                  "ch.qos.*", "org.slf4j.*",
+                  "com.sum.*", "org.xml.*"})
+@PrepareForTest({ TSDB.class, HBaseClient.class, Config.class })
+public final class TestTagIndex {
+  private static final byte[] TABLE = "tsdb-tagidx".getBytes();
+  private static final byte[] METRIC = { 0, 0, 1 };
+  private static final byte[] HOST = { 0, 0, 1 };
+  private static final byte[] DC = { 0, 0, 2 };
+  private static final byte[] WEB01 = { 0, 0, 1 };
+  private static final byte[] WEB02 = { 0, 0, 2 };
+  private static final byte[] LGA = { 0, 0, 3 };
+  private static final byte[] PHX = { 0, 0, 4 };
+
+  private TSDB tsdb;
+  private HBaseClient client;
+  private Config config;
+  private MockBase storage;
+  private TagIndex index;
+
+  @Before
+  public void before() throws Exception {
+    tsdb = mock(TSDB.class);
+    client = mock(HBaseClient.class);
+    config = new Config(false);
+    when(tsdb.getClient()).thenReturn(client);
+    when(tsdb.getConfig()).thenReturn(config);
+    storage = new MockBase(tsdb, client, true, true, true, true);
+    final List<byte[]> families = new ArrayList<byte[]>(1);
+    families.add(TagIndex.FAMILY);
+    storage.addTable(TABLE, families);
+    index = new TagIndex(tsdb);
+  }
+
+  @Test
+  public void index() throws Exception {
+    index.index(tsuid(HOST, WEB01, DC, LGA));
+    assertEquals(2, storage.numRows(TABLE));
+    assertNotNull(storage.getColumn(TABLE,
+        MockBase.concatByteArrays(METRIC, HOST, WEB01), TagIndex.FAMILY,
+        MockBase.concatByteArrays(HOST, WEB01, DC, LGA)));
+    assertNotNull(storage.getColumn(TABLE,
+        MockBase.concatByteArrays(METRIC, DC, LGA), TagIndex.FAMILY,
+        MockBase.concatByteArrays(HOST, WEB01, DC, LGA)));
+
+    // seen already so nothing is written
+    storage.flushStorage(TABLE);
+    index.index(tsuid(HOST, WEB01, DC, LGA));
+    assertEquals(0, storage.numRows(TABLE));
+  }
+
+  @Test
+  public void lookup() throws Exception {
+    index.index(tsuid(HOST, WEB01, DC, LGA));
+    index.index(tsuid(HOST, WEB02, DC, LGA));
+    index.index(tsuid(HOST, WEB01, DC, PHX));
+
+    ByteMap<byte[][]> tags = new ByteMap<byte[][]>();
+    tags.put(HOST, new byte[][] { WEB01 });
+    List<byte[]> tsuids = index.lookup(METRIC, tags).join();
+    assertEquals(2, tsuids.size());
+    assertArrayEquals(tsuid(HOST, WEB01, DC, LGA), tsuids.get(0));
+    assertArrayEquals(tsuid(HOST, WEB01, DC, PHX), tsuids.get(1));
+
+    // values of a tag key are OR'd, tag keys are AND'd
+    tags.put(HOST, new byte[][] { WEB01, WEB02 });
+    tags.put(DC, new byte[][] { LGA });
+    tsuids = index.lookup(METRIC, tags).join();
+    assertEquals(2, tsuids.size());
+    assertArrayEquals(tsuid(HOST, WEB01, DC, LGA), tsuids.get(0));
+    assertArrayEquals(tsuid(HOST, WEB02, DC, LGA), tsuids.get(1));
+  }
+
+  @Test
+  public void lookupNoMatch() throws Exception {
+    index.index(tsuid(HOST, WEB01, DC, LGA));
+    final ByteMap<byte[][]> tags = new ByteMap<byte[][]>();
+    tags.put(HOST, new byte[][] { WEB01 });
+    tags.put(DC, new byte[][] { PHX });
+    assertTrue(index.lookup(METRIC, tags).join().isEmpty());
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void lookupMissingValues() throws Exception {
+    final ByteMap<byte[][]> tags = new ByteMap<byte[][]>();
+    tags.put(HOST, null);
+    index.lookup(METRIC, tags);
+  }
+
+  @Test
+  public void toTagMaps() throws Exception {
+    final List<byte[]> tsuids = new ArrayList<byte[]>(2);
+    tsuids.add(MockBase.concatByteArrays(METRIC, HOST, WEB01));
+    tsuids.add(tsuid(HOST, WEB02, DC, LGA));
+
+    List<ByteMap<byte[][]>> series = TagIndex.toTagMaps(tsuids, 0);
+    assertEquals(2, series.size());
+    assertArrayEquals(WEB01, series.get(0).get(HOST)[0]);
+    assertArrayEquals(LGA, series.get(1).get(DC)[0]);
+    assertArrayEquals(WEB02, series.get(1).get(HOST)[0]);
+
+    // explicit tags
+    series = TagIndex.toTagMaps(tsuids, 1);
+    assertEquals(1, series.size());
+    assertEquals(1, series.get(0).size());
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorBadCacheSize() throws Exception {
+    config.overrideConfig("tsd.core.tag_index.cache_size", "0");
+    new TagIndex(tsdb);
+  }
+
+  private static byte[] tsuid(final byte[] tagk1, final byte[] tagv1,
+                              final byte[] tagk2, final byte[] tagv2) {
+    return MockBase.concatByteArrays(METRIC, tagk1, tagv1, tagk2, tagv2);
+  }
+}
@@ -21,6 +21,7 @@ import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.when;
 import static org.powermock.api.mockito.PowerMockito.mock;
 
+import java.io.File;
 import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -36,6 +37,7 @@ import net.opentsdb.uid.NoSuchUniqueId;
 import net.opentsdb.uid.NoSuchUniqueName;
 import net.opentsdb.uid.UniqueId;
 import net.opentsdb.utils.Config;
+import net.opentsdb.utils.Pair;
 import net.opentsdb.utils.Threads;
 
 import org.hbase.async.Bytes;
@@ -198,6 +200,55 @@ public class TestFsck {
     assertEquals(0, fsck.totalErrors());
   }
 
+  @Test
+  public void checkpointResume() throws Exception {
+    final File file = File.createTempFile("fsck", ".checkpoint");
+    file.delete();
+    try {
+      when(options.checkpoint()).thenReturn(file.getPath());
+      storage.addColumn(ROW, new byte[] { 0x00, 0x07 }, Bytes.fromLong(4L));
+      storage.addColumn(ROW, new byte[] { 0x00, 0x27 }, Bytes.fromLong(5L));
+      Fsck fsck = new Fsck(tsdb, options);
+      fsck.runFullTable();
+      assertEquals(1, fsck.rows_processed.get());
+
+      // the whole table was completed so there's nothing left to do
+      fsck = new Fsck(tsdb, options);
+      fsck.runFullTable();
+      assertEquals(0, fsck.rows_processed.get());
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void mergeSplits() throws Exception {
+    final byte[] a = { 0, 0, 1 };
+    final byte[] b = { 0, 0, 2 };
+    final byte[] c = { 0, 0, 3 };
+    final byte[] empty = HBaseClient.EMPTY_ARRAY;
+    final List<Pair<byte[], byte[]>> regions =
+        new ArrayList<Pair<byte[], byte[]>>();
+    regions.add(new Pair<byte[], byte[]>(empty, b));
+    regions.add(new Pair<byte[], byte[]>(b, empty));
+    final List<Pair<byte[], byte[]>> splits =
+        new ArrayList<Pair<byte[], byte[]>>();
+    splits.add(new Pair<byte[], byte[]>(empty, a));
+    splits.add(new Pair<byte[], byte[]>(a, c));
+    splits.add(new Pair<byte[], byte[]>(c, empty));
+
+    final List<Pair<byte[], byte[]>> merged = Fsck.mergeSplits(regions, splits);
+    assertEquals(4, merged.size());
+    assertArrayEquals(empty, merged.get(0).getKey());
+    assertArrayEquals(a, merged.get(0).getValue());
+    assertArrayEquals(a, merged.get(1).getKey());
+    assertArrayEquals(b, merged.get(1).getValue());
+    assertArrayEquals(b, merged.get(2).getKey());
+    assertArrayEquals(c, merged.get(2).getValue());
+    assertArrayEquals(c, merged.get(3).getKey());
+    assertArrayEquals(empty, merged.get(3).getValue());
+  }
+
   @Test
   public void noErrorsMultipleRows() throws Exception {
     final byte[] qual1 = { 0x00, 0x07 };
@@ -0,0 +1,110 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tools;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.opentsdb.utils.Pair;
+
+import org.hbase.async.HBaseClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class TestFsckCheckpoint {
+  private static final byte[] EMPTY = HBaseClient.EMPTY_ARRAY;
+  private static final byte[] A = { 0, 0, 1 };
+  private static final byte[] B = { 0, 0, 2 };
+  private static final byte[] C = { 0, 0, 3 };
+
+  private File file;
+
+  @Before
+  public void before() throws Exception {
+    file = File.createTempFile("fsck", ".checkpoint");
+    file.delete();
+  }
+
+  @After
+  public void after() throws Exception {
+    file.delete();
+  }
+
+  @Test
+  public void resume() throws Exception {
+    FsckCheckpoint checkpoint = new FsckCheckpoint(file.getPath());
+    assertEquals(0, checkpoint.completedRanges());
+    checkpoint.complete(range(EMPTY, A));
+    checkpoint.complete(range(B, EMPTY));
+    checkpoint.close();
+
+    checkpoint = new FsckCheckpoint(file.getPath());
+    assertEquals(2, checkpoint.completedRanges());
+    final List<Pair<byte[], byte[]>> ranges =
+        new ArrayList<Pair<byte[], byte[]>>();
+    ranges.add(range(EMPTY, A));
+    ranges.add(range(A, B));
+    // split after the previous run
+    ranges.add(range(B, C));
+    ranges.add(range(C, EMPTY));
+    final List<Pair<byte[], byte[]>> remaining = checkpoint.remaining(ranges);
+    assertEquals(1, remaining.size());
+    assertSame(ranges.get(1), remaining.get(0));
+    checkpoint.close();
+  }
+
+  @Test
+  public void malformedLine() throws Exception {
+    final FileOutputStream out = new FileOutputStream(file);
+    out.write("- 000001\n000002 0".getBytes());
+    out.close();
+    final FsckCheckpoint checkpoint = new FsckCheckpoint(file.getPath());
+    assertEquals(1, checkpoint.completedRanges());
+    checkpoint.close();
+  }
+
+  @Test
+  public void contains() throws Exception {
+    assertTrue(FsckCheckpoint.contains(range(EMPTY, EMPTY), range(A, B)));
+    assertTrue(FsckCheckpoint.contains(range(A, C), range(A, B)));
+    assertTrue(FsckCheckpoint.contains(range(A, EMPTY), range(B, EMPTY)));
+    assertFalse(FsckCheckpoint.contains(range(B, C), range(A, C)));
+    assertFalse(FsckCheckpoint.contains(range(A, B), range(A, C)));
+    assertFalse(FsckCheckpoint.contains(range(A, B), range(A, EMPTY)));
+  }
+
+  @Test
+  public void parse() throws Exception {
+    final Pair<byte[], byte[]> range = FsckCheckpoint.parse("- 0A0B");
+    assertArrayEquals(EMPTY, range.getKey());
+    assertArrayEquals(new byte[] { 10, 11 }, range.getValue());
+    assertNull(FsckCheckpoint.parse("0A0B"));
+    assertNull(FsckCheckpoint.parse("- 0A0"));
+    assertNull(FsckCheckpoint.parse("- ZZ"));
+  }
+
+  private static Pair<byte[], byte[]> range(final byte[] start,
+      final byte[] stop) {
+    return new Pair<byte[], byte[]>(start, stop);
+  }
+}
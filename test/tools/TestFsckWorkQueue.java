@@ -0,0 +1,99 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public final class TestFsckWorkQueue {
+
+  @Test
+  public void roundRobin() throws Exception {
+    final FsckWorkQueue<Integer> queue =
+        new FsckWorkQueue<Integer>(Arrays.asList(0, 1, 2, 3, 4, 5), 3);
+    assertEquals(6, queue.remaining());
+    assertEquals(0, (int) queue.next(0));
+    assertEquals(1, (int) queue.next(1));
+    assertEquals(2, (int) queue.next(2));
+    assertEquals(3, (int) queue.next(0));
+    assertEquals(0, queue.steals());
+    assertEquals(2, queue.remaining());
+  }
+
+  @Test
+  public void steal() throws Exception {
+    final FsckWorkQueue<Integer> queue =
+        new FsckWorkQueue<Integer>(Arrays.asList(0, 1, 2, 3, 4), 2);
+    // worker 0 has 0, 2, 4 and worker 1 has 1, 3
+    assertEquals(1, (int) queue.next(1));
+    assertEquals(3, (int) queue.next(1));
+    // steals from the tail of worker 0
+    assertEquals(4, (int) queue.next(1));
+    assertEquals(1, queue.steals());
+    assertEquals(0, (int) queue.next(0));
+    assertEquals(2, (int) queue.next(0));
+    assertNull(queue.next(0));
+    assertNull(queue.next(1));
+    assertEquals(0, queue.remaining());
+  }
+
+  @Test
+  public void moreWorkersThanWork() throws Exception {
+    final FsckWorkQueue<Integer> queue =
+        new FsckWorkQueue<Integer>(Arrays.asList(7), 4);
+    assertEquals(7, (int) queue.next(3));
+    assertNull(queue.next(0));
+  }
+
+  @Test
+  public void concurrent() throws Exception {
+    final List<Integer> work = new ArrayList<Integer>();
+    for (int i = 0; i < 10000; i++) {
+      work.add(i);
+    }
+    final FsckWorkQueue<Integer> queue = new FsckWorkQueue<Integer>(work, 4);
+    final List<Integer> done =
+        Collections.synchronizedList(new ArrayList<Integer>());
+    final Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i++) {
+      final int worker = i;
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          Integer chunk;
+          while ((chunk = queue.next(worker)) != null) {
+            done.add(chunk);
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (final Thread thread : threads) {
+      thread.join();
+    }
+    Collections.sort(done);
+    assertEquals(work, done);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void noWorkers() throws Exception {
+    new FsckWorkQueue<Integer>(Arrays.asList(1), 0);
+  }
+}
@@ -0,0 +1,204 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.opentsdb.core.IncomingDataPoint;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Test;
+
+public final class TestBinaryPutFormat {
+
+  @Test
+  public void roundTrip() throws Exception {
+    final Map<String, String> web01 = tags("host", "web01");
+    final Map<String, String> web02 = tags("host", "web02");
+    final BinaryPutFormat.Encoder encoder = new BinaryPutFormat.Encoder();
+    encoder.startSeries("sys.cpu.user", web01);
+    for (int i = 0; i < 21; i++) {
+      if (i % 3 == 0) {
+        encoder.addPoint(1356998400 + i, 1.5 * i);
+      } else {
+        encoder.addPoint(1356998400 + i, (long) i);
+      }
+    }
+    encoder.startSeries("sys.cpu.user", web02);
+    encoder.addPoint(1356998400000L, Long.MIN_VALUE);
+    encoder.addPoint(1356998400001L, Double.NaN);
+
+    final BinaryPutFormat.Batch batch =
+        BinaryPutFormat.decode(encoder.finish());
+    assertEquals(2, batch.seriesCount());
+    assertEquals(23, batch.size());
+    assertEquals("sys.cpu.user", batch.metric(0));
+    assertEquals(web01, batch.tags(0));
+    assertEquals(21, batch.pointCount(0));
+    for (int i = 0; i < 21; i++) {
+      assertEquals(1356998400 + i, batch.timestamp(0, i));
+      if (i % 3 == 0) {
+        assertFalse(batch.isInteger(0, i));
+        assertEquals(1.5 * i, batch.doubleValue(0, i), 0.0);
+      } else {
+        assertTrue(batch.isInteger(0, i));
+        assertEquals(i, batch.longValue(0, i));
+      }
+    }
+    assertEquals(web02, batch.tags(1));
+    assertEquals(2, batch.pointCount(1));
+    assertEquals(1356998400000L, batch.timestamp(1, 0));
+    assertEquals(Long.MIN_VALUE, batch.longValue(1, 0));
+    assertTrue(Double.isNaN(batch.doubleValue(1, 1)));
+  }
+
+  @Test
+  public void emptySeries() throws Exception {
+    final BinaryPutFormat.Encoder encoder = new BinaryPutFormat.Encoder();
+    encoder.startSeries("sys.cpu.user", tags("host", "web01"));
+    encoder.startSeries("sys.cpu.nice", tags("host", "web01"));
+    encoder.addPoint(1356998400, 1);
+    final BinaryPutFormat.Batch batch =
+        BinaryPutFormat.decode(encoder.finish());
+    assertEquals(2, batch.seriesCount());
+    assertEquals(0, batch.pointCount(0));
+    assertEquals(1, batch.size());
+    assertEquals(1, batch.longValue(1, 0));
+  }
+
+  @Test
+  public void emptyBatch() throws Exception {
+    final BinaryPutFormat.Batch batch =
+        BinaryPutFormat.decode(new BinaryPutFormat.Encoder().finish());
+    assertEquals(0, batch.seriesCount());
+    assertEquals(0, batch.size());
+  }
+
+  @Test
+  public void readerIndex() throws Exception {
+    final BinaryPutFormat.Encoder encoder = new BinaryPutFormat.Encoder();
+    encoder.startSeries("sys.cpu.user", tags("host", "web01"));
+    encoder.addPoint(1356998400, 42);
+    final ChannelBuffer buffer = ChannelBuffers.dynamicBuffer();
+    buffer.writeLong(-1);
+    buffer.writeBytes(encoder.finish());
+    buffer.readLong();
+    final BinaryPutFormat.Batch batch = BinaryPutFormat.decode(buffer);
+    assertEquals(42, batch.longValue(0, 0));
+    assertEquals(8, buffer.readerIndex());
+  }
+
+  @Test
+  public void asDataPoints() throws Exception {
+    final BinaryPutFormat.Encoder encoder = new BinaryPutFormat.Encoder();
+    encoder.startSeries("sys.cpu.user", tags("host", "web01"));
+    encoder.addPoint(1356998400, 42);
+    encoder.addPoint(1356998401, 0.5);
+    encoder.startSeries("sys.cpu.nice", tags("host", "web02"));
+    encoder.addPoint(1356998402, 24);
+    final List<IncomingDataPoint> dps =
+        BinaryPutFormat.decode(encoder.finish()).asDataPoints();
+    assertEquals(3, dps.size());
+    assertEquals("sys.cpu.user", dps.get(0).getMetric());
+    assertEquals("42", dps.get(0).getValue());
+    assertEquals("0.5", dps.get(1).getValue());
+    assertEquals(1356998401, dps.get(1).getTimestamp());
+    assertEquals("sys.cpu.nice", dps.get(2).getMetric());
+    assertEquals("web02", dps.get(2).getTags().get("host"));
+  }
+
+  @Test (expected = IndexOutOfBoundsException.class)
+  public void asDataPointsOutOfRange() throws Exception {
+    final BinaryPutFormat.Encoder encoder = new BinaryPutFormat.Encoder();
+    encoder.startSeries("sys.cpu.user", tags("host", "web01"));
+    encoder.addPoint(1356998400, 42);
+    BinaryPutFormat.decode(encoder.finish()).asDataPoints().get(1);
+  }
+
+  @Test (expected = IllegalStateException.class)
+  public void addPointWithoutSeries() throws Exception {
+    new BinaryPutFormat.Encoder().addPoint(1356998400, 42);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void badMagic() throws Exception {
+    final ChannelBuffer buffer = encodeOne();
+    buffer.setInt(0, 0x7B226D65);
+    BinaryPutFormat.decode(buffer);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void badVersion() throws Exception {
+    final ChannelBuffer buffer = encodeOne();
+    buffer.setByte(4, 2);
+    BinaryPutFormat.decode(buffer);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void badDictionaryIndex() throws Exception {
+    final ChannelBuffer buffer = encodeOne();
+    // header (10), 3 strings of the form short + bytes, series count
+    final int series = 10 + (2 + 12) + (2 + 4) + (2 + 5) + 4;
+    buffer.setInt(series, 3);
+    BinaryPutFormat.decode(buffer);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void hugePointCount() throws Exception {
+    final ChannelBuffer buffer = encodeOne();
+    final int count = 10 + (2 + 12) + (2 + 4) + (2 + 5) + 4 + 4 + 2 + 8;
+    buffer.setInt(count, Integer.MAX_VALUE);
+    BinaryPutFormat.decode(buffer);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void truncated() throws Exception {
+    final ChannelBuffer buffer = encodeOne();
+    BinaryPutFormat.decode(buffer.slice(0, buffer.readableBytes() - 1));
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void trailingBytes() throws Exception {
+    final ChannelBuffer buffer = ChannelBuffers.dynamicBuffer();
+    buffer.writeBytes(encodeOne());
+    buffer.writeByte(0);
+    BinaryPutFormat.decode(buffer);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void empty() throws Exception {
+    BinaryPutFormat.decode(ChannelBuffers.EMPTY_BUFFER);
+  }
+
+  /** @return A batch with a single point, copied so it can be modified */
+  private static ChannelBuffer encodeOne() {
+    final BinaryPutFormat.Encoder encoder = new BinaryPutFormat.Encoder();
+    encoder.startSeries("sys.cpu.user", tags("host", "web01"));
+    encoder.addPoint(1356998400, 42);
+    return ChannelBuffers.copiedBuffer(encoder.finish());
+  }
+
+  private static Map<String, String> tags(final String key,
+                                          final String value) {
+    final Map<String, String> tags = new HashMap<String, String>(1);
+    tags.put(key, value);
+    return tags;
+  }
+}
@@ -0,0 +1,256 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Test;
+
+import net.opentsdb.tsd.ColumnarQueryFormat.BitReader;
+import net.opentsdb.tsd.ColumnarQueryFormat.BitWriter;
+import net.opentsdb.tsd.ColumnarQueryFormat.Encoder;
+import net.opentsdb.tsd.ColumnarQueryFormat.Series;
+
+public final class TestColumnarQueryFormat {
+
+  @Test
+  public void varints() throws Exception {
+    final long[] values = new long[] { 0, 1, 127, 128, 16383, 16384,
+        Integer.MAX_VALUE, Long.MAX_VALUE, -1 };
+    final ChannelBuffer buf = ChannelBuffers.dynamicBuffer();
+    for (final long value : values) {
+      ColumnarQueryFormat.writeVarint(buf, value);
+    }
+    assertEquals(0, buf.getByte(0));
+    for (final long value : values) {
+      assertEquals(value, ColumnarQueryFormat.readVarint(buf));
+    }
+    assertFalse(buf.readable());
+  }
+
+  @Test
+  public void zigzag() throws Exception {
+    assertEquals(0, ColumnarQueryFormat.zigzag(0));
+    assertEquals(1, ColumnarQueryFormat.zigzag(-1));
+    assertEquals(2, ColumnarQueryFormat.zigzag(1));
+    for (final long value : new long[] { Long.MIN_VALUE, Long.MAX_VALUE,
+        -300, 300 }) {
+      assertEquals(value, ColumnarQueryFormat.unzigzag(
+          ColumnarQueryFormat.zigzag(value)));
+    }
+  }
+
+  @Test
+  public void bits() throws Exception {
+    final BitWriter writer = new BitWriter();
+    final Random random = new Random(42);
+    final long[] values = new long[500];
+    final int[] widths = new int[500];
+    for (int i = 0; i < values.length; i++) {
+      widths[i] = 1 + random.nextInt(64);
+      values[i] = widths[i] == 64 ? random.nextLong()
+          : random.nextLong() & ((1L << widths[i]) - 1);
+      writer.write(values[i], widths[i]);
+    }
+    final BitReader reader = new BitReader(ChannelBuffers.wrappedBuffer(
+        writer.buffer(), 0, writer.bytes()));
+    for (int i = 0; i < values.length; i++) {
+      assertEquals(values[i], reader.read(widths[i]));
+    }
+  }
+
+  @Test
+  public void roundTripIntegers() throws Exception {
+    final Encoder encoder = new Encoder(false);
+    final Map<String, String> tags = new HashMap<String, String>();
+    tags.put("host", "web01");
+    encoder.startSeries("sys.cpu.user", tags, null);
+    for (int i = 0; i < 100; i++) {
+      encoder.addPoint(1356998400L + (i * 60), (long) (i % 7) - 3);
+    }
+    encoder.addPoint(1357010000L, Long.MAX_VALUE);
+    encoder.addPoint(1357010001L, Long.MIN_VALUE);
+    encoder.endSeries();
+
+    final List<Series> decoded = ColumnarQueryFormat.decode(encoder.finish());
+    assertEquals(1, decoded.size());
+    final Series series = decoded.get(0);
+    assertEquals("sys.cpu.user", series.metric());
+    assertEquals(tags, series.tags());
+    assertTrue(series.aggregatedTags().isEmpty());
+    assertEquals(102, series.size());
+    for (int i = 0; i < 100; i++) {
+      assertEquals(1356998400L + (i * 60), series.timestamp(i));
+      assertTrue(series.isInteger(i));
+      assertEquals((i % 7) - 3, series.longValue(i));
+    }
+    assertEquals(1357010000L, series.timestamp(100));
+    assertEquals(Long.MAX_VALUE, series.longValue(100));
+    assertEquals(1357010001L, series.timestamp(101));
+    assertEquals(Long.MIN_VALUE, series.longValue(101));
+  }
+
+  @Test
+  public void roundTripDoubles() throws Exception {
+    final Random random = new Random(42);
+    final double[] values = new double[1000];
+    final long[] timestamps = new long[values.length];
+    long ts = 1356998400000L;
+    for (int i = 0; i < values.length; i++) {
+      values[i] = random.nextGaussian() * 100;
+      ts += 1 + random.nextInt(5000);
+      timestamps[i] = ts;
+    }
+    values[10] = Double.NaN;
+    values[11] = Double.POSITIVE_INFINITY;
+    values[12] = Double.NEGATIVE_INFINITY;
+    values[13] = -0.0;
+    values[14] = Double.MIN_VALUE;
+    values[15] = values[16] = values[17] = 42.5;
+
+    final Encoder encoder = new Encoder(true);
+    encoder.startSeries("sys.cpu.user", null, Arrays.asList("host"));
+    for (int i = 0; i < values.length; i++) {
+      encoder.addPoint(timestamps[i], values[i]);
+    }
+    encoder.endSeries();
+
+    final Series series =
+        ColumnarQueryFormat.decode(encoder.finish()).get(0);
+    assertEquals(Arrays.asList("host"), series.aggregatedTags());
+    assertTrue(series.tags().isEmpty());
+    assertEquals(values.length, series.size());
+    for (int i = 0; i < values.length; i++) {
+      assertEquals(timestamps[i], series.timestamp(i));
+      assertFalse(series.isInteger(i));
+      assertEquals(Double.doubleToRawLongBits(values[i]),
+          Double.doubleToRawLongBits(series.doubleValue(i)));
+    }
+  }
+
+  @Test
+  public void roundTripMixed() throws Exception {
+    final Encoder encoder = new Encoder(false);
+    encoder.startSeries("sys.cpu.user", null, null);
+    for (int i = 0; i < 21; i++) {
+      if (i % 3 == 0) {
+        encoder.addPoint(1356998400L + i, 1.5 * i);
+      } else {
+        encoder.addPoint(1356998400L + i, (long) i);
+      }
+    }
+    encoder.endSeries();
+
+    final Series series =
+        ColumnarQueryFormat.decode(encoder.finish()).get(0);
+    for (int i = 0; i < 21; i++) {
+      if (i % 3 == 0) {
+        assertFalse(series.isInteger(i));
+        assertEquals(1.5 * i, series.doubleValue(i), 0.0);
+      } else {
+        assertTrue(series.isInteger(i));
+        assertEquals(i, series.longValue(i));
+      }
+    }
+  }
+
+  @Test (expected = ClassCastException.class)
+  public void longValueOfDouble() throws Exception {
+    final Encoder encoder = new Encoder(false);
+    encoder.startSeries("sys.cpu.user", null, null);
+    encoder.addPoint(1356998400L, 1.5);
+    encoder.endSeries();
+    ColumnarQueryFormat.decode(encoder.finish()).get(0).longValue(0);
+  }
+
+  @Test
+  public void dictionaryShared() throws Exception {
+    final Encoder encoder = new Encoder(false);
+    final List<String> series_names = new ArrayList<String>();
+    for (int i = 0; i < 50; i++) {
+      final Map<String, String> tags = new HashMap<String, String>();
+      tags.put("host", "web" + (i % 5));
+      tags.put("dc", "lga");
+      encoder.startSeries("sys.cpu.user", tags, Arrays.asList("cpu"));
+      encoder.addPoint(1356998400L, (long) i);
+      encoder.endSeries();
+      series_names.add("web" + (i % 5));
+    }
+    final ChannelBuffer buf = encoder.finish();
+    buf.skipBytes(6);
+    // metric, host, dc, lga, cpu and the five host values
+    assertEquals(10, ColumnarQueryFormat.readVarint(buf));
+    buf.readerIndex(0);
+
+    final List<Series> decoded = ColumnarQueryFormat.decode(buf);
+    assertEquals(50, decoded.size());
+    for (int i = 0; i < 50; i++) {
+      assertEquals(series_names.get(i), decoded.get(i).tags().get("host"));
+      assertEquals("lga", decoded.get(i).tags().get("dc"));
+      assertEquals(i, decoded.get(i).longValue(0));
+    }
+  }
+
+  @Test
+  public void emptySeries() throws Exception {
+    final Encoder encoder = new Encoder(false);
+    encoder.startSeries("sys.cpu.user", null, null);
+    encoder.endSeries();
+    final List<Series> decoded = ColumnarQueryFormat.decode(encoder.finish());
+    assertEquals(1, decoded.size());
+    assertEquals(0, decoded.get(0).size());
+  }
+
+  @Test
+  public void noSeries() throws Exception {
+    assertTrue(ColumnarQueryFormat.decode(
+        new Encoder(false).finish()).isEmpty());
+  }
+
+  @Test
+  public void compact() throws Exception {
+    // regular intervals and a slowly changing counter should take around
+    // a couple of bytes per point at most
+    final Encoder encoder = new Encoder(false);
+    encoder.startSeries("sys.cpu.user", null, null);
+    for (int i = 0; i < 1000; i++) {
+      encoder.addPoint(1356998400L + (i * 15), (long) (i / 10));
+    }
+    encoder.endSeries();
+    assertTrue(encoder.finish().readableBytes() < 2000);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void decodeBadMagic() throws Exception {
+    ColumnarQueryFormat.decode(ChannelBuffers.wrappedBuffer(
+        new byte[] { 1, 2, 3, 4, 1, 0, 0, 0 }));
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void decodeBadVersion() throws Exception {
+    final ChannelBuffer buf = new Encoder(false).finish();
+    buf.setByte(4, 42);
+    ColumnarQueryFormat.decode(buf);
+  }
+}
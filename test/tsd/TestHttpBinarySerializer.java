@@ -0,0 +1,268 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.opentsdb.core.Const;
+import net.opentsdb.core.DataPoints;
+import net.opentsdb.core.TSDB;
+import net.opentsdb.core.TSQuery;
+import net.opentsdb.core.TSSubQuery;
+import net.opentsdb.meta.Annotation;
+import net.opentsdb.stats.QueryStats;
+import net.opentsdb.storage.MockDataPoints;
+import net.opentsdb.utils.Config;
+import net.opentsdb.utils.DateTime;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import com.google.common.cache.CacheBuilder;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ HttpJsonSerializer.class, HttpBinarySerializer.class,
+  TSDB.class, Config.class, HttpQuery.class, TSQuery.class, TSSubQuery.class,
+  QueryStats.class, DateTime.class })
+public final class TestHttpBinarySerializer {
+  private TSDB tsdb = null;
+  private final List<Long> timestamp = new ArrayList<Long>(1);
+  private static String remote = "192.168.1.1:4242";
+  private static Field running_queries;
+  static {
+    try {
+      running_queries = QueryStats.class.getDeclaredField("running_queries");
+      running_queries.setAccessible(true);
+    } catch (Exception e) {
+      throw new RuntimeException("Failed in static initializer", e);
+    }
+  }
+  private static Field completed_queries;
+  static {
+    try {
+      completed_queries = QueryStats.class.getDeclaredField("completed_queries");
+      completed_queries.setAccessible(true);
+    } catch (Exception e) {
+      throw new RuntimeException("Failed in static initializer", e);
+    }
+  }
+
+  @Before
+  public void before() throws Exception {
+    tsdb = NettyMocks.getMockedHTTPTSDB();
+  }
+
+  @Test
+  public void names() throws Exception {
+    final HttpBinarySerializer serdes = new HttpBinarySerializer();
+    assertEquals("binary", serdes.shortName());
+    assertEquals("2.4.0", serdes.version());
+    assertEquals("application/json", serdes.requestContentType());
+    assertEquals("application/json; charset=UTF-8",
+        serdes.responseContentType());
+  }
+
+  @Test
+  public void errorsAreJson() throws Exception {
+    final HttpQuery query = NettyMocks.getQuery(tsdb,
+        "/api/query?serializer=binary");
+    final HttpBinarySerializer serdes = new HttpBinarySerializer(query);
+    // a failure after the query results switched to the columnar type
+    setupFormatQuery();
+    serdes.formatQueryAsyncV1(getTestQuery(), new ArrayList<DataPoints[]>(),
+        Collections.<Annotation> emptyList()).joinUninterruptibly();
+    assertEquals(ColumnarQueryFormat.CONTENT_TYPE,
+        serdes.responseContentType());
+    final ChannelBuffer error = serdes.formatErrorV1(
+        new BadRequestException("Boo!"));
+    assertTrue(error.toString(Const.UTF8_CHARSET).startsWith("{\"error\""));
+    assertEquals("application/json; charset=UTF-8",
+        serdes.responseContentType());
+  }
+
+  @Test
+  public void selectedByQueryString() throws Exception {
+    HttpQuery.initializeSerializerMaps(tsdb);
+    final HttpQuery query = NettyMocks.getQuery(tsdb,
+        "/api/query?serializer=binary");
+    query.setSerializer();
+    assertEquals(HttpBinarySerializer.class, query.serializer().getClass());
+  }
+
+  @Test
+  public void jsonContentTypeSelectsJson() throws Exception {
+    HttpQuery.initializeSerializerMaps(tsdb);
+    final HttpQuery query = NettyMocks.postQuery(tsdb, "/api/query", "{}",
+        "application/json");
+    query.setSerializer();
+    assertEquals(HttpJsonSerializer.class, query.serializer().getClass());
+  }
+
+  @Test
+  public void formatQueryAsyncV1() throws Exception {
+    setupFormatQuery();
+    final HttpQuery query = NettyMocks.getQuery(tsdb, "");
+    final HttpBinarySerializer serdes = new HttpBinarySerializer(query);
+    final TSQuery data_query = getTestQuery();
+    final List<DataPoints[]> results = new ArrayList<DataPoints[]>(1);
+    results.add(new DataPoints[] { new MockDataPoints().getMock(),
+        new MockDataPoints().getMock() });
+
+    final ChannelBuffer cb = serdes.formatQueryAsyncV1(data_query, results,
+        Collections.<Annotation> emptyList()).joinUninterruptibly();
+    final List<ColumnarQueryFormat.Series> decoded =
+        ColumnarQueryFormat.decode(cb);
+    assertEquals(2, decoded.size());
+    for (final ColumnarQueryFormat.Series series : decoded) {
+      assertEquals("system.cpu.user", series.metric());
+      assertEquals("lga", series.tags().get("dc"));
+      assertEquals(Collections.singletonList("host"), series.aggregatedTags());
+      assertEquals(401, series.size());
+      for (int i = 0; i < series.size(); i++) {
+        assertEquals(1356998700L + (i * 300), series.timestamp(i));
+        assertTrue(series.isInteger(i));
+        assertEquals(i + 1, series.longValue(i));
+      }
+    }
+  }
+
+  @Test
+  public void formatQueryAsyncV1Ms() throws Exception {
+    setupFormatQuery();
+    final HttpQuery query = NettyMocks.getQuery(tsdb, "");
+    final HttpBinarySerializer serdes = new HttpBinarySerializer(query);
+    final TSQuery data_query = getTestQuery();
+    data_query.setMsResolution(true);
+    final List<DataPoints[]> results = new ArrayList<DataPoints[]>(1);
+    results.add(new DataPoints[] { new MockDataPoints().getMock() });
+
+    final ChannelBuffer cb = serdes.formatQueryAsyncV1(data_query, results,
+        Collections.<Annotation> emptyList()).joinUninterruptibly();
+    assertEquals(ColumnarQueryFormat.FLAG_MS_RESOLUTION, cb.getByte(5));
+    final ColumnarQueryFormat.Series series =
+        ColumnarQueryFormat.decode(cb).get(0);
+    assertEquals(1356998700000L, series.timestamp(0));
+    assertEquals(1357118700000L, series.timestamp(400));
+  }
+
+  @Test
+  public void formatQueryAsyncV1Empty() throws Exception {
+    setupFormatQuery();
+    final HttpQuery query = NettyMocks.getQuery(tsdb, "");
+    final HttpBinarySerializer serdes = new HttpBinarySerializer(query);
+    final ChannelBuffer cb = serdes.formatQueryAsyncV1(getTestQuery(),
+        new ArrayList<DataPoints[]>(), Collections.<Annotation> emptyList())
+        .joinUninterruptibly();
+    assertTrue(ColumnarQueryFormat.decode(cb).isEmpty());
+  }
+
+  @Test
+  public void otherEndpointsAreJson() throws Exception {
+    final HttpQuery query = NettyMocks.getQuery(tsdb,
+        "/api/suggest?serializer=binary");
+    final HttpBinarySerializer serdes = new HttpBinarySerializer(query);
+    final ChannelBuffer suggestions = serdes.formatSuggestV1(
+        Collections.singletonList("sys.cpu.user"));
+    assertEquals("[\"sys.cpu.user\"]",
+        suggestions.toString(Const.UTF8_CHARSET));
+    assertEquals("application/json; charset=UTF-8",
+        serdes.responseContentType());
+  }
+
+  @Test
+  public void smallerThanJson() throws Exception {
+    setupFormatQuery();
+    final HttpQuery query = NettyMocks.getQuery(tsdb, "");
+    final List<DataPoints[]> results = new ArrayList<DataPoints[]>(1);
+    results.add(new DataPoints[] { new MockDataPoints().getMock() });
+    final int binary = new HttpBinarySerializer(query).formatQueryAsyncV1(
+        getTestQuery(), results, Collections.<Annotation> emptyList())
+        .joinUninterruptibly().readableBytes();
+
+    results.set(0, new DataPoints[] { new MockDataPoints().getMock() });
+    final TSQuery json_query = getTestQuery();
+    json_query.setNoAnnotations(true);
+    final int json = new HttpJsonSerializer(query).formatQueryAsyncV1(
+        json_query, results, Collections.<Annotation> emptyList())
+        .joinUninterruptibly().readableBytes();
+    // regular timestamps and counter values take a few bytes per point at
+    // most compared to around 17 for JSON
+    assertTrue("binary " + binary + " json " + json, binary * 5 < json);
+  }
+
+  /** Sets up the stats and time mocks needed to serialize a query */
+  private void setupFormatQuery() throws Exception {
+    mockTime();
+    running_queries.set(null, new ConcurrentHashMap<Integer, QueryStats>());
+    completed_queries.set(null, CacheBuilder.newBuilder().maximumSize(2).build());
+  }
+
+  /** @return A validated test TSQuery object to pass on to the serializer */
+  private TSQuery getTestQuery() {
+    final TSQuery data_query = new TSQuery();
+    data_query.setStart("1356998400");
+    data_query.setEnd("1388534400");
+
+    final TSSubQuery sub_query = new TSSubQuery();
+    sub_query.setMetric("sys.cpu.user");
+    sub_query.setAggregator("sum");
+    final ArrayList<TSSubQuery> sub_queries = new ArrayList<TSSubQuery>(1);
+    sub_queries.add(sub_query);
+    data_query.setQueries(sub_queries);
+    data_query.validateAndSetQuery();
+    data_query.setQueryStats(new QueryStats(remote, data_query, null));
+    return data_query;
+  }
+
+  /**
+   * Mocks out the DateTime class and increments the timestamp by 500ms every
+   * time it's called.
+   */
+  private void mockTime() {
+    timestamp.add(1388534400000L);
+    PowerMockito.mockStatic(DateTime.class);
+    PowerMockito.when(DateTime.parseDateTimeString(anyString(), anyString()))
+      .thenCallRealMethod();
+    PowerMockito.when(DateTime.currentTimeMillis())
+      .thenAnswer(new Answer<Long> () {
+      public Long answer(InvocationOnMock invocation) throws Throwable {
+        long ts = timestamp.get(0);
+        timestamp.set(0, ts + 500);
+        return ts;
+      }
+    });
+    PowerMockito.when(DateTime.nanoTime())
+      .thenAnswer(new Answer<Long> () {
+      public Long answer(InvocationOnMock invocation) throws Throwable {
+        long ts = timestamp.get(0);
+        timestamp.set(0, ts + 500);
+        return ts * 1000000;
+      }
+    });
+  }
+}
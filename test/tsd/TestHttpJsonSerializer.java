@@ -16,11 +16,14 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.when;
 
 import java.lang.Thread.State;
 import java.lang.reflect.Field;
+import java.nio.channels.ClosedChannelException;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -35,12 +38,19 @@ import net.opentsdb.core.TSQuery;
 import net.opentsdb.core.TSSubQuery;
 import net.opentsdb.meta.Annotation;
 import net.opentsdb.stats.QueryStats;
+import net.opentsdb.stats.QueryStats.QueryStat;
 import net.opentsdb.storage.MockDataPoints;
 import net.opentsdb.uid.NoSuchUniqueId;
 import net.opentsdb.utils.Config;
 import net.opentsdb.utils.DateTime;
 
 import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.DefaultChannelFuture;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpResponse;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -600,6 +610,144 @@ public final class TestHttpJsonSerializer {
    * Helper to reset the query stats and mock the time calls before each
    * data point query. 
    */
+  @Test
+  public void formatQueryAsyncV1MaxBuffered() throws Exception {
+    setupFormatQuery();
+    HttpQuery query = NettyMocks.getQuery(tsdb, "");
+    HttpJsonSerializer serdes = new HttpJsonSerializer(query);
+    final TSQuery data_query = getTestQuery(false);
+    validateTestQuery(data_query);
+    final List<DataPoints[]> results = new ArrayList<DataPoints[]>(1);
+    results.add(new DataPoints[] { new MockDataPoints().getMock() });
+
+    ChannelBuffer cb = serdes.formatQueryAsyncV1(data_query, results, 
+        Collections.<Annotation> emptyList()).joinUninterruptibly();
+    assertEquals(cb.readableBytes(), 
+        data_query.getQueryStats().getStat(QueryStat.MAX_BUFFERED_BYTES));
+    assertEquals(-1, 
+        data_query.getQueryStats().getStat(QueryStat.STREAMED_CHUNKS));
+  }
+  
+  @Test
+  public void streamQueryAsyncV1() throws Exception {
+    setupFormatQuery();
+    final HttpQuery query = NettyMocks.getQuery(tsdb, "/api/query?stream");
+    final List<Object> writes = captureWrites(query, null);
+    HttpJsonSerializer serdes = new HttpJsonSerializer(query);
+    final TSQuery data_query = getTestQuery(false);
+    validateTestQuery(data_query);
+    final List<DataPoints[]> results = new ArrayList<DataPoints[]>(1);
+    results.add(new DataPoints[] { new MockDataPoints().getMock(), 
+        new MockDataPoints().getMock() });
+
+    serdes.streamQueryAsyncV1(data_query, results, 
+        Collections.<Annotation> emptyList()).joinUninterruptibly();
+    
+    // header, one chunk per series, the closing bracket and the terminator
+    assertEquals(5, writes.size());
+    final HttpResponse response = (HttpResponse) writes.get(0);
+    assertTrue(response.isChunked());
+    assertEquals(HttpHeaders.Values.CHUNKED, 
+        response.headers().get(HttpHeaders.Names.TRANSFER_ENCODING));
+    assertTrue(((HttpChunk) writes.get(4)).isLast());
+    
+    final StringBuilder json = new StringBuilder();
+    for (int i = 1; i < 4; i++) {
+      json.append(((HttpChunk) writes.get(i)).getContent()
+          .toString(Charset.forName("UTF-8")));
+    }
+    final String body = json.toString();
+    assertTrue(body.startsWith("[{\"metric\":\"system.cpu.user\","));
+    assertTrue(body.contains("\"1357058700\":201"));
+    assertTrue(body.contains("},{\"metric\""));
+    assertTrue(body.endsWith("}]"));
+    
+    final QueryStats stats = data_query.getQueryStats();
+    assertEquals(3, stats.getStat(QueryStat.STREAMED_CHUNKS));
+    assertTrue(stats.getStat(QueryStat.TIME_TO_FIRST_BYTE) > 0);
+    assertTrue(stats.getStat(QueryStat.MAX_BUFFERED_BYTES) > 0);
+    assertTrue(stats.getStat(QueryStat.MAX_BUFFERED_BYTES) < body.length());
+    assertEquals(0, stats.getStat(QueryStat.WRITE_BLOCKED_TIME));
+  }
+  
+  @Test
+  public void streamQueryAsyncV1Backpressure() throws Exception {
+    setupFormatQuery();
+    final HttpQuery query = NettyMocks.getQuery(tsdb, "/api/query?stream");
+    when(query.channel().isWritable()).thenReturn(false);
+    final ChannelFuture pending = 
+        new DefaultChannelFuture(query.channel(), false);
+    final List<Object> writes = captureWrites(query, pending);
+    HttpJsonSerializer serdes = new HttpJsonSerializer(query);
+    final TSQuery data_query = getTestQuery(false);
+    validateTestQuery(data_query);
+    final List<DataPoints[]> results = new ArrayList<DataPoints[]>(1);
+    results.add(new DataPoints[] { new MockDataPoints().getMock(), 
+        new MockDataPoints().getMock() });
+
+    final Deferred<Object> deferred = serdes.streamQueryAsyncV1(data_query, 
+        results, Collections.<Annotation> emptyList());
+    // waiting on the first series to drain
+    assertEquals(2, writes.size());
+    
+    when(query.channel().isWritable()).thenReturn(true);
+    pending.setSuccess();
+    deferred.joinUninterruptibly();
+    assertEquals(5, writes.size());
+    assertTrue(data_query.getQueryStats()
+        .getStat(QueryStat.WRITE_BLOCKED_TIME) > 0);
+  }
+  
+  @Test
+  public void streamQueryAsyncV1WriteFailed() throws Exception {
+    setupFormatQuery();
+    final HttpQuery query = NettyMocks.getQuery(tsdb, "/api/query?stream");
+    when(query.channel().isWritable()).thenReturn(false);
+    final ChannelFuture pending = 
+        new DefaultChannelFuture(query.channel(), false);
+    final List<Object> writes = captureWrites(query, pending);
+    HttpJsonSerializer serdes = new HttpJsonSerializer(query);
+    final TSQuery data_query = getTestQuery(false);
+    validateTestQuery(data_query);
+    final List<DataPoints[]> results = new ArrayList<DataPoints[]>(1);
+    results.add(new DataPoints[] { new MockDataPoints().getMock(), 
+        new MockDataPoints().getMock() });
+
+    final Deferred<Object> deferred = serdes.streamQueryAsyncV1(data_query, 
+        results, Collections.<Annotation> emptyList());
+    pending.setFailure(new ClosedChannelException());
+    try {
+      deferred.joinUninterruptibly();
+      fail("Expected a ClosedChannelException");
+    } catch (ClosedChannelException e) { }
+    assertEquals(2, writes.size());
+  }
+  
+  /**
+   * Records the objects written to the query channel.
+   * @param query The query to capture
+   * @param future An optional future to return for chunks, otherwise writes
+   * succeed immediately.
+   * @return The list of written objects
+   */
+  private List<Object> captureWrites(final HttpQuery query, 
+      final ChannelFuture future) {
+    final List<Object> writes = new ArrayList<Object>();
+    when(query.channel().write(any())).thenAnswer(new Answer<ChannelFuture>() {
+      @Override
+      public ChannelFuture answer(final InvocationOnMock invocation)
+          throws Throwable {
+        final Object obj = invocation.getArguments()[0];
+        writes.add(obj);
+        if (future != null && obj instanceof HttpChunk) {
+          return future;
+        }
+        return Channels.succeededFuture(query.channel());
+      }
+    });
+    return writes;
+  }
+  
   private void setupFormatQuery() throws Exception {
     mockTime();
     running_queries.set(null, new ConcurrentHashMap<Integer, QueryStats>());
@@ -21,6 +21,9 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.lang.reflect.Method;
@@ -1204,6 +1207,38 @@ public final class TestHttpQuery {
     sendBuffer.invoke(query, HttpResponseStatus.OK, null);
   }
 
+  @Test
+  public void sendChunked() throws Exception {
+    HttpQuery query = NettyMocks.getQuery(tsdb, "");
+    final ChannelFuture future = new DefaultChannelFuture(query.channel(), false);
+    when(query.channel().write(any())).thenReturn(future);
+    future.setSuccess();
+    
+    assertFalse(query.isChunked());
+    query.sendChunkedHeader("application/json");
+    assertTrue(query.isChunked());
+    assertTrue(query.response().isChunked());
+    assertEquals("chunked", query.response().headers().get("Transfer-Encoding"));
+    query.sendChunk(ChannelBuffers.copiedBuffer("[]", CharsetUtil.UTF_8));
+    query.sendLastChunk();
+    verify(query.channel(), times(3)).write(any());
+    verify(query.channel(), never()).close();
+  }
+  
+  @Test
+  public void sendChunkedThenError() throws Exception {
+    HttpQuery query = NettyMocks.getQuery(tsdb, "");
+    final ChannelFuture future = new DefaultChannelFuture(query.channel(), false);
+    when(query.channel().write(any())).thenReturn(future);
+    future.setSuccess();
+    
+    query.sendChunkedHeader("application/json");
+    query.badRequest(new BadRequestException("Boo!"));
+    // only the header made it out, then we hang up
+    verify(query.channel(), times(1)).write(any());
+    verify(query.channel()).close();
+  }
+  
   @Test
   public void getSerializerStatus() throws Exception {
     HttpQuery.initializeSerializerMaps(tsdb);
@@ -32,8 +32,13 @@ import java.util.HashMap;
 import org.hbase.async.HBaseException;
 import org.hbase.async.PleaseThrottleException;
 import org.hbase.async.PutRequest;
+import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
+import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
 import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.powermock.core.classloader.annotations.PowerMockIgnore;
@@ -269,6 +274,76 @@ public final class TestPutRpc extends BaseTestPutRpc {
     final Channel chan = NettyMocks.fakeChannel();
     put.execute(tsdb, chan, null);
   }
+
+  @Test
+  public void executeDecodedPut() throws Exception {
+    final PutDataPointRpc put = new PutDataPointRpc(tsdb.getConfig());
+    final Channel chan = NettyMocks.fakeChannel();
+    put.executePut(tsdb, chan, decodePut("put " + METRIC_STRING 
+        + " 1365465600 42 " + TAGK_STRING + "=" + TAGV_STRING))
+      .joinUninterruptibly();
+    validateCounters(1, 0, 1, 0, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0);
+    verify(chan, never()).write(any());
+    verify(chan, never()).isConnected();
+    validateSEH(false);
+  }
+  
+  @Test
+  public void executeDecodedPutFloat() throws Exception {
+    final PutDataPointRpc put = new PutDataPointRpc(tsdb.getConfig());
+    final Channel chan = NettyMocks.fakeChannel();
+    put.executePut(tsdb, chan, decodePut("put " + METRIC_STRING 
+        + " 1365465600 42.5 " + TAGK_STRING + "=" + TAGV_STRING))
+      .joinUninterruptibly();
+    validateCounters(1, 0, 1, 0, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0);
+    verify(chan, never()).write(any());
+    validateSEH(false);
+  }
+  
+  @Test
+  public void executeDecodedPutUnknownMetric() throws Exception {
+    final PutDataPointRpc put = new PutDataPointRpc(tsdb.getConfig());
+    final Channel chan = NettyMocks.fakeChannel();
+    put.executePut(tsdb, chan, decodePut("put " + NSUN_METRIC 
+        + " 1365465600 42 " + TAGK_STRING + "=" + TAGV_STRING))
+      .joinUninterruptibly();
+    validateCounters(1, 0, 1, 0, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0, 0);
+    verify(chan, times(1)).write(any());
+    verify(chan, times(1)).isConnected();
+    validateSEH(false);
+  }
+  
+  @Test
+  public void executeDecodedPutHBaseErrorHandler() throws Exception {
+    when(client.put(any(PutRequest.class)))
+      .thenReturn(Deferred.fromError(mock(HBaseException.class)));
+    setStorageExceptionHandler();
+    
+    final PutDataPointRpc put = new PutDataPointRpc(tsdb.getConfig());
+    final Channel chan = NettyMocks.fakeChannel();
+    put.executePut(tsdb, chan, decodePut("put " + METRIC_STRING 
+        + " 1365465600 42 " + TAGK_STRING + "=" + TAGV_STRING))
+      .joinUninterruptibly();
+    validateCounters(1, 0, 1, 0, 0, 0, 1, 0, 0, 0, 0, 0, 0, 0, 0);
+    verify(chan, times(1)).write(any());
+    verify(chan, times(1)).isConnected();
+    validateSEH(true);
+  }
+  
+  @Test
+  public void executeDecodedPutPleaseThrottle() throws Exception {
+    when(client.put(any(PutRequest.class)))
+      .thenReturn(Deferred.fromError(mock(PleaseThrottleException.class)));
+    final PutDataPointRpc put = new PutDataPointRpc(tsdb.getConfig());
+    final Channel chan = NettyMocks.fakeChannel();
+    put.executePut(tsdb, chan, decodePut("put " + METRIC_STRING 
+        + " 1365465600 42 " + TAGK_STRING + "=" + TAGV_STRING))
+      .joinUninterruptibly();
+    validateCounters(1, 0, 1, 0, 0, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0);
+    verify(chan, times(1)).write(any());
+    verify(chan, times(1)).isConnected();
+    validateSEH(true);
+  }
   
   @Test (expected = ArrayIndexOutOfBoundsException.class)
   public void executeEmptyArray() throws Exception {
@@ -1381,4 +1456,145 @@ public final class TestPutRpc extends BaseTestPutRpc {
     verify(timer.timeout, never()).cancel();
   }
 
+  // Binary batch tests ----------------------------------
+  
+  @Test
+  public void binaryPut() throws Exception {
+    final HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put(TAGK_STRING, TAGV_STRING);
+    final BinaryPutFormat.Encoder encoder = new BinaryPutFormat.Encoder();
+    encoder.startSeries(METRIC_STRING, tags);
+    encoder.addPoint(1365465600, 42);
+    encoder.addPoint(1365465601, 42.5);
+    encoder.addPoint(1365465602, 0.1);
+    encoder.startSeries(METRIC_B_STRING, tags);
+    encoder.addPoint(1365465600000L, -1);
+    
+    HttpQuery query = binaryPostQuery("/api/put", encoder);
+    PutDataPointRpc put = new PutDataPointRpc(tsdb.getConfig());
+    put.execute(tsdb, query);
+    assertEquals(HttpResponseStatus.NO_CONTENT, query.response().getStatus());
+    validateCounters(0, 1, 4, 0, 4, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0);
+    validateSEH(false);
+    verify(tsdb, times(1)).addPoint(METRIC_STRING, 1365465600L, 42L, tags);
+    verify(tsdb, times(1)).addPoint(METRIC_STRING, 1365465601L, 42.5F, tags);
+    verify(tsdb, times(1)).addPoint(METRIC_STRING, 1365465602L, 0.1D, tags);
+    verify(tsdb, times(1)).addPoint(METRIC_B_STRING, 1365465600000L, -1L, 
+        tags);
+  }
+  
+  @Test
+  public void binaryPutCharset() throws Exception {
+    final BinaryPutFormat.Encoder encoder = new BinaryPutFormat.Encoder();
+    encoder.startSeries(METRIC_STRING, tags);
+    encoder.addPoint(1365465600, 42);
+    final HttpQuery query = binaryPostQuery("/api/put", encoder);
+    query.request().headers().set("Content-Type", 
+        BinaryPutFormat.CONTENT_TYPE + "; charset=UTF-8");
+    PutDataPointRpc put = new PutDataPointRpc(tsdb.getConfig());
+    put.execute(tsdb, query);
+    assertEquals(HttpResponseStatus.NO_CONTENT, query.response().getStatus());
+    validateCounters(0, 1, 1, 0, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0);
+  }
+  
+  @Test
+  public void binaryPutErrorsSummaryDetails() throws Exception {
+    final BinaryPutFormat.Encoder encoder = new BinaryPutFormat.Encoder();
+    encoder.startSeries(METRIC_STRING, tags);
+    encoder.addPoint(1365465600, 42);
+    encoder.addPoint(-1, 42);
+    encoder.startSeries(NSUN_METRIC, tags);
+    encoder.addPoint(1365465600, 42);
+    encoder.startSeries(METRIC_B_STRING, new HashMap<String, String>());
+    encoder.addPoint(1365465600, 42);
+    
+    HttpQuery query = binaryPostQuery("/api/put?summary&details", encoder);
+    PutDataPointRpc put = new PutDataPointRpc(tsdb.getConfig());
+    put.execute(tsdb, query);
+    assertEquals(HttpResponseStatus.BAD_REQUEST, query.response().getStatus());
+    final String response = 
+        query.response().getContent().toString(Charset.forName("UTF-8"));
+    assertTrue(response.contains("\"failed\":3"));
+    assertTrue(response.contains("\"success\":1"));
+    assertTrue(response.contains("Invalid timestamp"));
+    assertTrue(response.contains("Unknown metric"));
+    assertTrue(response.contains("Missing tags"));
+    validateCounters(0, 1, 4, 0, 1, 0, 0, 0, 0, 2, 1, 0, 0, 0, 0);
+    validateSEH(false);
+  }
+  
+  @Test
+  public void binaryPutSyncOneFailedDetails() throws Exception {
+    when(client.put(any(PutRequest.class)))
+      .thenReturn(Deferred.fromResult(null))
+      .thenReturn(Deferred.fromError(mock(HBaseException.class)));
+    final BinaryPutFormat.Encoder encoder = new BinaryPutFormat.Encoder();
+    encoder.startSeries(METRIC_STRING, tags);
+    encoder.addPoint(1365465600, 42);
+    encoder.startSeries(METRIC_B_STRING, tags);
+    encoder.addPoint(1365465600, 1);
+    
+    HttpQuery query = binaryPostQuery("/api/put?sync&details", encoder);
+    PutDataPointRpc put = new PutDataPointRpc(tsdb.getConfig());
+    put.execute(tsdb, query);
+    assertEquals(HttpResponseStatus.OK, query.response().getStatus());
+    final String response = 
+        query.response().getContent().toString(Charset.forName("UTF-8"));
+    assertTrue(response.contains("\"failed\":1"));
+    assertTrue(response.contains("\"success\":1"));
+    assertTrue(response.contains("\"errors\":[{"));
+    assertTrue(response.contains(METRIC_B_STRING));
+    validateCounters(0, 1, 2, 0, 1, 0, 1, 0, 0, 0, 0, 0, 0, 0, 0);
+    validateSEH(true);
+    verify(tsdb, never()).getTimer();
+  }
+  
+  @Test
+  public void binaryPutEmpty() throws Exception {
+    HttpQuery query = binaryPostQuery("/api/put", 
+        new BinaryPutFormat.Encoder());
+    PutDataPointRpc put = new PutDataPointRpc(tsdb.getConfig());
+    try {
+      put.execute(tsdb, query);
+      fail("Expected BadRequestException");
+    } catch (BadRequestException e) { }
+    validateCounters(0, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0);
+    validateSEH(false);
+  }
+  
+  @Test
+  public void binaryPutMalformed() throws Exception {
+    // JSON sent with the binary content type
+    HttpQuery query = NettyMocks.postQuery(tsdb, "/api/put", 
+        "{\"metric\":\"" + METRIC_STRING + "\",\"timestamp\":1365465600,\"value\""
+        +":42,\"tags\":{\"" + TAGK_STRING + "\":\"" + TAGV_STRING + "\"}}", 
+        BinaryPutFormat.CONTENT_TYPE);
+    PutDataPointRpc put = new PutDataPointRpc(tsdb.getConfig());
+    try {
+      put.execute(tsdb, query);
+      fail("Expected BadRequestException");
+    } catch (BadRequestException e) { 
+      assertEquals(HttpResponseStatus.BAD_REQUEST, e.getStatus());
+    }
+    validateCounters(0, 1, 0, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0, 0, 0);
+    validateSEH(false);
+  }
+  
+  /** Builds a POST with the encoded batch as its content */
+  private HttpQuery binaryPostQuery(final String uri, 
+      final BinaryPutFormat.Encoder encoder) {
+    final HttpRequest req = new DefaultHttpRequest(HttpVersion.HTTP_1_1, 
+        HttpMethod.POST, uri);
+    req.setContent(encoder.finish());
+    req.headers().set("Content-Type", BinaryPutFormat.CONTENT_TYPE);
+    return new HttpQuery(tsdb, req, NettyMocks.fakeChannel());
+  }
+
+  /** @return The put line parsed by the telnet decoder */
+  private static TelnetPutDecoder.Put decodePut(final String line) {
+    final TelnetPutDecoder.Put put = new TelnetPutDecoder().parse(
+        ChannelBuffers.copiedBuffer(line, Charset.forName("ISO-8859-1")));
+    assertNotNull(put);
+    return put;
+  }
 }
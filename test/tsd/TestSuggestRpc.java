@@ -187,4 +187,46 @@ public final class TestSuggestRpc {
     query.getQueryBaseRoute();
     s.execute(tsdb, query);
   }
+
+  @Test
+  public void tagvQSScoped() throws Exception {
+    final List<String> tagvs = new ArrayList<String>();
+    tagvs.add("web02.mysite.com");
+    when(tsdb.suggestTagValues("w", 25, "sys.cpu.user")).thenReturn(tagvs);
+    HttpQuery query = NettyMocks.getQuery(tsdb, 
+        "/api/suggest?type=tagv&q=w&metric=sys.cpu.user");
+    s.execute(tsdb, query);
+    assertEquals("[\"web02.mysite.com\"]", 
+        query.response().getContent().toString(Charset.forName("UTF-8")));
+  }
+
+  @Test
+  public void tagkPOSTScoped() throws Exception {
+    final List<String> tagks = new ArrayList<String>();
+    tagks.add("host");
+    when(tsdb.suggestTagNames("h", 5, "sys.cpu.user")).thenReturn(tagks);
+    HttpQuery query = NettyMocks.postQuery(tsdb, "/api/suggest", 
+        "{\"type\":\"tagk\",\"q\":\"h\",\"max\":5,"
+        + "\"metric\":\"sys.cpu.user\"}", "application/json");
+    query.getQueryBaseRoute();
+    s.execute(tsdb, query);
+    assertEquals("[\"host\"]", 
+        query.response().getContent().toString(Charset.forName("UTF-8")));
+  }
+
+  @Test (expected = BadRequestException.class)
+  public void metricsScoped() throws Exception {
+    HttpQuery query = NettyMocks.getQuery(tsdb, 
+        "/api/suggest?type=metrics&q=s&metric=sys.cpu.user");
+    s.execute(tsdb, query);
+  }
+
+  @Test (expected = BadRequestException.class)
+  public void scopedDisabled() throws Exception {
+    when(tsdb.suggestTagValues("w", 25, "sys.cpu.user"))
+      .thenThrow(new IllegalStateException("Disabled"));
+    HttpQuery query = NettyMocks.getQuery(tsdb, 
+        "/api/suggest?type=tagv&q=w&metric=sys.cpu.user");
+    s.execute(tsdb, query);
+  }
 }
@@ -0,0 +1,204 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.Charset;
+import java.util.Map;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class TestTelnetPutDecoder {
+  private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+  private TelnetPutDecoder decoder;
+
+  @Before
+  public void before() {
+    decoder = new TelnetPutDecoder();
+  }
+
+  @Test
+  public void parseInteger() throws Exception {
+    final TelnetPutDecoder.Put put =
+        parse("put sys.cpu.user 1356998400 42 host=web01 dc=lga");
+    assertEquals("sys.cpu.user", put.metric());
+    assertEquals(1356998400, put.timestamp());
+    assertTrue(put.isInteger());
+    assertEquals(42, put.longValue());
+    final Map<String, String> tags = put.tags();
+    assertEquals(2, tags.size());
+    assertEquals("web01", tags.get("host"));
+    assertEquals("lga", tags.get("dc"));
+  }
+
+  @Test
+  public void parseNegativeInteger() throws Exception {
+    final TelnetPutDecoder.Put put =
+        parse("put sys.cpu.user 1356998400 -42 host=web01");
+    assertTrue(put.isInteger());
+    assertEquals(-42, put.longValue());
+  }
+
+  @Test
+  public void parseMilliseconds() throws Exception {
+    assertEquals(1356998400500L,
+        parse("put sys.cpu.user 1356998400.500 42 host=web01").timestamp());
+    assertEquals(1356998400500L,
+        parse("put sys.cpu.user 1356998400500 42 host=web01").timestamp());
+  }
+
+  @Test
+  public void parseFloat() throws Exception {
+    final TelnetPutDecoder.Put put =
+        parse("put sys.cpu.user 1356998400 42.5 host=web01");
+    assertFalse(put.isInteger());
+    assertEquals(42.5, put.doubleValue(), 0.0);
+  }
+
+  @Test
+  public void parseDecimalsMatchParseDouble() throws Exception {
+    final String[] values = new String[] { "0.1", "-0.3", "3.14159", ".5",
+        "1.", "123456.789012", "0.000000000000000000001", "99999999999.9999",
+        "1.00000000000000000001", "4.9e-3", "1E10", "-2.5e+300" };
+    for (final String value : values) {
+      final TelnetPutDecoder.Put put =
+          parse("put sys.cpu.user 1356998400 " + value + " host=web01");
+      assertFalse(value, put.isInteger());
+      assertEquals(value, Double.parseDouble(value), put.doubleValue(), 0.0);
+    }
+  }
+
+  @Test
+  public void parseExtraSpaces() throws Exception {
+    final TelnetPutDecoder.Put put =
+        parse("put sys.cpu.user 1356998400 42 host=web01  dc=lga ");
+    assertEquals(2, put.tags().size());
+  }
+
+  @Test
+  public void parseDuplicateTagSameValue() throws Exception {
+    assertEquals(1, parse("put sys.cpu.user 1356998400 42 host=web01 "
+        + "host=web01").tags().size());
+  }
+
+  @Test
+  public void parseCached() throws Exception {
+    final TelnetPutDecoder.Put first =
+        parse("put sys.cpu.user 1356998400 42 host=web01");
+    final TelnetPutDecoder.Put second =
+        parse("put sys.cpu.user 1356998401 24 host=web01");
+    assertSame(first.metric(), second.metric());
+    assertSame(first.tags(), second.tags());
+    assertEquals(24, second.longValue());
+
+    final TelnetPutDecoder.Put other =
+        parse("put sys.cpu.nice 1356998401 24 host=web02");
+    assertEquals("sys.cpu.nice", other.metric());
+    assertEquals("web02", other.tags().get("host"));
+  }
+
+  @Test (expected = UnsupportedOperationException.class)
+  public void parseTagsNotModifiable() throws Exception {
+    parse("put sys.cpu.user 1356998400 42 host=web01").tags()
+      .put("dc", "lga");
+  }
+
+  @Test
+  public void parseSlice() throws Exception {
+    final ChannelBuffer buffer = ChannelBuffers.copiedBuffer(
+        "xxput sys.cpu.user 1356998400 42 host=web01", CHARSET);
+    buffer.skipBytes(2);
+    final TelnetPutDecoder.Put put = decoder.parse(buffer);
+    assertEquals("sys.cpu.user", put.metric());
+    assertEquals(42, put.longValue());
+  }
+
+  @Test
+  public void parseFallbacks() throws Exception {
+    final String[] lines = new String[] {
+        "version",
+        "put",
+        "put sys.cpu.user",
+        "put sys.cpu.user 1356998400 42",
+        "put sys.cpu.user 1356998400 42 ",
+        "put  1356998400 42 host=web01",
+        "put sys.cpu.user  42 host=web01",
+        "put sys.cpu.user 1356998400  host=web01",
+        "put sys.cpu.user -1356998400 42 host=web01",
+        "put sys.cpu.user 0 42 host=web01",
+        "put sys.cpu.user 1356998400a 42 host=web01",
+        "put sys.cpu.user 1356998400 notanum host=web01",
+        "put sys.cpu.user 1356998400 NaN host=web01",
+        "put sys.cpu.user 1356998400 - host=web01",
+        "put sys.cpu.user 1356998400 1.2.3 host=web01",
+        "put sys.cpu.user 1356998400 1e host=web01",
+        "put sys.cpu.user 1356998400 9223372036854775808 host=web01",
+        "put sys.cpu.user 1356998400 42 host",
+        "put sys.cpu.user 1356998400 42 host=",
+        "put sys.cpu.user 1356998400 42 =web01",
+        "put sys.cpu.user 1356998400 42 host=web=01",
+        "put sys.cpu.user 1356998400 42 host=web01 host=web02",
+        "putx sys.cpu.user 1356998400 42 host=web01",
+        "rollup 1h-sum sys.cpu.user 1356998400 42 host=web01"
+    };
+    for (final String line : lines) {
+      assertNull(line, parse(line));
+    }
+  }
+
+  @Test
+  public void decodePut() throws Exception {
+    final Object decoded = decoder.decode(null, null,
+        buffer("put sys.cpu.user 1356998400 42 host=web01"));
+    assertTrue(decoded instanceof TelnetPutDecoder.Put);
+  }
+
+  @Test
+  public void decodeWords() throws Exception {
+    assertArrayEquals(new String[] { "put", "sys.cpu.user", "1356998400",
+        "notanum", "host=web01" }, (String[]) decoder.decode(null, null,
+            buffer("put sys.cpu.user 1356998400 notanum host=web01")));
+    assertArrayEquals(new String[] { "version" },
+        (String[]) decoder.decode(null, null, buffer("version")));
+  }
+
+  @Test
+  public void words() throws Exception {
+    final TelnetPutDecoder.Put put =
+        parse("put sys.cpu.user 1356998400 42.5 host=web01");
+    assertArrayEquals(new String[] { "put", "sys.cpu.user", "1356998400",
+        "42.5", "host=web01" }, put.words());
+    assertEquals("put sys.cpu.user 1356998400 42.5 host=web01",
+        put.toString());
+    assertEquals("42.5", put.toDataPoint().getValue());
+    assertEquals("web01", put.toDataPoint().getTags().get("host"));
+  }
+
+  private TelnetPutDecoder.Put parse(final String line) {
+    return decoder.parse(buffer(line));
+  }
+
+  private static ChannelBuffer buffer(final String line) {
+    return ChannelBuffers.copiedBuffer(line, CHARSET);
+  }
+}
@@ -0,0 +1,161 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.uid;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public final class TestPrimitiveUidCache {
+  private static final byte[] UID = new byte[] { 0, 0, 1 };
+  private static final byte[] UID2 = new byte[] { 0, 0, 2 };
+
+  private PrimitiveUidCache cache;
+
+  @Before
+  public void before() throws Exception {
+    cache = new PrimitiveUidCache((short) 3);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorZeroWidth() throws Exception {
+    new PrimitiveUidCache((short) 0);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorWidthTooBig() throws Exception {
+    new PrimitiveUidCache((short) 9);
+  }
+
+  @Test
+  public void putAndGet() throws Exception {
+    assertNull(cache.putNameIfAbsent(UID, "sys.cpu.user"));
+    assertEquals("sys.cpu.user", cache.getName(UID));
+    assertNull(cache.getId("sys.cpu.user"));
+    assertEquals(0, cache.nameCount());
+    assertEquals(1, cache.idCount());
+
+    assertNull(cache.putIdIfAbsent("sys.cpu.user", UID));
+    assertArrayEquals(UID, cache.getId("sys.cpu.user"));
+    assertEquals(1, cache.nameCount());
+    assertEquals(1, cache.idCount());
+
+    assertNull(cache.getName(UID2));
+    assertNull(cache.getId("sys.cpu.nice"));
+  }
+
+  @Test
+  public void putSharesName() throws Exception {
+    final String name = new String("sys.cpu.user");
+    cache.putIdIfAbsent(name, UID);
+    cache.putNameIfAbsent(UID, new String("sys.cpu.user"));
+    assertSame(name, cache.getName(UID));
+  }
+
+  @Test
+  public void putExisting() throws Exception {
+    cache.putNameIfAbsent(UID, "sys.cpu.user");
+    cache.putIdIfAbsent("sys.cpu.user", UID);
+    assertEquals("sys.cpu.user", cache.putNameIfAbsent(UID, "sys.cpu.nice"));
+    assertArrayEquals(UID, cache.putIdIfAbsent("sys.cpu.user", UID2));
+    assertEquals("sys.cpu.user", cache.getName(UID));
+    assertArrayEquals(UID, cache.getId("sys.cpu.user"));
+  }
+
+  @Test
+  public void putName() throws Exception {
+    cache.putNameIfAbsent(UID, "sys.cpu.user");
+    cache.putIdIfAbsent("sys.cpu.user", UID);
+    cache.putName(UID, "sys.cpu.nice");
+    cache.removeId("sys.cpu.user");
+    assertEquals("sys.cpu.nice", cache.getName(UID));
+    assertNull(cache.getId("sys.cpu.user"));
+    assertEquals(0, cache.nameCount());
+    assertEquals(1, cache.idCount());
+  }
+
+  @Test
+  public void remove() throws Exception {
+    cache.putNameIfAbsent(UID, "sys.cpu.user");
+    cache.putIdIfAbsent("sys.cpu.user", UID);
+    cache.removeName(UID);
+    assertNull(cache.getName(UID));
+    assertArrayEquals(UID, cache.getId("sys.cpu.user"));
+    cache.removeId("sys.cpu.user");
+    assertNull(cache.getId("sys.cpu.user"));
+    assertEquals(0, cache.nameCount());
+    assertEquals(0, cache.idCount());
+
+    // no-ops
+    cache.removeName(UID2);
+    cache.removeId("sys.cpu.nice");
+  }
+
+  @Test
+  public void clear() throws Exception {
+    cache.putNameIfAbsent(UID, "sys.cpu.user");
+    cache.putIdIfAbsent("sys.cpu.user", UID);
+    cache.clear();
+    assertNull(cache.getName(UID));
+    assertNull(cache.getId("sys.cpu.user"));
+    assertEquals(0, cache.nameCount());
+    assertEquals(0, cache.idCount());
+  }
+
+  @Test
+  public void grow() throws Exception {
+    for (int i = 0; i < 100000; i++) {
+      final byte[] uid = UniqueId.longToUID(i, (short) 3);
+      cache.putNameIfAbsent(uid, "tagv." + i);
+      cache.putIdIfAbsent("tagv." + i, uid);
+      if (i % 3 == 0) {
+        cache.removeName(uid);
+        cache.removeId("tagv." + i);
+      }
+    }
+    int expected = 0;
+    for (int i = 0; i < 100000; i++) {
+      final byte[] uid = UniqueId.longToUID(i, (short) 3);
+      if (i % 3 == 0) {
+        assertNull(cache.getName(uid));
+        assertNull(cache.getId("tagv." + i));
+      } else {
+        assertEquals("tagv." + i, cache.getName(uid));
+        assertArrayEquals(uid, cache.getId("tagv." + i));
+        expected++;
+      }
+    }
+    assertEquals(expected, cache.nameCount());
+    assertEquals(expected, cache.idCount());
+  }
+
+  @Test
+  public void fullWidth() throws Exception {
+    cache = new PrimitiveUidCache((short) 8);
+    final byte[] uid = new byte[] { (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
+        (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF };
+    cache.putNameIfAbsent(uid, "sys.cpu.user");
+    cache.putIdIfAbsent("sys.cpu.user", uid);
+    assertEquals("sys.cpu.user", cache.getName(uid));
+    assertArrayEquals(uid, cache.getId("sys.cpu.user"));
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void getNameWrongWidth() throws Exception {
+    cache.getName(new byte[] { 1 });
+  }
+}
@@ -0,0 +1,192 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.uid;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mock;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.hbase.async.HBaseClient;
+import org.hbase.async.Scanner;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import net.opentsdb.core.TSDB;
+import net.opentsdb.storage.MockBase;
+import net.opentsdb.utils.Config;
+
+@RunWith(PowerMockRunner.class)
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+                  "ch.qos.*", "org.slf4j.*",
+                  "com.sum.*", "org.xml.*"})
+@PrepareForTest({ HBaseClient.class, TSDB.class, Config.class, Scanner.class })
+public final class TestSuggestIndex {
+  private static final byte[] TABLE = { 't', 's', 'd', 'b', '-', 'u', 'i', 'd' };
+  private static final byte[] ID = { 'i', 'd' };
+  private static final byte[] NAME = { 'n', 'a', 'm', 'e' };
+  private static final byte[] TAGV = { 't', 'a', 'g', 'v' };
+  private static final byte[] METRIC_A = { 0, 0, 1 };
+  private static final byte[] METRIC_B = { 0, 0, 2 };
+
+  private SuggestIndex index;
+
+  @Before
+  public void before() throws Exception {
+    index = new SuggestIndex(3);
+    index.add("web01", new byte[] { 0, 0, 1 });
+    index.add("web02", new byte[] { 0, 0, 2 });
+    index.add("web03", new byte[] { 0, 0, 3 });
+    index.add("web04", new byte[] { 0, 0, 4 });
+    index.add("db01", new byte[] { 0, 0, 5 });
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorBadMaxResults() throws Exception {
+    new SuggestIndex(0);
+  }
+
+  @Test
+  public void suggest() throws Exception {
+    assertEquals(Arrays.asList("web01", "web02"), index.suggest("web", 2));
+    // capped by the configured limit
+    assertEquals(Arrays.asList("web01", "web02", "web03"),
+        index.suggest("web", 25));
+    assertEquals(Arrays.asList("db01", "web01", "web02"),
+        index.suggest("", 25));
+    assertTrue(index.suggest("x", 25).isEmpty());
+    assertEquals(4, index.suggestions());
+  }
+
+  @Test
+  public void remove() throws Exception {
+    index.remove("web01");
+    assertEquals(Arrays.asList("web02", "web03"), index.suggest("web", 2));
+  }
+
+  @Test
+  public void suggestScoped() throws Exception {
+    index.observe(METRIC_A, "web02");
+    index.observe(METRIC_A, "web04");
+    index.observe(METRIC_A, "db01");
+    index.observe(METRIC_B, "web01");
+
+    assertEquals(Arrays.asList("web02", "web04"),
+        index.suggest("web", 25, METRIC_A));
+    assertEquals(Arrays.asList("web01"), index.suggest("", 25, METRIC_B));
+    assertTrue(index.suggest("web", 25, new byte[] { 0, 0, 3 }).isEmpty());
+    assertEquals(3, index.scopedSuggestions());
+  }
+
+  @Test
+  public void suggestScopedLimit() throws Exception {
+    index.observe(METRIC_A, "web01");
+    index.observe(METRIC_A, "web02");
+    index.observe(METRIC_A, "web03");
+    index.observe(METRIC_A, "web04");
+    assertEquals(Arrays.asList("web01", "web02"),
+        index.suggest("", 2, METRIC_A));
+    // names removed since they were observed are skipped
+    index.remove("web02");
+    assertEquals(Arrays.asList("web01", "web03", "web04"),
+        index.suggest("web", 25, METRIC_A));
+  }
+
+  @Test
+  public void refresh() throws Exception {
+    index.startRefresh();
+    index.add("web01", new byte[] { 0, 0, 1 });
+    index.add("web05", new byte[] { 0, 0, 6 });
+    assertEquals(4, index.finishRefresh());
+    assertTrue(index.isComplete());
+    assertEquals(Arrays.asList("web01", "web05"), index.suggest("", 25));
+
+    // names added after the refresh are kept
+    index.add("db01", new byte[] { 0, 0, 5 });
+    assertEquals(3, index.size());
+  }
+
+  @Test
+  public void refreshKeepsNamesAddedDuringSweep() throws Exception {
+    for (int i = 0; i < 100000; i++) {
+      index.add("stale" + i, new byte[] { 0, 0, 7 });
+    }
+    index.startRefresh();
+    final Thread writer = new Thread() {
+      @Override
+      public void run() {
+        for (int i = 0; i < 100000; i++) {
+          index.add("stale" + i, new byte[] { 0, 0, 8 });
+        }
+      }
+    };
+    writer.start();
+    index.finishRefresh();
+    writer.join();
+
+    // every name the writer added survived the sweep
+    for (int i = 0; i < 100000; i += 1000) {
+      assertEquals(Arrays.asList("stale" + i),
+          index.suggest("stale" + i, 1));
+    }
+    assertEquals(100000, index.size());
+  }
+
+  @Test
+  public void buildFromUniqueId() throws Exception {
+    final TSDB tsdb = mock(TSDB.class);
+    final HBaseClient client = mock(HBaseClient.class);
+    final Config config = new Config(false);
+    config.overrideConfig("tsd.uid.suggest.enable", "true");
+    when(tsdb.getClient()).thenReturn(client);
+    when(tsdb.getConfig()).thenReturn(config);
+    final MockBase storage = new MockBase(tsdb, client, true, true, true, true);
+    final List<byte[]> families = new ArrayList<byte[]>(2);
+    families.add(ID);
+    families.add(NAME);
+    storage.addTable(TABLE, families);
+    storage.addColumn(TABLE, "web01".getBytes(), ID, TAGV,
+        new byte[] { 0, 0, 1 });
+    storage.addColumn(TABLE, "web02".getBytes(), ID, TAGV,
+        new byte[] { 0, 0, 2 });
+
+    final UniqueId uid = new UniqueId(tsdb, TABLE, "tagv", 3, false);
+    final SuggestIndex suggest_index = uid.suggestIndex();
+    assertFalse(suggest_index.isComplete());
+    assertEquals(2, (int) uid.buildSuggestIndex().join());
+    assertTrue(suggest_index.isComplete());
+    assertEquals(Arrays.asList("web01", "web02"),
+        uid.suggestAsync("web", 25).join());
+
+    // names cached later on show up in suggestions
+    uid.cacheMapping("web03", new byte[] { 0, 0, 3 });
+    assertEquals(3, uid.suggestAsync("web", 25).join().size());
+
+    // a rescan picks up names assigned and deleted elsewhere
+    storage.flushRow(TABLE, "web01".getBytes());
+    storage.addColumn(TABLE, "web04".getBytes(), ID, TAGV,
+        new byte[] { 0, 0, 4 });
+    assertEquals(2, (int) uid.buildSuggestIndex().join());
+    assertEquals(Arrays.asList("web02", "web04"),
+        uid.suggestAsync("web", 25).join());
+  }
+}
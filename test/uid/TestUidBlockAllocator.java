@@ -0,0 +1,208 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.uid;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mock;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hbase.async.AtomicIncrementRequest;
+import org.hbase.async.HBaseClient;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import com.stumbleupon.async.Deferred;
+
+@RunWith(PowerMockRunner.class)
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+                  "ch.qos.*", "org.slf4j.*",
+                  "com.sum.*", "org.xml.*"})
+@PrepareForTest({ HBaseClient.class })
+public final class TestUidBlockAllocator {
+  private static final byte[] TABLE = { 't', 's', 'd', 'b', '-', 'u', 'i', 'd' };
+  private static final byte[] MAXID_ROW = { 0 };
+  private static final byte[] ID = { 'i', 'd' };
+  private static final byte[] METRIC = { 'm', 'e', 't', 'r', 'i', 'c' };
+
+  private HBaseClient client;
+  /** Increments sent to the client, answered by the tests */
+  private List<AtomicIncrementRequest> increments;
+  private List<Deferred<Long>> responses;
+  private long max_id;
+
+  @Before
+  public void before() throws Exception {
+    client = mock(HBaseClient.class);
+    increments = new ArrayList<AtomicIncrementRequest>();
+    responses = new ArrayList<Deferred<Long>>();
+    when(client.atomicIncrement(any(AtomicIncrementRequest.class)))
+      .thenAnswer(new Answer<Deferred<Long>>() {
+        @Override
+        public Deferred<Long> answer(final InvocationOnMock invocation) {
+          final Deferred<Long> deferred = new Deferred<Long>();
+          increments.add((AtomicIncrementRequest) invocation.getArguments()[0]);
+          responses.add(deferred);
+          return deferred;
+        }
+      });
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorZeroBlockSize() throws Exception {
+    allocator(0);
+  }
+
+  @Test
+  public void allocateSingle() throws Exception {
+    final UidBlockAllocator allocator = allocator(1);
+    final Deferred<Long> first = allocator.allocate();
+    assertEquals(1, increments.size());
+    assertEquals(1, increments.get(0).getAmount());
+    respond(0, 1);
+    assertEquals(1, (long) first.join());
+
+    final Deferred<Long> second = allocator.allocate();
+    assertEquals(2, increments.size());
+    respond(1, 1);
+    assertEquals(2, (long) second.join());
+    assertEquals(2, allocator.reservations());
+    assertEquals(2, allocator.reserved());
+    assertEquals(2, allocator.allocated());
+    assertEquals(0, allocator.available());
+  }
+
+  @Test
+  public void allocateFromBlock() throws Exception {
+    final UidBlockAllocator allocator = allocator(4);
+    final Deferred<Long> first = allocator.allocate();
+    assertEquals(4, increments.get(0).getAmount());
+    respond(0, 4);
+    assertEquals(1, (long) first.join());
+    assertEquals(2, (long) allocator.allocate().join());
+    assertEquals(3, (long) allocator.allocate().join());
+    assertEquals(1, increments.size());
+    assertEquals(1, allocator.available());
+
+    assertEquals(4, (long) allocator.allocate().join());
+    final Deferred<Long> fifth = allocator.allocate();
+    assertEquals(2, increments.size());
+    respond(1, 4);
+    assertEquals(5, (long) fifth.join());
+    assertEquals(2, allocator.reservations());
+    assertEquals(8, allocator.reserved());
+    assertEquals(5, allocator.allocated());
+    assertEquals(3, allocator.available());
+  }
+
+  @Test
+  public void allocateCoalesced() throws Exception {
+    final UidBlockAllocator allocator = allocator(1);
+    final List<Deferred<Long>> ids = new ArrayList<Deferred<Long>>();
+    for (int i = 0; i < 4; i++) {
+      ids.add(allocator.allocate());
+    }
+    // one increment in flight, the others wait on it
+    assertEquals(1, increments.size());
+    respond(0, 1);
+    assertEquals(1, (long) ids.get(0).join());
+
+    // then the three waiting requests share a single increment
+    assertEquals(2, increments.size());
+    assertEquals(3, increments.get(1).getAmount());
+    respond(1, 3);
+    for (int i = 1; i < 4; i++) {
+      assertEquals(i + 1, (long) ids.get(i).join());
+    }
+    assertEquals(2, allocator.reservations());
+    assertEquals(4, allocator.reserved());
+    assertEquals(0, allocator.available());
+  }
+
+  @Test
+  public void allocateConcurrentWithOtherTsd() throws Exception {
+    final UidBlockAllocator allocator = allocator(2);
+    final Deferred<Long> first = allocator.allocate();
+    // another TSD reserved IDs 1 to 10 in the meantime
+    max_id = 10;
+    respond(0, 2);
+    assertEquals(11, (long) first.join());
+    assertEquals(12, (long) allocator.allocate().join());
+  }
+
+  @Test
+  public void allocateError() throws Exception {
+    final UidBlockAllocator allocator = allocator(2);
+    final Deferred<Long> first = allocator.allocate();
+    final Deferred<Long> second = allocator.allocate();
+    final RuntimeException ex = new RuntimeException("Boo!");
+    responses.get(0).callback(ex);
+    try {
+      first.join();
+      fail("Expected a RuntimeException");
+    } catch (RuntimeException e) {
+      assertEquals(ex, e);
+    }
+    try {
+      second.join();
+      fail("Expected a RuntimeException");
+    } catch (RuntimeException e) {
+      assertEquals(ex, e);
+    }
+
+    // the next request starts over
+    final Deferred<Long> third = allocator.allocate();
+    assertEquals(2, increments.size());
+    respond(1, 2);
+    assertEquals(1, (long) third.join());
+    assertEquals(1, allocator.available());
+  }
+
+  @Test
+  public void allocateNegative() throws Exception {
+    final UidBlockAllocator allocator = allocator(2);
+    final Deferred<Long> first = allocator.allocate();
+    max_id = -10;
+    respond(0, 2);
+    try {
+      first.join();
+      fail("Expected an IllegalStateException");
+    } catch (IllegalStateException e) { }
+    assertEquals(0, allocator.reserved());
+    verify(client, times(1)).atomicIncrement(any(AtomicIncrementRequest.class));
+  }
+
+  private UidBlockAllocator allocator(final int block_size) {
+    return new UidBlockAllocator(client, TABLE, MAXID_ROW, ID, METRIC,
+        block_size);
+  }
+
+  /** Completes the given increment as the UID table would */
+  private void respond(final int index, final long amount) {
+    assertEquals(amount, increments.get(index).getAmount());
+    max_id += amount;
+    responses.get(index).callback(max_id);
+  }
+}
@@ -0,0 +1,209 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.uid;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.powermock.api.mockito.PowerMockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.Bytes.ByteMap;
+import org.hbase.async.HBaseClient;
+import org.hbase.async.Scanner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import com.google.common.io.Files;
+
+import net.opentsdb.core.TSDB;
+import net.opentsdb.storage.MockBase;
+import net.opentsdb.utils.Config;
+
+@RunWith(PowerMockRunner.class)
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+                  "ch.qos.*", "org.slf4j.*",
+                  "com.sum.*", "org.xml.*"})
+@PrepareForTest({ HBaseClient.class, TSDB.class, Config.class, Scanner.class })
+public final class TestUidCacheSnapshot {
+  private static final byte[] TABLE = { 't', 's', 'd', 'b', '-', 'u', 'i', 'd' };
+  private static final byte[] ID = { 'i', 'd' };
+  private static final byte[] NAME = { 'n', 'a', 'm', 'e' };
+  private static final byte[] MAXID_ROW = { 0 };
+  private static final byte[] METRIC = { 'm', 'e', 't', 'r', 'i', 'c', 's' };
+  private static final byte[] TAGK = { 't', 'a', 'g', 'k' };
+
+  private TSDB tsdb;
+  private Config config;
+  private HBaseClient client;
+  private MockBase storage;
+  private File directory;
+  private ByteMap<UniqueId> uids;
+
+  @Before
+  public void before() throws Exception {
+    tsdb = mock(TSDB.class);
+    client = mock(HBaseClient.class);
+    config = new Config(false);
+    when(tsdb.getClient()).thenReturn(client);
+    when(tsdb.getConfig()).thenReturn(config);
+    storage = new MockBase(tsdb, client, true, true, true, true);
+    final List<byte[]> families = new ArrayList<byte[]>();
+    families.add(ID);
+    families.add(NAME);
+    storage.addTable(TABLE, families);
+
+    directory = Files.createTempDir();
+    config.overrideConfig("tsd.uid.snapshot.file",
+        new File(directory, "uids.snap").getAbsolutePath());
+    uids = newUids();
+  }
+
+  @After
+  public void after() throws Exception {
+    final File[] files = directory.listFiles();
+    if (files != null) {
+      for (final File file : files) {
+        file.delete();
+      }
+    }
+    directory.delete();
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorNoFile() throws Exception {
+    config.overrideConfig("tsd.uid.snapshot.file", "");
+    new UidCacheSnapshot(tsdb, uids);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorBadInterval() throws Exception {
+    config.overrideConfig("tsd.uid.snapshot.interval", "0");
+    new UidCacheSnapshot(tsdb, uids);
+  }
+
+  @Test
+  public void writeAndLoad() throws Exception {
+    uids.get(METRIC).cacheMapping("sys.cpu.user", new byte[] { 0, 0, 1 });
+    uids.get(METRIC).cacheMapping("sys.cpu.nice", new byte[] { 0, 0, 2 });
+    uids.get(TAGK).cacheMapping("host", new byte[] { 0, 0, 1 });
+    final UidCacheSnapshot snapshot = new UidCacheSnapshot(tsdb, uids);
+    assertTrue(snapshot.write());
+    assertFalse(new File(snapshot.file().getPath()
+        + UidCacheSnapshot.TMP_SUFFIX).exists());
+
+    final ByteMap<UniqueId> restored = newUids();
+    assertTrue(new UidCacheSnapshot(tsdb, restored).load());
+    final UniqueId metrics = restored.get(METRIC);
+    assertEquals(4, metrics.cacheSize());
+    assertArrayEquals(new byte[] { 0, 0, 2 }, metrics.getId("sys.cpu.nice"));
+    assertEquals("sys.cpu.user", metrics.getName(new byte[] { 0, 0, 1 }));
+    assertEquals("host", restored.get(TAGK).getName(new byte[] { 0, 0, 1 }));
+  }
+
+  @Test
+  public void writeAndLoadPrimitive() throws Exception {
+    config.overrideConfig("tsd.uid.cache.impl", "primitive");
+    uids = newUids();
+    uids.get(METRIC).cacheMapping("sys.cpu.user", new byte[] { 0, 0, 1 });
+    assertTrue(new UidCacheSnapshot(tsdb, uids).write());
+
+    final ByteMap<UniqueId> restored = newUids();
+    assertTrue(new UidCacheSnapshot(tsdb, restored).load());
+    assertEquals("sys.cpu.user",
+        restored.get(METRIC).getName(new byte[] { 0, 0, 1 }));
+  }
+
+  @Test
+  public void loadMissing() throws Exception {
+    assertFalse(new UidCacheSnapshot(tsdb, uids).load());
+  }
+
+  @Test
+  public void loadCorrupted() throws Exception {
+    uids.get(METRIC).cacheMapping("sys.cpu.user", new byte[] { 0, 0, 1 });
+    final UidCacheSnapshot snapshot = new UidCacheSnapshot(tsdb, uids);
+    assertTrue(snapshot.write());
+    final RandomAccessFile raf = new RandomAccessFile(snapshot.file(), "rw");
+    raf.seek(raf.length() - 12);
+    raf.write(42);
+    raf.close();
+
+    final ByteMap<UniqueId> restored = newUids();
+    assertFalse(new UidCacheSnapshot(tsdb, restored).load());
+    assertEquals(0, restored.get(METRIC).cacheSize());
+  }
+
+  @Test
+  public void loadTooOld() throws Exception {
+    config.overrideConfig("tsd.uid.snapshot.max_age", "60");
+    uids.get(METRIC).cacheMapping("sys.cpu.user", new byte[] { 0, 0, 1 });
+    final UidCacheSnapshot snapshot = new UidCacheSnapshot(tsdb, uids);
+    assertTrue(snapshot.write());
+    final RandomAccessFile raf = new RandomAccessFile(snapshot.file(), "rw");
+    raf.seek(8);
+    raf.writeLong(System.currentTimeMillis() - 120000);
+    raf.close();
+
+    assertFalse(new UidCacheSnapshot(tsdb, newUids()).load());
+  }
+
+  @Test
+  public void catchUp() throws Exception {
+    uids.get(METRIC).cacheMapping("sys.cpu.user", new byte[] { 0, 0, 1 });
+    assertTrue(new UidCacheSnapshot(tsdb, uids).write());
+
+    // two more metrics were assigned while we were down
+    storage.addColumn(TABLE, MAXID_ROW, ID, METRIC, Bytes.fromLong(3));
+    storage.addColumn(TABLE, new byte[] { 0, 0, 1 }, NAME, METRIC,
+        "sys.cpu.user".getBytes());
+    storage.addColumn(TABLE, new byte[] { 0, 0, 2 }, NAME, METRIC,
+        "sys.cpu.nice".getBytes());
+    storage.addColumn(TABLE, new byte[] { 0, 0, 3 }, NAME, METRIC,
+        "sys.cpu.idle".getBytes());
+    storage.addColumn(TABLE, new byte[] { 0, 0, 2 }, NAME, TAGK,
+        "host".getBytes());
+
+    final ByteMap<UniqueId> restored = newUids();
+    final UidCacheSnapshot snapshot = new UidCacheSnapshot(tsdb, restored);
+    assertTrue(snapshot.load());
+    assertEquals(2, snapshot.catchUp());
+    final UniqueId metrics = restored.get(METRIC);
+    assertEquals(6, metrics.cacheSize());
+    assertEquals("sys.cpu.idle", metrics.getName(new byte[] { 0, 0, 3 }));
+    // no max ID for tag keys, nothing to scan
+    assertNull(restored.get(TAGK).nameCache().get("host"));
+    // only once
+    assertEquals(0, snapshot.catchUp());
+  }
+
+  private ByteMap<UniqueId> newUids() {
+    final ByteMap<UniqueId> map = new ByteMap<UniqueId>();
+    map.put(METRIC, new UniqueId(tsdb, TABLE, "metrics", 3, false));
+    map.put(TAGK, new UniqueId(tsdb, TABLE, "tagk", 3, false));
+    return map;
+  }
+}
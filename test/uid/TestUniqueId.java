@@ -624,6 +624,9 @@ public final class TestUniqueId {
     order.verify(client, times(2)).compareAndSet(anyPut(), // both mappings.
                                                  emptyArray());
     order.verify(client).get(anyGet()); // A retries and gets it.
+    assertEquals(1, uid.leakedIds());
+    assertEquals(0, uid.assignments());
+    assertEquals(1, uid_b.assignments());
   }
 
   @Test
@@ -1558,6 +1561,99 @@ public final class TestUniqueId {
     verify(client, times(3)).get(anyGet());
   }
 
+  @Test
+  public void usePrimitive() throws Exception {
+    config.overrideConfig("tsd.uid.cache.impl", "primitive");
+    uid = new UniqueId(tsdb, table, METRIC, 3, false);
+    final byte[] id = { 0, 'a', 0x42 };
+    final byte[] byte_name = { 'f', 'o', 'o' };
+
+    ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(1);
+    kvs.add(new KeyValue(id, ID, METRIC_ARRAY, byte_name));
+    when(client.get(anyGet()))
+      .thenReturn(Deferred.fromResult(kvs));
+
+    assertEquals("foo", uid.getName(id));
+    // Should be a cache hit ...
+    assertEquals("foo", uid.getName(id));
+    // ... both ways
+    assertArrayEquals(id, uid.getId("foo"));
+
+    assertEquals(2, uid.cacheHits());
+    assertEquals(1, uid.cacheMisses());
+    assertEquals(2, uid.cacheSize());
+
+    // ... so verify there was only one HBase Get.
+    verify(client).get(anyGet());
+    assertNotNull(uid.primitiveCache());
+    assertNull(uid.nameCache());
+    assertNull(uid.idCache());
+    assertNull(uid.lruNameCache());
+    
+    uid.dropCaches();
+    assertEquals(0, uid.cacheSize());
+  }
+  
+  @Test
+  public void getOrCreateIdAssignFromBlock() throws Exception {
+    config.overrideConfig("tsd.uid.assign.block_size", "3");
+    uid = new UniqueId(tsdb, table, METRIC, 3, false);
+    when(client.get(anyGet()))
+      .thenReturn(Deferred.<ArrayList<KeyValue>>fromResult(null));
+    when(client.atomicIncrement(incrementForRow(MAXID)))
+      .thenReturn(Deferred.fromResult(7L));
+    when(client.compareAndSet(anyPut(), emptyArray()))
+      .thenReturn(Deferred.fromResult(true))
+      .thenReturn(Deferred.fromResult(true))
+      .thenReturn(Deferred.fromResult(true))
+      .thenReturn(Deferred.fromResult(true));
+
+    assertArrayEquals(new byte[] { 0, 0, 5 }, uid.getOrCreateId("foo"));
+    assertArrayEquals(new byte[] { 0, 0, 6 }, 
+        uid.getOrCreateIdAsync("bar").join());
+    assertEquals("bar", uid.getName(new byte[] { 0, 0, 6 }));
+
+    // one increment for both names, the reverse and forward mappings each
+    verify(client, times(1)).atomicIncrement(incrementForRow(MAXID));
+    verify(client, times(4)).compareAndSet(anyPut(), emptyArray());
+    assertEquals(2, uid.assignments());
+    assertEquals(1, uid.idReservations());
+    assertEquals(3, uid.reservedIds());
+    assertEquals(1, uid.unusedReservedIds());
+    assertEquals(0, uid.leakedIds());
+  }
+  
+  @Test (expected = IllegalArgumentException.class)
+  public void getOrCreateIdAssignBadBlockSize() throws Exception {
+    config.overrideConfig("tsd.uid.assign.block_size", "0");
+    new UniqueId(tsdb, table, METRIC, 3, false);
+  }
+  
+  @Test
+  public void usePrimitiveLruOverrides() throws Exception {
+    config.overrideConfig("tsd.uid.cache.impl", "primitive");
+    config.overrideConfig("tsd.uid.lru.enable", "true");
+    uid = new UniqueId(tsdb, table, METRIC, 3, false);
+    assertNull(uid.primitiveCache());
+    assertNotNull(uid.lruNameCache());
+  }
+  
+  @Test
+  public void usePrimitiveDelete() throws Exception {
+    config.overrideConfig("tsd.uid.cache.impl", "primitive");
+    uid = new UniqueId(tsdb, table, METRIC, 3, false);
+    when(client.delete(any(DeleteRequest.class)))
+      .thenReturn(Deferred.fromResult((Object) null));
+    uid.primitiveCache().putIdIfAbsent("sys.cpu.user", UID);
+    uid.primitiveCache().putNameIfAbsent(UID, "sys.cpu.user");
+    assertEquals(2, uid.cacheSize());
+    
+    uid.deleteAsync("sys.cpu.user").join();
+    assertEquals(0, uid.cacheSize());
+    assertNull(uid.primitiveCache().getId("sys.cpu.user"));
+    assertNull(uid.primitiveCache().getName(UID));
+  }
+
   @Test
   public void useModeRWGetName() throws Exception {
     when(tsdb.getMode()).thenReturn(OperationMode.READWRITE);